@@ -41,11 +41,21 @@ namespace RimWorld.GameRL
         private static uint _ticksRemaining;
         private static bool _stepInProgress;
         private static bool _forcingTicks;
+        private static ulong? _currentRequestId;
+        // Agents of the running ExecuteBatch, in request order (null for single steps)
+        private static List<string>? _currentBatchAgents;
+
+        // ExecuteAction/ExecuteBatch requests pipelined while a step is running (FIFO)
+        private static readonly Queue<GameMessage> _queuedActions = new();
 
         // Event push tracking
         private static int _ticksSinceLastEventPush;
         private const int EventPushIntervalTicks = 60; // Push events every ~1 second at normal speed
 
+        // Live mode: the game runs on its own clock and pushes observations
+        private static bool _liveMode;
+        private static int _pushIntervalTicks = EventPushIntervalTicks;
+
         static GameRLMod()
         {
             // Delay initialization to avoid interfering with def resolution
@@ -77,9 +87,12 @@ namespace RimWorld.GameRL
                 _bridge.OnRegisterAgent += HandleRegisterAgent;
                 _bridge.OnDeregisterAgent += HandleDeregisterAgent;
                 _bridge.OnExecuteAction += HandleExecuteAction;
+                _bridge.OnExecuteBatch += HandleExecuteBatch;
                 _bridge.OnConfigureStreams += HandleConfigureStreams;
                 _bridge.OnReset += HandleReset;
                 _bridge.OnGetStateHash += HandleGetStateHash;
+                _bridge.OnSetClockMode += HandleSetClockMode;
+                _bridge.OnQueueAction += HandleQueueAction;
                 _bridge.OnShutdown += HandleShutdown;
                 _bridge.OnClientConnected += HandleClientConnected;
 
@@ -117,6 +130,10 @@ namespace RimWorld.GameRL
         {
             Log.Message("[GameRL] Rust harmony-bridge connected, sending Ready...");
 
+            // Requests from a previous session will never be answered
+            _queuedActions.Clear();
+            _liveMode = false;
+
             // Send Ready message when client connects
             _bridge?.SendReady(
                 name: "RimWorld",
@@ -126,7 +143,9 @@ namespace RimWorld.GameRL
                     MultiAgent = true,
                     MaxAgents = 8,
                     Deterministic = true,
-                    Headless = false
+                    Headless = false,
+                    BatchStep = true,
+                    LiveMode = true
                 });
 
             Log.Message("[GameRL] Ready message sent");
@@ -173,16 +192,43 @@ namespace RimWorld.GameRL
 
         private static void HandleExecuteAction(ExecuteActionMessage msg)
         {
-            if (_stepInProgress)
+            if (_stepInProgress || _forcingTicks)
+            {
+                // Another request is in flight; run this one when the step completes
+                _queuedActions.Enqueue(msg);
+                return;
+            }
+
+            StartStep(msg);
+        }
+
+        private static void HandleExecuteBatch(ExecuteBatchMessage msg)
+        {
+            if (msg.Actions.Count == 0)
+            {
+                _bridge?.SendError(-32001, "ExecuteBatch has no actions", msg.RequestId);
+                return;
+            }
+
+            if (_stepInProgress || _forcingTicks)
             {
-                Log.Warning("[GameRL] Step already in progress, ignoring action");
+                _queuedActions.Enqueue(msg);
                 return;
             }
 
+            StartBatch(msg);
+        }
+
+        private static void StartStep(ExecuteActionMessage msg)
+        {
             _currentStepId++;
             _currentAgentId = msg.AgentId;
+            _currentBatchAgents = null;
+            _currentRequestId = msg.RequestId;
             _ticksRemaining = msg.Ticks > 0 ? msg.Ticks : 1;
             _stepInProgress = true;
+            // Events from before the step aren't part of its result
+            _stateExtractor?.TakeStepEvents();
 
             try
             {
@@ -195,7 +241,54 @@ namespace RimWorld.GameRL
             {
                 Log.Error($"[GameRL] Action error: {ex}");
                 _stepInProgress = false;
-                _bridge?.SendError(-32001, ex.Message);
+                _bridge?.SendError(-32001, ex.Message, msg.RequestId);
+            }
+        }
+
+        /// <summary>
+        /// Apply every agent's action, then advance the requested ticks once
+        /// </summary>
+        private static void StartBatch(ExecuteBatchMessage msg)
+        {
+            _currentStepId++;
+            _currentAgentId = msg.Actions[0].AgentId;
+            _currentBatchAgents = msg.Actions.ConvertAll(a => a.AgentId);
+            _currentRequestId = msg.RequestId;
+            _ticksRemaining = msg.Ticks > 0 ? msg.Ticks : 1;
+            _stepInProgress = true;
+            _stateExtractor?.TakeStepEvents();
+
+            try
+            {
+                foreach (var entry in msg.Actions)
+                {
+                    _commandExecutor?.ExecuteAction(entry.AgentId, entry.Action!);
+                }
+
+                ForceTicks(_ticksRemaining);
+            }
+            catch (Exception ex)
+            {
+                Log.Error($"[GameRL] Batch action error: {ex}");
+                _stepInProgress = false;
+                _currentBatchAgents = null;
+                _bridge?.SendError(-32001, ex.Message, msg.RequestId);
+            }
+        }
+
+        private static void StartQueuedStep()
+        {
+            if (_stepInProgress || _forcingTicks || _queuedActions.Count == 0)
+                return;
+
+            switch (_queuedActions.Dequeue())
+            {
+                case ExecuteActionMessage msg:
+                    StartStep(msg);
+                    break;
+                case ExecuteBatchMessage msg:
+                    StartBatch(msg);
+                    break;
             }
         }
 
@@ -225,6 +318,8 @@ namespace RimWorld.GameRL
             {
                 _forcingTicks = false;
             }
+
+            StartQueuedStep();
         }
 
         private static void HandleReset(ResetMessage msg)
@@ -239,27 +334,10 @@ namespace RimWorld.GameRL
                 _stateExtractor!.EpisodeStartTick = Find.TickManager?.TicksGame ?? 0;
 
                 // Reset always returns full observation (first observation after reset)
-                object observation;
-                if (_agents.Count == 0)
-                {
-                    observation = ExtractObservationForAgent("default");
-                }
-                else if (_agents.Count == 1)
-                {
-                    var enumerator = _agents.Keys.GetEnumerator();
-                    enumerator.MoveNext();
-                    observation = ExtractObservationForAgent(enumerator.Current);
-                }
-                else
-                {
-                    var observations = new Dictionary<string, object>();
-                    foreach (var agentId in _agents.Keys)
-                    {
-                        observations[agentId] = ExtractObservationForAgent(agentId);
-                    }
-                    observation = observations;
-                }
+                var observation = ExtractObservations();
                 var stateHash = _stateExtractor!.ComputeStateHash();
+                // Events from before the reset don't belong to the next step
+                _stateExtractor.TakeStepEvents();
                 _bridge?.SendResetComplete(observation, stateHash);
             }
             catch (Exception ex)
@@ -275,6 +353,43 @@ namespace RimWorld.GameRL
             _bridge?.SendStateHash(hash);
         }
 
+        private static void HandleSetClockMode(SetClockModeMessage msg)
+        {
+            _liveMode = msg.Mode == ClockModes.Live;
+            _pushIntervalTicks = (int)Math.Min(Math.Max(msg.PushInterval, 1u), (uint)int.MaxValue);
+            _ticksSinceLastEventPush = 0;
+            Log.Message($"[GameRL] Clock mode: {msg.Mode} (push every {_pushIntervalTicks} ticks)");
+
+            // The game owns the clock now, so it has to be running. Commands are
+            // only processed on ticks, so training mode leaves it running too.
+            var tickManager = Find.TickManager;
+            if (_liveMode && tickManager != null && tickManager.Paused)
+            {
+                tickManager.CurTimeSpeed = TimeSpeed.Normal;
+            }
+
+            _bridge?.SendClockModeSet(_liveMode ? ClockModes.Live : ClockModes.Training);
+        }
+
+        private static void HandleQueueAction(QueueActionMessage msg)
+        {
+            // No response: the effect shows up in the next pushed observation
+            if (!_liveMode)
+            {
+                Log.Warning($"[GameRL] Dropping queued action for {msg.AgentId} outside live mode");
+                return;
+            }
+
+            try
+            {
+                _commandExecutor?.ExecuteAction(msg.AgentId, msg.Action!);
+            }
+            catch (Exception ex)
+            {
+                Log.Error($"[GameRL] Queued action error: {ex}");
+            }
+        }
+
         private static void HandleConfigureStreams(ConfigureStreamsMessage msg)
         {
             Log.Message($"[GameRL] Configure streams for agent: {msg.AgentId} ({msg.Profile})");
@@ -332,13 +447,18 @@ namespace RimWorld.GameRL
                 }
             }
 
-            // Push events periodically (only when not in a step, to avoid interference)
+            // Push events periodically (only when not in a step, to avoid interference);
+            // in live mode every push carries observations, at the requested interval
             if (!_stepInProgress && _stateExtractor != null && _bridge != null)
             {
                 _ticksSinceLastEventPush++;
-                if (_ticksSinceLastEventPush >= EventPushIntervalTicks)
+                var interval = _liveMode ? _pushIntervalTicks : EventPushIntervalTicks;
+                if (_ticksSinceLastEventPush >= interval)
                 {
-                    PushPendingEvents();
+                    if (_liveMode)
+                        PushLiveState();
+                    else
+                        PushPendingEvents();
                     _ticksSinceLastEventPush = 0;
                 }
             }
@@ -367,9 +487,22 @@ namespace RimWorld.GameRL
             Log.Message($"[GameRL] Pushed {events.Count} events at tick {tick}");
         }
 
+        /// <summary>
+        /// Live mode: push the agents' observations and any pending events
+        /// </summary>
+        private static void PushLiveState()
+        {
+            if (_stateExtractor == null || _bridge == null) return;
+
+            var tick = (ulong)(Find.TickManager?.TicksGame ?? 0);
+            _bridge.SendStateUpdate(tick, ExtractObservations(), _stateExtractor.CollectEvents());
+        }
+
         private static void CompleteStep()
         {
             _stepInProgress = false;
+            var batchAgents = _currentBatchAgents;
+            _currentBatchAgents = null;
 
             if (_currentAgentId == null || _stateExtractor == null || _commandExecutor == null)
                 return;
@@ -386,8 +519,9 @@ namespace RimWorld.GameRL
                 _stateExtractor.LastActionResult = _commandExecutor.LastActionResult;
 
                 var stateHash = _stateExtractor!.ComputeStateHash();
+                var stepEvents = _stateExtractor.TakeStepEvents();
 
-                if (_agents.Count <= 1)
+                if (batchAgents == null && _agents.Count <= 1)
                 {
                     var observation = ExtractObservationForAgent(_currentAgentId ?? "default");
                     var rewardComponents = _commandExecutor.ComputeReward(_currentAgentId ?? "default");
@@ -400,12 +534,15 @@ namespace RimWorld.GameRL
                         rewardComponents,
                         done,
                         truncated,
-                        stateHash);
+                        stateHash,
+                        _currentRequestId,
+                        stepEvents);
                     return;
                 }
 
+                // A batch reports exactly its own agents, in request order
                 var results = new List<StepResultMessage>();
-                foreach (var agentId in _agents.Keys)
+                foreach (var agentId in batchAgents ?? new List<string>(_agents.Keys))
                 {
                     var observation = ExtractObservationForAgent(agentId);
                     var rewardComponents = _commandExecutor.ComputeReward(agentId);
@@ -419,16 +556,17 @@ namespace RimWorld.GameRL
                         RewardComponents = rewardComponents,
                         Done = done,
                         Truncated = truncated,
-                        StateHash = stateHash
+                        StateHash = stateHash,
+                        Events = stepEvents
                     });
                 }
 
-                _bridge?.SendBatchStepResult(results);
+                _bridge?.SendBatchStepResult(results, _currentRequestId);
             }
             catch (Exception ex)
             {
                 Log.Error($"[GameRL] Step complete error: {ex}");
-                _bridge?.SendError(-32603, ex.Message);
+                _bridge?.SendError(-32603, ex.Message, _currentRequestId);
             }
         }
 
@@ -440,6 +578,31 @@ namespace RimWorld.GameRL
             public string AgentType { get; set; } = "";
         }
 
+        /// <summary>
+        /// Observation of the only agent (or "default" without agents), or a map of
+        /// observations by agent ID when several are registered
+        /// </summary>
+        private static object ExtractObservations()
+        {
+            if (_agents.Count == 0)
+            {
+                return ExtractObservationForAgent("default");
+            }
+            if (_agents.Count == 1)
+            {
+                var enumerator = _agents.Keys.GetEnumerator();
+                enumerator.MoveNext();
+                return ExtractObservationForAgent(enumerator.Current);
+            }
+
+            var observations = new Dictionary<string, object>();
+            foreach (var agentId in _agents.Keys)
+            {
+                observations[agentId] = ExtractObservationForAgent(agentId);
+            }
+            return observations;
+        }
+
         /// <summary>
         /// Extract observation for an agent using its configured observation mode.
         /// Uses delta observations when appropriate.
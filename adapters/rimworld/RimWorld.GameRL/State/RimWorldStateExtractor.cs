@@ -129,6 +129,8 @@ namespace RimWorld.GameRL.State
         // Use alias to avoid conflict with DeltaObservation.GameEvent
         // Using type alias defined at top of file
         private readonly List<global::GameRL.Harmony.Protocol.GameEvent> _pendingEvents = new();
+        // Events recorded since the current step began, reported in its StepResult
+        private readonly List<global::GameRL.Harmony.Protocol.GameEvent> _stepEvents = new();
         private readonly Dictionary<string, ulong> _lastEventTick = new();
 
         // Rate limiting: minimum ticks between events of same type
@@ -813,6 +815,17 @@ namespace RimWorld.GameRL.State
             return validEvents;
         }
 
+        /// <summary>
+        /// Events recorded since the last call, independent of CollectEvents
+        /// (which feeds pushes and delta observations)
+        /// </summary>
+        public List<global::GameRL.Harmony.Protocol.GameEvent> TakeStepEvents()
+        {
+            var events = new List<global::GameRL.Harmony.Protocol.GameEvent>(_stepEvents);
+            _stepEvents.Clear();
+            return events;
+        }
+
         public void RecordEvent(string type, byte severity, object? details = null)
         {
             var now = CurrentTick;
@@ -834,13 +847,18 @@ namespace RimWorld.GameRL.State
                 _pendingEvents.RemoveAt(0);
             }
 
-            _pendingEvents.Add(new global::GameRL.Harmony.Protocol.GameEvent
+            var gameEvent = new global::GameRL.Harmony.Protocol.GameEvent
             {
                 EventType = type,
                 Tick = now,
                 Severity = severity,
                 Details = details
-            });
+            };
+            _pendingEvents.Add(gameEvent);
+            if (_stepEvents.Count < MaxPendingEvents)
+            {
+                _stepEvents.Add(gameEvent);
+            }
 
             _lastEventTick[type] = now;
         }
@@ -51,6 +51,7 @@ local function sendReady()
     })
 end
 
+-- Responses echo msg.RequestId (nil for untagged commands) so Rust can match them
 local function handleMessage(msg)
     if not msg or not msg.Type then return end
     print("[GameRL] Received: " .. msg.Type)
@@ -59,6 +60,7 @@ local function handleMessage(msg)
         print("[GameRL] Agent registered: " .. msg.AgentId)
         IPC.send({
             Type = "AgentRegistered",
+            RequestId = msg.RequestId,
             AgentId = msg.AgentId,
             ObservationSpace = {},
             ActionSpace = ActionDispatcher.getActionSpace()
@@ -79,6 +81,7 @@ local function handleMessage(msg)
         -- Fields flattened (no Result wrapper) to match Rust #[serde(flatten)]
         IPC.send({
             Type = "StepResult",
+            RequestId = msg.RequestId,
             AgentId = msg.AgentId,
             Observation = obs,
             Reward = result.success and 0.1 or -0.1,
@@ -90,11 +93,16 @@ local function handleMessage(msg)
         })
 
     elseif msg.Type == "GetStateHash" then
-        IPC.send({ Type = "StateHash", Hash = StateExtractor.computeStateHash() })
+        IPC.send({
+            Type = "StateHash",
+            RequestId = msg.RequestId,
+            Hash = StateExtractor.computeStateHash()
+        })
 
     elseif msg.Type == "Reset" then
         IPC.send({
             Type = "ResetComplete",
+            RequestId = msg.RequestId,
             Observation = StateExtractor.extractObservation(true),
             StateHash = StateExtractor.computeStateHash()
         })
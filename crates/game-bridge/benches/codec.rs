@@ -0,0 +1,145 @@
+//! Protocol codec benchmarks
+//!
+//! Serializes and deserializes the messages that dominate a training run, in
+//! both wire encodings. Payloads are built as the game would send them and
+//! parsed once up front, so deserialization sees realistic bytes.
+//!
+//! Run with `cargo bench -p game-bridge --bench codec`.
+
+use criterion::{BenchmarkId, Criterion, Throughput, criterion_group, criterion_main};
+use game_bridge::{GameMessage, WireEncoding, decode, deserialize, encode, serialize};
+use serde_json::{Value, json};
+use std::hint::black_box;
+
+fn colonist(i: usize) -> Value {
+    json!({
+        "Id": format!("Human{}", 1000 + i),
+        "Name": format!("Colonist {}", i),
+        "Position": { "X": 100 + i % 50, "Y": 90 + i / 50 },
+        "Health": 0.87,
+        "Mood": 0.52,
+        "Needs": { "Food": 0.41, "Rest": 0.66, "Joy": 0.12, "Comfort": 0.3 },
+        "Skills": {
+            "Shooting": 6, "Melee": 3, "Construction": 8,
+            "Mining": 4, "Cooking": 5, "Plants": 7
+        },
+        "Job": "HaulToCell",
+        "Inventory": [
+            { "Def": "MealSimple", "Count": 2 },
+            { "Def": "MedicineHerbal", "Count": 1 }
+        ],
+        "IsDrafted": false
+    })
+}
+
+fn item(i: usize) -> Value {
+    json!({
+        "Id": format!("Steel{}", 40000 + i),
+        "Def": "Steel",
+        "Position": { "X": i % 250, "Y": i / 250 },
+        "IsForbidden": i % 7 == 0
+    })
+}
+
+/// RimWorld-style colony observation with `colonists` pawns and four items each
+fn observation(colonists: usize) -> Value {
+    json!({
+        "Tick": 348_719,
+        "Colonists": (0..colonists).map(colonist).collect::<Vec<_>>(),
+        "Items": (0..colonists * 4).map(item).collect::<Vec<_>>(),
+        "Stockpiles": { "WoodLog": 58, "Steel": 412, "MealSimple": 13 }
+    })
+}
+
+fn step_result(agent_id: &str, observation: Value) -> Value {
+    json!({
+        "AgentId": agent_id,
+        "Observation": observation,
+        "Reward": 0.25,
+        "RewardComponents": { "survival": 0.2, "mood": 0.05 },
+        "Done": false,
+        "Truncated": false,
+        "StateHash": "sha256:00b866e0"
+    })
+}
+
+/// Named messages, parsed from the JSON a game would send
+fn payloads() -> Vec<(&'static str, GameMessage)> {
+    let ready = json!({
+        "Type": "Ready",
+        "Name": "RimWorld",
+        "Version": "1.5.4104",
+        "Capabilities": {
+            "MultiAgent": true,
+            "MaxAgents": 8,
+            "Deterministic": true,
+            "Headless": false,
+            "Encodings": ["MessagePack"],
+            "Compression": ["Zstd"],
+            "Transports": ["SharedMemory"],
+            "Framing": ["Chunked"]
+        }
+    });
+
+    let mut small_step = step_result("colony", observation(1));
+    small_step["Type"] = json!("StepResult");
+
+    // About 500 KB as JSON
+    let mut full_observation = step_result("colony", observation(1000));
+    full_observation["Type"] = json!("StepResult");
+
+    let batch = json!({
+        "Type": "BatchStepResult",
+        "Results": (0..8)
+            .map(|i| step_result(&format!("agent-{}", i), observation(10)))
+            .collect::<Vec<_>>()
+    });
+
+    [
+        ("ready", ready),
+        ("step_result_small", small_step),
+        ("step_result_500k", full_observation),
+        ("batch_step_result_8", batch),
+    ]
+    .into_iter()
+    .map(|(name, value)| {
+        let bytes = serde_json::to_vec(&value).unwrap();
+        (name, deserialize(&bytes).unwrap())
+    })
+    .collect()
+}
+
+fn bench_json(c: &mut Criterion) {
+    let mut group = c.benchmark_group("json");
+    for (name, message) in payloads() {
+        let bytes = serialize(&message).unwrap();
+        group.throughput(Throughput::Bytes(bytes.len() as u64));
+
+        group.bench_with_input(BenchmarkId::new("serialize", name), &message, |b, message| {
+            b.iter(|| serialize(black_box(message)).unwrap())
+        });
+        group.bench_with_input(BenchmarkId::new("deserialize", name), &bytes, |b, bytes| {
+            b.iter(|| deserialize(black_box(bytes)).unwrap())
+        });
+    }
+    group.finish();
+}
+
+fn bench_messagepack(c: &mut Criterion) {
+    let mut group = c.benchmark_group("messagepack");
+    for (name, message) in payloads() {
+        let bytes = encode(&message, WireEncoding::MessagePack).unwrap();
+        group.throughput(Throughput::Bytes(bytes.len() as u64));
+
+        group.bench_with_input(BenchmarkId::new("encode", name), &message, |b, message| {
+            b.iter(|| encode(black_box(message), WireEncoding::MessagePack).unwrap())
+        });
+        group.bench_with_input(BenchmarkId::new("decode", name), &bytes, |b, bytes| {
+            b.iter(|| decode(black_box(bytes)).unwrap())
+        });
+    }
+    group.finish();
+}
+
+criterion_group!(benches, bench_json, bench_messagepack);
+criterion_main!(benches);
@@ -0,0 +1,123 @@
+//! Framing throughput benchmarks
+//!
+//! Pushes frames through the transport wrappers over loopback connections:
+//! a Unix socketpair (`UnixReadWrapper`/`UnixWriteWrapper`) and a TCP
+//! connection on 127.0.0.1. Each iteration writes and reads the same frames,
+//! so the numbers cover prefixing, vectored writes and the recycled receive
+//! buffer together.
+//!
+//! Run with `cargo bench -p game-bridge --bench framing`.
+
+use criterion::{BenchmarkId, Criterion, Throughput, criterion_group, criterion_main};
+use game_bridge::{AsyncReader, AsyncWriter};
+use std::hint::black_box;
+use std::time::{Duration, Instant};
+use tokio::runtime::Runtime;
+
+/// Single-frame payload sizes: a small command, a typical step, a vision frame
+const FRAME_SIZES: [usize; 3] = [256, 64 * 1024, 1024 * 1024];
+
+/// Frames per batched write (one per agent in a lockstep round)
+const BATCH: usize = 8;
+
+fn runtime() -> Runtime {
+    tokio::runtime::Builder::new_current_thread()
+        .enable_all()
+        .build()
+        .unwrap()
+}
+
+/// Time `iters` round trips of `frames` through a connected writer/reader pair
+fn round_trips<R: AsyncReader, W: AsyncWriter>(
+    runtime: &Runtime,
+    reader: &mut R,
+    writer: &mut W,
+    frames: &[&[u8]],
+    iters: u64,
+) -> Duration {
+    runtime.block_on(async {
+        let start = Instant::now();
+        for _ in 0..iters {
+            // The reader drains concurrently, so frames larger than the socket
+            // buffer don't stall the writer
+            let read_all = async {
+                for _ in frames {
+                    black_box(reader.read_message().await.unwrap());
+                }
+            };
+            let (written, ()) = tokio::join!(writer.write_messages(frames), read_all);
+            written.unwrap();
+        }
+        start.elapsed()
+    })
+}
+
+fn bench_transport<R: AsyncReader, W: AsyncWriter>(
+    c: &mut Criterion,
+    name: &str,
+    runtime: &Runtime,
+    mut reader: R,
+    mut writer: W,
+) {
+    let mut group = c.benchmark_group(name);
+
+    for size in FRAME_SIZES {
+        let payload = vec![0x5a; size];
+        group.throughput(Throughput::Bytes(size as u64));
+        group.bench_with_input(BenchmarkId::new("frame", size), &payload, |b, payload| {
+            b.iter_custom(|iters| {
+                round_trips(runtime, &mut reader, &mut writer, &[payload.as_slice()], iters)
+            })
+        });
+    }
+
+    let payload = vec![0x5a; 4096];
+    let batch = [payload.as_slice(); BATCH];
+    group.throughput(Throughput::Bytes((payload.len() * BATCH) as u64));
+    group.bench_function(BenchmarkId::new("batch", BATCH), |b| {
+        b.iter_custom(|iters| round_trips(runtime, &mut reader, &mut writer, &batch, iters))
+    });
+
+    group.finish();
+}
+
+#[cfg(unix)]
+fn bench_unix(c: &mut Criterion) {
+    use game_bridge::unix::{UnixReadWrapper, UnixWriteWrapper};
+    use tokio::net::UnixStream;
+
+    let runtime = runtime();
+    let (ours, theirs) = runtime.block_on(async { UnixStream::pair() }).unwrap();
+    let (_, write_half) = ours.into_split();
+    let (read_half, _) = theirs.into_split();
+
+    bench_transport(
+        c,
+        "unix",
+        &runtime,
+        UnixReadWrapper::new(read_half),
+        UnixWriteWrapper::new(write_half),
+    );
+}
+
+#[cfg(not(unix))]
+fn bench_unix(_c: &mut Criterion) {}
+
+fn bench_tcp(c: &mut Criterion) {
+    use tokio::net::{TcpListener, TcpStream};
+
+    let runtime = runtime();
+    let (client, accepted) = runtime.block_on(async {
+        let listener = TcpListener::bind("127.0.0.1:0").await.unwrap();
+        let addr = listener.local_addr().unwrap();
+        let (client, accepted) = tokio::join!(TcpStream::connect(addr), listener.accept());
+        (client.unwrap(), accepted.unwrap().0)
+    });
+    let (_, writer) = game_bridge::tcp::split(client);
+    let (reader, _) = game_bridge::tcp::split(accepted);
+
+    bench_transport(c, "tcp", &runtime, reader, writer);
+}
+
+criterion_group!(benches, bench_unix, bench_tcp);
+criterion_main!(benches);
@@ -0,0 +1,601 @@
+//! Correlated request/response over a framed game connection
+//!
+//! Every request gets a `RequestId` that the game echoes on its response, so
+//! several requests (e.g. one `ExecuteAction` per agent) can be in flight on
+//! the same socket. Responses without an ID are matched to the oldest
+//! outstanding request, which keeps games that predate correlation IDs working.
+
+use crate::frame::FrameCompression;
+use crate::metrics::{BridgeMetrics, MetricsSnapshot};
+use crate::protocol::{Envelope, GameMessage, RequestId, WireEncoding, encode_envelope};
+use crate::transport::{AsyncReader, AsyncWriter, reader_task};
+use game_rl_core::{GameRLError, Result};
+use game_rl_server::EventHub;
+use std::collections::{HashMap, VecDeque};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Arc, MutexGuard, PoisonError};
+use std::time::Instant;
+use tokio::sync::{Mutex, oneshot};
+use tokio::task::JoinHandle;
+use tracing::{debug, warn};
+
+type ResponseSender = oneshot::Sender<Result<GameMessage>>;
+
+#[derive(Default)]
+struct PendingState {
+    /// Response channels keyed by request ID
+    by_id: HashMap<RequestId, ResponseSender>,
+    /// Request IDs in the order they were written (for untagged responses)
+    order: VecDeque<RequestId>,
+    /// Untagged messages that arrived before anyone asked (e.g. an early Ready)
+    unclaimed: VecDeque<GameMessage>,
+    /// Set once the reader task has stopped; no new requests are accepted
+    closed: bool,
+}
+
+/// Upper bound on stashed untagged messages, so stray replies can't pile up
+const MAX_UNCLAIMED: usize = 16;
+
+/// Requests awaiting a response, shared between requesters and the reader task
+#[derive(Clone, Default)]
+pub struct PendingRequests {
+    state: Arc<std::sync::Mutex<PendingState>>,
+}
+
+impl PendingRequests {
+    /// Create an empty pending map
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    fn lock(&self) -> MutexGuard<'_, PendingState> {
+        self.state.lock().unwrap_or_else(PoisonError::into_inner)
+    }
+
+    /// Register a request before it is written, returning its response channel
+    pub fn register(
+        &self,
+        request_id: RequestId,
+    ) -> Result<oneshot::Receiver<Result<GameMessage>>> {
+        let mut state = self.lock();
+        if state.closed {
+            return Err(GameRLError::IpcError("Connection lost".into()));
+        }
+
+        let (response_tx, response_rx) = oneshot::channel();
+        state.by_id.insert(request_id, response_tx);
+        state.order.push_back(request_id);
+        Ok(response_rx)
+    }
+
+    /// Like `register`, but first hands out an untagged message that arrived
+    /// while nobody was waiting
+    pub fn register_unsolicited(
+        &self,
+        request_id: RequestId,
+    ) -> Result<oneshot::Receiver<Result<GameMessage>>> {
+        let early = self.lock().unclaimed.pop_front();
+        match early {
+            Some(message) => {
+                let (response_tx, response_rx) = oneshot::channel();
+                let _ = response_tx.send(Ok(message));
+                Ok(response_rx)
+            }
+            None => self.register(request_id),
+        }
+    }
+
+    /// Forget a request that was never written
+    pub fn cancel(&self, request_id: RequestId) {
+        let mut state = self.lock();
+        state.by_id.remove(&request_id);
+        state.order.retain(|&id| id != request_id);
+    }
+
+    /// Route a response to its request.
+    ///
+    /// Tagged responses go to the matching ID; untagged ones to the oldest
+    /// outstanding request, or are stashed for `register_unsolicited` if
+    /// there is none. Returns false if nobody was waiting.
+    pub fn resolve(&self, request_id: Option<RequestId>, response: Result<GameMessage>) -> bool {
+        let response_tx = {
+            let mut state = self.lock();
+            match request_id {
+                Some(id) => {
+                    let response_tx = state.by_id.remove(&id);
+                    if response_tx.is_some() {
+                        // Responses usually arrive in order, so this is the front
+                        if let Some(pos) = state.order.iter().position(|&queued| queued == id) {
+                            state.order.remove(pos);
+                        }
+                    }
+                    response_tx
+                }
+                None => {
+                    let mut oldest = None;
+                    while let Some(id) = state.order.pop_front() {
+                        if let Some(response_tx) = state.by_id.remove(&id) {
+                            oldest = Some(response_tx);
+                            break;
+                        }
+                    }
+                    oldest
+                }
+            }
+        };
+
+        match response_tx {
+            // The requester may have given up; that's not an error here
+            Some(response_tx) => {
+                let _ = response_tx.send(response);
+                true
+            }
+            None => {
+                if let (None, Ok(message)) = (request_id, response) {
+                    let mut state = self.lock();
+                    if state.unclaimed.len() == MAX_UNCLAIMED {
+                        state.unclaimed.pop_front();
+                    }
+                    state.unclaimed.push_back(message);
+                }
+                false
+            }
+        }
+    }
+
+    /// Fail every outstanding request and refuse new ones
+    pub fn close(&self, reason: &str) {
+        let drained: Vec<ResponseSender> = {
+            let mut state = self.lock();
+            state.closed = true;
+            state.order.clear();
+            state.unclaimed.clear();
+            state.by_id.drain().map(|(_, response_tx)| response_tx).collect()
+        };
+
+        for response_tx in drained {
+            let _ = response_tx.send(Err(GameRLError::IpcError(reason.to_string())));
+        }
+    }
+
+    /// Number of requests still waiting for a response
+    pub fn len(&self) -> usize {
+        self.lock().by_id.len()
+    }
+
+    /// Whether no requests are outstanding
+    pub fn is_empty(&self) -> bool {
+        self.len() == 0
+    }
+}
+
+/// A live connection to a game process
+///
+/// `request` takes `&self`, so callers sharing the connection can pipeline
+/// requests; each waits only for its own response. The game-rl-server actor
+/// drives the environment one call at a time, so agent steps coming through
+/// the MCP server are not pipelined.
+pub struct GameConnection {
+    /// Writer half; the lock also fixes the order requests are registered in
+    writer: Mutex<Box<dyn AsyncWriter>>,
+    /// Requests awaiting a response
+    pending: PendingRequests,
+    /// Next correlation ID
+    next_request_id: AtomicU64,
+    /// Encoding for outgoing frames
+    encoding: WireEncoding,
+    /// Counters shared with the reader task
+    metrics: BridgeMetrics,
+    /// Background reader task
+    reader_handle: JoinHandle<()>,
+}
+
+impl GameConnection {
+    /// Wrap a transport and spawn its reader task
+    pub fn spawn<R: AsyncReader + 'static>(
+        reader: R,
+        writer: Box<dyn AsyncWriter>,
+        hub: EventHub,
+    ) -> Self {
+        Self::spawn_with_metrics(reader, writer, hub, BridgeMetrics::new())
+    }
+
+    /// Like `spawn`, but count into existing metrics (e.g. to keep totals
+    /// across a reconnect or a switch to shared memory)
+    pub fn spawn_with_metrics<R: AsyncReader + 'static>(
+        reader: R,
+        writer: Box<dyn AsyncWriter>,
+        hub: EventHub,
+        metrics: BridgeMetrics,
+    ) -> Self {
+        let pending = PendingRequests::new();
+        let reader_handle =
+            tokio::spawn(reader_task(reader, pending.clone(), hub, metrics.clone()));
+
+        Self {
+            writer: Mutex::new(writer),
+            pending,
+            next_request_id: AtomicU64::new(1),
+            encoding: WireEncoding::Json,
+            metrics,
+            reader_handle,
+        }
+    }
+
+    /// Encoding currently used for outgoing frames
+    pub fn encoding(&self) -> WireEncoding {
+        self.encoding
+    }
+
+    /// Switch the encoding of outgoing frames
+    pub fn set_encoding(&mut self, encoding: WireEncoding) {
+        self.encoding = encoding;
+    }
+
+    /// Compress outgoing frames at or above the threshold (`None` disables)
+    pub async fn set_compression(&self, compression: Option<FrameCompression>) -> Result<()> {
+        self.writer.lock().await.set_compression(compression)
+    }
+
+    /// Split outgoing messages longer than `chunk_size` into parts (`None` disables)
+    pub async fn set_chunk_size(&self, chunk_size: Option<usize>) {
+        self.writer.lock().await.set_chunk_size(chunk_size);
+    }
+
+    /// Number of requests waiting for a response
+    pub fn in_flight(&self) -> usize {
+        self.pending.len()
+    }
+
+    /// Copy of this connection's transport counters
+    pub fn metrics(&self) -> MetricsSnapshot {
+        let mut snapshot = self.metrics.snapshot();
+        snapshot.in_flight = self.pending.len();
+        snapshot
+    }
+
+    /// Encode a frame, counting it as sent
+    fn encode(&self, envelope: &Envelope) -> Result<Vec<u8>> {
+        let data = encode_envelope(envelope, self.encoding)?;
+        let kind = envelope.message.kind();
+        self.metrics.record_sent(kind, data.len());
+        debug!("[Rust→Game] {} len={} {}", kind, data.len(), self.encoding);
+        Ok(data)
+    }
+
+    fn register(&self, request_id: RequestId) -> Result<oneshot::Receiver<Result<GameMessage>>> {
+        let response_rx = self.pending.register(request_id)?;
+        self.metrics.observe_in_flight(self.pending.len());
+        Ok(response_rx)
+    }
+
+    /// Send a request and wait for its response
+    pub async fn request(&self, message: GameMessage) -> Result<GameMessage> {
+        let request_id = self.next_request_id.fetch_add(1, Ordering::Relaxed);
+        let kind = message.kind();
+        let data = self.encode(&Envelope::request(request_id, message))?;
+
+        let (response_rx, sent_at) = {
+            // Register and write under one lock so write order matches the
+            // order untagged responses are matched in
+            let mut writer = self.writer.lock().await;
+            let response_rx = self.register(request_id)?;
+            let sent_at = Instant::now();
+            if let Err(e) = writer.write_message(&data).await {
+                self.pending.cancel(request_id);
+                return Err(e);
+            }
+            self.metrics.record_write(sent_at.elapsed());
+            (response_rx, sent_at)
+        };
+
+        let response = response_rx
+            .await
+            .map_err(|_| GameRLError::IpcError("Reader task died waiting for response".into()))?;
+        self.metrics.record_latency(kind, sent_at.elapsed());
+        response
+    }
+
+    /// Send several requests in one write and wait for all of their responses
+    ///
+    /// Frames go out back to back in a single vectored write and flush, which
+    /// suits lockstep rounds where every agent submits at once. The outer error
+    /// is a transport failure; each request still gets its own result.
+    pub async fn request_batch(
+        &self,
+        messages: Vec<GameMessage>,
+    ) -> Result<Vec<Result<GameMessage>>> {
+        let mut request_ids = Vec::with_capacity(messages.len());
+        let mut kinds = Vec::with_capacity(messages.len());
+        let mut frames = Vec::with_capacity(messages.len());
+        for message in messages {
+            let request_id = self.next_request_id.fetch_add(1, Ordering::Relaxed);
+            kinds.push(message.kind());
+            frames.push(self.encode(&Envelope::request(request_id, message))?);
+            request_ids.push(request_id);
+        }
+
+        let (receivers, sent_at) = {
+            let mut writer = self.writer.lock().await;
+            let mut receivers = Vec::with_capacity(request_ids.len());
+            for &request_id in &request_ids {
+                match self.register(request_id) {
+                    Ok(response_rx) => receivers.push(response_rx),
+                    Err(e) => {
+                        self.cancel_all(&request_ids);
+                        return Err(e);
+                    }
+                }
+            }
+
+            let slices: Vec<&[u8]> = frames.iter().map(Vec::as_slice).collect();
+            let sent_at = Instant::now();
+            if let Err(e) = writer.write_messages(&slices).await {
+                self.cancel_all(&request_ids);
+                return Err(e);
+            }
+            self.metrics.record_write(sent_at.elapsed());
+            (receivers, sent_at)
+        };
+
+        let mut responses = Vec::with_capacity(receivers.len());
+        for (response_rx, kind) in receivers.into_iter().zip(kinds) {
+            let response = match response_rx.await {
+                Ok(response) => {
+                    self.metrics.record_latency(kind, sent_at.elapsed());
+                    response
+                }
+                Err(_) => Err(GameRLError::IpcError(
+                    "Reader task died waiting for response".into(),
+                )),
+            };
+            responses.push(response);
+        }
+        Ok(responses)
+    }
+
+    fn cancel_all(&self, request_ids: &[RequestId]) {
+        for &request_id in request_ids {
+            self.pending.cancel(request_id);
+        }
+    }
+
+    /// Wait for the next message the game sends without being asked
+    /// (e.g. `Ready`, which arrives right after connecting)
+    pub async fn next_unsolicited(&self) -> Result<GameMessage> {
+        let request_id = self.next_request_id.fetch_add(1, Ordering::Relaxed);
+        let response_rx = {
+            let _writer = self.writer.lock().await;
+            self.pending.register_unsolicited(request_id)?
+        };
+
+        response_rx
+            .await
+            .map_err(|_| GameRLError::IpcError("Reader task died waiting for message".into()))?
+    }
+
+    /// Send a message without waiting for a response (fire-and-forget)
+    pub async fn send(&self, message: GameMessage) -> Result<()> {
+        let data = self.encode(&Envelope::from(message))?;
+        let mut writer = self.writer.lock().await;
+        let started = Instant::now();
+        writer.write_message(&data).await?;
+        self.metrics.record_write(started.elapsed());
+        Ok(())
+    }
+
+    /// Send several messages without waiting for responses, flushing once
+    pub async fn send_batch(&self, messages: Vec<GameMessage>) -> Result<()> {
+        let frames = messages
+            .into_iter()
+            .map(|message| self.encode(&Envelope::from(message)))
+            .collect::<Result<Vec<_>>>()?;
+        let slices: Vec<&[u8]> = frames.iter().map(Vec::as_slice).collect();
+        let mut writer = self.writer.lock().await;
+        let started = Instant::now();
+        writer.write_messages(&slices).await?;
+        self.metrics.record_write(started.elapsed());
+        Ok(())
+    }
+}
+
+impl Drop for GameConnection {
+    fn drop(&mut self) {
+        if !self.pending.is_empty() {
+            warn!("Dropping connection with {} pending requests", self.pending.len());
+        }
+        self.reader_handle.abort();
+        self.pending.close("Connection closed");
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::protocol::decode_envelope;
+    use async_trait::async_trait;
+    use bytes::Bytes;
+    use tokio::sync::mpsc;
+
+    struct ChannelReader(mpsc::UnboundedReceiver<Vec<u8>>);
+
+    #[async_trait]
+    impl AsyncReader for ChannelReader {
+        async fn read_message(&mut self) -> Result<Bytes> {
+            self.0
+                .recv()
+                .await
+                .map(Bytes::from)
+                .ok_or_else(|| GameRLError::IpcError("closed".into()))
+        }
+    }
+
+    struct ChannelWriter(mpsc::UnboundedSender<Vec<u8>>);
+
+    #[async_trait]
+    impl AsyncWriter for ChannelWriter {
+        async fn write_message(&mut self, data: &[u8]) -> Result<()> {
+            self.0
+                .send(data.to_vec())
+                .map_err(|_| GameRLError::IpcError("closed".into()))
+        }
+    }
+
+    /// Connection plus the game's ends of the two channels
+    fn connect() -> (
+        GameConnection,
+        mpsc::UnboundedReceiver<Vec<u8>>,
+        mpsc::UnboundedSender<Vec<u8>>,
+    ) {
+        let (to_game_tx, to_game_rx) = mpsc::unbounded_channel();
+        let (from_game_tx, from_game_rx) = mpsc::unbounded_channel();
+        let connection = GameConnection::spawn(
+            ChannelReader(from_game_rx),
+            Box::new(ChannelWriter(to_game_tx)),
+            EventHub::new(4),
+        );
+        (connection, to_game_rx, from_game_tx)
+    }
+
+    fn reply(request_id: Option<RequestId>, hash: &str) -> Vec<u8> {
+        let envelope = Envelope {
+            request_id,
+            message: GameMessage::StateHash { hash: hash.into() },
+        };
+        encode_envelope(&envelope, WireEncoding::Json).unwrap()
+    }
+
+    fn hash_of(response: Result<GameMessage>) -> String {
+        match response.unwrap() {
+            GameMessage::StateHash { hash } => hash,
+            other => panic!("unexpected response: {:?}", other),
+        }
+    }
+
+    #[tokio::test]
+    async fn test_out_of_order_responses_route_by_id() {
+        let (connection, mut to_game, from_game) = connect();
+
+        let game = async {
+            let first = decode_envelope(&to_game.recv().await.unwrap()).unwrap();
+            let second = decode_envelope(&to_game.recv().await.unwrap()).unwrap();
+            assert_ne!(first.request_id, second.request_id);
+
+            // Answer the second request first
+            from_game.send(reply(second.request_id, "second")).unwrap();
+            from_game.send(reply(first.request_id, "first")).unwrap();
+        };
+
+        let (first, second, ()) = tokio::join!(
+            connection.request(GameMessage::GetStateHash),
+            connection.request(GameMessage::GetStateHash),
+            game
+        );
+
+        assert_eq!(hash_of(first), "first");
+        assert_eq!(hash_of(second), "second");
+        assert_eq!(connection.in_flight(), 0);
+    }
+
+    #[tokio::test]
+    async fn test_request_batch_routes_each_response() {
+        let (connection, mut to_game, from_game) = connect();
+
+        let game = async {
+            let mut request_ids = Vec::new();
+            for _ in 0..3 {
+                let envelope = decode_envelope(&to_game.recv().await.unwrap()).unwrap();
+                request_ids.push(envelope.request_id);
+            }
+            for (i, request_id) in request_ids.into_iter().enumerate().rev() {
+                from_game.send(reply(request_id, &i.to_string())).unwrap();
+            }
+        };
+
+        let batch = vec![GameMessage::GetStateHash; 3];
+        let (responses, ()) = tokio::join!(connection.request_batch(batch), game);
+
+        let hashes: Vec<String> = responses.unwrap().into_iter().map(hash_of).collect();
+        assert_eq!(hashes, ["0", "1", "2"]);
+    }
+
+    #[tokio::test]
+    async fn test_untagged_responses_are_fifo() {
+        let (connection, mut to_game, from_game) = connect();
+
+        let game = async {
+            to_game.recv().await.unwrap();
+            to_game.recv().await.unwrap();
+            from_game.send(reply(None, "first")).unwrap();
+            from_game.send(reply(None, "second")).unwrap();
+        };
+
+        let (first, second, ()) = tokio::join!(
+            connection.request(GameMessage::GetStateHash),
+            connection.request(GameMessage::GetStateHash),
+            game
+        );
+
+        assert_eq!(hash_of(first), "first");
+        assert_eq!(hash_of(second), "second");
+    }
+
+    #[tokio::test]
+    async fn test_unsolicited_ready() {
+        let (connection, _to_game, from_game) = connect();
+
+        // The game may send Ready before anyone waits for it
+
+        let ready = Envelope::from(GameMessage::Ready {
+            name: "TestGame".into(),
+            version: "1.0.0".into(),
+            capabilities: Default::default(),
+        });
+        from_game
+            .send(encode_envelope(&ready, WireEncoding::Json).unwrap())
+            .unwrap();
+        tokio::task::yield_now().await;
+
+        match connection.next_unsolicited().await.unwrap() {
+            GameMessage::Ready { name, .. } => assert_eq!(name, "TestGame"),
+            other => panic!("unexpected message: {:?}", other),
+        }
+    }
+
+    #[tokio::test]
+    async fn test_connection_lost_fails_pending_requests() {
+        let (connection, mut to_game, from_game) = connect();
+
+        let game = async {
+            to_game.recv().await.unwrap();
+            drop(from_game);
+        };
+
+        let (response, ()) = tokio::join!(connection.request(GameMessage::GetStateHash), game);
+        assert!(matches!(response, Err(GameRLError::IpcError(_))));
+
+        // New requests fail fast instead of hanging
+        let response = connection.request(GameMessage::GetStateHash).await;
+        assert!(matches!(response, Err(GameRLError::IpcError(_))));
+    }
+
+    #[tokio::test]
+    async fn test_metrics_count_requests_and_responses() {
+        let (connection, mut to_game, from_game) = connect();
+
+        let game = async {
+            let request = decode_envelope(&to_game.recv().await.unwrap()).unwrap();
+            from_game.send(reply(request.request_id, "h")).unwrap();
+        };
+
+        let (response, ()) = tokio::join!(connection.request(GameMessage::GetStateHash), game);
+        assert_eq!(hash_of(response), "h");
+
+        let metrics = connection.metrics();
+        assert_eq!(metrics.sent["GetStateHash"].frames, 1);
+        assert_eq!(metrics.received["StateHash"].frames, 1);
+        assert_eq!(metrics.latency["GetStateHash"].count, 1);
+        assert_eq!(metrics.max_in_flight, 1);
+        assert_eq!(metrics.in_flight, 0);
+    }
+}
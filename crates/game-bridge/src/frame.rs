@@ -0,0 +1,600 @@
+//! Length-prefixed frame I/O
+//!
+//! Reading: each connection keeps one `BytesMut` receive buffer. Frames are
+//! split off it as `Bytes` views into the same allocation, so reading a frame
+//! neither allocates nor zeroes memory. Once every frame handed out from a
+//! region has been dropped, the next `reserve` reclaims that region instead of
+//! growing the buffer; in steady state one allocation serves the whole connection.
+//!
+//! Writing: headers and payloads go out in a single vectored write, and a
+//! batch of frames shares one `writev` and one flush.
+//!
+//! Compression: bit 31 of the header marks a zstd-compressed payload; the
+//! low 30 bits are the length on the wire. The flag is per frame, so a
+//! peer may compress some frames and not others. Readers always accept
+//! compressed frames; writers only compress once [`FrameWriter::set_compression`]
+//! has been called, which happens after the game advertises support.
+//!
+//! Chunking: bit 30 marks a frame as one part of a longer message; the part
+//! without it ends the message. Each part is compressed (or not) on its own,
+//! so a large message travels as several small frames. [`FrameReader::read_part`]
+//! hands parts out as they arrive, holding at most one frame;
+//! [`FrameReader::read_frame`] joins them, holding the whole message. The
+//! bridge readers use `read_frame`, since a message has to be complete before
+//! it can be decoded, so the joined message is capped at [`MAX_MESSAGE_LEN`],
+//! the same as one frame, unless raised with
+//! [`FrameReader::set_max_message_len`]. Writers only split once
+//! [`FrameWriter::set_chunk_size`] has been called, after the game advertises
+//! support.
+
+use bytes::{Buf, Bytes, BytesMut};
+use serde::{Deserialize, Serialize};
+use std::borrow::Cow;
+use std::io::{self, IoSlice, Read};
+use tokio::io::{AsyncRead, AsyncReadExt, AsyncWrite, AsyncWriteExt};
+
+/// Largest frame accepted from a game (64 MB), before or after decompression
+pub const MAX_FRAME_LEN: usize = 64 * 1024 * 1024;
+
+/// Largest message joined from chunked frames unless configured; the same
+/// 64 MB as a single frame
+pub const MAX_MESSAGE_LEN: usize = MAX_FRAME_LEN;
+
+/// Part size used once chunking is negotiated
+pub const DEFAULT_CHUNK_SIZE: usize = 1024 * 1024;
+
+/// Header bit marking a zstd-compressed payload
+pub const COMPRESSED_FLAG: u32 = 1 << 31;
+
+/// Header bit marking a part that more parts of the same message follow
+pub const CONTINUED_FLAG: u32 = 1 << 30;
+
+/// Header bits holding the payload length
+pub(crate) const LENGTH_MASK: u32 = !(COMPRESSED_FLAG | CONTINUED_FLAG);
+
+/// Minimum free space requested before each socket read
+const READ_CAPACITY: usize = 64 * 1024;
+
+/// Length of the little-endian frame header
+const HEADER_LEN: usize = 4;
+
+/// One frame of a message that may span several
+#[derive(Debug, Clone, PartialEq, Eq)]
+pub struct FramePart {
+    /// Payload of this part (already decompressed)
+    pub data: Bytes,
+    /// Whether this part ends the message
+    pub last: bool,
+}
+
+impl FramePart {
+    pub(crate) fn new(header: u32, payload: Bytes) -> io::Result<Self> {
+        let data = if header & COMPRESSED_FLAG != 0 {
+            decompress(&payload)?
+        } else {
+            payload
+        };
+        Ok(Self {
+            data,
+            last: header & CONTINUED_FLAG == 0,
+        })
+    }
+}
+
+/// Joins chunked parts back into whole messages
+#[derive(Debug)]
+pub(crate) struct Reassembly {
+    buffer: BytesMut,
+    max_len: usize,
+}
+
+impl Default for Reassembly {
+    fn default() -> Self {
+        Self {
+            buffer: BytesMut::new(),
+            max_len: MAX_MESSAGE_LEN,
+        }
+    }
+}
+
+impl Reassembly {
+    /// Refuse messages longer than `max_len` bytes from now on
+    pub(crate) fn set_max_len(&mut self, max_len: usize) {
+        self.max_len = max_len;
+    }
+
+    /// Add a part; returns the message once its last part has arrived
+    pub(crate) fn push(&mut self, part: FramePart) -> io::Result<Option<Bytes>> {
+        // Unchunked messages pass straight through without a copy
+        if self.buffer.is_empty() && part.last {
+            return Ok(Some(part.data));
+        }
+
+        if self.buffer.len() + part.data.len() > self.max_len {
+            self.buffer = BytesMut::new();
+            return Err(io::Error::new(
+                io::ErrorKind::InvalidData,
+                format!("Chunked message exceeds {} bytes", self.max_len),
+            ));
+        }
+
+        self.buffer.extend_from_slice(&part.data);
+        if !part.last {
+            return Ok(None);
+        }
+        // Hand the allocation over instead of keeping a large buffer around
+        Ok(Some(std::mem::take(&mut self.buffer).freeze()))
+    }
+}
+
+/// Reads `[u32 LE length][payload]` frames from a byte stream
+///
+/// `read_frame` and `read_part` are cancel-safe: partially received frames
+/// (and parts of a chunked message) are kept and completed by the next call.
+pub struct FrameReader<R> {
+    inner: R,
+    buffer: BytesMut,
+    reassembly: Reassembly,
+}
+
+impl<R: AsyncRead + Unpin> FrameReader<R> {
+    /// Wrap a stream with the default receive buffer
+    pub fn new(inner: R) -> Self {
+        Self {
+            inner,
+            buffer: BytesMut::with_capacity(READ_CAPACITY),
+            reassembly: Reassembly::default(),
+        }
+    }
+
+    /// Refuse chunked messages longer than `max_len` bytes (default
+    /// [`MAX_MESSAGE_LEN`]); this bounds what `read_frame` holds at once
+    pub fn set_max_message_len(&mut self, max_len: usize) {
+        self.reassembly.set_max_len(max_len);
+    }
+
+    /// Read the next complete message, joining chunked parts
+    ///
+    /// Unchunked frames share storage with the receive buffer, so consumers
+    /// should decode and drop them promptly rather than hold on to them.
+    pub async fn read_frame(&mut self) -> io::Result<Bytes> {
+        loop {
+            let part = self.read_part().await?;
+            if let Some(message) = self.reassembly.push(part)? {
+                return Ok(message);
+            }
+        }
+    }
+
+    /// Read the next frame without joining chunked messages
+    ///
+    /// Memory use is bounded by one frame, so large messages can be passed
+    /// through (e.g. to a file or another socket) as they arrive. Don't mix
+    /// with `read_frame` in the middle of a chunked message.
+    pub async fn read_part(&mut self) -> io::Result<FramePart> {
+        loop {
+            if let Some(part) = self.split_frame()? {
+                return Ok(part);
+            }
+
+            let n = self.inner.read_buf(&mut self.buffer).await?;
+            if n == 0 {
+                return Err(io::Error::new(io::ErrorKind::UnexpectedEof, "connection closed"));
+            }
+        }
+    }
+
+    /// Split a complete frame off the buffer, or make room for the rest of it
+    fn split_frame(&mut self) -> io::Result<Option<FramePart>> {
+        let needed = if self.buffer.len() < HEADER_LEN {
+            HEADER_LEN
+        } else {
+            let header = u32::from_le_bytes([
+                self.buffer[0],
+                self.buffer[1],
+                self.buffer[2],
+                self.buffer[3],
+            ]);
+            let len = (header & LENGTH_MASK) as usize;
+
+            // Sanity check on message size
+            if len > MAX_FRAME_LEN {
+                return Err(io::Error::new(
+                    io::ErrorKind::InvalidData,
+                    format!("Message too large: {} bytes", len),
+                ));
+            }
+
+            if self.buffer.len() >= HEADER_LEN + len {
+                self.buffer.advance(HEADER_LEN);
+                let payload = self.buffer.split_to(len).freeze();
+                return FramePart::new(header, payload).map(Some);
+            }
+            HEADER_LEN + len
+        };
+
+        // Reclaims space from dropped frames when possible, grows otherwise
+        let additional = (needed - self.buffer.len()).max(READ_CAPACITY);
+        self.buffer.reserve(additional);
+        Ok(None)
+    }
+}
+
+/// Inflate a compressed frame, refusing output beyond `MAX_FRAME_LEN`
+pub(crate) fn decompress(payload: &[u8]) -> io::Result<Bytes> {
+    let decoder = zstd::stream::read::Decoder::with_buffer(payload)?;
+    let mut data = Vec::with_capacity(payload.len().saturating_mul(4).min(MAX_FRAME_LEN));
+    decoder.take(MAX_FRAME_LEN as u64 + 1).read_to_end(&mut data)?;
+
+    if data.len() > MAX_FRAME_LEN {
+        return Err(io::Error::new(
+            io::ErrorKind::InvalidData,
+            format!("Decompressed message exceeds {} bytes", MAX_FRAME_LEN),
+        ));
+    }
+    Ok(Bytes::from(data))
+}
+
+/// Split a message into parts of at most `chunk_size` bytes, flagging the last.
+/// Short messages (and every message when `chunk_size` is `None`) are one part.
+pub(crate) fn split_parts(
+    payload: &[u8],
+    chunk_size: Option<usize>,
+) -> impl Iterator<Item = (&[u8], bool)> {
+    let part_len = chunk_size
+        .filter(|&n| payload.len() > n)
+        .unwrap_or(payload.len())
+        .max(1);
+    let parts = payload.len().div_ceil(part_len).max(1);
+    (0..parts).map(move |i| {
+        let start = i * part_len;
+        let end = (start + part_len).min(payload.len());
+        (&payload[start..end], i + 1 == parts)
+    })
+}
+
+/// Header for one frame of `len` bytes
+pub(crate) fn frame_header(len: usize, compressed: bool, last: bool) -> io::Result<[u8; 4]> {
+    if len > LENGTH_MASK as usize {
+        return Err(io::Error::new(
+            io::ErrorKind::InvalidInput,
+            format!("Message too large: {} bytes", len),
+        ));
+    }
+
+    let mut header = len as u32;
+    if compressed {
+        header |= COMPRESSED_FLAG;
+    }
+    if !last {
+        header |= CONTINUED_FLAG;
+    }
+    Ok(header.to_le_bytes())
+}
+
+/// Outgoing frame compression settings, sent to the game in `ConfigureWire`
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Serialize, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct FrameCompression {
+    /// zstd level (1-22); low levels keep per-step latency down
+    pub level: i32,
+    /// Payloads shorter than this many bytes are sent uncompressed
+    pub threshold: usize,
+}
+
+impl Default for FrameCompression {
+    fn default() -> Self {
+        Self {
+            level: 3,
+            threshold: 1024,
+        }
+    }
+}
+
+/// Writes `[u32 LE length][payload]` frames with vectored I/O
+pub struct FrameWriter<W> {
+    inner: W,
+    /// Length prefixes for the batch being written (reused between calls)
+    headers: Vec<[u8; HEADER_LEN]>,
+    /// Compression context and threshold, once enabled
+    compressor: Option<(zstd::bulk::Compressor<'static>, usize)>,
+    /// Largest part before a message is split, once chunking is enabled
+    chunk_size: Option<usize>,
+}
+
+impl<W: AsyncWrite + Unpin> FrameWriter<W> {
+    /// Wrap a stream
+    pub fn new(inner: W) -> Self {
+        Self {
+            inner,
+            headers: Vec::new(),
+            compressor: None,
+            chunk_size: None,
+        }
+    }
+
+    /// The underlying stream
+    pub fn get_ref(&self) -> &W {
+        &self.inner
+    }
+
+    /// Compress payloads at or above the threshold from now on (`None` disables)
+    pub fn set_compression(&mut self, compression: Option<FrameCompression>) -> io::Result<()> {
+        self.compressor = match compression {
+            Some(c) => Some((zstd::bulk::Compressor::new(c.level)?, c.threshold)),
+            None => None,
+        };
+        Ok(())
+    }
+
+    /// Split payloads longer than `chunk_size` into parts from now on (`None` disables)
+    pub fn set_chunk_size(&mut self, chunk_size: Option<usize>) {
+        self.chunk_size = chunk_size.map(|n| n.clamp(1, MAX_FRAME_LEN));
+    }
+
+    /// The bytes to put on the wire for a payload, and whether they are compressed
+    fn body<'a>(&mut self, payload: &'a [u8]) -> io::Result<(Cow<'a, [u8]>, bool)> {
+        let compressor = self
+            .compressor
+            .as_mut()
+            .filter(|(_, threshold)| payload.len() >= *threshold);
+        if let Some((compressor, _)) = compressor {
+            let compressed = compressor.compress(payload)?;
+            // Incompressible payloads (e.g. already-encoded images) go out as-is
+            if compressed.len() < payload.len() {
+                return Ok((Cow::Owned(compressed), true));
+            }
+        }
+        Ok((Cow::Borrowed(payload), false))
+    }
+
+    /// Write one frame: prefix and payload in a single vectored write
+    pub async fn write_frame(&mut self, payload: &[u8]) -> io::Result<()> {
+        self.write_frames(&[payload]).await
+    }
+
+    /// Queue one frame's header and body
+    fn push_part<'a>(
+        &mut self,
+        part: &'a [u8],
+        last: bool,
+        bodies: &mut Vec<Cow<'a, [u8]>>,
+    ) -> io::Result<()> {
+        let (body, compressed) = self.body(part)?;
+        let header = frame_header(body.len(), compressed, last)?;
+        self.headers.push(header);
+        bodies.push(body);
+        Ok(())
+    }
+
+    /// Write several messages back to back, then flush once
+    ///
+    /// With chunking enabled, long messages go out as several parts.
+    pub async fn write_frames(&mut self, payloads: &[&[u8]]) -> io::Result<()> {
+        self.headers.clear();
+        let mut bodies = Vec::with_capacity(payloads.len());
+        for payload in payloads {
+            for (part, last) in split_parts(payload, self.chunk_size) {
+                self.push_part(part, last, &mut bodies)?;
+            }
+        }
+
+        let mut slices = Vec::with_capacity(bodies.len() * 2);
+        for (header, payload) in self.headers.iter().zip(&bodies) {
+            slices.push(IoSlice::new(header));
+            if !payload.is_empty() {
+                slices.push(IoSlice::new(payload));
+            }
+        }
+
+        // writev may accept only part of the batch; resume where it stopped
+        let mut remaining = &mut slices[..];
+        while !remaining.is_empty() {
+            let written = self.inner.write_vectored(remaining).await?;
+            if written == 0 {
+                return Err(io::ErrorKind::WriteZero.into());
+            }
+            IoSlice::advance_slices(&mut remaining, written);
+        }
+
+        self.inner.flush().await
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use tokio::io::{AsyncReadExt, AsyncWriteExt};
+
+    fn frame(payload: &[u8]) -> Vec<u8> {
+        let mut data = (payload.len() as u32).to_le_bytes().to_vec();
+        data.extend_from_slice(payload);
+        data
+    }
+
+    #[tokio::test]
+    async fn test_reads_frames_across_partial_reads() {
+        // A tiny pipe forces headers and payloads to arrive in pieces
+        let (mut client, server) = tokio::io::duplex(7);
+        let mut reader = FrameReader::new(server);
+
+        let payloads: Vec<Vec<u8>> = vec![
+            b"{}".to_vec(),
+            Vec::new(),
+            (0..=255u8).cycle().take(100_000).collect(),
+        ];
+        let expected = payloads.clone();
+
+        let writer = tokio::spawn(async move {
+            for payload in payloads {
+                client.write_all(&frame(&payload)).await.unwrap();
+            }
+        });
+
+        for payload in expected {
+            assert_eq!(reader.read_frame().await.unwrap(), payload);
+        }
+        writer.await.unwrap();
+    }
+
+    #[tokio::test]
+    async fn test_dropped_frames_are_recycled() {
+        let (mut client, server) = tokio::io::duplex(1024 * 1024);
+        let mut reader = FrameReader::new(server);
+        let payload = vec![7u8; 32 * 1024];
+
+        client.write_all(&frame(&payload)).await.unwrap();
+        let first = reader.read_frame().await.unwrap();
+        let first_ptr = first.as_ptr();
+        drop(first);
+
+        // The next frame lands in the storage the first one released
+        client.write_all(&frame(&payload)).await.unwrap();
+        let second = reader.read_frame().await.unwrap();
+        assert_eq!(second.as_ptr(), first_ptr);
+        assert_eq!(second, payload);
+    }
+
+    #[tokio::test]
+    async fn test_batched_frames_survive_partial_writes() {
+        // A tiny pipe makes every writev short, exercising the resume logic
+        let (client, server) = tokio::io::duplex(5);
+        let mut writer = FrameWriter::new(client);
+        let mut reader = FrameReader::new(server);
+
+        let payloads: Vec<Vec<u8>> = vec![b"first".to_vec(), Vec::new(), vec![9u8; 4096]];
+        let expected = payloads.clone();
+
+        let write = tokio::spawn(async move {
+            let frames: Vec<&[u8]> = payloads.iter().map(Vec::as_slice).collect();
+            writer.write_frames(&frames).await.unwrap();
+        });
+
+        for payload in expected {
+            assert_eq!(reader.read_frame().await.unwrap(), payload);
+        }
+        write.await.unwrap();
+    }
+
+    #[tokio::test]
+    async fn test_compressed_frames_roundtrip() {
+        let (client, mut server) = tokio::io::duplex(1024 * 1024);
+        let mut writer = FrameWriter::new(client);
+        writer
+            .set_compression(Some(FrameCompression {
+                level: 1,
+                threshold: 64,
+            }))
+            .unwrap();
+
+        let large = br#"{"Type":"StepResult","Entities":["pawn","pawn","pawn"]}"#.repeat(100);
+        let small = br#"{"Type":"GetStateHash"}"#.to_vec();
+        writer.write_frames(&[large.as_slice(), small.as_slice()]).await.unwrap();
+        drop(writer);
+
+        let mut wire = Vec::new();
+        server.read_to_end(&mut wire).await.unwrap();
+
+        // The large frame is flagged and shrunk; the small one is untouched
+        let header = u32::from_le_bytes(wire[..4].try_into().unwrap());
+        assert_ne!(header & COMPRESSED_FLAG, 0);
+        assert!(((header & LENGTH_MASK) as usize) < large.len());
+        assert!(wire.ends_with(&frame(&small)));
+
+        let mut reader = FrameReader::new(wire.as_slice());
+        assert_eq!(reader.read_frame().await.unwrap(), large);
+        assert_eq!(reader.read_frame().await.unwrap(), small);
+    }
+
+    #[tokio::test]
+    async fn test_chunked_messages_roundtrip() {
+        let (client, server) = tokio::io::duplex(64 * 1024);
+        let mut writer = FrameWriter::new(client);
+        writer.set_chunk_size(Some(1000));
+        writer
+            .set_compression(Some(FrameCompression {
+                level: 1,
+                threshold: 64,
+            }))
+            .unwrap();
+        let mut reader = FrameReader::new(server);
+
+        // Parts are compressed one by one; the reader joins them again
+        let large: Vec<u8> = (0..=255u8).cycle().take(2500).collect();
+        let small = b"{}".to_vec();
+        let expected = vec![large.clone(), small.clone()];
+
+        let write = tokio::spawn(async move {
+            writer.write_frames(&[large.as_slice(), small.as_slice()]).await.unwrap();
+        });
+
+        for payload in expected {
+            assert_eq!(reader.read_frame().await.unwrap(), payload);
+        }
+        write.await.unwrap();
+    }
+
+    #[tokio::test]
+    async fn test_read_part_passes_chunks_through() {
+        let (client, server) = tokio::io::duplex(1024);
+        let mut writer = FrameWriter::new(client);
+        writer.set_chunk_size(Some(4));
+        writer.write_frame(b"0123456789").await.unwrap();
+
+        let mut reader = FrameReader::new(server);
+        let mut parts = Vec::new();
+        loop {
+            let part = reader.read_part().await.unwrap();
+            let last = part.last;
+            parts.push(part.data);
+            if last {
+                break;
+            }
+        }
+        assert_eq!(
+            parts,
+            vec![
+                Bytes::from_static(b"0123"),
+                Bytes::from_static(b"4567"),
+                Bytes::from_static(b"89"),
+            ]
+        );
+    }
+
+    #[tokio::test]
+    async fn test_rejects_message_over_configured_limit() {
+        let (client, server) = tokio::io::duplex(1024);
+        let mut writer = FrameWriter::new(client);
+        writer.set_chunk_size(Some(4));
+        writer.write_frame(b"0123456789").await.unwrap();
+
+        let mut reader = FrameReader::new(server);
+        reader.set_max_message_len(8);
+        let err = reader.read_frame().await.unwrap_err();
+        assert_eq!(err.kind(), io::ErrorKind::InvalidData);
+    }
+
+    #[tokio::test]
+    async fn test_rejects_oversized_frame() {
+        let (mut client, server) = tokio::io::duplex(64);
+        let mut reader = FrameReader::new(server);
+
+        client
+            .write_all(&((MAX_FRAME_LEN + 1) as u32).to_le_bytes())
+            .await
+            .unwrap();
+
+        let err = reader.read_frame().await.unwrap_err();
+        assert_eq!(err.kind(), io::ErrorKind::InvalidData);
+    }
+
+    #[tokio::test]
+    async fn test_eof_between_frames() {
+        let (client, server) = tokio::io::duplex(64);
+        let mut reader = FrameReader::new(server);
+        drop(client);
+
+        let err = reader.read_frame().await.unwrap_err();
+        assert_eq!(err.kind(), io::ErrorKind::UnexpectedEof);
+    }
+}
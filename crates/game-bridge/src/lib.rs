@@ -3,17 +3,33 @@
 //! This crate provides:
 //! - Wire protocol for game state and action exchange
 //! - Transport abstractions (AsyncReader/AsyncWriter traits)
-//! - TCP and Unix socket transports
+//! - TCP and Unix socket transports with recycled receive buffers
+//! - Optional per-frame zstd compression
+//! - Chunked framing for messages larger than one frame
+//! - Shared-memory ring transport for same-host games (Linux)
 //! - Background reader task for handling messages
+//! - Correlated, pipelined request/response connections
+//! - Per-message-type transport metrics
 
+pub mod connection;
+pub mod frame;
+pub mod metrics;
 pub mod protocol;
 pub mod tcp;
 pub mod transport;
 #[cfg(unix)]
 pub mod unix;
+#[cfg(target_os = "linux")]
+pub mod shm;
 
 #[cfg(test)]
 mod lua_compat;
 
-pub use protocol::{GameCapabilities, GameMessage, StepResultPayload, deserialize, serialize};
+pub use connection::{GameConnection, PendingRequests};
+pub use frame::{FrameCompression, FramePart};
+pub use metrics::{BridgeMetrics, MetricsSnapshot};
+pub use protocol::{
+    AgentAction, Envelope, GameCapabilities, GameMessage, RequestId, StepResultPayload,
+    WireEncoding, decode, decode_envelope, deserialize, encode, encode_envelope, serialize,
+};
 pub use transport::{AsyncReader, AsyncWriter, reader_task};
@@ -5,7 +5,7 @@
 
 #[cfg(test)]
 mod tests {
-    use crate::protocol::GameMessage;
+    use crate::protocol::{Envelope, GameMessage};
     use mlua::{Lua, Result as LuaResult};
 
     /// Load our JSON.lua into a Lua state and register it for require()
@@ -392,6 +392,37 @@ mod tests {
 
     // ========== Round-trip tests ==========
 
+    #[test]
+    fn test_roundtrip_request_id_echo() -> LuaResult<()> {
+        let lua = create_lua_with_json()?;
+
+        // Rust tags the command with a RequestId
+        let envelope = Envelope::request(42, GameMessage::GetStateHash);
+        let json = serde_json::to_string(&envelope).unwrap();
+        lua.globals().set("rust_json", json)?;
+
+        // Lua echoes it the way GameRL.lua does
+        let lua_json: String = lua
+            .load(
+                r#"
+            local JSON = require("JSON") or _G.JSON
+            local msg = JSON.decode(rust_json)
+            return JSON.encode({
+                Type = "StateHash",
+                RequestId = msg.RequestId,
+                Hash = "echo-hash"
+            })
+        "#,
+            )
+            .eval()?;
+
+        let response: Envelope = serde_json::from_str(&lua_json).unwrap();
+        assert_eq!(response.request_id, Some(42));
+        assert!(matches!(response.message, GameMessage::StateHash { .. }));
+
+        Ok(())
+    }
+
     #[test]
     fn test_roundtrip_step_result() -> LuaResult<()> {
         let lua = create_lua_with_json()?;
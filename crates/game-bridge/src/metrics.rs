@@ -0,0 +1,264 @@
+//! Transport instrumentation
+//!
+//! A [`BridgeMetrics`] handle is shared by a connection and its reader task.
+//! It counts frames and payload bytes per `GameMessage` type in each
+//! direction, times requests from the write to the routed response, and tracks
+//! how many requests are in flight. [`BridgeMetrics::snapshot`] returns a
+//! serializable copy for the server to surface.
+//!
+//! Byte counts are payload sizes at the `AsyncReader`/`AsyncWriter` boundary,
+//! i.e. before frame compression.
+
+use serde::Serialize;
+use std::collections::{BTreeMap, HashMap};
+use std::sync::{Arc, Mutex, MutexGuard, PoisonError};
+use std::time::Duration;
+
+/// Upper bounds of the latency buckets in microseconds; one more bucket
+/// catches everything slower
+const BUCKET_BOUNDS_US: [u64; 14] = [
+    50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+    1_000_000,
+];
+
+/// Fixed-bucket latency histogram
+#[derive(Debug, Clone, Default)]
+struct Histogram {
+    buckets: [u64; BUCKET_BOUNDS_US.len() + 1],
+    count: u64,
+    sum_us: u64,
+    max_us: u64,
+}
+
+impl Histogram {
+    fn record(&mut self, elapsed: Duration) {
+        let us = u64::try_from(elapsed.as_micros()).unwrap_or(u64::MAX);
+        let bucket = BUCKET_BOUNDS_US.partition_point(|&bound| bound < us);
+        self.buckets[bucket] += 1;
+        self.count += 1;
+        self.sum_us = self.sum_us.saturating_add(us);
+        self.max_us = self.max_us.max(us);
+    }
+
+    /// Upper bound of the bucket holding the `q` quantile (capped at the max)
+    fn quantile(&self, q: f64) -> u64 {
+        if self.count == 0 {
+            return 0;
+        }
+
+        let rank = ((self.count as f64) * q).ceil().max(1.0) as u64;
+        let mut seen = 0;
+        for (bucket, &n) in self.buckets.iter().enumerate() {
+            seen += n;
+            if seen >= rank {
+                let bound = BUCKET_BOUNDS_US.get(bucket).copied().unwrap_or(u64::MAX);
+                return bound.min(self.max_us);
+            }
+        }
+        self.max_us
+    }
+
+    fn snapshot(&self) -> LatencySnapshot {
+        LatencySnapshot {
+            count: self.count,
+            mean_us: self.sum_us.checked_div(self.count).unwrap_or(0),
+            p50_us: self.quantile(0.50),
+            p90_us: self.quantile(0.90),
+            p99_us: self.quantile(0.99),
+            max_us: self.max_us,
+        }
+    }
+}
+
+#[derive(Debug, Default)]
+struct Counters {
+    sent: HashMap<&'static str, MessageCount>,
+    received: HashMap<&'static str, MessageCount>,
+    bytes_sent: u64,
+    bytes_received: u64,
+    /// Request latency keyed by request type
+    latency: HashMap<&'static str, Histogram>,
+    /// Time spent in `write_message`/`write_messages`
+    write: Histogram,
+    max_in_flight: usize,
+    decode_errors: u64,
+    unmatched_responses: u64,
+}
+
+/// Shared transport counters (cheap to clone)
+#[derive(Debug, Clone, Default)]
+pub struct BridgeMetrics {
+    counters: Arc<Mutex<Counters>>,
+}
+
+impl BridgeMetrics {
+    /// Create an empty set of counters
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    fn lock(&self) -> MutexGuard<'_, Counters> {
+        self.counters.lock().unwrap_or_else(PoisonError::into_inner)
+    }
+
+    /// Count an outgoing frame
+    pub fn record_sent(&self, kind: &'static str, bytes: usize) {
+        let mut counters = self.lock();
+        counters.sent.entry(kind).or_default().add(bytes);
+        counters.bytes_sent += bytes as u64;
+    }
+
+    /// Count an incoming frame
+    pub fn record_received(&self, kind: &'static str, bytes: usize) {
+        let mut counters = self.lock();
+        counters.received.entry(kind).or_default().add(bytes);
+        counters.bytes_received += bytes as u64;
+    }
+
+    /// Count an incoming frame that could not be decoded
+    pub fn record_decode_error(&self, bytes: usize) {
+        let mut counters = self.lock();
+        counters.decode_errors += 1;
+        counters.bytes_received += bytes as u64;
+    }
+
+    /// Count a response nobody was waiting for
+    pub fn record_unmatched(&self) {
+        self.lock().unmatched_responses += 1;
+    }
+
+    /// Time from writing a request of type `kind` to its response being routed
+    pub fn record_latency(&self, kind: &'static str, elapsed: Duration) {
+        self.lock().latency.entry(kind).or_default().record(elapsed);
+    }
+
+    /// Time spent handing frames to the transport
+    pub fn record_write(&self, elapsed: Duration) {
+        self.lock().write.record(elapsed);
+    }
+
+    /// Track the high-water mark of requests awaiting a response
+    pub fn observe_in_flight(&self, in_flight: usize) {
+        let mut counters = self.lock();
+        counters.max_in_flight = counters.max_in_flight.max(in_flight);
+    }
+
+    /// Copy the counters (`in_flight` is left at zero; the connection fills it in)
+    pub fn snapshot(&self) -> MetricsSnapshot {
+        let counters = self.lock();
+        MetricsSnapshot {
+            sent: counters.sent.iter().map(|(&k, &v)| (k, v)).collect(),
+            received: counters.received.iter().map(|(&k, &v)| (k, v)).collect(),
+            bytes_sent: counters.bytes_sent,
+            bytes_received: counters.bytes_received,
+            latency: counters
+                .latency
+                .iter()
+                .map(|(&k, v)| (k, v.snapshot()))
+                .collect(),
+            write: counters.write.snapshot(),
+            in_flight: 0,
+            max_in_flight: counters.max_in_flight,
+            decode_errors: counters.decode_errors,
+            unmatched_responses: counters.unmatched_responses,
+        }
+    }
+}
+
+/// Frames and payload bytes of one message type
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq, Serialize)]
+pub struct MessageCount {
+    pub frames: u64,
+    pub bytes: u64,
+}
+
+impl MessageCount {
+    fn add(&mut self, bytes: usize) {
+        self.frames += 1;
+        self.bytes += bytes as u64;
+    }
+}
+
+/// Latency summary; percentiles are bucket upper bounds
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq, Serialize)]
+pub struct LatencySnapshot {
+    pub count: u64,
+    pub mean_us: u64,
+    pub p50_us: u64,
+    pub p90_us: u64,
+    pub p99_us: u64,
+    pub max_us: u64,
+}
+
+/// Point-in-time copy of a connection's counters
+#[derive(Debug, Clone, Default, Serialize)]
+pub struct MetricsSnapshot {
+    /// Frames written, by message type
+    pub sent: BTreeMap<&'static str, MessageCount>,
+    /// Frames read, by message type
+    pub received: BTreeMap<&'static str, MessageCount>,
+    pub bytes_sent: u64,
+    pub bytes_received: u64,
+    /// Request to routed response, by request type
+    pub latency: BTreeMap<&'static str, LatencySnapshot>,
+    /// Time spent writing frames to the transport
+    pub write: LatencySnapshot,
+    /// Requests currently awaiting a response
+    pub in_flight: usize,
+    /// Most requests ever awaiting a response at once
+    pub max_in_flight: usize,
+    /// Frames that failed to decode
+    pub decode_errors: u64,
+    /// Responses that arrived for no pending request
+    pub unmatched_responses: u64,
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_counts_by_message_type() {
+        let metrics = BridgeMetrics::new();
+        metrics.record_sent("ExecuteAction", 100);
+        metrics.record_sent("ExecuteAction", 50);
+        metrics.record_received("StepResult", 400);
+        metrics.record_decode_error(7);
+
+        let snapshot = metrics.snapshot();
+        assert_eq!(
+            snapshot.sent["ExecuteAction"],
+            MessageCount {
+                frames: 2,
+                bytes: 150
+            }
+        );
+        assert_eq!(snapshot.received["StepResult"].frames, 1);
+        assert_eq!(snapshot.bytes_sent, 150);
+        assert_eq!(snapshot.bytes_received, 407);
+        assert_eq!(snapshot.decode_errors, 1);
+    }
+
+    #[test]
+    fn test_latency_percentiles() {
+        let metrics = BridgeMetrics::new();
+        for _ in 0..98 {
+            metrics.record_latency("ExecuteAction", Duration::from_micros(80));
+        }
+        metrics.record_latency("ExecuteAction", Duration::from_millis(3));
+        metrics.record_latency("ExecuteAction", Duration::from_secs(2));
+
+        let latency = metrics.snapshot().latency["ExecuteAction"];
+        assert_eq!(latency.count, 100);
+        assert_eq!(latency.p50_us, 100);
+        assert_eq!(latency.p99_us, 5_000);
+        assert_eq!(latency.max_us, 2_000_000);
+    }
+
+    #[test]
+    fn test_empty_histogram() {
+        let snapshot = BridgeMetrics::new().snapshot();
+        assert_eq!(snapshot.write, LatencySnapshot::default());
+        assert!(snapshot.latency.is_empty());
+    }
+}
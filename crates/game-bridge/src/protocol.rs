@@ -4,12 +4,32 @@
 //! Format: {"Type": "MessageType", ...fields}
 //!
 //! Uses PascalCase throughout for LLM-friendly natural language readability.
+//!
+//! JSON is always the default encoding. Games that advertise MessagePack in
+//! their Ready capabilities can be switched to it with `ConfigureWire`; the
+//! same map layout is used, so field names stay identical across encodings.
+//! `ConfigureWire` can also turn on per-frame zstd compression (see
+//! [`crate::frame`]) when the game lists "Zstd" in its compression capabilities.
+//!
+//! Observation and state payloads are opaque to the bridge. For JSON frames of
+//! the high-volume messages (`StepResult`, `BatchStepResult`, `ResetComplete`,
+//! `StateUpdate`) only the envelope fields are parsed; payloads are kept as raw
+//! JSON text and passed through to the MCP client untouched.
+//!
+//! Requests may carry a `RequestId` next to `Type` (see [`Envelope`]); games
+//! echo it on the matching response so several requests can be in flight on
+//! one connection. Games that predate correlation IDs ignore the field.
 
+pub use crate::frame::FrameCompression;
 use game_rl_core::{
-    Action, AgentConfig, AgentId, AgentType, GameEvent, Observation, StreamDescriptor,
+    Action, AgentConfig, AgentId, AgentType, ClockMode, GameEvent, GameRLError, Observation,
+    StreamDescriptor,
 };
 use serde::{Deserialize, Serialize};
+use serde_json::value::RawValue;
 use std::collections::HashMap;
+use std::fmt;
+use std::str::FromStr;
 
 /// Step result payload for single-agent or batch responses
 #[derive(Debug, Clone, Serialize, Deserialize)]
@@ -24,6 +44,17 @@ pub struct StepResultPayload {
     pub truncated: bool,
     #[serde(skip_serializing_if = "Option::is_none")]
     pub state_hash: Option<String>,
+    /// Events the game captured while the step ran
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub events: Vec<GameEvent>,
+}
+
+/// One agent's action within an `ExecuteBatch`
+#[derive(Debug, Clone, Serialize, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct AgentAction {
+    pub agent_id: AgentId,
+    pub action: Action,
 }
 
 /// Messages sent between Rust bridge and game process
@@ -48,8 +79,9 @@ pub enum GameMessage {
     StateUpdate {
         #[serde(rename = "Tick")]
         tick: u64,
-        #[serde(rename = "State")]
-        state: serde_json::Value,
+        /// Game-specific state, kept as unparsed JSON
+        #[serde(rename = "State", with = "raw_json")]
+        state: Box<RawValue>,
         #[serde(rename = "Events")]
         events: Vec<GameEvent>,
     },
@@ -98,6 +130,16 @@ pub enum GameMessage {
         descriptors: Vec<StreamDescriptor>,
     },
 
+    /// The game mapped the segment from `AttachSharedMemory`; frames now go
+    /// through shared memory in both directions
+    SharedMemoryAttached,
+
+    /// Clock mode switched in response to `SetClockMode`
+    ClockModeSet {
+        #[serde(rename = "Mode")]
+        mode: ClockMode,
+    },
+
     /// Error response
     Error {
         #[serde(rename = "Code")]
@@ -133,6 +175,16 @@ pub enum GameMessage {
         ticks: u32,
     },
 
+    /// Apply actions for several agents, then advance the simulation once.
+    /// Answered with `BatchStepResult`; only sent to games advertising
+    /// `BatchStep`.
+    ExecuteBatch {
+        #[serde(rename = "Actions")]
+        actions: Vec<AgentAction>,
+        #[serde(rename = "Ticks")]
+        ticks: u32,
+    },
+
     /// Reset environment
     Reset {
         #[serde(rename = "Seed")]
@@ -154,6 +206,81 @@ pub enum GameMessage {
 
     /// Shutdown the game
     Shutdown,
+
+    /// Hand the clock to the game or take it back. In live mode the game
+    /// runs unpaused and pushes a `StateUpdate` every `PushInterval` ticks.
+    /// Answered with `ClockModeSet`; only sent to games advertising
+    /// `LiveMode`.
+    SetClockMode {
+        #[serde(rename = "Mode")]
+        mode: ClockMode,
+        #[serde(rename = "PushInterval")]
+        push_interval: u32,
+    },
+
+    /// Live mode: apply an action when the game gets to it, without
+    /// advancing the simulation (no response; the effect shows up in pushed
+    /// state)
+    QueueAction {
+        #[serde(rename = "AgentId")]
+        agent_id: AgentId,
+        #[serde(rename = "Action")]
+        action: Action,
+    },
+
+    /// Select the wire format for all subsequent frames (no response).
+    /// Always sent as JSON, right after Ready.
+    ConfigureWire {
+        #[serde(rename = "Encoding")]
+        encoding: WireEncoding,
+        /// Compress frames at or above the threshold in both directions
+        #[serde(rename = "Compression", default, skip_serializing_if = "Option::is_none")]
+        compression: Option<FrameCompression>,
+        /// Rust reads chunked frames; split messages longer than this many bytes
+        #[serde(rename = "ChunkSize", default, skip_serializing_if = "Option::is_none")]
+        chunk_size: Option<usize>,
+    },
+
+    /// Move frames to a shared-memory segment (answered over the socket with
+    /// `SharedMemoryAttached`, or `Error` if the game can't map it)
+    AttachSharedMemory {
+        #[serde(rename = "Path")]
+        path: String,
+        /// Size of each ring in bytes
+        #[serde(rename = "Capacity")]
+        capacity: usize,
+    },
+}
+
+impl GameMessage {
+    /// Message type as it appears in the `Type` field
+    pub fn kind(&self) -> &'static str {
+        match self {
+            Self::Ready { .. } => "Ready",
+            Self::StateUpdate { .. } => "StateUpdate",
+            Self::AgentRegistered { .. } => "AgentRegistered",
+            Self::StepResult { .. } => "StepResult",
+            Self::BatchStepResult { .. } => "BatchStepResult",
+            Self::ResetComplete { .. } => "ResetComplete",
+            Self::StateHash { .. } => "StateHash",
+            Self::StreamsConfigured { .. } => "StreamsConfigured",
+            Self::SharedMemoryAttached => "SharedMemoryAttached",
+            Self::ClockModeSet { .. } => "ClockModeSet",
+            Self::Error { .. } => "Error",
+            Self::RegisterAgent { .. } => "RegisterAgent",
+            Self::DeregisterAgent { .. } => "DeregisterAgent",
+            Self::ExecuteAction { .. } => "ExecuteAction",
+            Self::ExecuteBatch { .. } => "ExecuteBatch",
+            Self::Reset { .. } => "Reset",
+            Self::GetStateHash => "GetStateHash",
+            Self::ConfigureStreams { .. } => "ConfigureStreams",
+            Self::Shutdown => "Shutdown",
+            Self::SetClockMode { .. } => "SetClockMode",
+            Self::QueueAction { .. } => "QueueAction",
+            Self::ConfigureWire { .. } => "ConfigureWire",
+            Self::AttachSharedMemory { .. } => "AttachSharedMemory",
+        }
+    }
 }
 
 /// Game capabilities sent during Ready
@@ -164,6 +291,317 @@ pub struct GameCapabilities {
     pub max_agents: usize,
     pub deterministic: bool,
     pub headless: bool,
+    /// Wire encodings the game can decode besides JSON (e.g. "MessagePack").
+    /// Kept as strings so unknown encodings from newer games don't break Ready.
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub encodings: Vec<String>,
+    /// Frame compression algorithms the game can decode (e.g. "Zstd")
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub compression: Vec<String>,
+    /// Transports the game offers after the socket handshake (e.g. "SharedMemory")
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub transports: Vec<String>,
+    /// Framing extensions the game reads and writes (e.g. "Chunked")
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub framing: Vec<String>,
+    /// Whether the game handles `ExecuteBatch`
+    #[serde(default, skip_serializing_if = "std::ops::Not::not")]
+    pub batch_step: bool,
+    /// Whether the game handles `SetClockMode` and `QueueAction`
+    #[serde(default, skip_serializing_if = "std::ops::Not::not")]
+    pub live_mode: bool,
+}
+
+impl GameCapabilities {
+    /// Whether the game accepts frames in the given encoding
+    pub fn supports_encoding(&self, encoding: WireEncoding) -> bool {
+        encoding == WireEncoding::Json
+            || self
+                .encodings
+                .iter()
+                .any(|e| e.parse::<WireEncoding>().ok() == Some(encoding))
+    }
+
+    /// Whether the game reads and writes zstd-compressed frames
+    pub fn supports_compression(&self) -> bool {
+        self.compression
+            .iter()
+            .any(|c| c.eq_ignore_ascii_case("zstd"))
+    }
+
+    /// Whether the game can move frames to a shared-memory segment
+    pub fn supports_shared_memory(&self) -> bool {
+        self.transports
+            .iter()
+            .any(|t| t.eq_ignore_ascii_case("SharedMemory"))
+    }
+
+    /// Whether the game joins and splits chunked messages (bit 30 frames)
+    pub fn supports_chunking(&self) -> bool {
+        self.framing
+            .iter()
+            .any(|f| f.eq_ignore_ascii_case("Chunked"))
+    }
+}
+
+impl Default for GameCapabilities {
+    fn default() -> Self {
+        Self {
+            multi_agent: false,
+            max_agents: 1,
+            deterministic: false,
+            headless: false,
+            encodings: Vec::new(),
+            compression: Vec::new(),
+            transports: Vec::new(),
+            framing: Vec::new(),
+            batch_step: false,
+            live_mode: false,
+        }
+    }
+}
+
+/// Encoding used for frame payloads
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Default)]
+pub enum WireEncoding {
+    /// JSON text (default, readable when debugging LLM-facing traffic)
+    #[default]
+    Json,
+    /// MessagePack with named fields (same layout as JSON, binary)
+    MessagePack,
+}
+
+impl WireEncoding {
+    /// Name used on the wire and in capabilities
+    pub fn as_str(&self) -> &'static str {
+        match self {
+            WireEncoding::Json => "Json",
+            WireEncoding::MessagePack => "MessagePack",
+        }
+    }
+
+    /// Detect the encoding of a frame from its first byte.
+    ///
+    /// Every message is a map: JSON frames start with `{` (or whitespace),
+    /// MessagePack frames with a fixmap (0x80-0x8f), map16 (0xde) or map32 (0xdf).
+    pub fn detect(bytes: &[u8]) -> Self {
+        match bytes.first() {
+            Some(0x80..=0x8f) | Some(0xde) | Some(0xdf) => WireEncoding::MessagePack,
+            _ => WireEncoding::Json,
+        }
+    }
+}
+
+impl fmt::Display for WireEncoding {
+    fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+        f.write_str(self.as_str())
+    }
+}
+
+// Always a plain string on the wire ("Json"/"MessagePack"), regardless of encoding
+impl Serialize for WireEncoding {
+    fn serialize<S: serde::Serializer>(&self, serializer: S) -> Result<S::Ok, S::Error> {
+        serializer.serialize_str(self.as_str())
+    }
+}
+
+impl<'de> Deserialize<'de> for WireEncoding {
+    fn deserialize<D: serde::Deserializer<'de>>(deserializer: D) -> Result<Self, D::Error> {
+        let name = String::deserialize(deserializer)?;
+        name.parse().map_err(serde::de::Error::custom)
+    }
+}
+
+impl FromStr for WireEncoding {
+    type Err = GameRLError;
+
+    fn from_str(s: &str) -> Result<Self, Self::Err> {
+        match s.to_ascii_lowercase().as_str() {
+            "json" => Ok(WireEncoding::Json),
+            "messagepack" | "msgpack" => Ok(WireEncoding::MessagePack),
+            _ => Err(GameRLError::ProtocolError(format!(
+                "Unknown wire encoding: {}",
+                s
+            ))),
+        }
+    }
+}
+
+/// Correlation ID attached to a request and echoed on its response
+pub type RequestId = u64;
+
+/// A message as framed on the wire, with its optional correlation ID
+///
+/// The ID is flattened into the message map: `{"Type": "...", "RequestId": 7, ...}`.
+/// Pushed notifications (`StateUpdate`) and fire-and-forget messages carry none.
+#[derive(Debug, Clone, Serialize, Deserialize)]
+pub struct Envelope {
+    #[serde(rename = "RequestId", default, skip_serializing_if = "Option::is_none")]
+    pub request_id: Option<RequestId>,
+    #[serde(flatten)]
+    pub message: GameMessage,
+}
+
+impl Envelope {
+    /// Wrap a message that expects a correlated response
+    pub fn request(request_id: RequestId, message: GameMessage) -> Self {
+        Self {
+            request_id: Some(request_id),
+            message,
+        }
+    }
+}
+
+impl From<GameMessage> for Envelope {
+    fn from(message: GameMessage) -> Self {
+        Self {
+            request_id: None,
+            message,
+        }
+    }
+}
+
+/// Serde adapter for raw JSON fields inside `GameMessage`.
+///
+/// The internally tagged enum buffers its fields, which a `RawValue` can't be
+/// borrowed from, so the generic path goes through `Value`. Hot messages skip
+/// this entirely via [`decode_envelope`]'s pass-through.
+mod raw_json {
+    use serde::{Deserialize, Deserializer, Serialize, Serializer};
+    use serde_json::value::RawValue;
+
+    pub fn serialize<S: Serializer>(raw: &RawValue, serializer: S) -> Result<S::Ok, S::Error> {
+        // Parse so non-JSON encoders (MessagePack) see a real value
+        let value: serde_json::Value =
+            serde_json::from_str(raw.get()).map_err(serde::ser::Error::custom)?;
+        value.serialize(serializer)
+    }
+
+    pub fn deserialize<'de, D: Deserializer<'de>>(
+        deserializer: D,
+    ) -> Result<Box<RawValue>, D::Error> {
+        let value = serde_json::Value::deserialize(deserializer)?;
+        serde_json::value::to_raw_value(&value).map_err(serde::de::Error::custom)
+    }
+}
+
+/// One pass over a JSON frame: `Type`, `RequestId` and every field a
+/// pass-through message carries, with observations and state left as raw
+/// JSON. Fields of other message types are skipped unparsed.
+#[derive(Deserialize)]
+#[serde(rename_all = "PascalCase")]
+struct RawFrame {
+    #[serde(rename = "Type")]
+    kind: String,
+    #[serde(default)]
+    request_id: Option<RequestId>,
+    // StepResult
+    agent_id: Option<AgentId>,
+    #[serde(default, deserialize_with = "some_raw")]
+    observation: Option<Box<RawValue>>,
+    reward: Option<f64>,
+    #[serde(default)]
+    reward_components: HashMap<String, f64>,
+    done: Option<bool>,
+    truncated: Option<bool>,
+    state_hash: Option<String>,
+    #[serde(default)]
+    events: Vec<GameEvent>,
+    // BatchStepResult
+    results: Option<Vec<RawStepResultPayload>>,
+    // StateUpdate
+    tick: Option<u64>,
+    #[serde(default, deserialize_with = "some_raw")]
+    state: Option<Box<RawValue>>,
+}
+
+/// A present field is kept as raw JSON even when it is `null`
+fn some_raw<'de, D: serde::Deserializer<'de>>(
+    deserializer: D,
+) -> Result<Option<Box<RawValue>>, D::Error> {
+    Box::<RawValue>::deserialize(deserializer).map(Some)
+}
+
+fn required<T>(field: Option<T>, name: &str) -> game_rl_core::Result<T> {
+    field.ok_or_else(|| GameRLError::SerializationError(format!("missing field `{}`", name)))
+}
+
+/// `StepResultPayload` with the observation left as raw JSON
+#[derive(Deserialize)]
+#[serde(rename_all = "PascalCase")]
+struct RawStepResultPayload {
+    agent_id: AgentId,
+    observation: Box<RawValue>,
+    reward: f64,
+    #[serde(default)]
+    reward_components: HashMap<String, f64>,
+    done: bool,
+    truncated: bool,
+    state_hash: Option<String>,
+    #[serde(default)]
+    events: Vec<GameEvent>,
+}
+
+impl From<RawStepResultPayload> for StepResultPayload {
+    fn from(raw: RawStepResultPayload) -> Self {
+        Self {
+            agent_id: raw.agent_id,
+            observation: Observation::Raw(raw.observation),
+            reward: raw.reward,
+            reward_components: raw.reward_components,
+            done: raw.done,
+            truncated: raw.truncated,
+            state_hash: raw.state_hash,
+            events: raw.events,
+        }
+    }
+}
+
+/// Decode a high-volume JSON message without parsing its payloads.
+///
+/// The frame is parsed once. Returns `None` for other message types, and for
+/// frames that don't fit [`RawFrame`], which take the generic path (and
+/// report its error, if any).
+fn decode_passthrough(bytes: &[u8]) -> game_rl_core::Result<Option<Envelope>> {
+    let Ok(frame) = serde_json::from_slice::<RawFrame>(bytes) else {
+        return Ok(None);
+    };
+
+    let message = match frame.kind.as_str() {
+        "StepResult" => GameMessage::StepResult {
+            result: StepResultPayload {
+                agent_id: required(frame.agent_id, "AgentId")?,
+                observation: Observation::Raw(required(frame.observation, "Observation")?),
+                reward: required(frame.reward, "Reward")?,
+                reward_components: frame.reward_components,
+                done: required(frame.done, "Done")?,
+                truncated: required(frame.truncated, "Truncated")?,
+                state_hash: frame.state_hash,
+                events: frame.events,
+            },
+        },
+        "BatchStepResult" => GameMessage::BatchStepResult {
+            results: required(frame.results, "Results")?
+                .into_iter()
+                .map(Into::into)
+                .collect(),
+        },
+        "ResetComplete" => GameMessage::ResetComplete {
+            observation: Observation::Raw(required(frame.observation, "Observation")?),
+            state_hash: frame.state_hash,
+        },
+        "StateUpdate" => GameMessage::StateUpdate {
+            tick: required(frame.tick, "Tick")?,
+            state: required(frame.state, "State")?,
+            events: frame.events,
+        },
+        _ => return Ok(None),
+    };
+
+    Ok(Some(Envelope {
+        request_id: frame.request_id,
+        message,
+    }))
 }
 
 /// Serialize a message to JSON bytes
@@ -176,6 +614,48 @@ pub fn deserialize(bytes: &[u8]) -> Result<GameMessage, serde_json::Error> {
     serde_json::from_slice(bytes)
 }
 
+/// Serialize a message with the given wire encoding
+pub fn encode(msg: &GameMessage, encoding: WireEncoding) -> game_rl_core::Result<Vec<u8>> {
+    match encoding {
+        WireEncoding::Json => Ok(serde_json::to_vec(msg)?),
+        WireEncoding::MessagePack => rmp_serde::to_vec_named(msg)
+            .map_err(|e| GameRLError::SerializationError(e.to_string())),
+    }
+}
+
+/// Deserialize a message, detecting its encoding from the first byte
+pub fn decode(bytes: &[u8]) -> game_rl_core::Result<GameMessage> {
+    decode_envelope(bytes).map(|envelope| envelope.message)
+}
+
+/// Serialize an envelope (message plus `RequestId`) with the given wire encoding
+pub fn encode_envelope(
+    envelope: &Envelope,
+    encoding: WireEncoding,
+) -> game_rl_core::Result<Vec<u8>> {
+    match encoding {
+        WireEncoding::Json => Ok(serde_json::to_vec(envelope)?),
+        WireEncoding::MessagePack => rmp_serde::to_vec_named(envelope)
+            .map_err(|e| GameRLError::SerializationError(e.to_string())),
+    }
+}
+
+/// Deserialize an envelope, detecting its encoding from the first byte.
+/// Frames without a `RequestId` decode with `request_id: None`.
+///
+/// JSON observations and state come back as raw JSON (`Observation::Raw`);
+/// MessagePack frames are fully decoded.
+pub fn decode_envelope(bytes: &[u8]) -> game_rl_core::Result<Envelope> {
+    match WireEncoding::detect(bytes) {
+        WireEncoding::Json => match decode_passthrough(bytes)? {
+            Some(envelope) => Ok(envelope),
+            None => Ok(serde_json::from_slice(bytes)?),
+        },
+        WireEncoding::MessagePack => rmp_serde::from_slice(bytes)
+            .map_err(|e| GameRLError::SerializationError(e.to_string())),
+    }
+}
+
 #[cfg(test)]
 mod tests {
     use super::*;
@@ -190,6 +670,12 @@ mod tests {
                 max_agents: 4,
                 deterministic: true,
                 headless: true,
+                encodings: vec!["MessagePack".into()],
+                compression: vec!["Zstd".into()],
+                transports: vec!["SharedMemory".into()],
+                framing: vec!["Chunked".into()],
+                batch_step: true,
+                live_mode: true,
             },
         };
 
@@ -241,4 +727,366 @@ mod tests {
             _ => panic!("Wrong message type"),
         }
     }
+
+    #[test]
+    fn test_clock_mode_format() {
+        let msg = GameMessage::SetClockMode {
+            mode: ClockMode::Live,
+            push_interval: 60,
+        };
+        let json = String::from_utf8_lossy(&serialize(&msg).unwrap()).into_owned();
+        assert_eq!(json, r#"{"Type":"SetClockMode","Mode":"Live","PushInterval":60}"#);
+
+        let json = r#"{"Type":"ClockModeSet","Mode":"Training"}"#;
+        match serde_json::from_str::<GameMessage>(json).unwrap() {
+            GameMessage::ClockModeSet { mode } => assert_eq!(mode, ClockMode::Training),
+            _ => panic!("Wrong message type"),
+        }
+    }
+
+    /// Step result shaped like a multi-colonist RimWorld full observation
+    fn large_step_result(colonists: usize) -> GameMessage {
+        let colonist = |i: usize| {
+            serde_json::json!({
+                "Id": format!("Human{}", 1000 + i),
+                "Name": format!("Colonist {}", i),
+                "Position": { "X": 100 + i % 50, "Y": 90 + i / 50 },
+                "Health": 0.87,
+                "Mood": 0.52,
+                "Needs": { "Food": 0.41, "Rest": 0.66, "Joy": 0.12, "Comfort": 0.3 },
+                "Skills": {
+                    "Shooting": 6, "Melee": 3, "Construction": 8,
+                    "Mining": 4, "Cooking": 5, "Plants": 7
+                },
+                "Job": "HaulToCell",
+                "Inventory": [
+                    { "Def": "MealSimple", "Count": 2 },
+                    { "Def": "MedicineHerbal", "Count": 1 }
+                ],
+                "IsDrafted": false
+            })
+        };
+        let item = |i: usize| {
+            serde_json::json!({
+                "Id": format!("Steel{}", 40000 + i),
+                "Def": "Steel",
+                "Position": { "X": i % 250, "Y": i / 250 },
+                "IsForbidden": i % 7 == 0
+            })
+        };
+
+        let mut observation = HashMap::new();
+        observation.insert("Tick".to_string(), serde_json::json!(348_719));
+        observation.insert(
+            "Colonists".to_string(),
+            serde_json::Value::Array((0..colonists).map(colonist).collect()),
+        );
+        observation.insert(
+            "Items".to_string(),
+            serde_json::Value::Array((0..colonists * 4).map(item).collect()),
+        );
+        observation.insert(
+            "Stockpiles".to_string(),
+            serde_json::json!({ "WoodLog": 58, "Steel": 412, "MealSimple": 13 }),
+        );
+
+        GameMessage::StepResult {
+            result: StepResultPayload {
+                agent_id: "colony".into(),
+                observation: Observation::Structured(observation),
+                reward: 0.25,
+                reward_components: HashMap::from([
+                    ("survival".to_string(), 0.2),
+                    ("mood".to_string(), 0.05),
+                ]),
+                done: false,
+                truncated: false,
+                state_hash: Some("sha256:00b866e0".into()),
+                events: Vec::new(),
+            },
+        }
+    }
+
+    #[test]
+    fn test_detect_encoding() {
+        let msg = GameMessage::GetStateHash;
+        let json = encode(&msg, WireEncoding::Json).unwrap();
+        let packed = encode(&msg, WireEncoding::MessagePack).unwrap();
+
+        assert_eq!(WireEncoding::detect(&json), WireEncoding::Json);
+        assert_eq!(WireEncoding::detect(&packed), WireEncoding::MessagePack);
+        assert_eq!(WireEncoding::detect(b" {}"), WireEncoding::Json);
+    }
+
+    #[test]
+    fn test_messagepack_roundtrip() {
+        let messages = vec![
+            GameMessage::GetStateHash,
+            GameMessage::ExecuteAction {
+                agent_id: "agent1".into(),
+                action: serde_json::from_str(r#"{"Type": "Draft", "ColonistId": "Human917"}"#)
+                    .unwrap(),
+                ticks: 60,
+            },
+            GameMessage::ConfigureWire {
+                encoding: WireEncoding::MessagePack,
+                compression: Some(FrameCompression::default()),
+                chunk_size: Some(1024 * 1024),
+            },
+            GameMessage::AttachSharedMemory {
+                path: "/dev/shm/gamerl-1-0".into(),
+                capacity: 4096,
+            },
+            large_step_result(3),
+        ];
+
+        for msg in messages {
+            let packed = encode(&msg, WireEncoding::MessagePack).unwrap();
+            let decoded = decode(&packed).unwrap();
+            assert_eq!(
+                serde_json::to_value(&msg).unwrap(),
+                serde_json::to_value(&decoded).unwrap()
+            );
+        }
+    }
+
+    #[test]
+    fn test_ready_without_encodings_is_json_only() {
+        let json = r#"{"Type":"Ready","Name":"ProjectZomboid","Version":"41.78","Capabilities":{"MultiAgent":true,"MaxAgents":8,"Deterministic":false,"Headless":false}}"#;
+
+        match decode(json.as_bytes()).unwrap() {
+            GameMessage::Ready { capabilities, .. } => {
+                assert!(capabilities.supports_encoding(WireEncoding::Json));
+                assert!(!capabilities.supports_encoding(WireEncoding::MessagePack));
+                assert!(!capabilities.supports_compression());
+                assert!(!capabilities.supports_shared_memory());
+                assert!(!capabilities.supports_chunking());
+                assert!(!capabilities.batch_step);
+            }
+            _ => panic!("Wrong message type"),
+        }
+    }
+
+    #[test]
+    fn test_configure_wire_compression_format() {
+        let msg = GameMessage::ConfigureWire {
+            encoding: WireEncoding::Json,
+            compression: Some(FrameCompression {
+                level: 3,
+                threshold: 1024,
+            }),
+            chunk_size: Some(65536),
+        };
+        let json = String::from_utf8(serialize(&msg).unwrap()).unwrap();
+        assert!(json.contains(r#""Compression":{"Level":3,"Threshold":1024}"#));
+        assert!(json.contains(r#""ChunkSize":65536"#));
+
+        // Older games only ever see the encoding
+        let plain = GameMessage::ConfigureWire {
+            encoding: WireEncoding::MessagePack,
+            compression: None,
+            chunk_size: None,
+        };
+        let json = String::from_utf8(serialize(&plain).unwrap()).unwrap();
+        assert_eq!(json, r#"{"Type":"ConfigureWire","Encoding":"MessagePack"}"#);
+    }
+
+    #[test]
+    fn test_large_step_result_messagepack_is_smaller() {
+        let msg = large_step_result(400);
+        let json = encode(&msg, WireEncoding::Json).unwrap();
+        let packed = encode(&msg, WireEncoding::MessagePack).unwrap();
+
+        assert!(json.len() > 200 * 1024);
+        assert!(packed.len() < json.len());
+    }
+
+    #[test]
+    fn test_envelope_request_id_is_flattened() {
+        let envelope = Envelope::request(7, GameMessage::GetStateHash);
+        let json = serde_json::to_value(&envelope).unwrap();
+        assert_eq!(json, serde_json::json!({"Type": "GetStateHash", "RequestId": 7}));
+
+        // Untagged envelopes serialize exactly like the bare message
+        let bare = Envelope::from(GameMessage::Shutdown);
+        assert_eq!(
+            encode_envelope(&bare, WireEncoding::Json).unwrap(),
+            encode(&GameMessage::Shutdown, WireEncoding::Json).unwrap()
+        );
+    }
+
+    #[test]
+    fn test_envelope_roundtrip_both_encodings() {
+        for encoding in [WireEncoding::Json, WireEncoding::MessagePack] {
+            let envelope = Envelope::request(u64::from(u32::MAX) + 1, large_step_result(2));
+            let bytes = encode_envelope(&envelope, encoding).unwrap();
+            let decoded = decode_envelope(&bytes).unwrap();
+
+            assert_eq!(decoded.request_id, envelope.request_id);
+            assert_eq!(
+                serde_json::to_value(&envelope.message).unwrap(),
+                serde_json::to_value(&decoded.message).unwrap()
+            );
+        }
+    }
+
+    #[test]
+    fn test_response_without_request_id() {
+        // Games that predate correlation IDs reply with bare messages
+        let json = r#"{"Type":"StateHash","Hash":"abc"}"#;
+        let envelope = decode_envelope(json.as_bytes()).unwrap();
+
+        assert_eq!(envelope.request_id, None);
+        assert!(matches!(envelope.message, GameMessage::StateHash { .. }));
+    }
+
+    #[test]
+    fn test_json_observation_passes_through_verbatim() {
+        let json = r#"{"Type":"StepResult","RequestId":3,"AgentId":"a1","Observation":{"Tick":7,"Pawns":[1.50,2]},"Reward":0.5,"Done":false,"Truncated":false}"#;
+        let envelope = decode_envelope(json.as_bytes()).unwrap();
+
+        assert_eq!(envelope.request_id, Some(3));
+        match envelope.message {
+            GameMessage::StepResult { result } => {
+                assert_eq!(result.agent_id, "a1");
+                assert!(result.reward_components.is_empty());
+                let Observation::Raw(raw) = result.observation else {
+                    panic!("expected raw observation");
+                };
+                // Bytes are untouched, including number formatting
+                assert_eq!(raw.get(), r#"{"Tick":7,"Pawns":[1.50,2]}"#);
+            }
+            other => panic!("Wrong message type: {:?}", other),
+        }
+    }
+
+    #[test]
+    fn test_batch_observations_pass_through_verbatim() {
+        let json = r#"{"Type":"BatchStepResult","RequestId":4,"Results":[{"AgentId":"a1","Observation":[1.50],"Reward":1,"Done":false,"Truncated":false}]}"#;
+        let envelope = decode_envelope(json.as_bytes()).unwrap();
+
+        assert_eq!(envelope.request_id, Some(4));
+        let GameMessage::BatchStepResult { results } = envelope.message else {
+            panic!("expected a batch");
+        };
+        let Observation::Raw(raw) = &results[0].observation else {
+            panic!("expected raw observation");
+        };
+        assert_eq!(raw.get(), "[1.50]");
+    }
+
+    #[test]
+    fn test_step_result_missing_field_is_an_error() {
+        let json = r#"{"Type":"StepResult","AgentId":"a1","Observation":{},"Done":false,"Truncated":false}"#;
+        assert!(decode_envelope(json.as_bytes()).is_err());
+    }
+
+    #[test]
+    fn test_state_update_state_is_raw_in_both_encodings() {
+        let json = r#"{"Type":"StateUpdate","Tick":60,"State":{"colony_alive":true},"Events":[]}"#;
+        let packed = encode(&decode(json.as_bytes()).unwrap(), WireEncoding::MessagePack).unwrap();
+
+        for bytes in [json.as_bytes(), packed.as_slice()] {
+            match decode(bytes).unwrap() {
+                GameMessage::StateUpdate {
+                    tick,
+                    state,
+                    events,
+                } => {
+                    assert_eq!(tick, 60);
+                    assert_eq!(state.get(), r#"{"colony_alive":true}"#);
+                    assert!(events.is_empty());
+                }
+                other => panic!("Wrong message type: {:?}", other),
+            }
+        }
+    }
+
+    /// Before/after report for the encodings on a ~250 KB StepResult.
+    /// Run with: cargo test -p game-bridge --release -- --ignored --nocapture codec
+    #[test]
+    #[ignore = "timing report, run explicitly in release mode"]
+    fn report_large_step_result_codec_timings() {
+        use std::hint::black_box;
+        use std::time::Instant;
+
+        let msg = large_step_result(400);
+        let iterations = 50u32;
+
+        for encoding in [WireEncoding::Json, WireEncoding::MessagePack] {
+            let bytes = encode(&msg, encoding).unwrap();
+
+            let start = Instant::now();
+            for _ in 0..iterations {
+                black_box(encode(black_box(&msg), encoding).unwrap());
+            }
+            let encode_time = start.elapsed() / iterations;
+
+            let start = Instant::now();
+            for _ in 0..iterations {
+                black_box(decode(black_box(&bytes)).unwrap());
+            }
+            let decode_time = start.elapsed() / iterations;
+
+            println!(
+                "{:<12} size={:>8} encode={:>10?} decode={:>10?}",
+                encoding.as_str(),
+                bytes.len(),
+                encode_time,
+                decode_time
+            );
+        }
+    }
+
+    #[test]
+    fn test_execute_batch_format() {
+        let msg = GameMessage::ExecuteBatch {
+            actions: vec![
+                AgentAction {
+                    agent_id: "a".into(),
+                    action: Action::Wait,
+                },
+                AgentAction {
+                    agent_id: "b".into(),
+                    action: Action::Discrete(3),
+                },
+            ],
+            ticks: 60,
+        };
+        let json = serde_json::to_value(&msg).unwrap();
+        assert_eq!(json["Type"], "ExecuteBatch");
+        assert_eq!(json["Ticks"], 60);
+        assert_eq!(json["Actions"][1]["AgentId"], "b");
+        assert_eq!(json["Actions"][1]["Action"], 3);
+    }
+
+    #[test]
+    fn test_step_result_events_from_dotnet() {
+        let json = r#"{"Type":"StepResult","AgentId":"colony","Observation":{},"Reward":0.0,"Done":false,"Truncated":false,"Events":[{"EventType":"Raid","Tick":120,"Severity":3,"Details":null}]}"#;
+
+        match decode(json.as_bytes()).unwrap() {
+            GameMessage::StepResult { result } => {
+                assert_eq!(result.events.len(), 1);
+                assert_eq!(result.events[0].event_type, "Raid");
+                assert_eq!(result.events[0].severity, 3);
+            }
+            other => panic!("Expected StepResult, got {:?}", other),
+        }
+    }
+
+    #[test]
+    fn test_kind_matches_type_tag() {
+        let messages = [
+            GameMessage::GetStateHash,
+            GameMessage::Shutdown,
+            GameMessage::StateHash { hash: "h".into() },
+            GameMessage::DeregisterAgent {
+                agent_id: "a".into(),
+            },
+        ];
+        for message in messages {
+            let json = serde_json::to_value(&message).unwrap();
+            assert_eq!(json["Type"], message.kind());
+        }
+    }
 }
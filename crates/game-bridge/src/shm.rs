@@ -0,0 +1,628 @@
+//! Shared-memory ring transport for games on the same host (Linux)
+//!
+//! A segment in `/dev/shm` holds two single-producer/single-consumer byte
+//! rings, one per direction. Frames keep the socket layout
+//! (`[u32 LE length][payload]`, see [`crate::frame`]) and may be larger than a
+//! ring: the writer streams them through as the reader frees space.
+//!
+//! Each side sleeps on a futex word in the ring header only when its ring is
+//! empty (or full), so a busy connection moves frames without any system call
+//! or kernel copy. The Unix socket is still used for Ready and the
+//! `AttachSharedMemory` handshake, and stays open afterwards so both sides
+//! notice a disconnect.
+//!
+//! Segment layout (little-endian, offsets in bytes):
+//!
+//! ```text
+//! 0    segment header: magic "GRLS", version, ring capacity, game pid
+//! 64   ring 0 (Rust -> game): header (256) + data (capacity)
+//! ..   ring 1 (game -> Rust): header (256) + data (capacity)
+//!
+//! ring header: head u64 @0, tail u64 @64,
+//!              data signal u32 @128, consumer waiting u32 @132,
+//!              space signal u32 @192, producer waiting u32 @196, closed u32 @200
+//! ```
+
+use crate::frame::{FramePart, LENGTH_MASK, MAX_FRAME_LEN, Reassembly, frame_header, split_parts};
+use crate::transport::{AsyncReader, AsyncWriter};
+use async_trait::async_trait;
+use bytes::Bytes;
+use game_rl_core::{GameRLError, Result};
+use memmap2::{MmapOptions, MmapRaw};
+use std::fs::OpenOptions;
+use std::io;
+use std::os::unix::fs::OpenOptionsExt;
+use std::path::{Path, PathBuf};
+use std::ptr;
+use std::sync::Arc;
+use std::sync::atomic::{AtomicU32, AtomicU64, Ordering};
+use std::time::Duration;
+
+/// Default size of each ring (per direction)
+pub const DEFAULT_RING_CAPACITY: usize = 4 * 1024 * 1024;
+
+/// Smallest ring accepted by [`SharedMemorySegment::create`]
+const MIN_RING_CAPACITY: usize = 4096;
+
+const MAGIC: u32 = u32::from_le_bytes(*b"GRLS");
+const VERSION: u32 = 1;
+
+const SEGMENT_HEADER_LEN: usize = 64;
+const OFF_MAGIC: usize = 0;
+const OFF_VERSION: usize = 4;
+const OFF_CAPACITY: usize = 8;
+const OFF_GAME_PID: usize = 12;
+
+const RING_HEADER_LEN: usize = 256;
+const OFF_HEAD: usize = 0;
+const OFF_TAIL: usize = 64;
+const OFF_DATA_SIGNAL: usize = 128;
+const OFF_CONSUMER_WAITING: usize = 132;
+const OFF_SPACE_SIGNAL: usize = 192;
+const OFF_PRODUCER_WAITING: usize = 196;
+const OFF_CLOSED: usize = 200;
+
+/// Longest single futex sleep; between sleeps the peer's liveness is checked
+const WAIT_SLICE: Duration = Duration::from_millis(100);
+
+/// Distinguishes segments created by one process
+static NEXT_SEGMENT: AtomicU64 = AtomicU64::new(0);
+
+/// The mapping shared by both rings
+struct Segment {
+    map: MmapRaw,
+    capacity: usize,
+}
+
+impl Segment {
+    fn u32_at(&self, offset: usize) -> &AtomicU32 {
+        // Safety: offsets are 4-byte aligned and inside the mapping, which
+        // lives as long as `self`; the peer only touches it atomically
+        unsafe { &*(self.map.as_mut_ptr().add(offset) as *const AtomicU32) }
+    }
+
+    fn u64_at(&self, offset: usize) -> &AtomicU64 {
+        // Safety: as above, with 8-byte aligned offsets
+        unsafe { &*(self.map.as_mut_ptr().add(offset) as *const AtomicU64) }
+    }
+
+    /// Whether the game process (once it has attached) is still running
+    fn peer_alive(&self) -> bool {
+        let pid = self.u32_at(OFF_GAME_PID).load(Ordering::Acquire);
+        if pid == 0 {
+            return true;
+        }
+        // Safety: signal 0 only checks that the process exists
+        let result = unsafe { libc::kill(pid as libc::pid_t, 0) };
+        result == 0 || io::Error::last_os_error().raw_os_error() != Some(libc::ESRCH)
+    }
+}
+
+/// One direction of the segment
+#[derive(Clone)]
+struct Ring {
+    segment: Arc<Segment>,
+    /// Offset of the ring header within the segment
+    offset: usize,
+}
+
+impl Ring {
+    /// Ring 0 carries Rust -> game frames, ring 1 game -> Rust
+    fn new(segment: Arc<Segment>, index: usize) -> Self {
+        let offset = SEGMENT_HEADER_LEN + index * (RING_HEADER_LEN + segment.capacity);
+        Self { segment, offset }
+    }
+
+    fn head(&self) -> &AtomicU64 {
+        self.segment.u64_at(self.offset + OFF_HEAD)
+    }
+
+    fn tail(&self) -> &AtomicU64 {
+        self.segment.u64_at(self.offset + OFF_TAIL)
+    }
+
+    fn word(&self, field: usize) -> &AtomicU32 {
+        self.segment.u32_at(self.offset + field)
+    }
+
+    fn data(&self) -> *mut u8 {
+        // Safety: the data region follows the header inside the mapping
+        unsafe {
+            self.segment
+                .map
+                .as_mut_ptr()
+                .add(self.offset + RING_HEADER_LEN)
+        }
+    }
+
+    fn capacity(&self) -> u64 {
+        self.segment.capacity as u64
+    }
+
+    /// Bytes the consumer can read
+    fn readable(&self) -> u64 {
+        self.head().load(Ordering::Acquire) - self.tail().load(Ordering::Relaxed)
+    }
+
+    /// Bytes the producer can write
+    fn writable(&self) -> u64 {
+        let used = self.head().load(Ordering::Relaxed) - self.tail().load(Ordering::Acquire);
+        self.capacity() - used
+    }
+
+    /// Copy `buf` into the data region at stream position `pos`, wrapping around
+    fn copy_in(&self, pos: u64, buf: &[u8]) {
+        let start = (pos % self.capacity()) as usize;
+        let first = buf.len().min(self.segment.capacity - start);
+        // Safety: the producer owns [head, tail + capacity) until it publishes
+        unsafe {
+            ptr::copy_nonoverlapping(buf.as_ptr(), self.data().add(start), first);
+            ptr::copy_nonoverlapping(buf.as_ptr().add(first), self.data(), buf.len() - first);
+        }
+    }
+
+    /// Copy from the data region at stream position `pos` into `buf`, wrapping around
+    fn copy_out(&self, pos: u64, buf: &mut [u8]) {
+        let start = (pos % self.capacity()) as usize;
+        let first = buf.len().min(self.segment.capacity - start);
+        // Safety: the consumer owns [tail, head) until it advances tail
+        unsafe {
+            ptr::copy_nonoverlapping(self.data().add(start), buf.as_mut_ptr(), first);
+            let rest = buf.len() - first;
+            ptr::copy_nonoverlapping(self.data(), buf.as_mut_ptr().add(first), rest);
+        }
+    }
+
+    /// Publish written bytes and wake the consumer if it sleeps
+    fn publish(&self, head: u64) {
+        self.head().store(head, Ordering::Release);
+        self.notify(OFF_DATA_SIGNAL, OFF_CONSUMER_WAITING);
+    }
+
+    /// Release read bytes and wake the producer if it waits for space
+    fn release(&self, tail: u64) {
+        self.tail().store(tail, Ordering::Release);
+        self.notify(OFF_SPACE_SIGNAL, OFF_PRODUCER_WAITING);
+    }
+
+    fn notify(&self, signal: usize, waiting: usize) {
+        self.word(signal).fetch_add(1, Ordering::SeqCst);
+        if self.word(waiting).load(Ordering::SeqCst) != 0 {
+            futex_wake(self.word(signal));
+        }
+    }
+
+    /// Sleep on `signal` unless `ready` already holds (at most one slice)
+    fn wait(&self, signal: usize, waiting: usize, ready: impl Fn() -> bool) {
+        let signal = self.word(signal);
+        let waiting = self.word(waiting);
+
+        // Announce before re-checking, so a publish in between either changes
+        // the signal (the futex returns at once) or sees us waiting and wakes us
+        waiting.store(1, Ordering::SeqCst);
+        let seen = signal.load(Ordering::SeqCst);
+        if !ready() && !self.is_closed() {
+            futex_wait(signal, seen, WAIT_SLICE);
+        }
+        waiting.store(0, Ordering::SeqCst);
+    }
+
+    fn is_closed(&self) -> bool {
+        self.word(OFF_CLOSED).load(Ordering::Acquire) != 0
+    }
+
+    /// Mark the ring closed and wake whoever sleeps on it
+    fn close(&self) {
+        self.word(OFF_CLOSED).store(1, Ordering::Release);
+        self.word(OFF_DATA_SIGNAL).fetch_add(1, Ordering::SeqCst);
+        self.word(OFF_SPACE_SIGNAL).fetch_add(1, Ordering::SeqCst);
+        futex_wake(self.word(OFF_DATA_SIGNAL));
+        futex_wake(self.word(OFF_SPACE_SIGNAL));
+    }
+
+    /// Fail once the ring is closed or the game process has gone away
+    fn check_peer(&self) -> io::Result<()> {
+        if self.is_closed() {
+            return Err(io::Error::new(io::ErrorKind::UnexpectedEof, "ring closed"));
+        }
+        if !self.segment.peer_alive() {
+            return Err(io::Error::new(io::ErrorKind::BrokenPipe, "game process exited"));
+        }
+        Ok(())
+    }
+
+    /// Block until `buf` is filled
+    fn read_exact(&self, mut buf: &mut [u8]) -> io::Result<()> {
+        while !buf.is_empty() {
+            let available = self.readable();
+            if available == 0 {
+                self.check_peer()?;
+                self.wait(OFF_DATA_SIGNAL, OFF_CONSUMER_WAITING, || self.readable() > 0);
+                continue;
+            }
+
+            let n = buf.len().min(available as usize);
+            let tail = self.tail().load(Ordering::Relaxed);
+            self.copy_out(tail, &mut buf[..n]);
+            self.release(tail + n as u64);
+            buf = &mut buf[n..];
+        }
+        Ok(())
+    }
+
+    /// Block until all of `buf` is written
+    fn write_all(&self, mut buf: &[u8]) -> io::Result<()> {
+        while !buf.is_empty() {
+            if self.is_closed() {
+                return Err(io::Error::new(io::ErrorKind::BrokenPipe, "ring closed"));
+            }
+            let space = self.writable();
+            if space == 0 {
+                self.check_peer()?;
+                self.wait(OFF_SPACE_SIGNAL, OFF_PRODUCER_WAITING, || self.writable() > 0);
+                continue;
+            }
+
+            let n = buf.len().min(space as usize);
+            let head = self.head().load(Ordering::Relaxed);
+            self.copy_in(head, &buf[..n]);
+            self.publish(head + n as u64);
+            buf = &buf[n..];
+        }
+        Ok(())
+    }
+
+    /// Read a whole frame if it is already in the ring
+    fn try_read_frame(&self) -> io::Result<Option<FramePart>> {
+        let available = self.readable();
+        if available < 4 {
+            return Ok(None);
+        }
+
+        let tail = self.tail().load(Ordering::Relaxed);
+        let mut header = [0u8; 4];
+        self.copy_out(tail, &mut header);
+        let header = u32::from_le_bytes(header);
+        let len = (header & LENGTH_MASK) as usize;
+        if available < 4 + len as u64 {
+            return Ok(None);
+        }
+
+        let mut payload = vec![0u8; len];
+        self.copy_out(tail + 4, &mut payload);
+        self.release(tail + 4 + len as u64);
+        FramePart::new(header, Bytes::from(payload)).map(Some)
+    }
+
+    /// Read a frame, waiting for as much of it as needed
+    fn read_frame(&self) -> io::Result<FramePart> {
+        let mut header = [0u8; 4];
+        self.read_exact(&mut header)?;
+        let header = u32::from_le_bytes(header);
+        let len = (header & LENGTH_MASK) as usize;
+        if len > MAX_FRAME_LEN {
+            return Err(io::Error::new(
+                io::ErrorKind::InvalidData,
+                format!("Message too large: {} bytes", len),
+            ));
+        }
+
+        let mut payload = vec![0u8; len];
+        self.read_exact(&mut payload)?;
+        FramePart::new(header, Bytes::from(payload))
+    }
+
+    /// Write a whole frame if it fits right now; returns whether it did
+    fn try_write_frame(&self, payload: &[u8], last: bool) -> io::Result<bool> {
+        let header = frame_header(payload.len(), false, last)?;
+        if self.is_closed() {
+            return Err(io::Error::new(io::ErrorKind::BrokenPipe, "ring closed"));
+        }
+        if self.writable() < 4 + payload.len() as u64 {
+            return Ok(false);
+        }
+
+        // One publish for header and payload, so the reader wakes at most once
+        let head = self.head().load(Ordering::Relaxed);
+        self.copy_in(head, &header);
+        self.copy_in(head + 4, payload);
+        self.publish(head + 4 + payload.len() as u64);
+        Ok(true)
+    }
+
+    /// Write a frame, streaming it through the ring as space frees up
+    fn write_frame(&self, payload: &[u8], last: bool) -> io::Result<()> {
+        let header = frame_header(payload.len(), false, last)?;
+        self.write_all(&header)?;
+        self.write_all(payload)
+    }
+}
+
+fn futex_wait(word: &AtomicU32, expected: u32, timeout: Duration) {
+    let timeout = libc::timespec {
+        tv_sec: timeout.as_secs() as libc::time_t,
+        tv_nsec: timeout.subsec_nanos() as libc::c_long,
+    };
+    // Shared (not FUTEX_PRIVATE) because the word is mapped by two processes.
+    // Spurious returns (EAGAIN, EINTR, ETIMEDOUT) are fine: callers re-check.
+    // Safety: the word stays mapped for the duration of the call
+    unsafe {
+        libc::syscall(
+            libc::SYS_futex,
+            word.as_ptr(),
+            libc::FUTEX_WAIT,
+            expected,
+            &timeout as *const libc::timespec,
+        );
+    }
+}
+
+fn futex_wake(word: &AtomicU32) {
+    // Safety: as above; waking has no effect on memory
+    unsafe {
+        libc::syscall(libc::SYS_futex, word.as_ptr(), libc::FUTEX_WAKE, 1);
+    }
+}
+
+fn shm_error(e: io::Error) -> GameRLError {
+    GameRLError::IpcError(format!("Shared memory transport failed: {}", e))
+}
+
+/// A freshly created segment, waiting for the game to map it
+pub struct SharedMemorySegment {
+    segment: Arc<Segment>,
+    /// Backing file, removed once the game has mapped it (or on drop)
+    path: Option<PathBuf>,
+}
+
+impl SharedMemorySegment {
+    /// Create a segment under `/dev/shm` with two rings of `capacity` bytes
+    /// (rounded up to a power of two)
+    pub fn create(capacity: usize) -> Result<Self> {
+        let capacity = capacity.max(MIN_RING_CAPACITY).next_power_of_two();
+        if capacity > u32::MAX as usize {
+            return Err(GameRLError::IpcError(format!(
+                "Ring capacity too large: {} bytes",
+                capacity
+            )));
+        }
+
+        let path = PathBuf::from(format!(
+            "/dev/shm/gamerl-{}-{}",
+            std::process::id(),
+            NEXT_SEGMENT.fetch_add(1, Ordering::Relaxed)
+        ));
+        let len = SEGMENT_HEADER_LEN + 2 * (RING_HEADER_LEN + capacity);
+
+        let map = OpenOptions::new()
+            .read(true)
+            .write(true)
+            .create_new(true)
+            .mode(0o600)
+            .open(&path)
+            .and_then(|file| {
+                file.set_len(len as u64)?;
+                MmapOptions::new().len(len).map_raw(&file)
+            })
+            .map_err(|e| {
+                let _ = std::fs::remove_file(&path);
+                GameRLError::IpcError(format!("Failed to create shared memory segment: {}", e))
+            })?;
+
+        // The file starts zeroed: empty rings, nothing closed, no game pid yet
+        let segment = Segment { map, capacity };
+        segment.u32_at(OFF_VERSION).store(VERSION, Ordering::Relaxed);
+        segment.u32_at(OFF_CAPACITY).store(capacity as u32, Ordering::Relaxed);
+        segment.u32_at(OFF_MAGIC).store(MAGIC, Ordering::Release);
+
+        Ok(Self {
+            segment: Arc::new(segment),
+            path: Some(path),
+        })
+    }
+
+    /// Where the game should map the segment from
+    pub fn path(&self) -> &Path {
+        self.path.as_deref().unwrap_or(Path::new(""))
+    }
+
+    /// Size of each ring in bytes
+    pub fn capacity(&self) -> usize {
+        self.segment.capacity
+    }
+
+    /// Split into transport halves once the game has mapped the segment.
+    ///
+    /// The backing file is unlinked here; the mapping outlives it.
+    pub fn into_transport(mut self) -> (ShmReader, ShmWriter) {
+        if let Some(path) = self.path.take() {
+            let _ = std::fs::remove_file(path);
+        }
+        (
+            ShmReader {
+                ring: Ring::new(self.segment.clone(), 1),
+                reassembly: Reassembly::default(),
+            },
+            ShmWriter {
+                ring: Ring::new(self.segment.clone(), 0),
+                chunk_size: None,
+            },
+        )
+    }
+}
+
+impl Drop for SharedMemorySegment {
+    fn drop(&mut self) {
+        if let Some(path) = self.path.take() {
+            let _ = std::fs::remove_file(path);
+        }
+    }
+}
+
+/// Reads game -> Rust frames from the shared segment
+///
+/// Frames already in the ring are read without leaving the async task; only
+/// an empty ring puts a blocking thread to sleep on the futex.
+pub struct ShmReader {
+    ring: Ring,
+    reassembly: Reassembly,
+}
+
+impl ShmReader {
+    async fn read_part(&self) -> Result<FramePart> {
+        if let Some(part) = self.ring.try_read_frame().map_err(shm_error)? {
+            return Ok(part);
+        }
+
+        let ring = self.ring.clone();
+        tokio::task::spawn_blocking(move || ring.read_frame())
+            .await
+            .map_err(|e| GameRLError::IpcError(format!("Shared memory reader failed: {}", e)))?
+            .map_err(shm_error)
+    }
+}
+
+#[async_trait]
+impl AsyncReader for ShmReader {
+    async fn read_message(&mut self) -> Result<Bytes> {
+        loop {
+            let part = self.read_part().await?;
+            if let Some(message) = self.reassembly.push(part).map_err(shm_error)? {
+                return Ok(message);
+            }
+        }
+    }
+
+    fn set_max_message_len(&mut self, max_len: usize) {
+        self.reassembly.set_max_len(max_len);
+    }
+}
+
+impl Drop for ShmReader {
+    fn drop(&mut self) {
+        self.ring.close();
+    }
+}
+
+/// Writes Rust -> game frames into the shared segment
+pub struct ShmWriter {
+    ring: Ring,
+    /// Largest part before a message is split, once chunking is enabled
+    chunk_size: Option<usize>,
+}
+
+#[async_trait]
+impl AsyncWriter for ShmWriter {
+    async fn write_message(&mut self, data: &[u8]) -> Result<()> {
+        self.write_messages(&[data]).await
+    }
+
+    async fn write_messages(&mut self, frames: &[&[u8]]) -> Result<()> {
+        let parts: Vec<(&[u8], bool)> = frames
+            .iter()
+            .flat_map(|frame| split_parts(frame, self.chunk_size))
+            .collect();
+
+        for (i, &(part, last)) in parts.iter().enumerate() {
+            if self.ring.try_write_frame(part, last).map_err(shm_error)? {
+                continue;
+            }
+
+            // Ring full: stream this part and the rest from a blocking thread
+            let ring = self.ring.clone();
+            let rest: Vec<(Vec<u8>, bool)> = parts[i..]
+                .iter()
+                .map(|&(part, last)| (part.to_vec(), last))
+                .collect();
+            return tokio::task::spawn_blocking(move || {
+                rest.iter()
+                    .try_for_each(|(part, last)| ring.write_frame(part, *last))
+            })
+            .await
+            .map_err(|e| GameRLError::IpcError(format!("Shared memory writer failed: {}", e)))?
+            .map_err(shm_error);
+        }
+        Ok(())
+    }
+
+    fn set_chunk_size(&mut self, chunk_size: Option<usize>) {
+        self.chunk_size = chunk_size;
+    }
+}
+
+impl Drop for ShmWriter {
+    fn drop(&mut self) {
+        self.ring.close();
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    /// The game's view of a segment: it reads ring 0 and writes ring 1
+    fn game_side(segment: &SharedMemorySegment) -> (Ring, Ring) {
+        (
+            Ring::new(segment.segment.clone(), 0),
+            Ring::new(segment.segment.clone(), 1),
+        )
+    }
+
+    #[test]
+    fn test_segment_header() {
+        let segment = SharedMemorySegment::create(5000).unwrap();
+        assert_eq!(segment.capacity(), 8192);
+        assert!(segment.path().exists());
+
+        let inner = segment.segment.clone();
+        assert_eq!(inner.u32_at(OFF_MAGIC).load(Ordering::Acquire), MAGIC);
+        assert_eq!(inner.u32_at(OFF_CAPACITY).load(Ordering::Relaxed), 8192);
+
+        // Unlinked once the game has it mapped
+        let path = segment.path().to_path_buf();
+        let _transport = segment.into_transport();
+        assert!(!path.exists());
+    }
+
+    #[tokio::test(flavor = "multi_thread")]
+    async fn test_frames_larger_than_the_ring() {
+        let segment = SharedMemorySegment::create(MIN_RING_CAPACITY).unwrap();
+        let (game_rx, game_tx) = game_side(&segment);
+        let (mut reader, mut writer) = segment.into_transport();
+
+        let payloads: Vec<Vec<u8>> = vec![
+            br#"{"Type":"GetStateHash"}"#.to_vec(),
+            Vec::new(),
+            (0..=255u8).cycle().take(3 * MIN_RING_CAPACITY + 17).collect(),
+        ];
+
+        // The game echoes every frame back
+        let game = std::thread::spawn(move || {
+            for _ in 0..3 {
+                let part = game_rx.read_frame().unwrap();
+                game_tx.write_frame(&part.data, part.last).unwrap();
+            }
+        });
+
+        let frames: Vec<&[u8]> = payloads.iter().map(Vec::as_slice).collect();
+        writer.write_messages(&frames).await.unwrap();
+        for payload in &payloads {
+            assert_eq!(reader.read_message().await.unwrap(), payload.as_slice());
+        }
+        game.join().unwrap();
+    }
+
+    #[tokio::test(flavor = "multi_thread")]
+    async fn test_reader_fails_when_game_closes() {
+        let segment = SharedMemorySegment::create(MIN_RING_CAPACITY).unwrap();
+        let (_, game_tx) = game_side(&segment);
+        let (mut reader, _writer) = segment.into_transport();
+
+        game_tx.write_frame(b"last", true).unwrap();
+        game_tx.close();
+
+        // Buffered frames are still delivered before the close is reported
+        assert_eq!(reader.read_message().await.unwrap(), &b"last"[..]);
+        assert!(reader.read_message().await.is_err());
+    }
+}
@@ -2,74 +2,91 @@
 //!
 //! Used for games that communicate over TCP (e.g., Java-based games like Project Zomboid).
 
+use crate::frame::{FrameCompression, FrameReader, FrameWriter};
 use crate::transport::{AsyncReader, AsyncWriter};
 use async_trait::async_trait;
+use bytes::Bytes;
 use game_rl_core::{GameRLError, Result};
-use tokio::io::{AsyncReadExt, AsyncWriteExt};
+use tokio::net::TcpStream;
 use tokio::net::tcp::{OwnedReadHalf, OwnedWriteHalf};
+use tracing::warn;
 
 /// TCP read wrapper
-pub struct TcpReadWrapper(pub OwnedReadHalf);
+///
+/// Frames are read into a per-connection recycled buffer (see [`FrameReader`]).
+pub struct TcpReadWrapper(FrameReader<OwnedReadHalf>);
+
+impl TcpReadWrapper {
+    /// Wrap the read half of a connection
+    pub fn new(read_half: OwnedReadHalf) -> Self {
+        Self(FrameReader::new(read_half))
+    }
+}
 
 #[async_trait]
 impl AsyncReader for TcpReadWrapper {
-    async fn read_message(&mut self) -> Result<Vec<u8>> {
-        // Read 4-byte length prefix (little-endian)
-        let mut len_bytes = [0u8; 4];
-        self.0
-            .read_exact(&mut len_bytes)
-            .await
-            .map_err(|e| GameRLError::IpcError(format!("TCP read length failed: {}", e)))?;
-        let len = u32::from_le_bytes(len_bytes) as usize;
-
-        // Sanity check on message size (max 64MB)
-        if len > 64 * 1024 * 1024 {
-            return Err(GameRLError::IpcError(format!(
-                "Message too large: {} bytes",
-                len
-            )));
-        }
-
-        // Read message body
-        let mut data = vec![0u8; len];
+    async fn read_message(&mut self) -> Result<Bytes> {
         self.0
-            .read_exact(&mut data)
+            .read_frame()
             .await
-            .map_err(|e| GameRLError::IpcError(format!("TCP read data failed: {}", e)))?;
+            .map_err(|e| GameRLError::IpcError(format!("TCP read failed: {}", e)))
+    }
 
-        Ok(data)
+    fn set_max_message_len(&mut self, max_len: usize) {
+        self.0.set_max_message_len(max_len);
     }
 }
 
 /// TCP write wrapper
-pub struct TcpWriteWrapper(pub OwnedWriteHalf);
+///
+/// Each frame goes out as one vectored write (prefix + payload).
+/// Sets TCP_NODELAY on the connection when constructed.
+pub struct TcpWriteWrapper(FrameWriter<OwnedWriteHalf>);
+
+impl TcpWriteWrapper {
+    /// Wrap the write half of a connection
+    pub fn new(write_half: OwnedWriteHalf) -> Self {
+        // Control messages are small; don't let Nagle hold them back
+        if let Err(e) = write_half.as_ref().set_nodelay(true) {
+            warn!("Failed to set TCP_NODELAY: {}", e);
+        }
+        Self(FrameWriter::new(write_half))
+    }
+}
 
 #[async_trait]
 impl AsyncWriter for TcpWriteWrapper {
     async fn write_message(&mut self, data: &[u8]) -> Result<()> {
-        // Write 4-byte length prefix (little-endian)
-        let len = (data.len() as u32).to_le_bytes();
         self.0
-            .write_all(&len)
+            .write_frame(data)
             .await
-            .map_err(|e| GameRLError::IpcError(format!("TCP write length failed: {}", e)))?;
+            .map_err(|e| GameRLError::IpcError(format!("TCP write failed: {}", e)))
+    }
 
-        // Write message body
+    async fn write_messages(&mut self, frames: &[&[u8]]) -> Result<()> {
         self.0
-            .write_all(data)
+            .write_frames(frames)
             .await
-            .map_err(|e| GameRLError::IpcError(format!("TCP write data failed: {}", e)))?;
+            .map_err(|e| GameRLError::IpcError(format!("TCP write failed: {}", e)))
+    }
 
-        // Flush to ensure data is sent
+    fn set_compression(&mut self, compression: Option<FrameCompression>) -> Result<()> {
         self.0
-            .flush()
-            .await
-            .map_err(|e| GameRLError::IpcError(format!("TCP flush failed: {}", e)))?;
+            .set_compression(compression)
+            .map_err(|e| GameRLError::IpcError(format!("Failed to set up compression: {}", e)))
+    }
 
-        Ok(())
+    fn set_chunk_size(&mut self, chunk_size: Option<usize>) {
+        self.0.set_chunk_size(chunk_size);
     }
 }
 
+/// Split a connected stream into framed reader/writer halves
+pub fn split(stream: TcpStream) -> (TcpReadWrapper, TcpWriteWrapper) {
+    let (read_half, write_half) = stream.into_split();
+    (TcpReadWrapper::new(read_half), TcpWriteWrapper::new(write_half))
+}
+
 #[cfg(test)]
 mod tests {
     use super::*;
@@ -80,4 +97,23 @@ mod tests {
         let _ = TcpReadWrapper;
         let _ = TcpWriteWrapper;
     }
+
+    #[tokio::test]
+    async fn test_tcp_batch_roundtrip() {
+        let listener = tokio::net::TcpListener::bind("127.0.0.1:0").await.unwrap();
+        let addr = listener.local_addr().unwrap();
+
+        let (client, accepted) = tokio::join!(TcpStream::connect(addr), listener.accept());
+        let (_, mut writer) = split(client.unwrap());
+        let (mut reader, _) = split(accepted.unwrap().0);
+
+        assert!(writer.0.get_ref().as_ref().nodelay().unwrap());
+
+        let frames: [&[u8]; 3] = [br#"{"Type":"GetStateHash"}"#, b"", br#"{"Type":"Shutdown"}"#];
+        writer.write_messages(&frames).await.unwrap();
+
+        for expected in frames {
+            assert_eq!(reader.read_message().await.unwrap(), expected);
+        }
+    }
 }
@@ -3,112 +3,142 @@
 //! Provides AsyncReader/AsyncWriter traits that can be implemented
 //! for different transport mechanisms (Unix sockets, TCP, named pipes).
 
-use crate::protocol::{GameMessage, deserialize};
+use crate::connection::PendingRequests;
+use crate::frame::FrameCompression;
+use crate::metrics::BridgeMetrics;
+use crate::protocol::{Envelope, GameMessage, decode_envelope};
 use async_trait::async_trait;
-use game_rl_core::{GameRLError, Result};
+use bytes::Bytes;
+use game_rl_core::Result;
+use game_rl_server::EventHub;
 use game_rl_server::environment::StateUpdate;
-use tokio::sync::{broadcast, mpsc, oneshot};
 use tracing::{debug, error, warn};
 
 /// Trait for async reading from a transport
 #[async_trait]
 pub trait AsyncReader: Send {
     /// Read a complete message from the transport
-    /// Messages are length-prefixed: 4-byte little-endian length + JSON payload
-    async fn read_message(&mut self) -> Result<Vec<u8>>;
+    /// Messages are length-prefixed: 4-byte little-endian length + JSON/MessagePack payload.
+    /// The returned payload may share a recycled receive buffer; drop it once decoded.
+    ///
+    /// Not necessarily cancel-safe: the shared-memory reader waits on a
+    /// blocking thread, and a frame it takes is lost if the call is dropped.
+    /// Keep one task reading instead of selecting on this.
+    async fn read_message(&mut self) -> Result<Bytes>;
+
+    /// Refuse messages joined from chunked frames beyond `max_len` bytes
+    ///
+    /// A message is held whole until it is decoded, so this caps the memory
+    /// one incoming message can take.
+    fn set_max_message_len(&mut self, _max_len: usize) {}
 }
 
 /// Trait for async writing to a transport
 #[async_trait]
 pub trait AsyncWriter: Send + Sync {
     /// Write a complete message to the transport
-    /// Messages are length-prefixed: 4-byte little-endian length + JSON payload
+    /// Messages are length-prefixed: 4-byte little-endian length + JSON/MessagePack payload
     async fn write_message(&mut self, data: &[u8]) -> Result<()>;
+
+    /// Write several messages, flushing once at the end
+    ///
+    /// Transports override this to coalesce the batch into one vectored write.
+    async fn write_messages(&mut self, frames: &[&[u8]]) -> Result<()> {
+        for data in frames {
+            self.write_message(data).await?;
+        }
+        Ok(())
+    }
+
+    /// Compress outgoing frames from now on (`None` disables)
+    ///
+    /// Compression is flagged per frame, so a transport that ignores this and
+    /// keeps writing plain frames is still understood by the game.
+    fn set_compression(&mut self, _compression: Option<FrameCompression>) -> Result<()> {
+        Ok(())
+    }
+
+    /// Split messages longer than `chunk_size` into continued frames from now
+    /// on (`None` disables). Only enable once the game reads chunked frames.
+    fn set_chunk_size(&mut self, _chunk_size: Option<usize>) {}
 }
 
 /// Background reader task that handles incoming messages
 ///
 /// This task:
 /// - Receives messages from the game via the transport
-/// - Routes StateUpdate messages to broadcast subscribers
-/// - Routes response messages to pending request channels (FIFO order)
+/// - Publishes StateUpdate messages to the event hub
+/// - Routes responses to pending requests by `RequestId` (oldest first when untagged)
+///
+/// It only ever awaits the transport, so a frame is never abandoned half-read.
+/// When the transport fails, every pending request is failed and the task exits.
 ///
 /// # Arguments
 /// - `reader`: The transport reader
-/// - `request_rx`: Channel receiving (request, response_channel) pairs from main task
-/// - `event_tx`: Broadcast sender for StateUpdate events
+/// - `pending`: Requests awaiting a response, registered before they are written
+/// - `hub`: Fans StateUpdate events out to subscribers
+/// - `metrics`: Counts incoming frames by message type
 pub async fn reader_task<R: AsyncReader>(
     mut reader: R,
-    mut request_rx: mpsc::Receiver<(GameMessage, oneshot::Sender<Result<GameMessage>>)>,
-    event_tx: broadcast::Sender<StateUpdate>,
+    pending: PendingRequests,
+    hub: EventHub,
+    metrics: BridgeMetrics,
 ) {
-    // Queue of pending response channels (FIFO - responses come in order)
-    let mut pending: Vec<oneshot::Sender<Result<GameMessage>>> = Vec::new();
-
     loop {
-        tokio::select! {
-            // New request from main task
-            req = request_rx.recv() => {
-                match req {
-                    Some((_msg, response_tx)) => {
-                        pending.push(response_tx);
-                    }
-                    None => {
-                        // Channel closed, exit
-                        debug!("Request channel closed, reader task exiting");
-                        break;
-                    }
-                }
+        let data = match reader.read_message().await {
+            Ok(data) => data,
+            Err(e) => {
+                error!("Reader task failed: {}", e);
+                // Notify all pending requests of failure
+                pending.close("Connection lost");
+                break;
             }
+        };
 
-            // Message from game
-            msg_result = reader.read_message() => {
-                match msg_result {
-                    Ok(data) => {
-                        // Log incoming message
-                        let json_preview: String = String::from_utf8_lossy(&data).chars().take(200).collect();
-                        debug!("[Game→Rust] len={} json={}", data.len(), json_preview);
+        let envelope = match decode_envelope(&data) {
+            Ok(envelope) => envelope,
+            Err(e) => {
+                error!("Failed to deserialize message: {}", e);
+                metrics.record_decode_error(data.len());
+                // Without a RequestId the best guess is the oldest request
+                pending.resolve(None, Err(e));
+                continue;
+            }
+        };
 
-                        match deserialize(&data) {
-                            Ok(msg) => {
-                                match msg {
-                                    // Push notification - broadcast to subscribers
-                                    GameMessage::StateUpdate { tick, state, events } => {
-                                        let update = StateUpdate {
-                                            tick,
-                                            state,
-                                            events,
-                                        };
-                                        // Ignore send errors (no subscribers)
-                                        let _ = event_tx.send(update);
-                                    }
+        let kind = envelope.message.kind();
+        metrics.record_received(kind, data.len());
+        debug!("[Game→Rust] {} len={}", kind, data.len());
 
-                                    // Response to a pending request
-                                    _ => {
-                                        if let Some(response_tx) = pending.pop() {
-                                            let _ = response_tx.send(Ok(msg));
-                                        } else {
-                                            warn!("Received response but no pending request: {:?}", msg);
-                                        }
-                                    }
-                                }
-                            }
-                            Err(e) => {
-                                error!("Failed to deserialize message: {}", e);
-                                // Send error to pending request if any
-                                if let Some(response_tx) = pending.pop() {
-                                    let _ = response_tx.send(Err(GameRLError::SerializationError(e.to_string())));
-                                }
-                            }
-                        }
-                    }
-                    Err(e) => {
-                        error!("Reader task failed: {}", e);
-                        // Notify all pending requests of failure
-                        for response_tx in pending.drain(..) {
-                            let _ = response_tx.send(Err(GameRLError::IpcError("Connection lost".into())));
-                        }
-                        break;
+        match envelope {
+            // Push notification - fan out to subscribers
+            Envelope {
+                message: GameMessage::StateUpdate {
+                    tick,
+                    state,
+                    events,
+                },
+                ..
+            } => {
+                let update = StateUpdate {
+                    tick,
+                    state,
+                    events,
+                };
+                hub.publish(update);
+            }
+
+            // Response to a pending request
+            Envelope {
+                request_id,
+                message,
+            } => {
+                if !pending.resolve(request_id, Ok(message)) {
+                    if let Some(id) = request_id {
+                        metrics.record_unmatched();
+                        warn!("Received response for unknown request {}", id);
+                    } else {
+                        debug!("Received untagged message with no pending request");
                     }
                 }
             }
@@ -2,70 +2,74 @@
 //!
 //! Used for games that communicate over Unix domain sockets (e.g., .NET games via Harmony).
 
+use crate::frame::{FrameCompression, FrameReader, FrameWriter};
 use crate::transport::{AsyncReader, AsyncWriter};
 use async_trait::async_trait;
+use bytes::Bytes;
 use game_rl_core::{GameRLError, Result};
-use tokio::io::{AsyncReadExt, AsyncWriteExt};
 use tokio::net::unix::{OwnedReadHalf, OwnedWriteHalf};
 
 /// Unix socket read wrapper
-pub struct UnixReadWrapper(pub OwnedReadHalf);
+///
+/// Frames are read into a per-connection recycled buffer (see [`FrameReader`]).
+pub struct UnixReadWrapper(FrameReader<OwnedReadHalf>);
+
+impl UnixReadWrapper {
+    /// Wrap the read half of a connection
+    pub fn new(read_half: OwnedReadHalf) -> Self {
+        Self(FrameReader::new(read_half))
+    }
+}
 
 #[async_trait]
 impl AsyncReader for UnixReadWrapper {
-    async fn read_message(&mut self) -> Result<Vec<u8>> {
-        // Read 4-byte length prefix (little-endian)
-        let mut len_bytes = [0u8; 4];
-        self.0
-            .read_exact(&mut len_bytes)
-            .await
-            .map_err(|e| GameRLError::IpcError(format!("Unix read length failed: {}", e)))?;
-        let len = u32::from_le_bytes(len_bytes) as usize;
-
-        // Sanity check on message size (max 64MB)
-        if len > 64 * 1024 * 1024 {
-            return Err(GameRLError::IpcError(format!(
-                "Message too large: {} bytes",
-                len
-            )));
-        }
-
-        // Read message body
-        let mut data = vec![0u8; len];
+    async fn read_message(&mut self) -> Result<Bytes> {
         self.0
-            .read_exact(&mut data)
+            .read_frame()
             .await
-            .map_err(|e| GameRLError::IpcError(format!("Unix read data failed: {}", e)))?;
+            .map_err(|e| GameRLError::IpcError(format!("Unix read failed: {}", e)))
+    }
 
-        Ok(data)
+    fn set_max_message_len(&mut self, max_len: usize) {
+        self.0.set_max_message_len(max_len);
     }
 }
 
 /// Unix socket write wrapper
-pub struct UnixWriteWrapper(pub OwnedWriteHalf);
+///
+/// Each frame goes out as one vectored write (prefix + payload).
+pub struct UnixWriteWrapper(FrameWriter<OwnedWriteHalf>);
+
+impl UnixWriteWrapper {
+    /// Wrap the write half of a connection
+    pub fn new(write_half: OwnedWriteHalf) -> Self {
+        Self(FrameWriter::new(write_half))
+    }
+}
 
 #[async_trait]
 impl AsyncWriter for UnixWriteWrapper {
     async fn write_message(&mut self, data: &[u8]) -> Result<()> {
-        // Write 4-byte length prefix (little-endian)
-        let len = (data.len() as u32).to_le_bytes();
         self.0
-            .write_all(&len)
+            .write_frame(data)
             .await
-            .map_err(|e| GameRLError::IpcError(format!("Unix write length failed: {}", e)))?;
+            .map_err(|e| GameRLError::IpcError(format!("Unix write failed: {}", e)))
+    }
 
-        // Write message body
+    async fn write_messages(&mut self, frames: &[&[u8]]) -> Result<()> {
         self.0
-            .write_all(data)
+            .write_frames(frames)
             .await
-            .map_err(|e| GameRLError::IpcError(format!("Unix write data failed: {}", e)))?;
+            .map_err(|e| GameRLError::IpcError(format!("Unix write failed: {}", e)))
+    }
 
-        // Flush to ensure data is sent
+    fn set_compression(&mut self, compression: Option<FrameCompression>) -> Result<()> {
         self.0
-            .flush()
-            .await
-            .map_err(|e| GameRLError::IpcError(format!("Unix flush failed: {}", e)))?;
+            .set_compression(compression)
+            .map_err(|e| GameRLError::IpcError(format!("Failed to set up compression: {}", e)))
+    }
 
-        Ok(())
+    fn set_chunk_size(&mut self, chunk_size: Option<usize>) {
+        self.0.set_chunk_size(chunk_size);
     }
 }
@@ -3,10 +3,19 @@
 //! Unified server that auto-detects which game is running:
 //! - RimWorld via Unix socket (/tmp/gamerl-rimworld.sock)
 //! - Project Zomboid via file IPC (~/Zomboid/Lua/gamerl_response.json)
+//!
+//! With GAMERL_LISTEN it shares the game with many MCP clients over a
+//! socket. With GAMERL_ATTACH it is the connector instead: it joins such a
+//! shared session on behalf of a stdio-only client and owns no game itself.
 
 use anyhow::Result;
-use game_rl_server::{GameEnvironment, GameRLServer};
+use game_rl_server::transport::socket;
+use game_rl_server::{
+    AgentSchedule, GameEnvironment, GameRLServer, SchedulerConfig, SchedulingPolicy, SteppingMode,
+    TrajectoryDir,
+};
 use harmony_bridge::HarmonyBridge;
+use harmony_bridge::protocol::{FrameCompression, WireEncoding};
 use std::path::Path;
 use std::time::Duration;
 use tokio::time::sleep;
@@ -21,12 +30,202 @@ enum DetectedGame {
 
 const RIMWORLD_SOCKET: &str = "/tmp/gamerl-rimworld.sock";
 
+/// Wire encoding requested via GAMERL_WIRE_ENCODING (json | msgpack), JSON by default
+fn wire_encoding_from_env() -> WireEncoding {
+    match std::env::var("GAMERL_WIRE_ENCODING") {
+        Ok(value) => value.parse().unwrap_or_else(|e| {
+            warn!("{}, using JSON", e);
+            WireEncoding::Json
+        }),
+        Err(_) => WireEncoding::Json,
+    }
+}
+
+/// Frame compression requested via GAMERL_FRAME_COMPRESSION (zstd | off), off by default
+fn frame_compression_from_env() -> Option<FrameCompression> {
+    match std::env::var("GAMERL_FRAME_COMPRESSION") {
+        Ok(value) if value.eq_ignore_ascii_case("zstd") => Some(FrameCompression::default()),
+        Ok(value) if value.eq_ignore_ascii_case("off") => None,
+        Ok(value) => {
+            warn!("Unknown frame compression: {}, sending frames uncompressed", value);
+            None
+        }
+        Err(_) => None,
+    }
+}
+
+/// Shared-memory transport requested via GAMERL_SHARED_MEMORY (1 | true), off by default
+fn shared_memory_from_env() -> bool {
+    std::env::var("GAMERL_SHARED_MEMORY")
+        .is_ok_and(|value| value == "1" || value.eq_ignore_ascii_case("true"))
+}
+
+/// Largest game message in MB via GAMERL_MAX_MESSAGE_MB, the bridge default if unset
+fn max_message_len_from_env() -> Option<usize> {
+    let value = std::env::var("GAMERL_MAX_MESSAGE_MB").ok()?;
+    match value.parse::<usize>().ok().and_then(|mb| mb.checked_mul(1024 * 1024)) {
+        Some(max_len) if max_len > 0 => Some(max_len),
+        _ => {
+            warn!("Invalid GAMERL_MAX_MESSAGE_MB: {}, using the default", value);
+            None
+        }
+    }
+}
+
+/// Directory for client trajectory files via GAMERL_TRAJECTORY_DIR, `trajectories` by default
+fn trajectory_dir_from_env() -> TrajectoryDir {
+    std::env::var_os("GAMERL_TRAJECTORY_DIR")
+        .map_or_else(TrajectoryDir::default, TrajectoryDir::new)
+}
+
+/// Lockstep round deadline when GAMERL_SYNC_DEADLINE_MS is unset
+const DEFAULT_SYNC_DEADLINE: Duration = Duration::from_secs(5);
+
+/// Stepping mode requested via GAMERL_STEPPING (independent | lockstep), independent by
+/// default; lockstep rounds wait GAMERL_SYNC_DEADLINE_MS for stragglers
+fn stepping_mode_from_env() -> SteppingMode {
+    match std::env::var("GAMERL_STEPPING") {
+        Ok(value) if value.eq_ignore_ascii_case("lockstep") => {
+            let deadline = std::env::var("GAMERL_SYNC_DEADLINE_MS")
+                .ok()
+                .and_then(|ms| ms.parse().ok())
+                .map_or(DEFAULT_SYNC_DEADLINE, Duration::from_millis);
+            SteppingMode::Lockstep { deadline }
+        }
+        Ok(value) if value.eq_ignore_ascii_case("independent") => SteppingMode::Independent,
+        Ok(value) => {
+            warn!("Unknown stepping mode: {}, stepping agents independently", value);
+            SteppingMode::Independent
+        }
+        Err(_) => SteppingMode::Independent,
+    }
+}
+
+/// Step scheduling requested via GAMERL_SCHEDULER (round-robin | weighted-fair | priority),
+/// round-robin by default. GAMERL_STEP_RATE caps every agent's steps per second;
+/// GAMERL_AGENT_WEIGHTS and GAMERL_AGENT_PRIORITIES set agents' weights and priorities as
+/// `agent=value` lists separated by commas.
+fn scheduler_from_env() -> SchedulerConfig {
+    let policy = match std::env::var("GAMERL_SCHEDULER") {
+        Ok(value) if value.eq_ignore_ascii_case("weighted-fair") => SchedulingPolicy::WeightedFair,
+        Ok(value) if value.eq_ignore_ascii_case("priority") => SchedulingPolicy::Priority,
+        Ok(value) if value.eq_ignore_ascii_case("round-robin") => SchedulingPolicy::RoundRobin,
+        Ok(value) => {
+            warn!("Unknown scheduler: {}, serving agents round-robin", value);
+            SchedulingPolicy::RoundRobin
+        }
+        Err(_) => SchedulingPolicy::RoundRobin,
+    };
+    let default = AgentSchedule {
+        max_steps_per_second: std::env::var("GAMERL_STEP_RATE")
+            .ok()
+            .and_then(|rate| rate.parse().ok()),
+        ..AgentSchedule::default()
+    };
+
+    let mut config = SchedulerConfig {
+        policy,
+        default,
+        agents: Default::default(),
+    };
+    for (agent_id, weight) in agent_values_from_env("GAMERL_AGENT_WEIGHTS") {
+        config.agents.entry(agent_id).or_insert(default).weight = weight;
+    }
+    for (agent_id, priority) in agent_values_from_env("GAMERL_AGENT_PRIORITIES") {
+        config.agents.entry(agent_id).or_insert(default).priority = priority;
+    }
+    config
+}
+
+/// `agent=value` pairs from a comma-separated environment variable
+fn agent_values_from_env<T: std::str::FromStr>(name: &str) -> Vec<(String, T)> {
+    let Ok(value) = std::env::var(name) else {
+        return Vec::new();
+    };
+    value
+        .split(',')
+        .filter(|pair| !pair.trim().is_empty())
+        .filter_map(|pair| {
+            let parsed = pair
+                .split_once('=')
+                .and_then(|(agent_id, value)| Some((agent_id.trim(), value.trim().parse().ok()?)));
+            if parsed.is_none() {
+                warn!("Ignoring {} entry: {}", name, pair);
+            }
+            parsed.map(|(agent_id, value)| (agent_id.to_string(), value))
+        })
+        .collect()
+}
+
+/// Where MCP clients connect
+enum Listen {
+    Stdio,
+    Tcp(String),
+    Unix(String),
+}
+
+/// Listener requested via GAMERL_LISTEN (tcp://host:port | unix:///path), stdio by default
+fn listen_from_env() -> Listen {
+    match std::env::var("GAMERL_LISTEN") {
+        Ok(value) => parse_listen(&value),
+        Err(_) => Listen::Stdio,
+    }
+}
+
+/// Shared session to join via GAMERL_ATTACH (tcp://host:port | unix:///path), if any
+fn attach_from_env() -> Option<Listen> {
+    let value = std::env::var("GAMERL_ATTACH").ok()?;
+    match parse_listen(&value) {
+        Listen::Stdio => {
+            warn!("Unknown attach address: {}, running the server", value);
+            None
+        }
+        address => Some(address),
+    }
+}
+
+fn parse_listen(value: &str) -> Listen {
+    if let Some(addr) = value.strip_prefix("tcp://") {
+        Listen::Tcp(addr.to_string())
+    } else if let Some(path) = value.strip_prefix("unix://") {
+        Listen::Unix(path.to_string())
+    } else {
+        if value != "stdio" {
+            warn!("Unknown listen address: {}, using stdio", value);
+        }
+        Listen::Stdio
+    }
+}
+
+/// Proxy this process's stdio to a shared session
+async fn attach(address: Listen) -> Result<()> {
+    match address {
+        Listen::Tcp(addr) => socket::attach_tcp(&addr).await?,
+        #[cfg(unix)]
+        Listen::Unix(path) => socket::attach_unix(path).await?,
+        #[cfg(not(unix))]
+        Listen::Unix(path) => anyhow::bail!("Unix sockets are not supported here: {}", path),
+        Listen::Stdio => {}
+    }
+    Ok(())
+}
+
 /// Run the MCP server with a game bridge
-async fn run_with_bridge<E: GameEnvironment>(bridge: E) -> Result<()> {
+async fn run_with_bridge<E: GameEnvironment>(bridge: E, listen: Listen) -> Result<()> {
     let manifest = bridge.manifest();
     info!("Connected to {} v{}", manifest.name, manifest.version);
-    let server = GameRLServer::new(bridge, manifest);
-    server.run_stdio().await?;
+    let server = GameRLServer::new(bridge, manifest)
+        .with_stepping_mode(stepping_mode_from_env())
+        .with_scheduler(scheduler_from_env())
+        .with_trajectory_dir(trajectory_dir_from_env());
+    match listen {
+        Listen::Stdio => server.run_stdio().await?,
+        Listen::Tcp(addr) => server.run_tcp(&addr).await?,
+        #[cfg(unix)]
+        Listen::Unix(path) => server.run_unix(path).await?,
+        #[cfg(not(unix))]
+        Listen::Unix(path) => anyhow::bail!("Unix sockets are not supported here: {}", path),
+    }
     Ok(())
 }
 
@@ -39,7 +238,12 @@ async fn main() -> Result<()> {
         .finish();
     tracing::subscriber::set_global_default(subscriber)?;
 
+    if let Some(address) = attach_from_env() {
+        return attach(address).await;
+    }
+
     info!("Game-RL MCP server starting (auto-detecting game)...");
+    let listen = listen_from_env();
 
     // Detection paths
     let zomboid_config = ZomboidConfig::default();
@@ -51,6 +255,12 @@ async fn main() -> Result<()> {
         if Path::new(RIMWORLD_SOCKET).exists() {
             info!("RimWorld socket detected: {}", RIMWORLD_SOCKET);
             let mut bridge = HarmonyBridge::new(RIMWORLD_SOCKET);
+            bridge.set_wire_encoding(wire_encoding_from_env());
+            bridge.set_frame_compression(frame_compression_from_env());
+            bridge.set_shared_memory(shared_memory_from_env());
+            if let Some(max_len) = max_message_len_from_env() {
+                bridge.set_max_message_len(max_len);
+            }
             match bridge.connect().await {
                 Ok(()) => break DetectedGame::RimWorld(bridge),
                 Err(e) => warn!("RimWorld socket exists but connect failed: {}", e),
@@ -76,8 +286,8 @@ async fn main() -> Result<()> {
 
     // Run server with detected bridge
     match game {
-        DetectedGame::RimWorld(bridge) => run_with_bridge(bridge).await?,
-        DetectedGame::Zomboid(bridge) => run_with_bridge(bridge).await?,
+        DetectedGame::RimWorld(bridge) => run_with_bridge(bridge, listen).await?,
+        DetectedGame::Zomboid(bridge) => run_with_bridge(bridge, listen).await?,
     }
 
     Ok(())
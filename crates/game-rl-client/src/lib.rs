@@ -13,6 +13,10 @@ use tokio::io::{AsyncBufReadExt, AsyncWriteExt, BufReader};
 use tokio::process::{Child, Command};
 use tracing::debug;
 
+/// Experimental MCP capability for tool results embedded as JSON
+/// (`structuredContent`) instead of escaped into a text block
+const STRUCTURED_CONTENT: &str = "structuredContent";
+
 /// Client for connecting to Game-RL environments
 pub struct GameRLClient {
     child: Child,
@@ -66,7 +70,7 @@ impl GameRLClient {
         client_name: &str,
         client_version: &str,
     ) -> Result<GameManifest> {
-        // Send initialize request
+        // Send initialize request, asking for structured tool results
         let _init_result = self
             .send_request(
                 "initialize",
@@ -74,7 +78,8 @@ impl GameRLClient {
                     "protocolVersion": "2025-11-25",
                     "capabilities": {
                         "tools": {},
-                        "resources": { "subscribe": true }
+                        "resources": { "subscribe": true },
+                        "experimental": { STRUCTURED_CONTENT: {} }
                     },
                     "clientInfo": {
                         "name": client_name,
@@ -189,7 +194,7 @@ impl GameRLClient {
         name: &str,
         arguments: serde_json::Value,
     ) -> Result<serde_json::Value> {
-        let result = self
+        let mut result = self
             .send_request(
                 "tools/call",
                 serde_json::json!({
@@ -199,6 +204,12 @@ impl GameRLClient {
             )
             .await?;
 
+        // Structured results arrive as JSON; servers that didn't agree to
+        // them send text only
+        if let Some(structured) = result.get_mut(STRUCTURED_CONTENT) {
+            return Ok(structured.take());
+        }
+
         // Extract text content from MCP tool response
         let content = result
             .get("content")
@@ -2,6 +2,7 @@
 
 use serde::{Deserialize, Serialize};
 use std::collections::HashMap;
+use std::time::Duration;
 
 /// Unique identifier for an agent
 pub type AgentId = String;
@@ -51,11 +52,34 @@ pub struct AgentConfig {
     #[serde(skip_serializing_if = "Option::is_none")]
     pub reward_shaping: Option<RewardShaping>,
 
+    /// Who owns the simulation clock
+    #[serde(default)]
+    pub clock_mode: ClockMode,
+
+    /// Live mode: game ticks between pushed observations
+    #[serde(skip_serializing_if = "Option::is_none")]
+    pub push_interval: Option<u32>,
+
     /// Additional game-specific configuration
     #[serde(default)]
     pub extra: HashMap<String, serde_json::Value>,
 }
 
+/// Who owns the simulation clock
+///
+/// The environment runs live only while every registered agent asks for it;
+/// a single training agent keeps it in lockstep with `sim_step`.
+#[derive(Debug, Clone, Copy, Default, Serialize, Deserialize, PartialEq, Eq)]
+#[serde(rename_all = "PascalCase")]
+pub enum ClockMode {
+    /// The agent owns the clock: the game is paused between steps
+    #[default]
+    Training,
+    /// The game owns the clock, runs at its native rate and pushes
+    /// observations; actions are applied when the game gets to them
+    Live,
+}
+
 fn default_observation_profile() -> String {
     "default".to_string()
 }
@@ -89,6 +113,8 @@ impl Default for AgentConfig {
             observation_profile: "default".to_string(),
             action_mask: Vec::new(),
             reward_shaping: None,
+            clock_mode: ClockMode::Training,
+            push_interval: None,
             extra: HashMap::new(),
         }
     }
@@ -114,4 +140,39 @@ pub struct AgentEntry {
     pub registered_at: String,
     pub last_step: u64,
     pub total_reward: f64,
+    /// Time this agent's commands spent queued behind other agents' work
+    #[serde(default)]
+    pub queue_wait: QueueWait,
+}
+
+/// Queue-wait statistics for one agent
+#[derive(Debug, Clone, Copy, Default, Serialize, Deserialize, PartialEq)]
+#[serde(rename_all = "PascalCase")]
+pub struct QueueWait {
+    /// Commands measured
+    pub count: u64,
+    pub total_ms: f64,
+    pub max_ms: f64,
+    /// Wait of the most recent command
+    pub last_ms: f64,
+}
+
+impl QueueWait {
+    /// Add one command's wait
+    pub fn record(&mut self, wait: Duration) {
+        let ms = wait.as_secs_f64() * 1000.0;
+        self.count += 1;
+        self.total_ms += ms;
+        self.max_ms = self.max_ms.max(ms);
+        self.last_ms = ms;
+    }
+
+    /// Average wait per command
+    pub fn mean_ms(&self) -> f64 {
+        if self.count == 0 {
+            0.0
+        } else {
+            self.total_ms / self.count as f64
+        }
+    }
 }
@@ -18,7 +18,9 @@ pub mod reward;
 pub mod stream;
 
 pub use action::{Action, ActionSpace};
-pub use agent::{AgentConfig, AgentEntry, AgentId, AgentManifest, AgentStatus, AgentType};
+pub use agent::{
+    AgentConfig, AgentEntry, AgentId, AgentManifest, AgentStatus, AgentType, ClockMode, QueueWait,
+};
 pub use error::{GameRLError, Result, error_codes};
 pub use manifest::{Capabilities, GameManifest};
 pub use observation::{GameEvent, Observation, StepResult};
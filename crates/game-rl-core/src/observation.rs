@@ -1,6 +1,7 @@
 //! Observation types
 
 use serde::{Deserialize, Serialize};
+use serde_json::value::RawValue;
 use std::collections::HashMap;
 
 use crate::agent::AgentId;
@@ -70,6 +71,23 @@ pub enum Observation {
     Vector(Vec<f64>),
     /// Custom observation format
     Custom(serde_json::Value),
+    /// Unparsed JSON passed through from the game as-is.
+    ///
+    /// Bridges produce this for large payloads so they are copied, not
+    /// re-parsed, on their way to the client. Serializes verbatim to JSON;
+    /// never produced by deserialization.
+    #[serde(skip_deserializing)]
+    Raw(Box<RawValue>),
+}
+
+impl Observation {
+    /// Convert to a JSON value, parsing raw payloads
+    pub fn to_value(&self) -> serde_json::Result<serde_json::Value> {
+        match self {
+            Observation::Raw(raw) => serde_json::from_str(raw.get()),
+            other => serde_json::to_value(other),
+        }
+    }
 }
 
 /// Why an episode ended
@@ -86,8 +104,8 @@ pub enum TerminationReason {
 #[derive(Debug, Clone, Serialize, Deserialize)]
 #[serde(rename_all = "PascalCase")]
 pub struct GameEvent {
-    /// Event type identifier
-    #[serde(rename = "Type")]
+    /// Event type identifier ("EventType" is accepted from .NET games)
+    #[serde(rename = "Type", alias = "EventType")]
     pub event_type: String,
 
     /// Tick when event occurred
@@ -117,3 +135,26 @@ pub struct StepMetrics {
     #[serde(default)]
     pub frame_dropped: bool,
 }
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_raw_observation_serializes_verbatim() {
+        let raw = RawValue::from_string(r#"{"colonists":[{"id":1}],"tick":42}"#.into()).unwrap();
+        let observation = Observation::Raw(raw);
+
+        assert_eq!(
+            serde_json::to_string(&observation).unwrap(),
+            r#"{"colonists":[{"id":1}],"tick":42}"#
+        );
+        assert_eq!(observation.to_value().unwrap()["tick"], 42);
+    }
+
+    #[test]
+    fn test_untagged_never_deserializes_raw() {
+        let observation: Observation = serde_json::from_str(r#"{"tick":42}"#).unwrap();
+        assert!(matches!(observation, Observation::Structured(_)));
+    }
+}
@@ -0,0 +1,1073 @@
+//! Environment actor
+//!
+//! The [`GameEnvironment`] is owned by a single task that takes commands from
+//! an [`EnvironmentHandle`]. Request handlers send a command and await its
+//! reply instead of queueing on a lock around the environment.
+//!
+//! Queued commands are kept per agent. Between two environment-wide commands
+//! (`reset`, `get_state_hash`, batch steps, trajectory commands, `shutdown`),
+//! the actor serves agents in the order chosen by the [`crate::scheduler`]
+//! (round-robin unless configured otherwise), oldest command first for each
+//! agent, so one busy agent can't starve the others. Environment-wide
+//! commands run once everything queued before them has run, except steps
+//! held back by a rate limit, which stay queued behind them. `shutdown` runs
+//! ahead of everything, and commands still queued then fail. How long each
+//! agent's commands waited is available as [`EnvironmentHandle::queue_wait`].
+//!
+//! The actor makes one environment call at a time, so steps reach the game one
+//! after another even when the game connection could carry several requests
+//! at once. Concurrent request handling keeps reads and other agents'
+//! queueing responsive; it doesn't make stepping faster end to end. Several
+//! agents that should act on the same advance go through `sim_step_batch`,
+//! which is one game call.
+//!
+//! Read-only paths don't go through the queue. The actor refreshes a cached
+//! metrics value after every command and once a second while idle. It also
+//! remembers the last state hash until the next command that can change the
+//! state.
+//!
+//! While a trajectory is being recorded, the actor also queues every
+//! successful step for the [`TrajectoryRecorder`].
+//!
+//! The actor also resolves who owns the clock: the game runs live only while
+//! every registered agent asked for [`ClockMode::Live`]. In live mode steps
+//! are refused and `sim_step` queues actions instead, see
+//! [`EnvironmentHandle::queue_action`].
+
+use crate::environment::{GameEnvironment, StateUpdate};
+use crate::events::CoalescedReceiver;
+use crate::scheduler::{Scheduler, SchedulerConfig, SharedConfig};
+use crate::trajectory::{
+    self, RecordingOptions, RecordingStats, ReplayOptions, ReplayReport, TrajectoryReader,
+    TrajectoryRecorder,
+};
+use game_rl_core::{
+    Action, AgentConfig, AgentId, AgentManifest, AgentType, ClockMode, GameRLError, Observation,
+    QueueWait, Result, StepResult, StreamDescriptor,
+};
+use std::collections::{HashMap, HashSet, VecDeque};
+use std::path::PathBuf;
+use std::sync::{Arc, Mutex, PoisonError};
+use std::time::Duration;
+use tokio::sync::{broadcast, mpsc, oneshot};
+use tokio::time::Instant;
+use tracing::{debug, info, warn};
+
+/// Commands waiting to be received by the actor
+const COMMAND_CAPACITY: usize = 256;
+
+/// How often metrics are refreshed while no commands arrive
+const METRICS_REFRESH: Duration = Duration::from_secs(1);
+
+/// Game ticks between pushed observations for live agents that don't set
+/// `PushInterval` (one second at 60 ticks per second)
+const DEFAULT_PUSH_INTERVAL: u32 = 60;
+
+type Reply<T> = oneshot::Sender<Result<T>>;
+
+/// Pushed-event receivers for one client connection
+pub struct Subscription {
+    pub coalesced: Option<CoalescedReceiver>,
+    pub events: Option<broadcast::Receiver<StateUpdate>>,
+}
+
+enum Command {
+    Register {
+        agent_id: AgentId,
+        agent_type: AgentType,
+        config: AgentConfig,
+        reply: Reply<AgentManifest>,
+    },
+    Deregister {
+        agent_id: AgentId,
+        reply: Reply<()>,
+    },
+    Step {
+        agent_id: AgentId,
+        action: Action,
+        ticks: u32,
+        reply: Reply<StepResult>,
+    },
+    StepBatch {
+        actions: Vec<(AgentId, Action)>,
+        ticks: u32,
+        reply: Reply<Vec<StepResult>>,
+    },
+    QueueAction {
+        agent_id: AgentId,
+        action: Action,
+        reply: Reply<()>,
+    },
+    ConfigureStreams {
+        agent_id: AgentId,
+        profile: String,
+        reply: Reply<Vec<StreamDescriptor>>,
+    },
+    Reset {
+        seed: Option<u64>,
+        scenario: Option<String>,
+        reply: Reply<Observation>,
+    },
+    StateHash {
+        reply: Reply<String>,
+    },
+    SaveTrajectory {
+        path: PathBuf,
+        options: RecordingOptions,
+        reply: Reply<()>,
+    },
+    StopTrajectory {
+        reply: Reply<Option<RecordingStats>>,
+    },
+    LoadTrajectory {
+        path: PathBuf,
+        options: ReplayOptions,
+        reply: Reply<ReplayReport>,
+    },
+    Subscribe {
+        reply: oneshot::Sender<Subscription>,
+    },
+    Shutdown {
+        reply: Reply<()>,
+    },
+}
+
+impl Command {
+    /// Agent the command acts on; `None` for environment-wide commands
+    fn agent(&self) -> Option<&AgentId> {
+        match self {
+            Command::Register { agent_id, .. }
+            | Command::Deregister { agent_id, .. }
+            | Command::Step { agent_id, .. }
+            | Command::QueueAction { agent_id, .. }
+            | Command::ConfigureStreams { agent_id, .. } => Some(agent_id),
+            Command::StepBatch { .. }
+            | Command::Reset { .. }
+            | Command::StateHash { .. }
+            | Command::SaveTrajectory { .. }
+            | Command::StopTrajectory { .. }
+            | Command::LoadTrajectory { .. }
+            | Command::Subscribe { .. }
+            | Command::Shutdown { .. } => None,
+        }
+    }
+
+    /// Whether the command counts against the agent's step rate limit
+    fn is_step(&self) -> bool {
+        matches!(self, Command::Step { .. } | Command::QueueAction { .. })
+    }
+}
+
+/// A command and when the actor received it
+struct Queued {
+    command: Command,
+    received: Instant,
+}
+
+/// Per-agent queues with environment-wide commands acting as barriers
+#[derive(Default)]
+struct CommandQueue {
+    commands: VecDeque<Queued>,
+    scheduler: Scheduler,
+}
+
+impl CommandQueue {
+    fn new(scheduler: Scheduler) -> Self {
+        Self {
+            commands: VecDeque::new(),
+            scheduler,
+        }
+    }
+
+    fn push(&mut self, command: Command) {
+        self.commands.push_back(Queued {
+            command,
+            received: Instant::now(),
+        });
+    }
+
+    fn is_empty(&self) -> bool {
+        self.commands.is_empty()
+    }
+
+    /// Next command to run and how long it waited: `shutdown` first, an
+    /// environment-wide command once it reaches the front, otherwise the
+    /// oldest command of the agent the scheduler picks among those not held
+    /// back by a rate limit. When every agent ahead of an environment-wide
+    /// command is held back, the environment-wide command runs first.
+    fn pop(&mut self) -> Option<(Command, Duration)> {
+        let now = Instant::now();
+        let config = self.scheduler.config();
+        let shutdown = self
+            .commands
+            .iter()
+            .position(|queued| matches!(queued.command, Command::Shutdown { .. }));
+        let index = match (shutdown, self.commands.front()?.command.agent()) {
+            (Some(index), _) => index,
+            (None, None) => 0,
+            (None, Some(_)) => {
+                let scheduler = &self.scheduler;
+                let ready: Vec<(usize, &AgentId)> = self
+                    .heads()
+                    .filter(|(_, queued, agent_id)| {
+                        !queued.command.is_step()
+                            || scheduler.ready_at(&config, agent_id, now).is_none()
+                    })
+                    .map(|(index, _, agent_id)| (index, agent_id))
+                    .collect();
+                let agents: Vec<&AgentId> = ready.iter().map(|(_, agent_id)| *agent_id).collect();
+                match scheduler.pick(&config, &agents) {
+                    Some(pick) => ready[pick].0,
+                    None => self.barrier()?,
+                }
+            }
+        };
+
+        let queued = self.commands.remove(index)?;
+        match &queued.command {
+            Command::Deregister { agent_id, .. } => self.scheduler.forget(agent_id),
+            command => {
+                if let Some(agent_id) = command.agent() {
+                    self.scheduler
+                        .served(&config, agent_id, command.is_step(), now);
+                }
+            }
+        }
+        Some((queued.command, now - queued.received))
+    }
+
+    /// When the first rate-limited agent may step again, if every queued
+    /// command is held back
+    fn next_ready(&self) -> Option<Instant> {
+        let now = Instant::now();
+        let config = self.scheduler.config();
+        self.heads()
+            .filter(|(_, queued, _)| queued.command.is_step())
+            .filter_map(|(_, _, agent_id)| self.scheduler.ready_at(&config, agent_id, now))
+            .min()
+    }
+
+    /// Position of the first environment-wide command
+    fn barrier(&self) -> Option<usize> {
+        self.commands
+            .iter()
+            .position(|queued| queued.command.agent().is_none())
+    }
+
+    /// Oldest command of each agent queued before the first environment-wide
+    /// command
+    fn heads(&self) -> impl Iterator<Item = (usize, &Queued, &AgentId)> {
+        let mut seen = HashSet::new();
+        self.commands
+            .iter()
+            .enumerate()
+            .map_while(|(index, queued)| Some((index, queued, queued.command.agent()?)))
+            .filter(move |(_, _, agent_id)| seen.insert(*agent_id))
+    }
+}
+
+/// Values served without waiting for the actor
+#[derive(Default)]
+struct Cache {
+    metrics: Mutex<Option<serde_json::Value>>,
+    /// Hash of the current state, if known
+    state_hash: Mutex<Option<String>>,
+    clock_mode: Mutex<ClockMode>,
+    queue_waits: Mutex<HashMap<AgentId, QueueWait>>,
+}
+
+impl Cache {
+    fn set_metrics(&self, metrics: Option<serde_json::Value>) {
+        *self.metrics.lock().unwrap_or_else(PoisonError::into_inner) = metrics;
+    }
+
+    fn set_state_hash(&self, hash: Option<String>) {
+        *self.state_hash.lock().unwrap_or_else(PoisonError::into_inner) = hash;
+    }
+
+    fn set_clock_mode(&self, mode: ClockMode) {
+        *self.clock_mode.lock().unwrap_or_else(PoisonError::into_inner) = mode;
+    }
+
+    fn record_queue_wait(&self, agent_id: &AgentId, wait: Duration) {
+        self.queue_waits
+            .lock()
+            .unwrap_or_else(PoisonError::into_inner)
+            .entry(agent_id.clone())
+            .or_default()
+            .record(wait);
+    }
+
+    fn forget_queue_wait(&self, agent_id: &AgentId) {
+        self.queue_waits
+            .lock()
+            .unwrap_or_else(PoisonError::into_inner)
+            .remove(agent_id);
+    }
+
+    fn metrics(&self) -> Option<serde_json::Value> {
+        self.metrics
+            .lock()
+            .unwrap_or_else(PoisonError::into_inner)
+            .clone()
+    }
+
+    fn state_hash(&self) -> Option<String> {
+        self.state_hash
+            .lock()
+            .unwrap_or_else(PoisonError::into_inner)
+            .clone()
+    }
+
+    fn clock_mode(&self) -> ClockMode {
+        *self.clock_mode.lock().unwrap_or_else(PoisonError::into_inner)
+    }
+
+    fn queue_wait(&self, agent_id: &AgentId) -> QueueWait {
+        self.queue_waits
+            .lock()
+            .unwrap_or_else(PoisonError::into_inner)
+            .get(agent_id)
+            .copied()
+            .unwrap_or_default()
+    }
+}
+
+/// Cheap, cloneable handle to the environment actor
+#[derive(Clone)]
+pub struct EnvironmentHandle {
+    commands: mpsc::Sender<Command>,
+    cache: Arc<Cache>,
+    scheduler: SharedConfig,
+}
+
+impl EnvironmentHandle {
+    /// Move the environment into an actor task and return its handle.
+    /// Must be called within a Tokio runtime.
+    pub fn spawn<E: GameEnvironment>(environment: E) -> Self {
+        let (commands, receiver) = mpsc::channel(COMMAND_CAPACITY);
+        let cache = Arc::new(Cache::default());
+        cache.set_metrics(environment.metrics());
+        let scheduler = SharedConfig::default();
+        let queue = CommandQueue::new(Scheduler::new(scheduler.clone()));
+        tokio::spawn(run(environment, receiver, queue, cache.clone()));
+        Self {
+            commands,
+            cache,
+            scheduler,
+        }
+    }
+
+    /// Replace how queued commands are scheduled across agents; applies from
+    /// the next command the actor picks
+    pub fn set_scheduler(&self, config: SchedulerConfig) {
+        self.scheduler.set(config);
+    }
+
+    /// Time `agent_id`'s commands have spent queued behind other work so far
+    pub fn queue_wait(&self, agent_id: &AgentId) -> QueueWait {
+        self.cache.queue_wait(agent_id)
+    }
+
+    async fn call<T>(&self, command: impl FnOnce(Reply<T>) -> Command) -> Result<T> {
+        let (reply, response) = oneshot::channel();
+        self.commands
+            .send(command(reply))
+            .await
+            .map_err(|_| stopped())?;
+        response.await.map_err(|_| stopped())?
+    }
+
+    /// Register an agent with the environment
+    pub async fn register_agent(
+        &self,
+        agent_id: AgentId,
+        agent_type: AgentType,
+        config: AgentConfig,
+    ) -> Result<AgentManifest> {
+        self.call(|reply| Command::Register {
+            agent_id,
+            agent_type,
+            config,
+            reply,
+        })
+        .await
+    }
+
+    /// Deregister an agent
+    pub async fn deregister_agent(&self, agent_id: AgentId) -> Result<()> {
+        self.call(|reply| Command::Deregister { agent_id, reply })
+            .await
+    }
+
+    /// Execute an action and advance simulation
+    pub async fn step(&self, agent_id: AgentId, action: Action, ticks: u32) -> Result<StepResult> {
+        self.call(|reply| Command::Step {
+            agent_id,
+            action,
+            ticks,
+            reply,
+        })
+        .await
+    }
+
+    /// Execute actions for several agents with a single advance (see
+    /// [`GameEnvironment::step_batch`])
+    pub async fn step_batch(
+        &self,
+        actions: Vec<(AgentId, Action)>,
+        ticks: u32,
+    ) -> Result<Vec<StepResult>> {
+        self.call(|reply| Command::StepBatch {
+            actions,
+            ticks,
+            reply,
+        })
+        .await
+    }
+
+    /// Queue an action for the game to apply on its own clock, without
+    /// advancing the simulation (live mode only)
+    pub async fn queue_action(&self, agent_id: AgentId, action: Action) -> Result<()> {
+        self.call(|reply| Command::QueueAction {
+            agent_id,
+            action,
+            reply,
+        })
+        .await
+    }
+
+    /// Who currently owns the clock, without waiting for queued commands
+    pub fn clock_mode(&self) -> ClockMode {
+        self.cache.clock_mode()
+    }
+
+    /// Configure vision streams
+    pub async fn configure_streams(
+        &self,
+        agent_id: AgentId,
+        profile: String,
+    ) -> Result<Vec<StreamDescriptor>> {
+        self.call(|reply| Command::ConfigureStreams {
+            agent_id,
+            profile,
+            reply,
+        })
+        .await
+    }
+
+    /// Reset the environment
+    pub async fn reset(&self, seed: Option<u64>, scenario: Option<String>) -> Result<Observation> {
+        self.call(|reply| Command::Reset {
+            seed,
+            scenario,
+            reply,
+        })
+        .await
+    }
+
+    /// Current state hash; answered from the cache when nothing has changed
+    /// the state since it was last computed. In live mode the game advances
+    /// on its own clock, so the hash is always asked for.
+    pub async fn state_hash(&self) -> Result<String> {
+        let cached = match self.cache.clock_mode() {
+            ClockMode::Live => None,
+            ClockMode::Training => self.cache.state_hash(),
+        };
+        if let Some(hash) = cached {
+            return Ok(hash);
+        }
+        self.call(|reply| Command::StateHash { reply }).await
+    }
+
+    /// Start appending every successful step to a trajectory file, replacing
+    /// any recording in progress (see [`crate::trajectory`])
+    pub async fn save_trajectory(&self, path: PathBuf, options: RecordingOptions) -> Result<()> {
+        self.call(|reply| Command::SaveTrajectory {
+            path,
+            options,
+            reply,
+        })
+        .await
+    }
+
+    /// Stop recording once the file holds every queued step; `None` when
+    /// nothing was being recorded
+    pub async fn stop_trajectory(&self) -> Result<Option<RecordingStats>> {
+        self.call(|reply| Command::StopTrajectory { reply }).await
+    }
+
+    /// Replay recorded actions from the current state. Agents must be
+    /// registered and the environment in the state the recording started
+    /// from (at `options.from`).
+    pub async fn load_trajectory(
+        &self,
+        path: PathBuf,
+        options: ReplayOptions,
+    ) -> Result<ReplayReport> {
+        self.call(|reply| Command::LoadTrajectory {
+            path,
+            options,
+            reply,
+        })
+        .await
+    }
+
+    /// Subscribe to pushed events (coalesced if the environment supports it)
+    pub async fn subscribe(&self) -> Result<Subscription> {
+        let (reply, response) = oneshot::channel();
+        self.commands
+            .send(Command::Subscribe { reply })
+            .await
+            .map_err(|_| stopped())?;
+        response.await.map_err(|_| stopped())
+    }
+
+    /// Shut the environment down
+    pub async fn shutdown(&self) -> Result<()> {
+        self.call(|reply| Command::Shutdown { reply }).await
+    }
+
+    /// Latest transport metrics (never waits for a running command)
+    pub fn metrics(&self) -> Option<serde_json::Value> {
+        self.cache.metrics()
+    }
+}
+
+fn stopped() -> GameRLError {
+    GameRLError::GameError("Environment actor stopped".into())
+}
+
+async fn run<E: GameEnvironment>(
+    mut environment: E,
+    mut receiver: mpsc::Receiver<Command>,
+    mut queue: CommandQueue,
+    cache: Arc<Cache>,
+) {
+    let mut refresh = tokio::time::interval(METRICS_REFRESH);
+    let mut recorder = None;
+    let mut clock = Clock::default();
+
+    loop {
+        if queue.is_empty() {
+            tokio::select! {
+                command = receiver.recv() => match command {
+                    Some(command) => queue.push(command),
+                    None => break,
+                },
+                _ = refresh.tick() => {
+                    cache.set_metrics(environment.metrics());
+                    continue;
+                }
+            }
+        }
+        while let Ok(command) = receiver.try_recv() {
+            queue.push(command);
+        }
+
+        let Some((command, waited)) = queue.pop() else {
+            // Everything queued is held back by rate limits
+            let ready = queue.next_ready().unwrap_or_else(Instant::now);
+            tokio::select! {
+                command = receiver.recv() => match command {
+                    Some(command) => queue.push(command),
+                    None => break,
+                },
+                _ = tokio::time::sleep_until(ready) => {}
+            }
+            continue;
+        };
+        if let Some(agent_id) = command.agent() {
+            cache.record_queue_wait(agent_id, waited);
+        } else if let Command::StepBatch { actions, .. } = &command {
+            // A batch waited on behalf of every agent in it
+            for (agent_id, _) in actions {
+                cache.record_queue_wait(agent_id, waited);
+            }
+        }
+        let shutdown = matches!(command, Command::Shutdown { .. });
+        execute(&mut environment, command, &cache, &mut recorder, &mut clock).await;
+        cache.set_metrics(environment.metrics());
+        if shutdown {
+            // Dropping the rest of the queue fails its replies with `stopped`
+            break;
+        }
+    }
+
+    if let Err(e) = stop_recording(&mut recorder).await {
+        warn!("{}", e);
+    }
+    debug!("Environment actor stopped");
+}
+
+/// Finish the recording in progress, if any
+async fn stop_recording(
+    recorder: &mut Option<TrajectoryRecorder>,
+) -> Result<Option<RecordingStats>> {
+    match recorder.take() {
+        Some(recorder) => recorder.finish().await.map(Some),
+        None => Ok(None),
+    }
+}
+
+async fn start_recording(
+    recorder: &mut Option<TrajectoryRecorder>,
+    path: PathBuf,
+    options: RecordingOptions,
+) -> Result<()> {
+    if let Err(e) = stop_recording(recorder).await {
+        warn!("{}", e);
+    }
+    *recorder = Some(TrajectoryRecorder::create(path, options).await?);
+    Ok(())
+}
+
+/// Clock modes requested by the registered agents
+#[derive(Default)]
+struct Clock {
+    /// Mode and push interval per agent
+    requested: HashMap<AgentId, (ClockMode, u32)>,
+    /// Mode and push interval the environment runs with
+    current: (ClockMode, u32),
+}
+
+impl Clock {
+    /// Live while every registered agent asks for it, pushing as often as
+    /// the most demanding one; any training agent keeps the agents' clock
+    fn resolve(&self) -> (ClockMode, u32) {
+        let live = !self.requested.is_empty()
+            && self
+                .requested
+                .values()
+                .all(|(mode, _)| *mode == ClockMode::Live);
+        match self.requested.values().map(|(_, interval)| *interval).min() {
+            Some(interval) if live => (ClockMode::Live, interval),
+            _ => (ClockMode::Training, 0),
+        }
+    }
+
+    fn is_live(&self) -> bool {
+        self.current.0 == ClockMode::Live
+    }
+}
+
+/// Switch the environment to the mode the registered agents resolve to
+///
+/// A game that can't run live stays in training mode.
+async fn apply_clock<E: GameEnvironment>(environment: &mut E, clock: &mut Clock, cache: &Cache) {
+    let (mode, push_interval) = clock.resolve();
+    if (mode, push_interval) == clock.current {
+        return;
+    }
+    match environment.set_clock_mode(mode, push_interval).await {
+        Ok(()) => {
+            info!("Clock mode: {:?} (push every {} ticks)", mode, push_interval);
+            clock.current = (mode, push_interval);
+            cache.set_clock_mode(mode);
+            cache.set_state_hash(None);
+        }
+        Err(e) => warn!("Staying in {:?} mode: {}", clock.current.0, e),
+    }
+}
+
+fn live_clock() -> GameRLError {
+    GameRLError::InvalidAction(
+        "The game owns the clock in live mode; sim_step queues actions instead".into(),
+    )
+}
+
+async fn replay<E: GameEnvironment>(
+    environment: &mut E,
+    path: PathBuf,
+    options: ReplayOptions,
+) -> Result<ReplayReport> {
+    let reader = tokio::task::spawn_blocking(move || TrajectoryReader::open(path))
+        .await
+        .map_err(|e| GameRLError::GameError(e.to_string()))??;
+    trajectory::replay(environment, Arc::new(reader), options).await
+}
+
+async fn execute<E: GameEnvironment>(
+    environment: &mut E,
+    command: Command,
+    cache: &Cache,
+    recorder: &mut Option<TrajectoryRecorder>,
+    clock: &mut Clock,
+) {
+    // Replies are dropped silently when the requester has gone away
+    match command {
+        Command::Register {
+            agent_id,
+            agent_type,
+            config,
+            reply,
+        } => {
+            let push_interval = config.push_interval.unwrap_or(DEFAULT_PUSH_INTERVAL).max(1);
+            let requested = (config.clock_mode, push_interval);
+            let result = environment
+                .register_agent(agent_id.clone(), agent_type, config)
+                .await;
+            if result.is_ok() {
+                clock.requested.insert(agent_id, requested);
+                apply_clock(environment, clock, cache).await;
+            }
+            let _ = reply.send(result);
+        }
+        Command::Deregister { agent_id, reply } => {
+            let result = environment.deregister_agent(&agent_id).await;
+            if result.is_ok() {
+                cache.forget_queue_wait(&agent_id);
+                clock.requested.remove(&agent_id);
+                apply_clock(environment, clock, cache).await;
+            }
+            let _ = reply.send(result);
+        }
+        Command::Step { reply, .. } if clock.is_live() => {
+            let _ = reply.send(Err(live_clock()));
+        }
+        Command::StepBatch { reply, .. } if clock.is_live() => {
+            let _ = reply.send(Err(live_clock()));
+        }
+        Command::LoadTrajectory { reply, .. } if clock.is_live() => {
+            let _ = reply.send(Err(live_clock()));
+        }
+        Command::Step {
+            agent_id,
+            action,
+            ticks,
+            reply,
+        } => {
+            let recorded = recorder.is_some().then(|| action.clone());
+            let result = environment.step(&agent_id, action, ticks).await;
+            let hash = result.as_ref().ok().and_then(|r| r.state_hash.clone());
+            cache.set_state_hash(hash);
+            if let (Some(recorder), Some(action), Ok(step)) = (recorder, recorded, &result) {
+                recorder.record(ticks, action, step);
+            }
+            let _ = reply.send(result);
+        }
+        Command::StepBatch {
+            actions,
+            ticks,
+            reply,
+        } => {
+            let recorded: Option<Vec<Action>> = recorder
+                .is_some()
+                .then(|| actions.iter().map(|(_, action)| action.clone()).collect());
+            let result = environment.step_batch(actions, ticks).await;
+            let hash = result
+                .as_ref()
+                .ok()
+                .and_then(|results| results.last())
+                .and_then(|r| r.state_hash.clone());
+            cache.set_state_hash(hash);
+            if let (Some(recorder), Some(actions), Ok(steps)) = (recorder, recorded, &result) {
+                recorder.record_batch(ticks, actions, steps);
+            }
+            let _ = reply.send(result);
+        }
+        Command::QueueAction {
+            agent_id,
+            action,
+            reply,
+        } => {
+            let result = if clock.is_live() {
+                environment.queue_action(&agent_id, action).await
+            } else {
+                Err(GameRLError::InvalidAction(
+                    "Actions are only queued in live mode; use sim_step".into(),
+                ))
+            };
+            cache.set_state_hash(None);
+            let _ = reply.send(result);
+        }
+        Command::ConfigureStreams {
+            agent_id,
+            profile,
+            reply,
+        } => {
+            let _ = reply.send(environment.configure_streams(&agent_id, &profile).await);
+        }
+        Command::Reset {
+            seed,
+            scenario,
+            reply,
+        } => {
+            cache.set_state_hash(None);
+            let _ = reply.send(environment.reset(seed, scenario).await);
+        }
+        Command::StateHash { reply } => {
+            let result = environment.state_hash().await;
+            cache.set_state_hash(result.as_ref().ok().cloned());
+            let _ = reply.send(result);
+        }
+        Command::SaveTrajectory {
+            path,
+            options,
+            reply,
+        } => {
+            let _ = reply.send(start_recording(recorder, path, options).await);
+        }
+        Command::StopTrajectory { reply } => {
+            let _ = reply.send(stop_recording(recorder).await);
+        }
+        Command::LoadTrajectory {
+            path,
+            options,
+            reply,
+        } => {
+            let result = replay(environment, path, options).await;
+            cache.set_state_hash(None);
+            let _ = reply.send(result);
+        }
+        Command::Subscribe { reply } => {
+            // Coalesced delivery is preferred: a slow client gets the latest
+            // state and a count of dropped events instead of a growing queue
+            let subscription = match environment.subscribe_coalesced() {
+                Some(coalesced) => Subscription {
+                    coalesced: Some(coalesced),
+                    events: None,
+                },
+                None => Subscription {
+                    coalesced: None,
+                    events: environment.subscribe_events(),
+                },
+            };
+            let _ = reply.send(subscription);
+        }
+        Command::Shutdown { reply } => {
+            if let Err(e) = stop_recording(recorder).await {
+                warn!("{}", e);
+            }
+            let _ = reply.send(environment.shutdown().await);
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::scheduler::AgentSchedule;
+    use crate::test_support::TestEnvironment;
+    use std::sync::atomic::Ordering;
+    use tokio::sync::Notify;
+    use tokio::time::timeout;
+
+    fn step(agent_id: &str) -> Command {
+        let (reply, _) = oneshot::channel();
+        Command::Step {
+            agent_id: agent_id.into(),
+            action: Action::Wait,
+            ticks: 1,
+            reply,
+        }
+    }
+
+    fn reset() -> Command {
+        let (reply, _) = oneshot::channel();
+        Command::Reset {
+            seed: None,
+            scenario: None,
+            reply,
+        }
+    }
+
+    fn step_batch(agent_ids: &[&str]) -> Command {
+        let (reply, _) = oneshot::channel();
+        Command::StepBatch {
+            actions: agent_ids
+                .iter()
+                .map(|&agent_id| (agent_id.into(), Action::Wait))
+                .collect(),
+            ticks: 1,
+            reply,
+        }
+    }
+
+    fn order(queue: &mut CommandQueue) -> Vec<String> {
+        std::iter::from_fn(|| queue.pop())
+            .map(|(command, _)| match command.agent() {
+                Some(agent_id) => agent_id.clone(),
+                None => "*".to_string(),
+            })
+            .collect()
+    }
+
+    #[test]
+    fn test_round_robin_between_barriers() {
+        let mut queue = CommandQueue::default();
+        for command in [step("a"), step("a"), step("a"), step("b"), reset()] {
+            queue.push(command);
+        }
+        queue.push(step("b"));
+        assert_eq!(order(&mut queue), ["a", "b", "a", "a", "*", "b"]);
+    }
+
+    #[test]
+    fn test_batch_step_is_a_barrier() {
+        let mut queue = CommandQueue::default();
+        for command in [step("a"), step_batch(&["a", "b"]), step("b")] {
+            queue.push(command);
+        }
+        assert_eq!(order(&mut queue), ["a", "*", "b"]);
+    }
+
+    #[test]
+    fn test_least_recently_served_first() {
+        let mut queue = CommandQueue::default();
+        queue.push(step("a"));
+        queue.pop();
+        for command in [step("a"), step("b"), step("c")] {
+            queue.push(command);
+        }
+        assert_eq!(order(&mut queue), ["b", "c", "a"]);
+    }
+
+    /// Scheduler config allowing "a" one step every `seconds`
+    fn limit_a(seconds: f64) -> SchedulerConfig {
+        let limited = AgentSchedule {
+            max_steps_per_second: Some(1.0 / seconds),
+            ..AgentSchedule::default()
+        };
+        SchedulerConfig {
+            agents: HashMap::from([("a".to_string(), limited)]),
+            ..SchedulerConfig::default()
+        }
+    }
+
+    #[test]
+    fn test_rate_limited_agent_does_not_hold_up_others() {
+        let shared = SharedConfig::default();
+        shared.set(limit_a(1.0));
+        let mut queue = CommandQueue::new(Scheduler::new(shared));
+        for command in [step("a"), step("a"), step("b"), step("b")] {
+            queue.push(command);
+        }
+
+        // a's second step waits for its next token; b's steps don't
+        assert_eq!(order(&mut queue), ["a", "b", "b"]);
+        assert!(!queue.is_empty());
+        assert!(queue.next_ready().is_some());
+    }
+
+    #[test]
+    fn test_barrier_runs_ahead_of_held_steps() {
+        let shared = SharedConfig::default();
+        shared.set(limit_a(1.0));
+        let mut queue = CommandQueue::new(Scheduler::new(shared));
+        for command in [step("a"), step("a"), reset(), step("b")] {
+            queue.push(command);
+        }
+
+        // a's held step stays queued behind the reset
+        assert_eq!(order(&mut queue), ["a", "*", "b"]);
+        assert!(!queue.is_empty());
+    }
+
+    #[tokio::test]
+    async fn test_shutdown_behind_held_step() {
+        let handle = EnvironmentHandle::spawn(TestEnvironment::default());
+        handle.set_scheduler(limit_a(1000.0));
+
+        // The first step takes a's only token, the second is held
+        handle.step("a".into(), Action::Wait, 1).await.unwrap();
+        let stepping = handle.clone();
+        let held = tokio::spawn(async move { stepping.step("a".into(), Action::Wait, 1).await });
+        tokio::time::sleep(Duration::from_millis(20)).await;
+
+        let shutdown = timeout(Duration::from_secs(1), handle.shutdown()).await;
+        assert!(shutdown.expect("shutdown waited for the held step").is_ok());
+        // The held step fails instead of running after the shutdown
+        let held = timeout(Duration::from_secs(1), held).await.unwrap().unwrap();
+        assert!(held.is_err());
+    }
+
+    #[tokio::test]
+    async fn test_reads_do_not_wait_for_step() {
+        let release = Arc::new(Notify::new());
+        let environment = TestEnvironment::default().with_gate(release.clone());
+        let handle = EnvironmentHandle::spawn(environment);
+        assert_eq!(handle.state_hash().await.unwrap(), "0");
+
+        let stepping = handle.clone();
+        let step = tokio::spawn(async move {
+            let _ = stepping.step("a".into(), Action::Wait, 1).await;
+        });
+        tokio::task::yield_now().await;
+
+        // The step is still running; cached values come back immediately
+        let hash = timeout(Duration::from_millis(50), handle.state_hash()).await;
+        assert_eq!(hash.unwrap().unwrap(), "0");
+        assert!(handle.metrics().is_some());
+
+        release.notify_one();
+        step.await.unwrap();
+        // The step invalidated the cached hash
+        assert_eq!(handle.state_hash().await.unwrap(), "1");
+    }
+
+    #[test]
+    fn test_clock_is_live_only_when_every_agent_asks() {
+        let mut clock = Clock::default();
+        assert_eq!(clock.resolve(), (ClockMode::Training, 0));
+
+        clock.requested.insert("a".into(), (ClockMode::Live, 30));
+        clock.requested.insert("b".into(), (ClockMode::Live, 60));
+        assert_eq!(clock.resolve(), (ClockMode::Live, 30));
+
+        clock.requested.insert("c".into(), (ClockMode::Training, 60));
+        assert_eq!(clock.resolve(), (ClockMode::Training, 0));
+    }
+
+    #[tokio::test]
+    async fn test_live_agent_without_live_support_keeps_training() {
+        let handle = EnvironmentHandle::spawn(TestEnvironment::default());
+        let config = AgentConfig {
+            clock_mode: ClockMode::Live,
+            ..AgentConfig::default()
+        };
+        handle
+            .register_agent("a".into(), AgentType::Player, config)
+            .await
+            .unwrap();
+
+        assert_eq!(handle.clock_mode(), ClockMode::Training);
+        let queued = handle.queue_action("a".into(), Action::Wait).await;
+        assert!(matches!(queued, Err(GameRLError::InvalidAction(_))));
+    }
+
+    #[tokio::test]
+    async fn test_live_state_hash_is_not_cached() {
+        let environment = TestEnvironment::default().with_live();
+        let advances = environment.advances();
+        let handle = EnvironmentHandle::spawn(environment);
+        assert_eq!(handle.state_hash().await.unwrap(), "0");
+
+        let config = AgentConfig {
+            clock_mode: ClockMode::Live,
+            ..AgentConfig::default()
+        };
+        handle
+            .register_agent("a".into(), AgentType::Player, config)
+            .await
+            .unwrap();
+        assert_eq!(handle.clock_mode(), ClockMode::Live);
+
+        // The game advances on its own clock; the hash follows it
+        handle.queue_action("a".into(), Action::Wait).await.unwrap();
+        advances.fetch_add(1, Ordering::SeqCst);
+        assert_eq!(handle.state_hash().await.unwrap(), "1");
+        advances.fetch_add(1, Ordering::SeqCst);
+        assert_eq!(handle.state_hash().await.unwrap(), "2");
+    }
+
+    #[tokio::test]
+    async fn test_batch_records_queue_wait_for_each_agent() {
+        let handle = EnvironmentHandle::spawn(TestEnvironment::default());
+        let actions = vec![("a".into(), Action::Wait), ("b".into(), Action::Wait)];
+        handle.step_batch(actions, 1).await.unwrap();
+
+        assert_eq!(handle.queue_wait(&"a".into()).count, 1);
+        assert_eq!(handle.queue_wait(&"b".into()).count, 1);
+    }
+}
@@ -1,10 +1,12 @@
 //! Game environment trait
 
+use crate::events::CoalescedReceiver;
 use async_trait::async_trait;
 use game_rl_core::{
-    Action, AgentConfig, AgentId, AgentManifest, AgentType, GameEvent, GameManifest, Observation,
-    Result, StepResult, StreamDescriptor,
+    Action, AgentConfig, AgentId, AgentManifest, AgentType, ClockMode, GameEvent, GameManifest,
+    GameRLError, Observation, Result, StepResult, StreamDescriptor,
 };
+use serde_json::value::RawValue;
 use tokio::sync::broadcast;
 
 /// Pushed state update from the game
@@ -12,8 +14,8 @@ use tokio::sync::broadcast;
 pub struct StateUpdate {
     /// Current game tick
     pub tick: u64,
-    /// Game state (JSON)
-    pub state: serde_json::Value,
+    /// Game state (unparsed JSON, forwarded as-is)
+    pub state: Box<RawValue>,
     /// Events that occurred
     pub events: Vec<GameEvent>,
 }
@@ -37,6 +39,23 @@ pub trait GameEnvironment: Send + Sync + 'static {
     /// Execute an action and advance simulation
     async fn step(&mut self, agent_id: &AgentId, action: Action, ticks: u32) -> Result<StepResult>;
 
+    /// Execute actions for several agents and advance simulation once.
+    /// Results are returned in the order of `actions`.
+    ///
+    /// The default steps each agent in turn, so the simulation advances once
+    /// per agent; override it when the game can apply a batch in one tick.
+    async fn step_batch(
+        &mut self,
+        actions: Vec<(AgentId, Action)>,
+        ticks: u32,
+    ) -> Result<Vec<StepResult>> {
+        let mut results = Vec::with_capacity(actions.len());
+        for (agent_id, action) in actions {
+            results.push(self.step(&agent_id, action, ticks).await?);
+        }
+        Ok(results)
+    }
+
     /// Reset the environment
     async fn reset(&mut self, seed: Option<u64>, scenario: Option<String>) -> Result<Observation>;
 
@@ -50,11 +69,27 @@ pub trait GameEnvironment: Send + Sync + 'static {
         profile: &str,
     ) -> Result<Vec<StreamDescriptor>>;
 
-    /// Save trajectory to file
-    async fn save_trajectory(&self, path: &str) -> Result<()>;
+    /// Hand the clock to the game ([`ClockMode::Live`]) or back to the
+    /// agents ([`ClockMode::Training`])
+    ///
+    /// In live mode the game runs at its native rate and publishes a
+    /// [`StateUpdate`] every `push_interval` ticks to the subscribers of
+    /// [`subscribe_events`](Self::subscribe_events) and
+    /// [`subscribe_coalesced`](Self::subscribe_coalesced); actions arrive
+    /// through [`queue_action`](Self::queue_action). The default only
+    /// supports training mode.
+    async fn set_clock_mode(&mut self, mode: ClockMode, _push_interval: u32) -> Result<()> {
+        match mode {
+            ClockMode::Training => Ok(()),
+            ClockMode::Live => Err(GameRLError::GameError("Live mode is not supported".into())),
+        }
+    }
 
-    /// Load and replay trajectory
-    async fn load_trajectory(&mut self, path: &str) -> Result<()>;
+    /// Queue an action for the game to apply on its own clock, without
+    /// advancing the simulation (live mode)
+    async fn queue_action(&mut self, _agent_id: &AgentId, _action: Action) -> Result<()> {
+        Err(GameRLError::GameError("Live mode is not supported".into()))
+    }
 
     /// Called when environment should shut down
     async fn shutdown(&mut self) -> Result<()>;
@@ -67,4 +102,17 @@ pub trait GameEnvironment: Send + Sync + 'static {
     fn subscribe_events(&self) -> Option<broadcast::Receiver<StateUpdate>> {
         None
     }
+
+    /// Subscribe to the latest pushed state plus events merged since the
+    /// previous receive, with a bounded backlog that never lags.
+    /// Returns None if coalescing is not supported.
+    fn subscribe_coalesced(&self) -> Option<CoalescedReceiver> {
+        None
+    }
+
+    /// Transport and delivery counters, served as the `game://metrics` resource.
+    /// Returns None if the environment doesn't collect metrics.
+    fn metrics(&self) -> Option<serde_json::Value> {
+        None
+    }
 }
@@ -0,0 +1,300 @@
+//! Fan-out of pushed state updates
+//!
+//! Bridges publish every `StateUpdate` into an [`EventHub`]. Subscribers pick
+//! one of two modes:
+//!
+//! - [`EventHub::subscribe`]: every update on a bounded broadcast channel.
+//!   A subscriber that falls behind gets `RecvError::Lagged` and loses updates.
+//! - [`EventHub::subscribe_coalesced`]: only the latest state (a `watch`
+//!   channel) plus the events that arrived since the last `recv`. Events wait
+//!   in a bounded per-subscriber backlog. Overflow drops the oldest events and
+//!   is counted, so a stalled client costs a fixed amount of memory and still
+//!   learns how many events it missed.
+
+use crate::environment::StateUpdate;
+use game_rl_core::GameEvent;
+use serde::Serialize;
+use serde_json::value::RawValue;
+use std::collections::VecDeque;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Arc, Mutex, Weak};
+use tokio::sync::{broadcast, watch};
+
+/// Latest pushed state
+#[derive(Debug)]
+struct Snapshot {
+    tick: u64,
+    state: Arc<RawValue>,
+}
+
+/// Events waiting for one coalescing subscriber
+#[derive(Debug, Default)]
+struct Backlog {
+    events: VecDeque<GameEvent>,
+    /// Dropped since the subscriber's last `recv`
+    dropped: u64,
+    /// Dropped over the subscriber's lifetime
+    dropped_total: u64,
+}
+
+impl Backlog {
+    /// Queue events, returning how many old ones had to be dropped
+    fn push(&mut self, events: &[GameEvent], limit: usize) -> u64 {
+        self.events.extend(events.iter().cloned());
+        let overflow = self.events.len().saturating_sub(limit);
+        if overflow > 0 {
+            self.events.drain(..overflow);
+            self.dropped += overflow as u64;
+            self.dropped_total += overflow as u64;
+        }
+        overflow as u64
+    }
+}
+
+#[derive(Debug)]
+struct Hub {
+    raw: broadcast::Sender<StateUpdate>,
+    latest: watch::Sender<Option<Arc<Snapshot>>>,
+    subscribers: Mutex<Vec<Weak<Mutex<Backlog>>>>,
+    /// Events kept per coalescing subscriber
+    backlog_limit: usize,
+    published: AtomicU64,
+    dropped_events: AtomicU64,
+}
+
+/// Publisher side of pushed state updates (cheap to clone)
+#[derive(Debug, Clone)]
+pub struct EventHub {
+    inner: Arc<Hub>,
+}
+
+impl EventHub {
+    /// Create a hub buffering `capacity` updates per broadcast subscriber and
+    /// `capacity` events per coalescing subscriber
+    pub fn new(capacity: usize) -> Self {
+        let (raw, _) = broadcast::channel(capacity.max(1));
+        let (latest, _) = watch::channel(None);
+        Self {
+            inner: Arc::new(Hub {
+                raw,
+                latest,
+                subscribers: Mutex::new(Vec::new()),
+                backlog_limit: capacity,
+                published: AtomicU64::new(0),
+                dropped_events: AtomicU64::new(0),
+            }),
+        }
+    }
+
+    /// Publish an update to both kinds of subscribers
+    pub fn publish(&self, update: StateUpdate) {
+        let hub = &self.inner;
+
+        hub.published.fetch_add(1, Ordering::Relaxed);
+
+        // Queue events before announcing the new state, so a woken subscriber
+        // always finds the events that came with it
+        {
+            let mut subscribers = hub.subscribers.lock().unwrap();
+            subscribers.retain(|backlog| backlog.strong_count() > 0);
+            for backlog in subscribers.iter().filter_map(Weak::upgrade) {
+                let dropped = backlog
+                    .lock()
+                    .unwrap()
+                    .push(&update.events, hub.backlog_limit);
+                if dropped > 0 {
+                    hub.dropped_events.fetch_add(dropped, Ordering::Relaxed);
+                }
+            }
+        }
+
+        // Only pay for a copy when someone wants every update
+        if hub.raw.receiver_count() > 0 {
+            let _ = hub.raw.send(update.clone());
+        }
+
+        hub.latest.send_replace(Some(Arc::new(Snapshot {
+            tick: update.tick,
+            state: Arc::from(update.state),
+        })));
+    }
+
+    /// Receive every update; slow receivers lag and lose updates
+    pub fn subscribe(&self) -> broadcast::Receiver<StateUpdate> {
+        self.inner.raw.subscribe()
+    }
+
+    /// Receive the latest state and all events since the previous `recv`
+    pub fn subscribe_coalesced(&self) -> CoalescedReceiver {
+        let backlog = Arc::new(Mutex::new(Backlog::default()));
+        self.inner
+            .subscribers
+            .lock()
+            .unwrap()
+            .push(Arc::downgrade(&backlog));
+
+        CoalescedReceiver {
+            latest: self.inner.latest.subscribe(),
+            backlog,
+        }
+    }
+
+    /// Delivery counters across all subscribers
+    pub fn stats(&self) -> EventHubStats {
+        let hub = &self.inner;
+        let mut subscribers = hub.subscribers.lock().unwrap();
+        subscribers.retain(|backlog| backlog.strong_count() > 0);
+        EventHubStats {
+            published: hub.published.load(Ordering::Relaxed),
+            broadcast_subscribers: hub.raw.receiver_count(),
+            broadcast_backlog: hub.raw.len(),
+            coalesced_subscribers: subscribers.len(),
+            dropped_events: hub.dropped_events.load(Ordering::Relaxed),
+        }
+    }
+}
+
+/// Point-in-time delivery counters of an [`EventHub`]
+#[derive(Debug, Clone, Default, Serialize)]
+pub struct EventHubStats {
+    /// Updates published so far
+    pub published: u64,
+    pub broadcast_subscribers: usize,
+    /// Updates the slowest broadcast subscriber has yet to receive
+    pub broadcast_backlog: usize,
+    pub coalesced_subscribers: usize,
+    /// Events dropped from coalescing backlogs, summed over subscribers
+    pub dropped_events: u64,
+}
+
+/// Latest state plus the events merged since the previous one
+#[derive(Debug, Clone)]
+pub struct CoalescedUpdate {
+    /// Tick of the latest state
+    pub tick: u64,
+    /// Latest game state (unparsed JSON)
+    pub state: Arc<RawValue>,
+    /// Events since the previous update, oldest first
+    pub events: Vec<GameEvent>,
+    /// Events dropped from this subscriber's backlog since the previous update
+    pub dropped_events: u64,
+}
+
+/// Coalescing subscription created by [`EventHub::subscribe_coalesced`]
+#[derive(Debug)]
+pub struct CoalescedReceiver {
+    latest: watch::Receiver<Option<Arc<Snapshot>>>,
+    backlog: Arc<Mutex<Backlog>>,
+}
+
+impl CoalescedReceiver {
+    /// Wait for a state newer than the last one returned.
+    ///
+    /// Returns `None` once every `EventHub` handle has been dropped.
+    pub async fn recv(&mut self) -> Option<CoalescedUpdate> {
+        let snapshot = loop {
+            self.latest.changed().await.ok()?;
+            if let Some(snapshot) = self.latest.borrow_and_update().clone() {
+                break snapshot;
+            }
+        };
+
+        let mut backlog = self.backlog.lock().unwrap();
+        Some(CoalescedUpdate {
+            tick: snapshot.tick,
+            state: snapshot.state.clone(),
+            events: backlog.events.drain(..).collect(),
+            dropped_events: std::mem::take(&mut backlog.dropped),
+        })
+    }
+
+    /// Events this subscriber has lost to backlog overflow
+    pub fn dropped_total(&self) -> u64 {
+        self.backlog.lock().unwrap().dropped_total
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn update(tick: u64, events: usize) -> StateUpdate {
+        StateUpdate {
+            tick,
+            state: serde_json::value::to_raw_value(&serde_json::json!({ "tick": tick })).unwrap(),
+            events: (0..events)
+                .map(|i| GameEvent {
+                    event_type: format!("Raid{}", i),
+                    tick,
+                    severity: 2,
+                    details: serde_json::Value::Null,
+                })
+                .collect(),
+        }
+    }
+
+    #[tokio::test]
+    async fn test_coalesces_to_latest_state_and_merges_events() {
+        let hub = EventHub::new(16);
+        let mut rx = hub.subscribe_coalesced();
+
+        hub.publish(update(1, 2));
+        hub.publish(update(2, 0));
+        hub.publish(update(3, 1));
+
+        let merged = rx.recv().await.unwrap();
+        assert_eq!(merged.tick, 3);
+        assert_eq!(merged.state.get(), r#"{"tick":3}"#);
+        assert_eq!(merged.events.len(), 3);
+        assert_eq!(merged.events[0].tick, 1);
+        assert_eq!(merged.dropped_events, 0);
+    }
+
+    #[tokio::test]
+    async fn test_stalled_subscriber_backlog_is_bounded() {
+        let hub = EventHub::new(4);
+        let mut stalled = hub.subscribe_coalesced();
+        let mut live = hub.subscribe_coalesced();
+
+        hub.publish(update(1, 3));
+        assert_eq!(live.recv().await.unwrap().events.len(), 3);
+
+        // A burst while `stalled` isn't reading
+        for tick in 2..=5 {
+            hub.publish(update(tick, 3));
+        }
+        assert_eq!(live.recv().await.unwrap().events.len(), 4);
+
+        let merged = stalled.recv().await.unwrap();
+        assert_eq!(merged.tick, 5);
+        assert_eq!(merged.events.len(), 4);
+        assert_eq!(merged.dropped_events, 11);
+        assert_eq!(stalled.dropped_total(), 11);
+        assert_eq!(live.dropped_total(), 8);
+
+        let stats = hub.stats();
+        assert_eq!(stats.published, 5);
+        assert_eq!(stats.coalesced_subscribers, 2);
+        assert_eq!(stats.dropped_events, 19);
+    }
+
+    #[tokio::test]
+    async fn test_broadcast_mode_still_sees_every_update() {
+        let hub = EventHub::new(8);
+        let mut rx = hub.subscribe();
+
+        hub.publish(update(1, 1));
+        hub.publish(update(2, 1));
+
+        assert_eq!(rx.recv().await.unwrap().tick, 1);
+        assert_eq!(rx.recv().await.unwrap().tick, 2);
+    }
+
+    #[tokio::test]
+    async fn test_recv_ends_when_hub_is_dropped() {
+        let hub = EventHub::new(4);
+        let mut rx = hub.subscribe_coalesced();
+        drop(hub);
+        assert!(rx.recv().await.is_none());
+    }
+}
@@ -4,51 +4,145 @@
 //!
 //! This crate provides:
 //! - `GameEnvironment` trait for implementing game adapters
+//! - Environment actor serving commands from per-agent queues
+//! - Step scheduling across agents: round-robin, weighted fair or priority,
+//!   with per-agent rate limits
 //! - MCP JSON-RPC protocol handling
 //! - Agent registry and lifecycle management
 //! - Tool implementations (sim_step, reset, etc.)
+//! - Lockstep rounds: one joint advance per round of multi-agent `sim_step`s
+//! - Coalescing fan-out of pushed state updates
+//! - Trajectory recording and replay for any environment
+//! - Concurrent request handling with per-method limits
+//! - stdio, TCP and Unix socket transports
 
+pub mod actor;
 pub mod environment;
+pub mod events;
+pub mod lockstep;
 pub mod mcp;
 pub mod registry;
+pub mod scheduler;
 pub mod tools;
+pub mod trajectory;
 pub mod transport;
 
+#[cfg(test)]
+mod test_support;
+
+pub use actor::EnvironmentHandle;
 pub use environment::{GameEnvironment, StateUpdate};
+pub use events::{CoalescedReceiver, CoalescedUpdate, EventHub, EventHubStats};
+pub use lockstep::{LockstepBarrier, SteppingMode};
 pub use mcp::Notification;
 pub use registry::AgentRegistry;
+pub use scheduler::{AgentSchedule, SchedulerConfig, SchedulingPolicy};
+pub use trajectory::{
+    Records, RecordingOptions, RecordingStats, ReplayOptions, ReplayReport, TrajectoryDir,
+    TrajectoryReader, TrajectoryRecord, TrajectoryRecorder, read_trajectory,
+};
+pub use transport::ConcurrencyLimits;
 
 use game_rl_core::{GameManifest, Result};
 use std::sync::Arc;
 use tokio::sync::RwLock;
+use trajectory::ReaderCache;
+use transport::ownership::Owners;
 
 /// Game-RL MCP server
-pub struct GameRLServer<E: GameEnvironment> {
-    /// Game environment implementation
-    environment: Arc<RwLock<E>>,
+pub struct GameRLServer {
+    /// Handle to the task that owns the game environment
+    environment: EnvironmentHandle,
     /// Agent registry
     registry: Arc<RwLock<AgentRegistry>>,
     /// Game manifest
     manifest: GameManifest,
+    /// Limits on requests handled at once
+    limits: ConcurrencyLimits,
+    /// Round barrier for `sim_step` in [`SteppingMode::Lockstep`]
+    lockstep: Option<Arc<LockstepBarrier>>,
+    /// Session that registered each agent
+    owners: Owners,
+    /// Where clients' trajectory paths are resolved
+    trajectories: TrajectoryDir,
+    /// Readers kept open between `game://trajectory` reads
+    readers: ReaderCache,
 }
 
-impl<E: GameEnvironment> GameRLServer<E> {
-    /// Create a new server with the given environment
-    pub fn new(environment: E, manifest: GameManifest) -> Self {
+impl GameRLServer {
+    /// Create a new server with the given environment.
+    /// Must be called within a Tokio runtime (the environment moves into a task).
+    pub fn new<E: GameEnvironment>(environment: E, mut manifest: GameManifest) -> Self {
+        // Trajectories are recorded by the server, whatever the game supports
+        manifest.capabilities.save_replay = true;
         Self {
-            environment: Arc::new(RwLock::new(environment)),
+            environment: EnvironmentHandle::spawn(environment),
             registry: Arc::new(RwLock::new(AgentRegistry::new(
                 manifest.capabilities.max_agents,
             ))),
             manifest,
+            limits: ConcurrencyLimits::default(),
+            lockstep: None,
+            owners: Owners::default(),
+            trajectories: TrajectoryDir::default(),
+            readers: ReaderCache::default(),
         }
     }
 
+    /// Replace the default concurrency limits
+    pub fn with_concurrency_limits(mut self, limits: ConcurrencyLimits) -> Self {
+        self.limits = limits;
+        self
+    }
+
+    /// Keep client trajectory files in `dir` (default `trajectories` in the
+    /// working directory)
+    pub fn with_trajectory_dir(mut self, dir: TrajectoryDir) -> Self {
+        self.trajectories = dir;
+        self
+    }
+
+    /// Choose how queued commands from different agents are ordered and
+    /// rate limited (round-robin without limits by default)
+    pub fn with_scheduler(self, config: SchedulerConfig) -> Self {
+        self.environment.set_scheduler(config);
+        self
+    }
+
+    /// Choose how `sim_step` calls from different agents advance the game
+    /// (independently by default)
+    pub fn with_stepping_mode(mut self, mode: SteppingMode) -> Self {
+        self.lockstep = match mode {
+            SteppingMode::Independent => None,
+            SteppingMode::Lockstep { deadline } => Some(Arc::new(LockstepBarrier::new(
+                self.environment.clone(),
+                self.registry.clone(),
+                deadline,
+            ))),
+        };
+        self
+    }
+
     /// Run the server on stdio transport
     pub async fn run_stdio(self) -> Result<()> {
         transport::stdio::run(self).await
     }
 
+    /// Serve MCP connections on a TCP address until Ctrl-C
+    ///
+    /// Every connection is a separate session against this one environment.
+    pub async fn run_tcp(self, addr: &str) -> Result<()> {
+        transport::socket::run_tcp(self, addr).await
+    }
+
+    /// Serve MCP connections on a Unix domain socket until Ctrl-C
+    ///
+    /// Every connection is a separate session against this one environment.
+    #[cfg(unix)]
+    pub async fn run_unix(self, path: impl AsRef<std::path::Path>) -> Result<()> {
+        transport::socket::run_unix(self, path).await
+    }
+
     /// Get the game manifest
     pub fn manifest(&self) -> &GameManifest {
         &self.manifest
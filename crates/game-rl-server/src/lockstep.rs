@@ -0,0 +1,370 @@
+//! Lockstep stepping
+//!
+//! In [`SteppingMode::Lockstep`], `sim_step` doesn't advance the game by
+//! itself. Each call submits the agent's action for the current round and
+//! waits. Once every agent in the [`AgentRegistry`] has submitted, the round
+//! runs as one [`EnvironmentHandle::step_batch`] and each caller receives its
+//! own result, so all agents act on the same state and the game advances once
+//! per round instead of once per agent.
+//!
+//! A round's deadline starts with its first action. When it passes, the round
+//! runs with the actions it has. Agents that hadn't submitted are stragglers:
+//! the action they send next was chosen for a state that no longer exists, so
+//! it is rejected with [`GameRLError::SyncTimeout`] and the agent joins the
+//! round after that.
+//!
+//! Rounds run in the order they close. `sim_step_batch`, `sim_rollout` and
+//! `sim_advance_until` would advance the game outside rounds, so they are
+//! refused while the server steps in lockstep.
+
+use crate::actor::EnvironmentHandle;
+use crate::registry::AgentRegistry;
+use game_rl_core::{Action, AgentId, GameRLError, Result, StepResult};
+use std::collections::{HashMap, HashSet};
+use std::sync::{Arc, Mutex, MutexGuard, PoisonError};
+use std::time::Duration;
+use tokio::sync::{RwLock, mpsc, oneshot};
+use tracing::{debug, warn};
+
+/// How `sim_step` calls from different agents advance the game
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Default)]
+pub enum SteppingMode {
+    /// Every `sim_step` advances the game on its own
+    #[default]
+    Independent,
+    /// `sim_step` waits for every registered agent, then the game advances
+    /// once for all of them
+    Lockstep {
+        /// How long a round waits for stragglers after its first action
+        deadline: Duration,
+    },
+}
+
+/// Collects one action per registered agent and advances the game once per
+/// round
+pub struct LockstepBarrier {
+    registry: Arc<RwLock<AgentRegistry>>,
+    deadline: Duration,
+    state: Mutex<BarrierState>,
+    /// Closed rounds, run in order by [`run_rounds`]
+    rounds: mpsc::UnboundedSender<Round>,
+}
+
+#[derive(Default)]
+struct BarrierState {
+    /// Rounds closed so far; identifies the open round for its deadline timer
+    closed: u64,
+    round: Round,
+    /// Agents that missed the last round they were expected in
+    stragglers: HashSet<AgentId>,
+}
+
+/// Actions submitted for one round
+#[derive(Default)]
+struct Round {
+    ticks: u32,
+    submitted: Vec<Submission>,
+}
+
+struct Submission {
+    agent_id: AgentId,
+    action: Action,
+    reply: oneshot::Sender<Result<StepResult>>,
+}
+
+impl Round {
+    fn contains(&self, agent_id: &AgentId) -> bool {
+        self.submitted
+            .iter()
+            .any(|submission| &submission.agent_id == agent_id)
+    }
+}
+
+impl LockstepBarrier {
+    /// Create a barrier that advances `environment` for the agents in
+    /// `registry`. Must be called within a Tokio runtime.
+    pub fn new(
+        environment: EnvironmentHandle,
+        registry: Arc<RwLock<AgentRegistry>>,
+        deadline: Duration,
+    ) -> Self {
+        let (rounds, receiver) = mpsc::unbounded_channel();
+        tokio::spawn(run_rounds(environment, receiver));
+        Self {
+            registry,
+            deadline,
+            state: Mutex::default(),
+            rounds,
+        }
+    }
+
+    /// Submit an agent's action for the current round and wait for the
+    /// round's result
+    pub async fn step(
+        self: &Arc<Self>,
+        agent_id: AgentId,
+        action: Action,
+        ticks: u32,
+    ) -> Result<StepResult> {
+        let expected = self.expected().await;
+        if !expected.contains(&agent_id) {
+            return Err(GameRLError::AgentNotRegistered(agent_id));
+        }
+
+        let (reply, result) = oneshot::channel();
+        {
+            let mut state = self.lock();
+            if state.stragglers.remove(&agent_id) {
+                return Err(GameRLError::SyncTimeout);
+            }
+            if state.round.contains(&agent_id) {
+                return Err(GameRLError::InvalidAction(format!(
+                    "Agent {} already acted this round",
+                    agent_id
+                )));
+            }
+            if state.round.submitted.is_empty() {
+                state.round.ticks = ticks;
+                self.start_deadline(state.closed);
+            } else if ticks != state.round.ticks {
+                return Err(GameRLError::InvalidAction(format!(
+                    "Ticks {} differs from this round's {}",
+                    ticks, state.round.ticks
+                )));
+            }
+            state.round.submitted.push(Submission {
+                agent_id,
+                action,
+                reply,
+            });
+            self.close_if_complete(&mut state, &expected);
+        }
+
+        result
+            .await
+            .map_err(|_| GameRLError::GameError("Lockstep round was dropped".into()))?
+    }
+
+    /// Re-check the open round after an agent leaves the registry, so the
+    /// remaining agents don't wait for it until the deadline
+    pub async fn agents_changed(&self) {
+        let expected = self.expected().await;
+        let mut state = self.lock();
+        state
+            .stragglers
+            .retain(|agent_id| expected.contains(agent_id));
+        self.close_if_complete(&mut state, &expected);
+    }
+
+    async fn expected(&self) -> HashSet<AgentId> {
+        let registry = self.registry.read().await;
+        registry
+            .list()
+            .into_iter()
+            .map(|entry| entry.agent_id.clone())
+            .collect()
+    }
+
+    fn lock(&self) -> MutexGuard<'_, BarrierState> {
+        self.state.lock().unwrap_or_else(PoisonError::into_inner)
+    }
+
+    fn start_deadline(self: &Arc<Self>, round: u64) {
+        let barrier = Arc::downgrade(self);
+        let deadline = self.deadline;
+        tokio::spawn(async move {
+            tokio::time::sleep(deadline).await;
+            if let Some(barrier) = barrier.upgrade() {
+                barrier.expire(round).await;
+            }
+        });
+    }
+
+    /// Run round `round` with the actions it has, if it is still open
+    async fn expire(&self, round: u64) {
+        let expected = self.expected().await;
+        let mut state = self.lock();
+        if state.closed != round || state.round.submitted.is_empty() {
+            return;
+        }
+        let missing: Vec<AgentId> = expected
+            .into_iter()
+            .filter(|agent_id| !state.round.contains(agent_id))
+            .collect();
+        warn!(
+            "Lockstep round {} timed out waiting for {:?}",
+            round + 1,
+            missing
+        );
+        state.stragglers.extend(missing);
+        self.close(&mut state);
+    }
+
+    fn close_if_complete(&self, state: &mut BarrierState, expected: &HashSet<AgentId>) {
+        let complete = !state.round.submitted.is_empty()
+            && expected
+                .iter()
+                .all(|agent_id| state.round.contains(agent_id));
+        if complete {
+            self.close(state);
+        }
+    }
+
+    fn close(&self, state: &mut BarrierState) {
+        state.closed += 1;
+        let round = std::mem::take(&mut state.round);
+        debug!(
+            "Lockstep round {} closed with {} actions",
+            state.closed,
+            round.submitted.len()
+        );
+        // The runner only stops when the barrier is dropped
+        let _ = self.rounds.send(round);
+    }
+}
+
+/// Advance the game for each closed round and hand every agent its result
+async fn run_rounds(environment: EnvironmentHandle, mut rounds: mpsc::UnboundedReceiver<Round>) {
+    while let Some(round) = rounds.recv().await {
+        let mut replies = Vec::with_capacity(round.submitted.len());
+        let mut actions = Vec::with_capacity(round.submitted.len());
+        for submission in round.submitted {
+            replies.push((submission.agent_id.clone(), submission.reply));
+            actions.push((submission.agent_id, submission.action));
+        }
+
+        match environment.step_batch(actions, round.ticks).await {
+            Ok(results) => {
+                let mut results: HashMap<AgentId, StepResult> = results
+                    .into_iter()
+                    .map(|result| (result.agent_id.clone(), result))
+                    .collect();
+                for (agent_id, reply) in replies {
+                    let result = results.remove(&agent_id).ok_or_else(|| {
+                        GameRLError::GameError(format!("No step result for agent {}", agent_id))
+                    });
+                    let _ = reply.send(result);
+                }
+            }
+            Err(e) => {
+                for (_, reply) in replies {
+                    let _ = reply.send(Err(shared_error(&e)));
+                }
+            }
+        }
+    }
+}
+
+/// Copy of a round's error for each agent in it (`GameRLError` isn't `Clone`)
+fn shared_error(e: &GameRLError) -> GameRLError {
+    match e {
+        GameRLError::AgentNotRegistered(s) => GameRLError::AgentNotRegistered(s.clone()),
+        GameRLError::InvalidAction(s) => GameRLError::InvalidAction(s.clone()),
+        GameRLError::ActionSpaceViolation(s) => GameRLError::ActionSpaceViolation(s.clone()),
+        GameRLError::EpisodeTerminated => GameRLError::EpisodeTerminated,
+        GameRLError::SyncTimeout => GameRLError::SyncTimeout,
+        GameRLError::ResourceExhausted(s) => GameRLError::ResourceExhausted(s.clone()),
+        GameRLError::StreamError(s) => GameRLError::StreamError(s.clone()),
+        GameRLError::IpcError(s) => GameRLError::IpcError(s.clone()),
+        GameRLError::SerializationError(s) => GameRLError::SerializationError(s.clone()),
+        GameRLError::GameError(s) => GameRLError::GameError(s.clone()),
+        GameRLError::ProtocolError(s) => GameRLError::ProtocolError(s.clone()),
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::test_support::TestEnvironment;
+    use game_rl_core::{AgentType, Observation};
+    use std::sync::atomic::{AtomicU64, Ordering};
+
+    fn barrier(agents: &[&str], deadline: Duration) -> (Arc<LockstepBarrier>, Arc<AtomicU64>) {
+        let environment = TestEnvironment::default();
+        let advances = environment.advances();
+        let environment = EnvironmentHandle::spawn(environment);
+        let mut registry = AgentRegistry::new(agents.len());
+        for &agent_id in agents {
+            registry
+                .register(agent_id.into(), AgentType::Player)
+                .unwrap();
+        }
+        let registry = Arc::new(RwLock::new(registry));
+        let barrier = LockstepBarrier::new(environment, registry, deadline);
+        (Arc::new(barrier), advances)
+    }
+
+    /// Actions in the advance that produced `result`
+    fn actions(result: &StepResult) -> f64 {
+        match &result.observation {
+            Observation::Vector(values) => values[1],
+            _ => unreachable!(),
+        }
+    }
+
+    #[tokio::test]
+    async fn test_round_advances_once_for_all_agents() {
+        let (barrier, advances) = barrier(&["a", "b", "c"], Duration::from_secs(10));
+
+        let steps = ["a", "b", "c"].map(|agent_id| {
+            let barrier = barrier.clone();
+            tokio::spawn(async move { barrier.step(agent_id.into(), Action::Wait, 1).await })
+        });
+        for (step, agent_id) in steps.into_iter().zip(["a", "b", "c"]) {
+            let result = step.await.unwrap().unwrap();
+            assert_eq!(result.agent_id, agent_id);
+            assert_eq!(result.tick, 1);
+            assert_eq!(actions(&result), 3.0);
+        }
+        assert_eq!(advances.load(Ordering::SeqCst), 1);
+    }
+
+    #[tokio::test]
+    async fn test_deadline_runs_round_and_rejects_straggler() {
+        let (barrier, advances) = barrier(&["a", "b"], Duration::from_millis(50));
+
+        // "b" never acts, so the round runs at the deadline with "a" alone
+        let result = barrier.step("a".into(), Action::Wait, 1).await.unwrap();
+        assert_eq!(actions(&result), 1.0);
+        assert_eq!(advances.load(Ordering::SeqCst), 1);
+
+        // The straggler's late action is rejected once, then it rejoins
+        let late = barrier.step("b".into(), Action::Wait, 1).await;
+        assert!(matches!(late, Err(GameRLError::SyncTimeout)));
+
+        let next = {
+            let barrier = barrier.clone();
+            tokio::spawn(async move { barrier.step("a".into(), Action::Wait, 1).await })
+        };
+        let result = barrier.step("b".into(), Action::Wait, 1).await.unwrap();
+        assert_eq!(actions(&result), 2.0);
+        assert_eq!(next.await.unwrap().unwrap().tick, 2);
+    }
+
+    #[tokio::test]
+    async fn test_departed_agent_is_not_awaited() {
+        let (barrier, advances) = barrier(&["a", "b"], Duration::from_secs(10));
+
+        let step = {
+            let barrier = barrier.clone();
+            tokio::spawn(async move { barrier.step("a".into(), Action::Wait, 1).await })
+        };
+        tokio::task::yield_now().await;
+        {
+            let mut registry = barrier.registry.write().await;
+            registry.deregister(&"b".into()).unwrap();
+        }
+        barrier.agents_changed().await;
+
+        let result = step.await.unwrap().unwrap();
+        assert_eq!(actions(&result), 1.0);
+        assert_eq!(advances.load(Ordering::SeqCst), 1);
+    }
+
+    #[tokio::test]
+    async fn test_unregistered_agent_is_rejected() {
+        let (barrier, _) = barrier(&["a"], Duration::from_secs(10));
+        let result = barrier.step("z".into(), Action::Wait, 1).await;
+        assert!(matches!(result, Err(GameRLError::AgentNotRegistered(_))));
+    }
+}
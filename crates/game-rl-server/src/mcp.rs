@@ -1,6 +1,17 @@
 //! MCP protocol handling
 
 use serde::{Deserialize, Serialize};
+use serde_json::value::RawValue;
+use std::borrow::Cow;
+
+/// Experimental capability under which clients and servers agree to return
+/// tool results as `structuredContent`, embedded as JSON rather than
+/// escaped into a text block
+pub const STRUCTURED_CONTENT: &str = "structuredContent";
+
+/// Experimental capability carrying a client's [`EventFilter`] for pushed
+/// state updates
+pub const EVENT_FILTER: &str = "gameEventFilter";
 
 /// MCP JSON-RPC request
 #[derive(Debug, Clone, Serialize, Deserialize)]
@@ -25,8 +36,9 @@ pub enum RequestId {
 pub struct Response {
     pub jsonrpc: String,
     pub id: RequestId,
+    /// Pre-serialized result, so large tool results are written verbatim
     #[serde(skip_serializing_if = "Option::is_none")]
-    pub result: Option<serde_json::Value>,
+    pub result: Option<Box<RawValue>>,
     #[serde(skip_serializing_if = "Option::is_none")]
     pub error: Option<RpcError>,
 }
@@ -42,6 +54,13 @@ pub struct RpcError {
 
 impl Response {
     pub fn success(id: RequestId, result: serde_json::Value) -> Self {
+        let result = serde_json::value::to_raw_value(&result)
+            .expect("JSON values always serialize");
+        Self::success_raw(id, result)
+    }
+
+    /// Success response with an already serialized result
+    pub fn success_raw(id: RequestId, result: Box<RawValue>) -> Self {
         Self {
             jsonrpc: "2.0".to_string(),
             id,
@@ -80,6 +99,64 @@ pub struct ClientCapabilities {
     pub tools: serde_json::Value,
     #[serde(default)]
     pub resources: ResourceCapabilities,
+    /// Non-standard capabilities, e.g. [`STRUCTURED_CONTENT`]
+    #[serde(default)]
+    pub experimental: serde_json::Value,
+}
+
+impl ClientCapabilities {
+    /// Whether the client asked for tool results as `structuredContent`
+    pub fn structured_content(&self) -> bool {
+        self.experimental.get(STRUCTURED_CONTENT).is_some()
+    }
+
+    /// Filter the client asked for on pushed events; everything is forwarded
+    /// when absent or malformed
+    pub fn event_filter(&self) -> EventFilter {
+        self.experimental
+            .get(EVENT_FILTER)
+            .and_then(|filter| serde_json::from_value(filter.clone()).ok())
+            .unwrap_or_default()
+    }
+}
+
+/// Which pushed events one client receives
+///
+/// Clients sharing a game usually care about different things: a game master
+/// wants every raid, an evaluator only the events of its own scenario.
+#[derive(Debug, Clone, Default, Serialize, Deserialize)]
+#[serde(rename_all = "camelCase")]
+pub struct EventFilter {
+    /// Event types to forward; empty forwards every type
+    #[serde(default)]
+    pub event_types: Vec<String>,
+    /// Lowest event severity forwarded
+    #[serde(default)]
+    pub min_severity: u8,
+    /// Skip state updates that carry no matching event
+    #[serde(default)]
+    pub events_only: bool,
+}
+
+impl EventFilter {
+    fn matches(&self, event: &game_rl_core::GameEvent) -> bool {
+        event.severity >= self.min_severity
+            && (self.event_types.is_empty() || self.event_types.contains(&event.event_type))
+    }
+
+    /// Events of an update that pass the filter, or `None` when the update
+    /// shouldn't be sent at all
+    pub fn apply<'a>(
+        &self,
+        events: &'a [game_rl_core::GameEvent],
+    ) -> Option<Cow<'a, [game_rl_core::GameEvent]>> {
+        let events = if events.iter().all(|event| self.matches(event)) {
+            Cow::Borrowed(events)
+        } else {
+            Cow::Owned(events.iter().filter(|e| self.matches(e)).cloned().collect())
+        };
+        (!self.events_only || !events.is_empty()).then_some(events)
+    }
 }
 
 /// Resource capabilities
@@ -113,6 +190,9 @@ pub struct ServerCapabilities {
     pub resources: ResourcesCapability,
     #[serde(default)]
     pub logging: serde_json::Value,
+    /// Non-standard capabilities, e.g. [`STRUCTURED_CONTENT`]
+    #[serde(default, skip_serializing_if = "serde_json::Value::is_null")]
+    pub experimental: serde_json::Value,
 }
 
 /// Tools capability
@@ -144,8 +224,9 @@ pub struct ServerInfo {
 pub struct Notification {
     pub jsonrpc: String,
     pub method: String,
+    /// Pre-serialized params, so large game payloads are written verbatim
     #[serde(skip_serializing_if = "Option::is_none")]
-    pub params: Option<serde_json::Value>,
+    pub params: Option<Box<RawValue>>,
 }
 
 impl Notification {
@@ -154,24 +235,129 @@ impl Notification {
         Self {
             jsonrpc: "2.0".to_string(),
             method: "notifications/game/event".to_string(),
-            params: Some(serde_json::to_value(event).unwrap_or_default()),
+            params: serde_json::value::to_raw_value(event).ok(),
         }
     }
 
     /// Create a state update notification
-    pub fn state_update(
+    ///
+    /// `state` is the game's JSON as received and is embedded without re-parsing.
+    pub fn state_update(tick: u64, state: &RawValue, events: &[game_rl_core::GameEvent]) -> Self {
+        Self::coalesced_state_update(tick, state, events, 0)
+    }
+
+    /// Create a state update notification for merged updates
+    ///
+    /// `dropped_events` counts events lost to the subscriber's backlog limit
+    /// and is only included when non-zero.
+    pub fn coalesced_state_update(
         tick: u64,
-        state: serde_json::Value,
-        events: Vec<game_rl_core::GameEvent>,
+        state: &RawValue,
+        events: &[game_rl_core::GameEvent],
+        dropped_events: u64,
     ) -> Self {
+        #[derive(Serialize)]
+        struct Params<'a> {
+            tick: u64,
+            state: &'a RawValue,
+            events: &'a [game_rl_core::GameEvent],
+            #[serde(rename = "droppedEvents", skip_serializing_if = "is_zero")]
+            dropped_events: u64,
+        }
+
+        fn is_zero(n: &u64) -> bool {
+            *n == 0
+        }
+
         Self {
             jsonrpc: "2.0".to_string(),
             method: "notifications/game/stateUpdate".to_string(),
-            params: Some(serde_json::json!({
-                "tick": tick,
-                "state": state,
-                "events": events
-            })),
+            params: serde_json::value::to_raw_value(&Params {
+                tick,
+                state,
+                events,
+                dropped_events,
+            })
+            .ok(),
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use game_rl_core::GameEvent;
+
+    fn event(event_type: &str, severity: u8) -> GameEvent {
+        GameEvent {
+            event_type: event_type.into(),
+            tick: 0,
+            severity,
+            details: serde_json::Value::Null,
+        }
+    }
+
+    fn types(events: &[GameEvent]) -> Vec<&str> {
+        events.iter().map(|e| e.event_type.as_str()).collect()
+    }
+
+    #[test]
+    fn test_event_filter_apply() {
+        let events = [event("Raid", 3), event("Heartbeat", 0), event("Fire", 2)];
+
+        // The default forwards everything without copying
+        let all = EventFilter::default().apply(&events).unwrap();
+        assert!(matches!(all, Cow::Borrowed(_)));
+        assert_eq!(all.len(), 3);
+
+        let severe = EventFilter {
+            min_severity: 2,
+            ..EventFilter::default()
+        };
+        assert_eq!(types(&severe.apply(&events).unwrap()), ["Raid", "Fire"]);
+
+        let raids = EventFilter {
+            event_types: vec!["Raid".into()],
+            ..EventFilter::default()
+        };
+        assert_eq!(types(&raids.apply(&events).unwrap()), ["Raid"]);
+
+        // Updates without a matching event still carry the state unless
+        // events_only is set
+        let quiet = [event("Heartbeat", 0)];
+        assert!(raids.apply(&quiet).unwrap().is_empty());
+        let events_only = EventFilter {
+            events_only: true,
+            ..raids
+        };
+        assert!(events_only.apply(&quiet).is_none());
+        assert!(events_only.apply(&events).is_some());
+    }
+
+    #[test]
+    fn test_event_filter_negotiation() {
+        let capabilities = |experimental: serde_json::Value| ClientCapabilities {
+            experimental,
+            ..ClientCapabilities::default()
+        };
+
+        let filter = capabilities(serde_json::json!({
+            EVENT_FILTER: { "eventTypes": ["Raid"], "minSeverity": 2, "eventsOnly": true }
+        }))
+        .event_filter();
+        assert_eq!(filter.event_types, ["Raid"]);
+        assert_eq!(filter.min_severity, 2);
+        assert!(filter.events_only);
+
+        // Absent or malformed filters forward everything
+        for experimental in [
+            serde_json::Value::Null,
+            serde_json::json!({ EVENT_FILTER: { "minSeverity": "high" } }),
+        ] {
+            let filter = capabilities(experimental).event_filter();
+            assert!(filter.event_types.is_empty());
+            assert_eq!(filter.min_severity, 0);
+            assert!(!filter.events_only);
         }
     }
 }
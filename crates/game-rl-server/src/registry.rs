@@ -1,6 +1,6 @@
 //! Agent registry and lifecycle management
 
-use game_rl_core::{AgentEntry, AgentId, AgentStatus, AgentType};
+use game_rl_core::{AgentEntry, AgentId, AgentStatus, AgentType, QueueWait};
 use std::collections::HashMap;
 
 /// Registry of active agents
@@ -39,6 +39,7 @@ impl AgentRegistry {
             registered_at: chrono_lite::now_utc(),
             last_step: 0,
             total_reward: 0.0,
+            queue_wait: QueueWait::default(),
         };
 
         self.agents.insert(agent_id, entry);
@@ -78,6 +79,14 @@ impl AgentRegistry {
         }
     }
 
+    /// Update an agent's queue-wait statistics (see
+    /// [`crate::EnvironmentHandle::queue_wait`])
+    pub fn record_queue_wait(&mut self, agent_id: &AgentId, wait: QueueWait) {
+        if let Some(entry) = self.agents.get_mut(agent_id) {
+            entry.queue_wait = wait;
+        }
+    }
+
     /// List all agents
     pub fn list(&self) -> Vec<&AgentEntry> {
         self.agents.values().collect()
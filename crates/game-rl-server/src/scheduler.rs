@@ -0,0 +1,313 @@
+//! Step scheduling across agents
+//!
+//! The environment actor runs one command at a time. Between two
+//! environment-wide commands it chooses which agent to serve next with a
+//! [`SchedulingPolicy`], so a client flooding `sim_step` calls can't push
+//! other agents' step latency around:
+//!
+//! - `RoundRobin`: the agent served longest ago (the default)
+//! - `WeightedFair`: weighted fair queuing; agents with work get steps in
+//!   proportion to their weight
+//! - `Priority`: the highest priority agent with work, round-robin among
+//!   equals (lower priorities only run when higher ones are idle)
+//!
+//! Whatever the policy, an agent with `max_steps_per_second` set has its
+//! steps held back by a token bucket, so it can't step faster than that even
+//! when the game is otherwise idle.
+
+use game_rl_core::AgentId;
+use std::collections::HashMap;
+use std::sync::{Arc, Mutex, PoisonError};
+use std::time::Duration;
+use tokio::time::Instant;
+
+/// Smallest weight used by `WeightedFair`, so a zero weight can't stall an
+/// agent forever
+const MIN_WEIGHT: f64 = 1e-3;
+
+/// Longest a rate-limited step is held before the actor looks again
+const MAX_HOLD_SECS: f64 = 3600.0;
+
+/// How the next agent to serve is chosen
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq)]
+pub enum SchedulingPolicy {
+    /// Serve the agent served longest ago
+    #[default]
+    RoundRobin,
+    /// Share steps in proportion to each agent's weight
+    WeightedFair,
+    /// Serve the highest priority agent with queued work
+    Priority,
+}
+
+/// Scheduling parameters for one agent
+#[derive(Debug, Clone, Copy, PartialEq)]
+pub struct AgentSchedule {
+    /// Relative share of steps under `WeightedFair`
+    pub weight: f64,
+    /// Order under `Priority`; higher runs first
+    pub priority: i32,
+    /// Most steps per second, `None` for no limit
+    pub max_steps_per_second: Option<f64>,
+    /// Steps allowed back to back before the rate limit applies
+    pub burst: u32,
+}
+
+impl Default for AgentSchedule {
+    fn default() -> Self {
+        Self {
+            weight: 1.0,
+            priority: 0,
+            max_steps_per_second: None,
+            burst: 1,
+        }
+    }
+}
+
+impl AgentSchedule {
+    /// Virtual time one step costs under `WeightedFair`
+    fn cost(&self) -> f64 {
+        1.0 / self.weight.max(MIN_WEIGHT)
+    }
+
+    /// Step rate limit, if any
+    fn rate(&self) -> Option<f64> {
+        self.max_steps_per_second.filter(|rate| *rate > 0.0)
+    }
+}
+
+/// Scheduler configuration for a server
+#[derive(Debug, Clone, Default)]
+pub struct SchedulerConfig {
+    pub policy: SchedulingPolicy,
+    /// Parameters for agents without an entry in `agents`
+    pub default: AgentSchedule,
+    /// Per-agent parameters
+    pub agents: HashMap<AgentId, AgentSchedule>,
+}
+
+impl SchedulerConfig {
+    /// Parameters that apply to `agent_id`
+    pub fn schedule(&self, agent_id: &str) -> &AgentSchedule {
+        self.agents.get(agent_id).unwrap_or(&self.default)
+    }
+}
+
+/// Configuration shared by the environment handle and the actor, so it can
+/// be replaced without waiting for queued commands
+#[derive(Clone, Default)]
+pub(crate) struct SharedConfig(Arc<Mutex<Arc<SchedulerConfig>>>);
+
+impl SharedConfig {
+    pub(crate) fn get(&self) -> Arc<SchedulerConfig> {
+        self.0.lock().unwrap_or_else(PoisonError::into_inner).clone()
+    }
+
+    pub(crate) fn set(&self, config: SchedulerConfig) {
+        *self.0.lock().unwrap_or_else(PoisonError::into_inner) = Arc::new(config);
+    }
+}
+
+/// What the scheduler remembers about an agent
+#[derive(Default)]
+struct AgentState {
+    /// Turn at which the agent was last served
+    last_served: u64,
+    /// Virtual time at which the agent's latest step finished
+    finish: f64,
+    /// Rate-limit tokens as of `refilled`
+    tokens: f64,
+    refilled: Option<Instant>,
+}
+
+impl AgentState {
+    /// Tokens available at `now`; a full bucket before the first step
+    fn tokens(&self, schedule: &AgentSchedule, rate: f64, now: Instant) -> f64 {
+        let burst = f64::from(schedule.burst.max(1));
+        match self.refilled {
+            Some(at) => (self.tokens + (now - at).as_secs_f64() * rate).min(burst),
+            None => burst,
+        }
+    }
+}
+
+/// Chooses among agents with queued work
+#[derive(Default)]
+pub(crate) struct Scheduler {
+    config: SharedConfig,
+    agents: HashMap<AgentId, AgentState>,
+    turn: u64,
+    /// Start time of the latest step under `WeightedFair`, so an agent that
+    /// was idle doesn't come back with a backlog of credit
+    virtual_time: f64,
+}
+
+impl Scheduler {
+    pub(crate) fn new(config: SharedConfig) -> Self {
+        Self {
+            config,
+            ..Self::default()
+        }
+    }
+
+    /// Current configuration
+    pub(crate) fn config(&self) -> Arc<SchedulerConfig> {
+        self.config.get()
+    }
+
+    /// When `agent_id` may step next under its rate limit; `None` when it
+    /// may step now
+    pub(crate) fn ready_at(
+        &self,
+        config: &SchedulerConfig,
+        agent_id: &AgentId,
+        now: Instant,
+    ) -> Option<Instant> {
+        let schedule = config.schedule(agent_id);
+        let rate = schedule.rate()?;
+        let tokens = self
+            .agents
+            .get(agent_id)
+            .map_or(f64::INFINITY, |state| state.tokens(schedule, rate, now));
+        let hold = ((1.0 - tokens) / rate).min(MAX_HOLD_SECS);
+        (tokens < 1.0).then(|| now + Duration::from_secs_f64(hold))
+    }
+
+    /// Index of the agent in `ready` to serve next
+    pub(crate) fn pick(&self, config: &SchedulerConfig, ready: &[&AgentId]) -> Option<usize> {
+        let key = |agent_id: &AgentId| {
+            let state = self.agents.get(agent_id);
+            let schedule = config.schedule(agent_id);
+            let rank = match config.policy {
+                SchedulingPolicy::RoundRobin => 0.0,
+                SchedulingPolicy::WeightedFair => {
+                    let finish = state.map_or(0.0, |state| state.finish);
+                    finish.max(self.virtual_time) + schedule.cost()
+                }
+                SchedulingPolicy::Priority => -f64::from(schedule.priority),
+            };
+            (rank, state.map_or(0, |state| state.last_served))
+        };
+        ready
+            .iter()
+            .map(|agent_id| key(agent_id))
+            .enumerate()
+            .min_by(|(_, a), (_, b)| a.0.total_cmp(&b.0).then(a.1.cmp(&b.1)))
+            .map(|(index, _)| index)
+    }
+
+    /// Account for a command of `agent_id` being run; `step` commands also
+    /// take a rate-limit token
+    pub(crate) fn served(
+        &mut self,
+        config: &SchedulerConfig,
+        agent_id: &AgentId,
+        step: bool,
+        now: Instant,
+    ) {
+        let schedule = config.schedule(agent_id);
+        self.turn += 1;
+        let state = self.agents.entry(agent_id.clone()).or_default();
+        state.last_served = self.turn;
+        let start = state.finish.max(self.virtual_time);
+        self.virtual_time = start;
+        state.finish = start + schedule.cost();
+        if let (true, Some(rate)) = (step, schedule.rate()) {
+            state.tokens = state.tokens(schedule, rate, now) - 1.0;
+            state.refilled = Some(now);
+        }
+    }
+
+    /// Forget a deregistered agent
+    pub(crate) fn forget(&mut self, agent_id: &AgentId) {
+        self.agents.remove(agent_id);
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn scheduler_config(
+        policy: SchedulingPolicy,
+        agents: &[(&str, AgentSchedule)],
+    ) -> SchedulerConfig {
+        SchedulerConfig {
+            policy,
+            default: AgentSchedule::default(),
+            agents: agents
+                .iter()
+                .map(|(agent_id, schedule)| (agent_id.to_string(), *schedule))
+                .collect(),
+        }
+    }
+
+    /// Agents served when every agent always has work
+    fn serve(scheduler: &mut Scheduler, config: &SchedulerConfig, turns: usize) -> Vec<AgentId> {
+        let agents: Vec<AgentId> = vec!["a".into(), "b".into(), "c".into()];
+        let ready: Vec<&AgentId> = agents.iter().collect();
+        let now = Instant::now();
+        (0..turns)
+            .map(|_| {
+                let agent_id = ready[scheduler.pick(config, &ready).unwrap()];
+                scheduler.served(config, agent_id, true, now);
+                agent_id.clone()
+            })
+            .collect()
+    }
+
+    #[test]
+    fn test_weighted_fair_shares_by_weight() {
+        let heavy = AgentSchedule {
+            weight: 2.0,
+            ..AgentSchedule::default()
+        };
+        let config = scheduler_config(SchedulingPolicy::WeightedFair, &[("a", heavy)]);
+        let served = serve(&mut Scheduler::default(), &config, 40);
+        let count = |agent_id: &str| served.iter().filter(|a| *a == agent_id).count();
+        assert_eq!((count("a"), count("b"), count("c")), (20, 10, 10));
+    }
+
+    #[test]
+    fn test_priority_serves_highest_first() {
+        let urgent = AgentSchedule {
+            priority: 10,
+            ..AgentSchedule::default()
+        };
+        let config = scheduler_config(SchedulingPolicy::Priority, &[("b", urgent)]);
+        assert_eq!(serve(&mut Scheduler::default(), &config, 3), ["b", "b", "b"]);
+
+        // Round-robin among equals
+        let config = scheduler_config(SchedulingPolicy::Priority, &[]);
+        assert_eq!(serve(&mut Scheduler::default(), &config, 4), ["a", "b", "c", "a"]);
+    }
+
+    #[test]
+    fn test_rate_limit_holds_steps_back() {
+        let limited = AgentSchedule {
+            max_steps_per_second: Some(10.0),
+            burst: 2,
+            ..AgentSchedule::default()
+        };
+        let config = scheduler_config(SchedulingPolicy::RoundRobin, &[("a", limited)]);
+        let mut scheduler = Scheduler::default();
+        let agent_id: AgentId = "a".into();
+        let now = Instant::now();
+
+        // The burst is available at once, then one step every 100ms
+        for _ in 0..2 {
+            assert_eq!(scheduler.ready_at(&config, &agent_id, now), None);
+            scheduler.served(&config, &agent_id, true, now);
+        }
+        let hold = scheduler.ready_at(&config, &agent_id, now).unwrap() - now;
+        assert!(hold > Duration::from_millis(99) && hold <= Duration::from_millis(100));
+        let later = now + Duration::from_millis(101);
+        assert_eq!(scheduler.ready_at(&config, &agent_id, later), None);
+
+        // Other commands don't use tokens, and unlimited agents never wait
+        scheduler.served(&config, &agent_id, true, later);
+        scheduler.served(&config, &agent_id, false, later);
+        assert!(scheduler.ready_at(&config, &agent_id, later).is_some());
+        assert_eq!(scheduler.ready_at(&config, &"b".into(), now), None);
+    }
+}
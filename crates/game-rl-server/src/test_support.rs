@@ -0,0 +1,214 @@
+//! Test environment shared by the crate's unit tests
+
+use crate::environment::GameEnvironment;
+use async_trait::async_trait;
+use game_rl_core::{
+    Action, AgentConfig, AgentId, AgentManifest, AgentType, ClockMode, GameEvent, GameManifest,
+    GameRLError, Observation, Result, StepResult, StreamDescriptor,
+};
+use std::sync::Arc;
+use std::sync::atomic::{AtomicU64, Ordering};
+use tokio::sync::Notify;
+
+/// Step of each episode that reports a "Raid" event
+const RAID_STEP: u64 = 3;
+
+/// Environment that counts advances
+///
+/// Every `step` or `step_batch` is one advance. A result's observation is
+/// `[advance, actions in the advance]`, its tick is the advance times the
+/// ticks asked for, and its reward is 1. The third step of each episode
+/// reports a "Raid", and the state hash is the number of advances. With live
+/// mode enabled, queued actions are accepted and the test advances the game
+/// through [`TestEnvironment::advances`], as the game's own clock would.
+pub(crate) struct TestEnvironment {
+    advances: Arc<AtomicU64>,
+    /// Steps since the last reset
+    episode: u64,
+    episode_steps: u64,
+    /// Advances wait for a notification when set
+    gate: Option<Arc<Notify>>,
+    /// Accepts live mode when set
+    live: bool,
+    /// Episode step whose `step` call fails
+    fail_at: Option<u64>,
+}
+
+impl Default for TestEnvironment {
+    fn default() -> Self {
+        Self {
+            advances: Arc::default(),
+            episode: 0,
+            episode_steps: u64::MAX,
+            gate: None,
+            live: false,
+            fail_at: None,
+        }
+    }
+}
+
+impl TestEnvironment {
+    /// End episodes with `done` after `steps` steps
+    pub(crate) fn with_episode_steps(mut self, steps: u64) -> Self {
+        self.episode_steps = steps;
+        self
+    }
+
+    /// Hold every advance until `gate` is notified
+    pub(crate) fn with_gate(mut self, gate: Arc<Notify>) -> Self {
+        self.gate = Some(gate);
+        self
+    }
+
+    /// Fail the `step` call that would be the episode's `step`th, without
+    /// advancing
+    pub(crate) fn with_failing_step(mut self, step: u64) -> Self {
+        self.fail_at = Some(step);
+        self
+    }
+
+    /// Accept live mode and queued actions
+    pub(crate) fn with_live(mut self) -> Self {
+        self.live = true;
+        self
+    }
+
+    /// Advance counter, still readable once the environment is spawned
+    pub(crate) fn advances(&self) -> Arc<AtomicU64> {
+        self.advances.clone()
+    }
+
+    async fn advance(&mut self) -> u64 {
+        if let Some(gate) = &self.gate {
+            gate.notified().await;
+        }
+        self.episode += 1;
+        self.advances.fetch_add(1, Ordering::SeqCst) + 1
+    }
+
+    fn result(&self, agent_id: &AgentId, advance: u64, ticks: u32, actions: usize) -> StepResult {
+        let events = if self.episode == RAID_STEP {
+            vec![GameEvent {
+                event_type: "Raid".into(),
+                tick: advance,
+                severity: 2,
+                details: serde_json::Value::Null,
+            }]
+        } else {
+            vec![]
+        };
+        StepResult {
+            agent_id: agent_id.clone(),
+            step_id: advance,
+            tick: advance * u64::from(ticks),
+            observation: Observation::Vector(vec![advance as f64, actions as f64]),
+            reward: 1.0,
+            reward_components: Default::default(),
+            done: self.episode >= self.episode_steps,
+            truncated: false,
+            termination_reason: None,
+            events,
+            frame_ids: Default::default(),
+            available_actions: None,
+            metrics: None,
+            state_hash: None,
+        }
+    }
+}
+
+#[async_trait]
+impl GameEnvironment for TestEnvironment {
+    async fn register_agent(
+        &mut self,
+        agent_id: AgentId,
+        agent_type: AgentType,
+        _config: AgentConfig,
+    ) -> Result<AgentManifest> {
+        Ok(AgentManifest {
+            agent_id,
+            agent_type,
+            observation_space: serde_json::Value::Null,
+            action_space: serde_json::Value::Null,
+            reward_components: vec![],
+        })
+    }
+
+    async fn deregister_agent(&mut self, _agent_id: &AgentId) -> Result<()> {
+        Ok(())
+    }
+
+    async fn step(
+        &mut self,
+        agent_id: &AgentId,
+        _action: Action,
+        ticks: u32,
+    ) -> Result<StepResult> {
+        if self.fail_at == Some(self.episode + 1) {
+            return Err(GameRLError::GameError("Step failed".into()));
+        }
+        let advance = self.advance().await;
+        Ok(self.result(agent_id, advance, ticks, 1))
+    }
+
+    async fn step_batch(
+        &mut self,
+        actions: Vec<(AgentId, Action)>,
+        ticks: u32,
+    ) -> Result<Vec<StepResult>> {
+        let advance = self.advance().await;
+        Ok(actions
+            .iter()
+            .map(|(agent_id, _)| self.result(agent_id, advance, ticks, actions.len()))
+            .collect())
+    }
+
+    async fn reset(
+        &mut self,
+        _seed: Option<u64>,
+        _scenario: Option<String>,
+    ) -> Result<Observation> {
+        self.episode = 0;
+        Ok(Observation::Vector(vec![]))
+    }
+
+    async fn state_hash(&mut self) -> Result<String> {
+        Ok(self.advances.load(Ordering::SeqCst).to_string())
+    }
+
+    async fn set_clock_mode(&mut self, mode: ClockMode, _push_interval: u32) -> Result<()> {
+        match mode {
+            ClockMode::Live if !self.live => {
+                Err(GameRLError::GameError("Live mode is not supported".into()))
+            }
+            _ => Ok(()),
+        }
+    }
+
+    async fn queue_action(&mut self, _agent_id: &AgentId, _action: Action) -> Result<()> {
+        if self.live {
+            Ok(())
+        } else {
+            Err(GameRLError::GameError("Live mode is not supported".into()))
+        }
+    }
+
+    async fn configure_streams(
+        &mut self,
+        _agent_id: &AgentId,
+        _profile: &str,
+    ) -> Result<Vec<StreamDescriptor>> {
+        Ok(vec![])
+    }
+
+    async fn shutdown(&mut self) -> Result<()> {
+        Ok(())
+    }
+
+    fn manifest(&self) -> GameManifest {
+        GameManifest::default()
+    }
+
+    fn metrics(&self) -> Option<serde_json::Value> {
+        Some(serde_json::json!({ "advances": self.advances.load(Ordering::SeqCst) }))
+    }
+}
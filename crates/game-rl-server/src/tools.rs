@@ -1,13 +1,26 @@
 //! MCP tool handlers for Game-RL protocol
 
-use game_rl_core::{Action, AgentConfig, AgentId, AgentType, GameRLError, Result, error_codes};
+use game_rl_core::{
+    Action, AgentConfig, AgentId, AgentType, ClockMode, GameEvent, GameRLError, Observation,
+    Result, error_codes,
+};
 use serde::{Deserialize, Serialize};
+use serde_json::value::RawValue;
 
-use crate::environment::GameEnvironment;
+use crate::GameRLServer;
+use crate::actor::EnvironmentHandle;
+use crate::lockstep::LockstepBarrier;
 use crate::mcp::{RequestId, Response};
 use crate::registry::AgentRegistry;
+use crate::trajectory::{RecordingOptions, ReplayOptions, ReplayReport, TrajectoryDir};
+use std::collections::HashSet;
 use std::sync::Arc;
+use std::time::Duration;
 use tokio::sync::RwLock;
+use tokio::time::Instant;
+
+/// Most actions accepted by one sim_rollout call
+pub const MAX_ROLLOUT_STEPS: usize = 1000;
 
 /// Tool definition for MCP tools/list
 #[derive(Debug, Clone, Serialize)]
@@ -39,7 +52,7 @@ pub fn list_tools() -> Vec<ToolDef> {
                     },
                     "Config": {
                         "type": "object",
-                        "description": "Optional configuration"
+                        "description": "Optional configuration. {\"ClockMode\": \"Live\", \"PushInterval\": 60} lets the game run in real time and push an observation every 60 ticks; the game only runs live while every registered agent asks for it."
                     }
                 },
                 "required": ["AgentId", "AgentType"]
@@ -61,7 +74,7 @@ pub fn list_tools() -> Vec<ToolDef> {
         },
         ToolDef {
             name: "sim_step".into(),
-            description: "Execute an action and advance the game. Returns observation with colonists, resources, and reward.".into(),
+            description: "Execute an action and advance the game. Returns observation with colonists, resources, and reward. In live mode, the action is queued for the game's own clock and observations arrive as notifications. In lockstep mode, waits until every registered agent has acted and the game advances once for all of them.".into(),
             input_schema: serde_json::json!({
                 "type": "object",
                 "properties": {
@@ -82,9 +95,124 @@ pub fn list_tools() -> Vec<ToolDef> {
                 "required": ["AgentId", "Action"]
             }),
         },
+        ToolDef {
+            name: "sim_step_batch".into(),
+            description: "Execute actions for several agents and advance the game once. Returns one step result per agent, in request order. Not available in lockstep mode.".into(),
+            input_schema: serde_json::json!({
+                "type": "object",
+                "properties": {
+                    "Steps": {
+                        "type": "array",
+                        "description": "One entry per agent. Example: [{\"AgentId\": \"a\", \"Action\": {\"Type\": \"Wait\"}}, {\"AgentId\": \"b\", \"Action\": {\"Type\": \"Wait\"}}]",
+                        "items": {
+                            "type": "object",
+                            "properties": {
+                                "AgentId": {
+                                    "type": "string",
+                                    "description": "A registered AgentId"
+                                },
+                                "Action": {
+                                    "type": "object",
+                                    "description": "Action object with Type field"
+                                }
+                            },
+                            "required": ["AgentId", "Action"]
+                        }
+                    },
+                    "Ticks": {
+                        "type": "integer",
+                        "description": "Game ticks to simulate after all actions are applied (60 ticks = 1 second)",
+                        "default": 1
+                    }
+                },
+                "required": ["Steps"]
+            }),
+        },
+        ToolDef {
+            name: "sim_rollout".into(),
+            description: "Execute a sequence of actions for one agent in a single call. Returns each step's reward and events, plus the final observation. Stops early when the episode ends or a listed event occurs. Not available in lockstep mode.".into(),
+            input_schema: serde_json::json!({
+                "type": "object",
+                "properties": {
+                    "AgentId": {
+                        "type": "string",
+                        "description": "Your registered AgentId"
+                    },
+                    "Steps": {
+                        "type": "array",
+                        "description": "Actions in order. Example: [{\"Action\": {\"Type\": \"Build\"}, \"Ticks\": 60}, {\"Action\": {\"Type\": \"Wait\"}, \"Ticks\": 600}]",
+                        "maxItems": MAX_ROLLOUT_STEPS,
+                        "items": {
+                            "type": "object",
+                            "properties": {
+                                "Action": {
+                                    "type": "object",
+                                    "description": "Action object with Type field"
+                                },
+                                "Ticks": {
+                                    "type": "integer",
+                                    "description": "Game ticks to simulate after this action",
+                                    "default": 1
+                                }
+                            },
+                            "required": ["Action"]
+                        }
+                    },
+                    "StopOnDone": {
+                        "type": "boolean",
+                        "description": "Stop when the episode ends or is truncated",
+                        "default": true
+                    },
+                    "StopOnEvents": {
+                        "type": "array",
+                        "items": { "type": "string" },
+                        "description": "Event types that stop the rollout after the step reporting them. Example: [\"Raid\"]"
+                    }
+                },
+                "required": ["AgentId", "Steps"]
+            }),
+        },
+        ToolDef {
+            name: "sim_advance_until".into(),
+            description: "Let the game run (no action) until one of the given events occurs, the episode ends, or a tick or time budget runs out. Use instead of repeated Wait steps. Not available in lockstep mode.".into(),
+            input_schema: serde_json::json!({
+                "type": "object",
+                "properties": {
+                    "AgentId": {
+                        "type": "string",
+                        "description": "Your registered AgentId"
+                    },
+                    "Events": {
+                        "type": "array",
+                        "items": { "type": "string" },
+                        "description": "Event types to stop on. Empty or omitted stops on any event. Example: [\"Raid\", \"ColonistDowned\", \"ResearchComplete\"]"
+                    },
+                    "MaxTicks": {
+                        "type": "integer",
+                        "description": "Tick budget (60 ticks = 1 second)"
+                    },
+                    "ChunkTicks": {
+                        "type": "integer",
+                        "description": "Ticks advanced between event checks",
+                        "default": 60
+                    },
+                    "TimeoutMs": {
+                        "type": "integer",
+                        "description": "Wall-clock budget in milliseconds, checked between chunks",
+                        "default": 30000
+                    },
+                    "StopOnDone": {
+                        "type": "boolean",
+                        "description": "Stop when the episode ends or is truncated",
+                        "default": true
+                    }
+                },
+                "required": ["AgentId", "MaxTicks"]
+            }),
+        },
         ToolDef {
             name: "reset".into(),
-            description: "Reset environment for new episode. Returns initial observation.".into(),
+            description: "Reset environment for new episode. Returns initial observation. Resets every agent, so on a shared server only a client that registered all of them may call it.".into(),
             input_schema: serde_json::json!({
                 "type": "object",
                 "properties": {
@@ -125,6 +253,70 @@ pub fn list_tools() -> Vec<ToolDef> {
                 "required": ["AgentId", "Profile"]
             }),
         },
+        ToolDef {
+            name: "save_trajectory".into(),
+            description: "Start appending every step (action, reward, events, observation, state hash) to a trajectory file for offline training. Recording runs in the background until stop_trajectory.".into(),
+            input_schema: serde_json::json!({
+                "type": "object",
+                "properties": {
+                    "Path": {
+                        "type": "string",
+                        "description": "Output file relative to the server's trajectory directory; an existing trajectory is appended to"
+                    },
+                    "AgentIds": {
+                        "type": "array",
+                        "items": { "type": "string" },
+                        "description": "Agents to include (default: all)"
+                    },
+                    "IncludeObservations": {
+                        "type": "boolean",
+                        "default": true
+                    },
+                    "Compress": {
+                        "type": "boolean",
+                        "description": "zstd-compress segments",
+                        "default": true
+                    }
+                },
+                "required": ["Path"]
+            }),
+        },
+        ToolDef {
+            name: "stop_trajectory".into(),
+            description: "Stop recording and flush the trajectory file. Returns record counts, or null if nothing was being recorded.".into(),
+            input_schema: serde_json::json!({
+                "type": "object",
+                "properties": {}
+            }),
+        },
+        ToolDef {
+            name: "load_trajectory".into(),
+            description: "Replay a recorded trajectory's actions from the current state (reset with the recording's seed and register its agents first; on a shared server only a client that registered every agent may replay). Read recorded steps without replaying them through the game://trajectory resource.".into(),
+            input_schema: serde_json::json!({
+                "type": "object",
+                "properties": {
+                    "Path": {
+                        "type": "string",
+                        "description": "Trajectory file written by save_trajectory, relative to the server's trajectory directory"
+                    },
+                    "FromStep": {
+                        "type": "integer",
+                        "description": "Position of the first recorded step to replay",
+                        "default": 0
+                    },
+                    "MaxSteps": {
+                        "type": "integer",
+                        "description": "Most steps to replay (default: to the end)"
+                    },
+                    "VerifyDeterminism": {
+                        "type": "boolean",
+                        "description": "Stop at the first step whose state hash differs from the recording",
+                        "default": true
+                    }
+                },
+                "required": ["Path"]
+            }),
+        },
     ]
 }
 
@@ -148,10 +340,125 @@ pub struct SimStepParams {
     pub ticks: u32,
 }
 
+/// One agent's entry in sim_step_batch
+#[derive(Debug, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct BatchStep {
+    pub agent_id: AgentId,
+    pub action: Action,
+}
+
+/// Parameters for sim_step_batch
+#[derive(Debug, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct SimStepBatchParams {
+    pub steps: Vec<BatchStep>,
+    #[serde(default = "default_ticks")]
+    pub ticks: u32,
+}
+
 fn default_ticks() -> u32 {
     1
 }
 
+/// One action in sim_rollout
+#[derive(Debug, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct RolloutStep {
+    pub action: Action,
+    #[serde(default = "default_ticks")]
+    pub ticks: u32,
+}
+
+/// Parameters for sim_rollout
+#[derive(Debug, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct SimRolloutParams {
+    pub agent_id: AgentId,
+    pub steps: Vec<RolloutStep>,
+    #[serde(default = "default_true")]
+    pub stop_on_done: bool,
+    #[serde(default)]
+    pub stop_on_events: Vec<String>,
+}
+
+fn default_true() -> bool {
+    true
+}
+
+/// Parameters for sim_advance_until
+#[derive(Debug, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct SimAdvanceUntilParams {
+    pub agent_id: AgentId,
+    /// Event types that end the advance; empty matches any event
+    #[serde(default)]
+    pub events: Vec<String>,
+    pub max_ticks: u64,
+    #[serde(default = "default_chunk_ticks")]
+    pub chunk_ticks: u32,
+    #[serde(default = "default_timeout_ms")]
+    pub timeout_ms: u64,
+    #[serde(default = "default_true")]
+    pub stop_on_done: bool,
+}
+
+fn default_chunk_ticks() -> u32 {
+    60
+}
+
+fn default_timeout_ms() -> u64 {
+    30_000
+}
+
+/// sim_advance_until result: what stopped it, the events seen on the way
+/// and the final observation
+#[derive(Debug, Serialize)]
+#[serde(rename_all = "PascalCase")]
+struct AdvanceResult {
+    agent_id: AgentId,
+    ticks_advanced: u64,
+    steps: u64,
+    total_reward: f64,
+    /// "Event", "Done", "Truncated", "TickBudget", "Timeout", or the error
+    /// that failed a chunk after the first
+    stopped_by: String,
+    #[serde(skip_serializing_if = "Vec::is_empty")]
+    events: Vec<GameEvent>,
+    done: bool,
+    truncated: bool,
+    observation: Observation,
+    #[serde(skip_serializing_if = "Option::is_none")]
+    state_hash: Option<String>,
+}
+
+/// Compacted record of one executed rollout step
+#[derive(Debug, Serialize)]
+#[serde(rename_all = "PascalCase")]
+struct RolloutRecord {
+    reward: f64,
+    #[serde(skip_serializing_if = "Vec::is_empty")]
+    events: Vec<GameEvent>,
+}
+
+/// sim_rollout result: per-step records and only the last observation
+#[derive(Debug, Serialize)]
+#[serde(rename_all = "PascalCase")]
+struct RolloutResult {
+    agent_id: AgentId,
+    steps: Vec<RolloutRecord>,
+    total_reward: f64,
+    done: bool,
+    truncated: bool,
+    /// "Done", "Truncated", the event type that ended the rollout early, or
+    /// the error that failed a step after the first
+    #[serde(skip_serializing_if = "Option::is_none")]
+    stopped_by: Option<String>,
+    observation: Observation,
+    #[serde(skip_serializing_if = "Option::is_none")]
+    state_hash: Option<String>,
+}
+
 /// Parameters for reset
 #[derive(Debug, Deserialize)]
 #[serde(rename_all = "PascalCase")]
@@ -168,32 +475,167 @@ pub struct ConfigureStreamsParams {
     pub profile: String,
 }
 
+/// Parameters for save_trajectory
+#[derive(Debug, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct SaveTrajectoryParams {
+    pub path: String,
+    #[serde(default)]
+    pub agent_ids: Vec<AgentId>,
+    #[serde(default = "default_true")]
+    pub include_observations: bool,
+    #[serde(default = "default_true")]
+    pub compress: bool,
+}
+
+/// Parameters for load_trajectory
+#[derive(Debug, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct LoadTrajectoryParams {
+    pub path: String,
+    /// Position of the first recorded step to replay
+    #[serde(default)]
+    pub from_step: u64,
+    /// Most steps to replay (default: to the end)
+    pub max_steps: Option<u64>,
+    #[serde(default = "default_true")]
+    pub verify_determinism: bool,
+}
+
+/// How tool results are placed in a tools/call response
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq)]
+pub enum ResultFormat {
+    /// JSON text in a `text` content block (plain MCP)
+    #[default]
+    Text,
+    /// JSON embedded as `structuredContent`, with no content blocks. Used
+    /// when the client negotiated [`crate::mcp::STRUCTURED_CONTENT`].
+    /// `structuredContent` must be an object, so array results come back as
+    /// `{"Results": [...]}` and scalar or null results as `{"Result": ...}`.
+    Structured,
+}
+
+/// A non-object tool result, wrapped for `structuredContent`
+#[derive(Serialize)]
+enum Wrapped<'a> {
+    Results(&'a RawValue),
+    Result(&'a RawValue),
+}
+
+/// Wrap a tool result unless it is already a JSON object
+fn as_object(raw: Box<RawValue>) -> Result<Box<RawValue>> {
+    match raw.get().as_bytes().first() {
+        Some(b'{') => Ok(raw),
+        Some(b'[') => to_raw(&Wrapped::Results(&raw)),
+        _ => to_raw(&Wrapped::Result(&raw)),
+    }
+}
+
+/// tools/call result body
+#[derive(Serialize)]
+#[serde(rename_all = "camelCase")]
+struct ToolResult<'a> {
+    content: Vec<TextContent<'a>>,
+    #[serde(skip_serializing_if = "Option::is_none")]
+    structured_content: Option<&'a RawValue>,
+}
+
+#[derive(Serialize)]
+struct TextContent<'a> {
+    #[serde(rename = "type")]
+    kind: &'static str,
+    text: &'a str,
+}
+
+/// Serialize a tool result; from here on it is copied, never re-parsed
+fn to_raw(value: &impl Serialize) -> Result<Box<RawValue>> {
+    Ok(serde_json::value::to_raw_value(value)?)
+}
+
+/// Multi-step tools advance the game on their own, which would break lockstep
+/// rounds
+fn outside_rounds(tool: &str) -> GameRLError {
+    GameRLError::InvalidAction(format!(
+        "{} advances the game outside lockstep rounds; use sim_step in lockstep mode",
+        tool
+    ))
+}
+
 /// Handle a tools/call request
-pub async fn handle_tool_call<E: GameEnvironment>(
+///
+/// With a lockstep barrier, `sim_step` joins the barrier's current round
+/// instead of advancing the game itself, and the multi-step tools are refused.
+/// Trajectory paths are resolved in the server's trajectory directory.
+pub async fn handle_tool_call(
     name: &str,
     params: serde_json::Value,
     id: RequestId,
-    environment: &Arc<RwLock<E>>,
-    registry: &Arc<RwLock<AgentRegistry>>,
+    format: ResultFormat,
+    server: &GameRLServer,
 ) -> Response {
+    let environment = &server.environment;
+    let registry = &server.registry;
+    let lockstep = server.lockstep.as_ref();
+    let trajectories = &server.trajectories;
+    // Handlers serialize their result once. Observation-heavy tools serialize
+    // straight from the step result, so raw game payloads are copied into the
+    // response instead of being parsed into a Value first.
     let result = match name {
-        "register_agent" => handle_register_agent(params, environment, registry).await,
-        "deregister_agent" => handle_deregister_agent(params, environment, registry).await,
-        "sim_step" => handle_sim_step(params, environment, registry).await,
+        "register_agent" => handle_register_agent(params, environment, registry)
+            .await
+            .and_then(|value| to_raw(&value)),
+        "deregister_agent" => handle_deregister_agent(params, environment, registry, lockstep)
+            .await
+            .and_then(|value| to_raw(&value)),
+        "sim_step" => handle_sim_step(params, environment, registry, lockstep).await,
+        "sim_step_batch" | "sim_rollout" | "sim_advance_until" if lockstep.is_some() => {
+            Err(outside_rounds(name))
+        }
+        "sim_step_batch" => handle_sim_step_batch(params, environment, registry).await,
+        "sim_rollout" => handle_sim_rollout(params, environment, registry).await,
+        "sim_advance_until" => handle_sim_advance_until(params, environment, registry).await,
         "reset" => handle_reset(params, environment).await,
-        "get_state_hash" => handle_state_hash(environment).await,
-        "configure_streams" => handle_configure_streams(params, environment).await,
+        "get_state_hash" => handle_state_hash(environment)
+            .await
+            .and_then(|value| to_raw(&value)),
+        "configure_streams" => handle_configure_streams(params, environment)
+            .await
+            .and_then(|value| to_raw(&value)),
+        "save_trajectory" => handle_save_trajectory(params, environment, trajectories)
+            .await
+            .and_then(|value| to_raw(&value)),
+        "stop_trajectory" => environment
+            .stop_trajectory()
+            .await
+            .and_then(|stats| to_raw(&stats)),
+        "load_trajectory" => handle_load_trajectory(params, environment, trajectories)
+            .await
+            .and_then(|report| to_raw(&report)),
         _ => Err(GameRLError::ProtocolError(format!(
             "Unknown tool: {}",
             name
         ))),
     };
 
-    match result {
-        Ok(value) => Response::success(
-            id,
-            serde_json::json!({ "content": [{ "type": "text", "text": value.to_string() }] }),
-        ),
+    let body = result.and_then(|raw| match format {
+        ResultFormat::Text => to_raw(&ToolResult {
+            content: vec![TextContent {
+                kind: "text",
+                text: raw.get(),
+            }],
+            structured_content: None,
+        }),
+        ResultFormat::Structured => {
+            let object = as_object(raw)?;
+            to_raw(&ToolResult {
+                content: vec![],
+                structured_content: Some(&object),
+            })
+        }
+    });
+
+    match body {
+        Ok(body) => Response::success_raw(id, body),
         Err(e) => {
             let code = match &e {
                 GameRLError::AgentNotRegistered(_) => error_codes::AGENT_NOT_REGISTERED,
@@ -208,9 +650,9 @@ pub async fn handle_tool_call<E: GameEnvironment>(
     }
 }
 
-async fn handle_register_agent<E: GameEnvironment>(
+async fn handle_register_agent(
     params: serde_json::Value,
-    environment: &Arc<RwLock<E>>,
+    environment: &EnvironmentHandle,
     registry: &Arc<RwLock<AgentRegistry>>,
 ) -> Result<serde_json::Value> {
     let p: RegisterAgentParams = serde_json::from_value(params)?;
@@ -223,18 +665,18 @@ async fn handle_register_agent<E: GameEnvironment>(
     }
 
     // Then register with environment
-    let mut env = environment.write().await;
-    let manifest = env
-        .register_agent(p.agent_id.clone(), p.agent_type, p.config)
+    let manifest = environment
+        .register_agent(p.agent_id, p.agent_type, p.config)
         .await?;
 
     Ok(serde_json::to_value(manifest)?)
 }
 
-async fn handle_deregister_agent<E: GameEnvironment>(
+async fn handle_deregister_agent(
     params: serde_json::Value,
-    environment: &Arc<RwLock<E>>,
+    environment: &EnvironmentHandle,
     registry: &Arc<RwLock<AgentRegistry>>,
+    lockstep: Option<&Arc<LockstepBarrier>>,
 ) -> Result<serde_json::Value> {
     #[derive(Deserialize)]
     #[serde(rename_all = "PascalCase")]
@@ -244,10 +686,7 @@ async fn handle_deregister_agent<E: GameEnvironment>(
     let p: Params = serde_json::from_value(params)?;
 
     // Deregister from environment
-    {
-        let mut env = environment.write().await;
-        env.deregister_agent(&p.agent_id).await?;
-    }
+    environment.deregister_agent(p.agent_id.clone()).await?;
 
     // Deregister from registry
     {
@@ -255,60 +694,497 @@ async fn handle_deregister_agent<E: GameEnvironment>(
         let _ = reg.deregister(&p.agent_id);
     }
 
+    // The open round no longer waits for this agent
+    if let Some(barrier) = lockstep {
+        barrier.agents_changed().await;
+    }
+
     Ok(serde_json::json!({ "deregistered": true }))
 }
 
-async fn handle_sim_step<E: GameEnvironment>(
+async fn handle_sim_step(
     params: serde_json::Value,
-    environment: &Arc<RwLock<E>>,
+    environment: &EnvironmentHandle,
     registry: &Arc<RwLock<AgentRegistry>>,
-) -> Result<serde_json::Value> {
+    lockstep: Option<&Arc<LockstepBarrier>>,
+) -> Result<Box<RawValue>> {
     let p: SimStepParams = serde_json::from_value(params)?;
 
-    // Execute step
-    let result = {
-        let mut env = environment.write().await;
-        env.step(&p.agent_id, p.action, p.ticks).await?
+    // The game owns the clock: hand the action over and return at once
+    if environment.clock_mode() == ClockMode::Live {
+        environment.queue_action(p.agent_id, p.action).await?;
+        return to_raw(&serde_json::json!({ "queued": true }));
+    }
+
+    // Execute step, or wait for the rest of the lockstep round
+    let result = match lockstep {
+        Some(barrier) => barrier.step(p.agent_id.clone(), p.action, p.ticks).await?,
+        None => environment.step(p.agent_id.clone(), p.action, p.ticks).await?,
     };
 
     // Update registry
     {
         let mut reg = registry.write().await;
         reg.record_step(&p.agent_id, result.reward);
+        reg.record_queue_wait(&p.agent_id, environment.queue_wait(&p.agent_id));
     }
 
-    Ok(serde_json::to_value(result)?)
+    to_raw(&result)
 }
 
-async fn handle_reset<E: GameEnvironment>(
+async fn handle_sim_step_batch(
     params: serde_json::Value,
-    environment: &Arc<RwLock<E>>,
-) -> Result<serde_json::Value> {
+    environment: &EnvironmentHandle,
+    registry: &Arc<RwLock<AgentRegistry>>,
+) -> Result<Box<RawValue>> {
+    let p: SimStepBatchParams = serde_json::from_value(params)?;
+    if p.steps.is_empty() {
+        return Err(GameRLError::InvalidAction("Steps must not be empty".into()));
+    }
+    // The game applies one action per agent before advancing
+    let mut agent_ids = HashSet::new();
+    for step in &p.steps {
+        if !agent_ids.insert(&step.agent_id) {
+            return Err(GameRLError::InvalidAction(format!(
+                "Agent {} appears more than once in Steps",
+                step.agent_id
+            )));
+        }
+    }
+
+    let actions = p
+        .steps
+        .into_iter()
+        .map(|step| (step.agent_id, step.action))
+        .collect();
+    let results = environment.step_batch(actions, p.ticks).await?;
+
+    {
+        let mut reg = registry.write().await;
+        for result in &results {
+            reg.record_step(&result.agent_id, result.reward);
+            reg.record_queue_wait(&result.agent_id, environment.queue_wait(&result.agent_id));
+        }
+    }
+
+    to_raw(&results)
+}
+
+async fn handle_sim_rollout(
+    params: serde_json::Value,
+    environment: &EnvironmentHandle,
+    registry: &Arc<RwLock<AgentRegistry>>,
+) -> Result<Box<RawValue>> {
+    let p: SimRolloutParams = serde_json::from_value(params)?;
+    if p.steps.is_empty() {
+        return Err(GameRLError::InvalidAction("Steps must not be empty".into()));
+    }
+    if p.steps.len() > MAX_ROLLOUT_STEPS {
+        return Err(GameRLError::InvalidAction(format!(
+            "At most {} steps per rollout",
+            MAX_ROLLOUT_STEPS
+        )));
+    }
+
+    let mut records = Vec::with_capacity(p.steps.len());
+    let mut total_reward = 0.0;
+    let mut stopped_by = None;
+    let mut last = None;
+    for step in p.steps {
+        let stepped = environment
+            .step(p.agent_id.clone(), step.action, step.ticks)
+            .await;
+        // Once a step has run, its result is worth more than the error
+        let mut result = match stepped {
+            Ok(result) => result,
+            Err(e) if last.is_some() => {
+                stopped_by = Some(e.to_string());
+                break;
+            }
+            Err(e) => return Err(e),
+        };
+        {
+            let mut reg = registry.write().await;
+            reg.record_step(&p.agent_id, result.reward);
+            reg.record_queue_wait(&p.agent_id, environment.queue_wait(&p.agent_id));
+        }
+
+        total_reward += result.reward;
+        if p.stop_on_done && result.done {
+            stopped_by = Some("Done".to_string());
+        } else if p.stop_on_done && result.truncated {
+            stopped_by = Some("Truncated".to_string());
+        } else if let Some(event) = result
+            .events
+            .iter()
+            .find(|event| p.stop_on_events.contains(&event.event_type))
+        {
+            stopped_by = Some(event.event_type.clone());
+        }
+
+        records.push(RolloutRecord {
+            reward: result.reward,
+            events: std::mem::take(&mut result.events),
+        });
+        last = Some(result);
+        if stopped_by.is_some() {
+            break;
+        }
+    }
+
+    let last = last.expect("rollout ran at least one step");
+    let rollout = RolloutResult {
+        agent_id: p.agent_id,
+        steps: records,
+        total_reward,
+        done: last.done,
+        truncated: last.truncated,
+        stopped_by,
+        observation: last.observation,
+        state_hash: last.state_hash,
+    };
+    to_raw(&rollout)
+}
+
+async fn handle_sim_advance_until(
+    params: serde_json::Value,
+    environment: &EnvironmentHandle,
+    registry: &Arc<RwLock<AgentRegistry>>,
+) -> Result<Box<RawValue>> {
+    let p: SimAdvanceUntilParams = serde_json::from_value(params)?;
+    if p.max_ticks == 0 || p.chunk_ticks == 0 {
+        return Err(GameRLError::InvalidAction(
+            "MaxTicks and ChunkTicks must be positive".into(),
+        ));
+    }
+
+    // Budgets are checked between chunks; a running step is never abandoned
+    let deadline = Instant::now() + Duration::from_millis(p.timeout_ms);
+    let mut ticks_advanced = 0;
+    let mut steps = 0;
+    let mut total_reward = 0.0;
+    let mut events = Vec::new();
+    let mut last = None;
+    let stopped_by = loop {
+        let remaining = p.max_ticks - ticks_advanced;
+        let ticks = u64::from(p.chunk_ticks).min(remaining) as u32;
+        let stepped = environment
+            .step(p.agent_id.clone(), Action::Wait, ticks)
+            .await;
+        // Once a chunk has run, what it advanced is worth more than the error
+        let mut result = match stepped {
+            Ok(result) => result,
+            Err(e) if last.is_some() => break e.to_string(),
+            Err(e) => return Err(e),
+        };
+        {
+            let mut reg = registry.write().await;
+            reg.record_step(&p.agent_id, result.reward);
+            reg.record_queue_wait(&p.agent_id, environment.queue_wait(&p.agent_id));
+        }
+        ticks_advanced += u64::from(ticks);
+        steps += 1;
+        total_reward += result.reward;
+
+        let triggered = result
+            .events
+            .iter()
+            .any(|event| p.events.is_empty() || p.events.contains(&event.event_type));
+        events.append(&mut result.events);
+
+        let stopped_by = if p.stop_on_done && result.done {
+            Some("Done")
+        } else if p.stop_on_done && result.truncated {
+            Some("Truncated")
+        } else if triggered {
+            Some("Event")
+        } else if ticks_advanced >= p.max_ticks {
+            Some("TickBudget")
+        } else if Instant::now() >= deadline {
+            Some("Timeout")
+        } else {
+            None
+        };
+        last = Some(result);
+        if let Some(stopped_by) = stopped_by {
+            break stopped_by.to_string();
+        }
+    };
+
+    let last = last.expect("advance ran at least one chunk");
+    let advance = AdvanceResult {
+        agent_id: p.agent_id,
+        ticks_advanced,
+        steps,
+        total_reward,
+        stopped_by,
+        events,
+        done: last.done,
+        truncated: last.truncated,
+        observation: last.observation,
+        state_hash: last.state_hash,
+    };
+    to_raw(&advance)
+}
+
+async fn handle_reset(
+    params: serde_json::Value,
+    environment: &EnvironmentHandle,
+) -> Result<Box<RawValue>> {
     let p: ResetParams = serde_json::from_value(params)?;
 
-    let mut env = environment.write().await;
-    let obs = env.reset(p.seed, p.scenario).await?;
+    let obs = environment.reset(p.seed, p.scenario).await?;
 
-    Ok(serde_json::to_value(obs)?)
+    to_raw(&obs)
 }
 
-async fn handle_state_hash<E: GameEnvironment>(
-    environment: &Arc<RwLock<E>>,
-) -> Result<serde_json::Value> {
-    let mut env = environment.write().await;
-    let hash = env.state_hash().await?;
+async fn handle_state_hash(environment: &EnvironmentHandle) -> Result<serde_json::Value> {
+    let hash = environment.state_hash().await?;
 
     Ok(serde_json::json!({ "hash": hash }))
 }
 
-async fn handle_configure_streams<E: GameEnvironment>(
+async fn handle_configure_streams(
     params: serde_json::Value,
-    environment: &Arc<RwLock<E>>,
+    environment: &EnvironmentHandle,
 ) -> Result<serde_json::Value> {
     let p: ConfigureStreamsParams = serde_json::from_value(params)?;
 
-    let mut env = environment.write().await;
-    let descriptors = env.configure_streams(&p.agent_id, &p.profile).await?;
+    let descriptors = environment.configure_streams(p.agent_id, p.profile).await?;
 
     Ok(serde_json::to_value(descriptors)?)
 }
+
+async fn handle_save_trajectory(
+    params: serde_json::Value,
+    environment: &EnvironmentHandle,
+    trajectories: &TrajectoryDir,
+) -> Result<serde_json::Value> {
+    let p: SaveTrajectoryParams = serde_json::from_value(params)?;
+    let path = trajectories.resolve(&p.path)?;
+
+    let defaults = RecordingOptions::default();
+    let options = RecordingOptions {
+        agent_ids: p.agent_ids,
+        include_observations: p.include_observations,
+        compression_level: defaults.compression_level.filter(|_| p.compress),
+        ..defaults
+    };
+    environment.save_trajectory(path, options).await?;
+
+    Ok(serde_json::json!({ "recording": true, "path": p.path }))
+}
+
+async fn handle_load_trajectory(
+    params: serde_json::Value,
+    environment: &EnvironmentHandle,
+    trajectories: &TrajectoryDir,
+) -> Result<ReplayReport> {
+    let p: LoadTrajectoryParams = serde_json::from_value(params)?;
+    let path = trajectories.resolve(&p.path)?;
+
+    let options = ReplayOptions {
+        from: p.from_step,
+        limit: p.max_steps,
+        verify: p.verify_determinism,
+    };
+    environment.load_trajectory(path, options).await
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::lockstep::SteppingMode;
+    use crate::test_support::TestEnvironment;
+    use game_rl_core::GameManifest;
+
+    fn test_server(episode_steps: u64) -> GameRLServer {
+        test_server_with(TestEnvironment::default().with_episode_steps(episode_steps))
+    }
+
+    fn test_server_with(environment: TestEnvironment) -> GameRLServer {
+        let mut manifest = GameManifest::default();
+        manifest.capabilities.max_agents = 4;
+        GameRLServer::new(environment, manifest)
+    }
+
+    async fn respond(
+        server: &GameRLServer,
+        tool: &str,
+        format: ResultFormat,
+        params: serde_json::Value,
+    ) -> serde_json::Value {
+        let id = RequestId::Number(1);
+        let response = handle_tool_call(tool, params, id, format, server).await;
+        serde_json::to_value(response).unwrap()
+    }
+
+    async fn call_with(
+        tool: &str,
+        format: ResultFormat,
+        episode_steps: u64,
+        params: serde_json::Value,
+    ) -> serde_json::Value {
+        let server = test_server(episode_steps);
+        let response = respond(&server, tool, format, params).await;
+        match format {
+            ResultFormat::Text => {
+                let text = response["result"]["content"][0]["text"].as_str().unwrap();
+                serde_json::from_str(text).unwrap()
+            }
+            ResultFormat::Structured => response["result"]["structuredContent"].clone(),
+        }
+    }
+
+    async fn call(tool: &str, episode_steps: u64, params: serde_json::Value) -> serde_json::Value {
+        call_with(tool, ResultFormat::Text, episode_steps, params).await
+    }
+
+    async fn rollout(episode_steps: u64, params: serde_json::Value) -> serde_json::Value {
+        call("sim_rollout", episode_steps, params).await
+    }
+
+    fn steps(count: usize) -> serde_json::Value {
+        let step = serde_json::json!({ "Action": 0, "Ticks": 10 });
+        serde_json::Value::Array(vec![step; count])
+    }
+
+    #[tokio::test]
+    async fn test_rollout_runs_every_step() {
+        let params = serde_json::json!({ "AgentId": "a", "Steps": steps(2) });
+        let result = rollout(100, params).await;
+        assert_eq!(result["Steps"].as_array().unwrap().len(), 2);
+        assert_eq!(result["TotalReward"], 2.0);
+        assert_eq!(result["Observation"], serde_json::json!([2.0, 1.0]));
+        assert!(result.get("StoppedBy").is_none());
+    }
+
+    #[tokio::test]
+    async fn test_rollout_stops_on_done() {
+        let params = serde_json::json!({ "AgentId": "a", "Steps": steps(5) });
+        let result = rollout(2, params).await;
+        assert_eq!(result["Steps"].as_array().unwrap().len(), 2);
+        assert_eq!(result["StoppedBy"], "Done");
+        assert_eq!(result["Done"], true);
+    }
+
+    #[tokio::test]
+    async fn test_rollout_stops_on_event() {
+        let params = serde_json::json!({
+            "AgentId": "a",
+            "Steps": steps(5),
+            "StopOnEvents": ["Raid"]
+        });
+        let result = rollout(100, params).await;
+        assert_eq!(result["Steps"].as_array().unwrap().len(), 3);
+        assert_eq!(result["StoppedBy"], "Raid");
+        assert_eq!(result["Steps"][2]["Events"][0]["Type"], "Raid");
+        assert!(result["Steps"][0].get("Events").is_none());
+    }
+
+    #[tokio::test]
+    async fn test_advance_until_event() {
+        let params = serde_json::json!({
+            "AgentId": "a",
+            "Events": ["Raid"],
+            "MaxTicks": 1000,
+            "ChunkTicks": 10
+        });
+        let result = call("sim_advance_until", 100, params).await;
+        assert_eq!(result["StoppedBy"], "Event");
+        assert_eq!(result["Steps"], 3);
+        assert_eq!(result["TicksAdvanced"], 30);
+        assert_eq!(result["Events"][0]["Type"], "Raid");
+    }
+
+    #[tokio::test]
+    async fn test_advance_until_tick_budget() {
+        let params = serde_json::json!({
+            "AgentId": "a",
+            "Events": ["Fire"],
+            "MaxTicks": 25,
+            "ChunkTicks": 10
+        });
+        let result = call("sim_advance_until", 100, params).await;
+        assert_eq!(result["StoppedBy"], "TickBudget");
+        assert_eq!(result["TicksAdvanced"], 25);
+        // Events that don't match are still reported
+        assert_eq!(result["Events"][0]["Type"], "Raid");
+    }
+
+    #[tokio::test]
+    async fn test_structured_result_matches_text() {
+        let params = serde_json::json!({ "AgentId": "a", "Steps": steps(2) });
+        let (text, structured) = (ResultFormat::Text, ResultFormat::Structured);
+        let text = call_with("sim_rollout", text, 100, params.clone()).await;
+        let structured = call_with("sim_rollout", structured, 100, params).await;
+        assert_eq!(text, structured);
+    }
+
+    #[tokio::test]
+    async fn test_lockstep_refuses_multi_step_tools() {
+        let mode = SteppingMode::Lockstep {
+            deadline: Duration::from_secs(1),
+        };
+        let server = test_server(100).with_stepping_mode(mode);
+        let calls = [
+            ("sim_step_batch", serde_json::json!({ "Steps": [{ "AgentId": "a", "Action": 0 }] })),
+            ("sim_rollout", serde_json::json!({ "AgentId": "a", "Steps": steps(2) })),
+            ("sim_advance_until", serde_json::json!({ "AgentId": "a", "MaxTicks": 10 })),
+        ];
+        for (tool, params) in calls {
+            let response = respond(&server, tool, ResultFormat::Text, params).await;
+            assert_eq!(response["error"]["code"], error_codes::INVALID_ACTION, "{}", tool);
+        }
+    }
+
+    #[tokio::test]
+    async fn test_structured_step_batch_is_wrapped() {
+        let params = serde_json::json!({
+            "Steps": [{ "AgentId": "a", "Action": 0 }, { "AgentId": "b", "Action": 0 }]
+        });
+        let (text, structured) = (ResultFormat::Text, ResultFormat::Structured);
+        let text = call_with("sim_step_batch", text, 100, params.clone()).await;
+        let structured = call_with("sim_step_batch", structured, 100, params).await;
+        assert!(structured.is_object());
+        assert_eq!(structured["Results"], text);
+        assert_eq!(structured["Results"].as_array().unwrap().len(), 2);
+    }
+
+    #[tokio::test]
+    async fn test_rollout_keeps_steps_before_an_error() {
+        let server = test_server_with(TestEnvironment::default().with_failing_step(3));
+        let params = serde_json::json!({ "AgentId": "a", "Steps": steps(5) });
+        let response = respond(&server, "sim_rollout", ResultFormat::Structured, params).await;
+        let result = &response["result"]["structuredContent"];
+        assert_eq!(result["Steps"].as_array().unwrap().len(), 2);
+        assert_eq!(result["TotalReward"], 2.0);
+        assert_eq!(result["StoppedBy"], "Game error: Step failed");
+        assert_eq!(result["Observation"], serde_json::json!([2.0, 1.0]));
+    }
+
+    #[tokio::test]
+    async fn test_rollout_fails_when_first_step_fails() {
+        let server = test_server_with(TestEnvironment::default().with_failing_step(1));
+        let params = serde_json::json!({ "AgentId": "a", "Steps": steps(2) });
+        let response = respond(&server, "sim_rollout", ResultFormat::Text, params).await;
+        assert!(response["error"].is_object());
+    }
+
+    #[tokio::test]
+    async fn test_advance_until_keeps_chunks_before_an_error() {
+        let server = test_server_with(TestEnvironment::default().with_failing_step(3));
+        let params = serde_json::json!({
+            "AgentId": "a",
+            "Events": ["Fire"],
+            "MaxTicks": 100,
+            "ChunkTicks": 10
+        });
+        let format = ResultFormat::Structured;
+        let response = respond(&server, "sim_advance_until", format, params).await;
+        let result = &response["result"]["structuredContent"];
+        assert_eq!(result["Steps"], 2);
+        assert_eq!(result["TicksAdvanced"], 20);
+        assert_eq!(result["StoppedBy"], "Game error: Step failed");
+    }
+}
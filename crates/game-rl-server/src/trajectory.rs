@@ -0,0 +1,1302 @@
+//! Append-only trajectory log
+//!
+//! While recording, the environment actor hands every completed step to a
+//! [`TrajectoryRecorder`]. A bounded queue carries it to a writer thread, so
+//! a step never waits on the disk: when the queue is full the step is dropped
+//! from the log and counted instead.
+//!
+//! File layout (integers little-endian):
+//!
+//! ```text
+//! file    = "GRLTRAJ" version:u8 segment*
+//! segment = length:u32 flags:u8 records:u32 min_tick:u64 max_tick:u64 payload[length]
+//! payload = (length:u32 record[length])*      record: JSON TrajectoryRecord
+//! ```
+//!
+//! Flag bit 0 marks a zstd-compressed payload. A segment is sealed once it
+//! holds `segment_bytes` of records (never in the middle of a batch), and
+//! when recording stops. Within a segment an agent's first observation is
+//! stored whole and later ones as changed top-level fields, so every segment
+//! decodes on its own and a crash loses at most the segment being written.
+//!
+//! [`TrajectoryReader`] maps a file and indexes it from the segment headers
+//! alone, so multi-gigabyte logs open instantly and records are decoded one
+//! segment at a time. The server keeps recently read files open in a
+//! `ReaderCache`.
+//!
+//! Paths named by MCP clients are resolved in a [`TrajectoryDir`], so a
+//! remote client can't read or write files elsewhere on the host.
+
+use crate::environment::GameEnvironment;
+use game_rl_core::{Action, AgentId, GameEvent, GameRLError, Result, RewardComponents, StepResult};
+use serde::{Deserialize, Serialize};
+use serde_json::{Map, Value};
+use memmap2::Mmap;
+use std::borrow::Cow;
+use std::collections::{HashMap, HashSet, VecDeque};
+use std::fs::{self, File, OpenOptions};
+use std::io::{self, Read, Seek, SeekFrom, Write};
+use std::path::{Component, Path, PathBuf};
+use std::sync::{Arc, LazyLock, Mutex, MutexGuard, PoisonError};
+use tokio::sync::mpsc;
+use tracing::warn;
+
+const MAGIC: &[u8; 7] = b"GRLTRAJ";
+const VERSION: u8 = 2;
+const HEADER_LEN: u64 = MAGIC.len() as u64 + 1;
+const SEGMENT_HEADER_LEN: usize = 25;
+const FLAG_ZSTD: u8 = 1;
+
+/// Largest decompressed segment accepted when reading
+const MAX_SEGMENT_LEN: usize = 256 * 1024 * 1024;
+
+/// Readers a [`ReaderCache`] keeps open by default
+const CACHED_READERS: usize = 8;
+
+/// Files mapped by a [`TrajectoryReader`] in this process, and how many
+/// readers map each
+static MAPPED_FILES: LazyLock<Mutex<HashMap<PathBuf, usize>>> = LazyLock::new(Default::default);
+
+/// What a recording keeps and how it is written
+#[derive(Debug, Clone)]
+pub struct RecordingOptions {
+    /// Agents whose steps are recorded; empty records every agent
+    pub agent_ids: Vec<AgentId>,
+    /// Store observations (otherwise only actions, rewards and events)
+    pub include_observations: bool,
+    /// zstd level for sealed segments; `None` stores them uncompressed
+    pub compression_level: Option<i32>,
+    /// Steps waiting for the writer before new ones are dropped
+    pub queue_capacity: usize,
+    /// Uncompressed record bytes collected before a segment is sealed
+    pub segment_bytes: usize,
+}
+
+impl Default for RecordingOptions {
+    fn default() -> Self {
+        Self {
+            agent_ids: vec![],
+            include_observations: true,
+            compression_level: Some(3),
+            queue_capacity: 1024,
+            segment_bytes: 1024 * 1024,
+        }
+    }
+}
+
+/// One recorded step
+#[derive(Debug, Clone, Serialize, Deserialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct TrajectoryRecord {
+    pub agent_id: AgentId,
+    pub step_id: u64,
+    pub tick: u64,
+    /// Ticks the step advanced
+    pub ticks: u32,
+    /// Shared by the steps of one `step_batch`, which advanced together
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    pub batch: Option<u64>,
+    pub action: Action,
+    pub reward: f64,
+    #[serde(default, skip_serializing_if = "HashMap::is_empty")]
+    pub reward_components: RewardComponents,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub events: Vec<GameEvent>,
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    pub observation: Option<RecordedObservation>,
+    pub done: bool,
+    pub truncated: bool,
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    pub state_hash: Option<String>,
+}
+
+/// Observation as stored in a segment
+///
+/// [`read_trajectory`] resolves deltas, so records it returns are always
+/// `Full`.
+#[derive(Debug, Clone, PartialEq, Serialize, Deserialize)]
+pub enum RecordedObservation {
+    Full(Value),
+    /// Top-level fields changed since the agent's previous record
+    Delta {
+        #[serde(rename = "Changed")]
+        changed: Map<String, Value>,
+        #[serde(rename = "Removed", default, skip_serializing_if = "Vec::is_empty")]
+        removed: Vec<String>,
+    },
+}
+
+impl RecordedObservation {
+    /// Store `current` relative to `previous` when both are objects and
+    /// fewer fields changed than there are
+    fn encode(previous: Option<&Value>, current: &Value) -> Self {
+        let (Some(Value::Object(previous)), Value::Object(fields)) = (previous, current) else {
+            return Self::Full(current.clone());
+        };
+        let changed: Map<String, Value> = fields
+            .iter()
+            .filter(|(key, value)| previous.get(*key) != Some(*value))
+            .map(|(key, value)| (key.clone(), value.clone()))
+            .collect();
+        if changed.len() == fields.len() {
+            return Self::Full(current.clone());
+        }
+        let removed = previous
+            .keys()
+            .filter(|key| !fields.contains_key(*key))
+            .cloned()
+            .collect();
+        Self::Delta { changed, removed }
+    }
+
+    /// Rebuild the full observation from the agent's previous one
+    fn resolve(self, previous: Option<&Value>) -> Option<Value> {
+        match self {
+            Self::Full(value) => Some(value),
+            Self::Delta { changed, removed } => {
+                let Some(Value::Object(previous)) = previous else {
+                    return None;
+                };
+                let mut fields = previous.clone();
+                for key in &removed {
+                    fields.remove(key);
+                }
+                fields.extend(changed);
+                Some(Value::Object(fields))
+            }
+        }
+    }
+}
+
+/// Counters of a finished recording
+#[derive(Debug, Clone, Copy, Default, Serialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct RecordingStats {
+    /// Steps written
+    pub records: u64,
+    /// Steps left out because the writer fell behind
+    pub dropped: u64,
+    pub segments: u64,
+    /// Bytes appended to the file
+    pub bytes: u64,
+}
+
+/// Step waiting for the writer thread
+struct Entry {
+    ticks: u32,
+    batch: Option<u64>,
+    action: Action,
+    result: StepResult,
+}
+
+/// Records steps into a trajectory file from a background thread
+pub struct TrajectoryRecorder {
+    path: PathBuf,
+    /// Recorded agents; empty for all
+    agent_ids: HashSet<AgentId>,
+    entries: mpsc::Sender<Entry>,
+    dropped: u64,
+    next_batch: u64,
+    writer: std::thread::JoinHandle<io::Result<RecordingStats>>,
+}
+
+impl TrajectoryRecorder {
+    /// Open `path` for appending, creating it if needed, and start the
+    /// writer thread. A torn segment at the end of an existing file is cut
+    /// off first, which fails while a reader in this process maps the file.
+    pub async fn create(path: impl Into<PathBuf>, options: RecordingOptions) -> Result<Self> {
+        let path = path.into();
+        let opened = path.clone();
+        let agent_ids = options.agent_ids.iter().cloned().collect();
+        let writer = tokio::task::spawn_blocking(move || SegmentWriter::open(&opened, options))
+            .await
+            .map_err(|e| GameRLError::GameError(e.to_string()))?
+            .map_err(|e| file_error(&path, e))?;
+
+        let (entries, receiver) = mpsc::channel(writer.options.queue_capacity.max(1));
+        let writer = std::thread::Builder::new()
+            .name("trajectory-writer".into())
+            .spawn(move || writer.run(receiver))
+            .map_err(|e| file_error(&path, e))?;
+
+        Ok(Self {
+            path,
+            agent_ids,
+            entries,
+            dropped: 0,
+            next_batch: 0,
+            writer,
+        })
+    }
+
+    /// File being written
+    pub fn path(&self) -> &Path {
+        &self.path
+    }
+
+    /// Queue one step; never waits
+    pub fn record(&mut self, ticks: u32, action: Action, result: &StepResult) {
+        self.push(ticks, None, action, result);
+    }
+
+    /// Queue the steps of one `step_batch`, in request order
+    pub fn record_batch(&mut self, ticks: u32, actions: Vec<Action>, results: &[StepResult]) {
+        self.next_batch += 1;
+        for (action, result) in actions.into_iter().zip(results) {
+            self.push(ticks, Some(self.next_batch), action, result);
+        }
+    }
+
+    fn push(&mut self, ticks: u32, batch: Option<u64>, action: Action, result: &StepResult) {
+        if !self.agent_ids.is_empty() && !self.agent_ids.contains(&result.agent_id) {
+            return;
+        }
+        let entry = Entry {
+            ticks,
+            batch,
+            action,
+            result: result.clone(),
+        };
+        if self.entries.try_send(entry).is_err() {
+            self.dropped += 1;
+        }
+    }
+
+    /// Seal the last segment and wait for the writer to finish
+    pub async fn finish(self) -> Result<RecordingStats> {
+        drop(self.entries);
+        let writer = self.writer;
+        let mut stats = tokio::task::spawn_blocking(move || writer.join())
+            .await
+            .map_err(|e| GameRLError::GameError(e.to_string()))?
+            .map_err(|_| GameRLError::GameError("Trajectory writer panicked".into()))?
+            .map_err(|e| file_error(&self.path, e))?;
+        stats.dropped = self.dropped;
+        if stats.dropped > 0 {
+            warn!("Trajectory writer fell behind, dropped {} steps", stats.dropped);
+        }
+        Ok(stats)
+    }
+}
+
+/// Builds segments on the writer thread
+struct SegmentWriter {
+    file: File,
+    options: RecordingOptions,
+    compressor: Option<zstd::bulk::Compressor<'static>>,
+    payload: Vec<u8>,
+    /// Last observation of each agent in the current segment
+    baselines: HashMap<AgentId, Value>,
+    /// Records and tick range of the current segment
+    records: u32,
+    min_tick: u64,
+    max_tick: u64,
+    last_batch: Option<u64>,
+    stats: RecordingStats,
+}
+
+impl SegmentWriter {
+    fn open(path: &Path, options: RecordingOptions) -> io::Result<Self> {
+        if let Some(parent) = path.parent() {
+            fs::create_dir_all(parent)?;
+        }
+        let mut file = OpenOptions::new()
+            .read(true)
+            .write(true)
+            .create(true)
+            .truncate(false)
+            .open(path)?;
+        let file_len = file.metadata()?.len();
+        let end = valid_len(&mut file)?;
+        if end == 0 {
+            file.write_all(MAGIC)?;
+            file.write_all(&[VERSION])?;
+        } else {
+            if end < file_len {
+                // Readers map the file; cutting it under them would fault.
+                // The registry stays locked so none maps it meanwhile.
+                let mapped = mapped_files();
+                if mapped.contains_key(&fs::canonicalize(path)?) {
+                    return Err(io::Error::other(
+                        "File is open for reading, can't cut its torn segment",
+                    ));
+                }
+                file.set_len(end)?;
+            }
+            file.seek(SeekFrom::End(0))?;
+        }
+        let compressor = match options.compression_level {
+            Some(level) => Some(zstd::bulk::Compressor::new(level)?),
+            None => None,
+        };
+        Ok(Self {
+            file,
+            payload: Vec::with_capacity(options.segment_bytes),
+            options,
+            compressor,
+            baselines: HashMap::new(),
+            records: 0,
+            min_tick: 0,
+            max_tick: 0,
+            last_batch: None,
+            stats: RecordingStats::default(),
+        })
+    }
+
+    fn run(mut self, mut entries: mpsc::Receiver<Entry>) -> io::Result<RecordingStats> {
+        while let Some(entry) = entries.blocking_recv() {
+            self.push(entry)?;
+        }
+        self.seal()?;
+        Ok(self.stats)
+    }
+
+    fn push(&mut self, entry: Entry) -> io::Result<()> {
+        let Entry {
+            ticks,
+            batch,
+            action,
+            result,
+        } = entry;
+
+        // A batch is replayed as one step, so it stays within one segment
+        let in_batch = batch.is_some() && batch == self.last_batch;
+        if self.payload.len() >= self.options.segment_bytes && !in_batch {
+            self.seal()?;
+        }
+
+        let observation = if self.options.include_observations {
+            let current = result.observation.to_value()?;
+            let previous = self.baselines.get(&result.agent_id);
+            let observation = RecordedObservation::encode(previous, &current);
+            self.baselines.insert(result.agent_id.clone(), current);
+            Some(observation)
+        } else {
+            None
+        };
+
+        let record = TrajectoryRecord {
+            agent_id: result.agent_id,
+            step_id: result.step_id,
+            tick: result.tick,
+            ticks,
+            batch,
+            action,
+            reward: result.reward,
+            reward_components: result.reward_components,
+            events: result.events,
+            observation,
+            done: result.done,
+            truncated: result.truncated,
+            state_hash: result.state_hash,
+        };
+
+        let start = self.payload.len();
+        self.payload.extend_from_slice(&[0; 4]);
+        serde_json::to_writer(&mut self.payload, &record)?;
+        let len = segment_len(self.payload.len() - start - 4)?;
+        self.payload[start..start + 4].copy_from_slice(&len.to_le_bytes());
+
+        if self.records == 0 {
+            self.min_tick = record.tick;
+            self.max_tick = record.tick;
+        }
+        self.min_tick = self.min_tick.min(record.tick);
+        self.max_tick = self.max_tick.max(record.tick);
+        self.records += 1;
+        self.last_batch = batch;
+        self.stats.records += 1;
+        Ok(())
+    }
+
+    /// Append the collected records as one segment
+    fn seal(&mut self) -> io::Result<()> {
+        if self.payload.is_empty() {
+            return Ok(());
+        }
+        let (flags, body) = match &mut self.compressor {
+            Some(compressor) => (FLAG_ZSTD, compressor.compress(&self.payload)?),
+            None => (0, std::mem::take(&mut self.payload)),
+        };
+        let header = SegmentHeader {
+            len: segment_len(body.len())?,
+            flags,
+            records: self.records,
+            min_tick: self.min_tick,
+            max_tick: self.max_tick,
+        };
+        self.file.write_all(&header.to_bytes())?;
+        self.file.write_all(&body)?;
+        self.file.flush()?;
+
+        self.stats.segments += 1;
+        self.stats.bytes += (SEGMENT_HEADER_LEN + body.len()) as u64;
+        self.payload.clear();
+        self.baselines.clear();
+        self.records = 0;
+        Ok(())
+    }
+}
+
+/// Segment header: enough to index a file without reading payloads
+#[derive(Debug, Clone, Copy)]
+struct SegmentHeader {
+    len: u32,
+    flags: u8,
+    records: u32,
+    min_tick: u64,
+    max_tick: u64,
+}
+
+impl SegmentHeader {
+    fn to_bytes(self) -> [u8; SEGMENT_HEADER_LEN] {
+        let mut bytes = [0; SEGMENT_HEADER_LEN];
+        bytes[..4].copy_from_slice(&self.len.to_le_bytes());
+        bytes[4] = self.flags;
+        bytes[5..9].copy_from_slice(&self.records.to_le_bytes());
+        bytes[9..17].copy_from_slice(&self.min_tick.to_le_bytes());
+        bytes[17..].copy_from_slice(&self.max_tick.to_le_bytes());
+        bytes
+    }
+
+    /// `bytes` holds at least [`SEGMENT_HEADER_LEN`] bytes
+    fn from_bytes(bytes: &[u8]) -> Self {
+        Self {
+            len: u32_at(bytes, 0),
+            flags: bytes[4],
+            records: u32_at(bytes, 5),
+            min_tick: u64_at(bytes, 9),
+            max_tick: u64_at(bytes, 17),
+        }
+    }
+}
+
+fn u32_at(bytes: &[u8], at: usize) -> u32 {
+    let mut word = [0; 4];
+    word.copy_from_slice(&bytes[at..at + 4]);
+    u32::from_le_bytes(word)
+}
+
+fn u64_at(bytes: &[u8], at: usize) -> u64 {
+    let mut word = [0; 8];
+    word.copy_from_slice(&bytes[at..at + 8]);
+    u64::from_le_bytes(word)
+}
+
+fn segment_len(len: usize) -> io::Result<u32> {
+    u32::try_from(len).map_err(|_| io::Error::new(io::ErrorKind::InvalidData, "Segment too large"))
+}
+
+/// Length of the file up to the end of its last complete segment; 0 for an
+/// empty file
+fn valid_len(file: &mut File) -> io::Result<u64> {
+    let file_len = file.metadata()?.len();
+    if file_len == 0 {
+        return Ok(0);
+    }
+    let mut header = [0; HEADER_LEN as usize];
+    file.seek(SeekFrom::Start(0))?;
+    file.read_exact(&mut header)
+        .map_err(|_| invalid_data("Not a trajectory file"))?;
+    check_header(&header)?;
+
+    let mut end = HEADER_LEN;
+    let mut segment = [0; SEGMENT_HEADER_LEN];
+    while end + SEGMENT_HEADER_LEN as u64 <= file_len {
+        file.seek(SeekFrom::Start(end))?;
+        file.read_exact(&mut segment)?;
+        let len = SegmentHeader::from_bytes(&segment).len;
+        let next = end + SEGMENT_HEADER_LEN as u64 + u64::from(len);
+        if next > file_len {
+            break;
+        }
+        end = next;
+    }
+    if end < file_len {
+        warn!("Dropping {} bytes of a torn trajectory segment", file_len - end);
+    }
+    Ok(end)
+}
+
+fn check_header(header: &[u8]) -> io::Result<()> {
+    if !header.starts_with(MAGIC) {
+        return Err(invalid_data("Not a trajectory file"));
+    }
+    if header[MAGIC.len()] != VERSION {
+        return Err(invalid_data("Unsupported trajectory version"));
+    }
+    Ok(())
+}
+
+fn invalid_data(message: &str) -> io::Error {
+    io::Error::new(io::ErrorKind::InvalidData, message)
+}
+
+fn file_error(path: &Path, e: impl std::fmt::Display) -> GameRLError {
+    GameRLError::IpcError(format!("Trajectory {}: {}", path.display(), e))
+}
+
+/// Read every record of a trajectory file, with observations resolved
+///
+/// A torn segment at the end (the recorder was killed mid-write) is skipped.
+pub fn read_trajectory(path: impl AsRef<Path>) -> Result<Vec<TrajectoryRecord>> {
+    TrajectoryReader::open(path)?.iter().collect()
+}
+
+/// Where a segment's payload sits in the file and which records it holds
+#[derive(Debug, Clone, Copy)]
+struct SegmentIndex {
+    offset: usize,
+    header: SegmentHeader,
+    /// Position of the segment's first record in the trajectory
+    first: u64,
+    /// Highest tick in this segment or any before it; unlike `max_tick` it
+    /// never decreases, so it can be binary searched even across resets
+    reach: u64,
+}
+
+fn mapped_files() -> MutexGuard<'static, HashMap<PathBuf, usize>> {
+    MAPPED_FILES.lock().unwrap_or_else(PoisonError::into_inner)
+}
+
+/// A file registered as mapped until the reader is dropped, so the recorder
+/// doesn't cut it
+struct MappedFile(PathBuf);
+
+impl MappedFile {
+    fn register(path: &Path) -> io::Result<Self> {
+        let path = fs::canonicalize(path)?;
+        *mapped_files().entry(path.clone()).or_default() += 1;
+        Ok(Self(path))
+    }
+}
+
+impl Drop for MappedFile {
+    fn drop(&mut self) {
+        let mut mapped = mapped_files();
+        if let Some(count) = mapped.get_mut(&self.0) {
+            *count -= 1;
+            if *count == 0 {
+                mapped.remove(&self.0);
+            }
+        }
+    }
+}
+
+/// Random access to a trajectory file through a memory map
+///
+/// Records are addressed by position (0-based, in recording order). Opening
+/// reads only the segment headers; a lookup is a binary search over them
+/// plus decoding one segment. The last decoded segment is kept, so reading
+/// nearby positions in turn decodes each segment once.
+pub struct TrajectoryReader {
+    path: PathBuf,
+    map: Mmap,
+    /// Dropped after `map`, so the file stays registered while it is mapped
+    _mapped: MappedFile,
+    segments: Vec<SegmentIndex>,
+    len: u64,
+    decoded: Option<(usize, Vec<TrajectoryRecord>)>,
+}
+
+impl TrajectoryReader {
+    /// Map `path` and index its segments. A torn segment at the end is
+    /// left out.
+    pub fn open(path: impl AsRef<Path>) -> Result<Self> {
+        let path = path.as_ref();
+        let file = File::open(path).map_err(|e| file_error(path, e))?;
+        let file_len = file.metadata().map_err(|e| file_error(path, e))?.len();
+        if file_len < HEADER_LEN {
+            return Err(file_error(path, "Not a trajectory file"));
+        }
+        let mapped = MappedFile::register(path).map_err(|e| file_error(path, e))?;
+        // SAFETY: the recorder only appends past the mapped length, and won't
+        // cut a torn segment off a file registered as mapped. Files must not
+        // be truncated by anything else, such as a recorder in another process.
+        let map = unsafe { Mmap::map(&file) }.map_err(|e| file_error(path, e))?;
+        let segments = index_segments(&map).map_err(|e| file_error(path, e))?;
+        let len = segments
+            .last()
+            .map_or(0, |segment| segment.first + u64::from(segment.header.records));
+
+        Ok(Self {
+            path: path.to_path_buf(),
+            map,
+            _mapped: mapped,
+            segments,
+            len,
+            decoded: None,
+        })
+    }
+
+    /// Number of records
+    pub fn len(&self) -> u64 {
+        self.len
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.len == 0
+    }
+
+    pub fn path(&self) -> &Path {
+        &self.path
+    }
+
+    /// Record at `position`, `None` past the end
+    pub fn get(&mut self, position: u64) -> Result<Option<TrajectoryRecord>> {
+        Ok(self.range(position, 1)?.pop())
+    }
+
+    /// Up to `count` records starting at `position`
+    pub fn range(&mut self, position: u64, count: usize) -> Result<Vec<TrajectoryRecord>> {
+        let mut records = Vec::new();
+        let mut position = position;
+        while records.len() < count {
+            let Some(segment) = self.segment_of(position) else {
+                break;
+            };
+            let skip = (position - self.segments[segment].first) as usize;
+            let decoded = self.decode_cached(segment)?;
+            let take = (count - records.len()).min(decoded.len().saturating_sub(skip));
+            if take == 0 {
+                break;
+            }
+            records.extend_from_slice(&decoded[skip..skip + take]);
+            position += take as u64;
+        }
+        Ok(records)
+    }
+
+    /// Position of the first record at or after `tick`
+    ///
+    /// The first segment reaching `tick` is found by binary search over the
+    /// segment headers; only that segment is decoded.
+    pub fn seek_tick(&mut self, tick: u64) -> Result<Option<u64>> {
+        let mut next = self.segments.partition_point(|index| index.reach < tick);
+        while let Some(offset) = self.segments[next..]
+            .iter()
+            .position(|index| index.header.max_tick >= tick)
+        {
+            let segment = next + offset;
+            let first = self.segments[segment].first;
+            let decoded = self.decode_cached(segment)?;
+            if let Some(found) = decoded.iter().position(|record| record.tick >= tick) {
+                return Ok(Some(first + found as u64));
+            }
+            next = segment + 1;
+        }
+        Ok(None)
+    }
+
+    /// Every record in order, decoding one segment at a time
+    pub fn iter(&self) -> Records<'_> {
+        self.iter_from(0)
+    }
+
+    /// Records from `position` on, decoding one segment at a time
+    pub fn iter_from(&self, position: u64) -> Records<'_> {
+        let segment = self.segment_of(position).unwrap_or(self.segments.len());
+        let skip = self
+            .segments
+            .get(segment)
+            .map_or(0, |index| (position - index.first) as usize);
+        Records {
+            reader: self,
+            segment,
+            skip,
+            pending: Vec::new().into_iter(),
+        }
+    }
+
+    /// Segment holding the record at `position`
+    fn segment_of(&self, position: u64) -> Option<usize> {
+        if position >= self.len {
+            return None;
+        }
+        Some(self.segments.partition_point(|index| index.first <= position) - 1)
+    }
+
+    fn decode_cached(&mut self, segment: usize) -> Result<&[TrajectoryRecord]> {
+        if !matches!(&self.decoded, Some((cached, _)) if *cached == segment) {
+            let records = self.decode(segment)?;
+            self.decoded = Some((segment, records));
+        }
+        match &self.decoded {
+            Some((_, records)) => Ok(records),
+            None => Ok(&[]),
+        }
+    }
+
+    /// Records of one segment, observations resolved
+    fn decode(&self, segment: usize) -> Result<Vec<TrajectoryRecord>> {
+        let index = self.segments[segment];
+        let body = &self.map[index.offset..index.offset + index.header.len as usize];
+        let payload = if index.header.flags & FLAG_ZSTD != 0 {
+            let payload = zstd::bulk::decompress(body, MAX_SEGMENT_LEN)
+                .map_err(|e| file_error(&self.path, e))?;
+            Cow::Owned(payload)
+        } else {
+            Cow::Borrowed(body)
+        };
+        let mut records = Vec::with_capacity(index.header.records as usize);
+        read_segment(&payload, &mut records).map_err(|e| file_error(&self.path, e))?;
+        Ok(records)
+    }
+}
+
+/// Streaming iterator over a [`TrajectoryReader`]
+pub struct Records<'a> {
+    reader: &'a TrajectoryReader,
+    segment: usize,
+    /// Records to skip in `segment` before yielding
+    skip: usize,
+    pending: std::vec::IntoIter<TrajectoryRecord>,
+}
+
+impl Iterator for Records<'_> {
+    type Item = Result<TrajectoryRecord>;
+
+    fn next(&mut self) -> Option<Self::Item> {
+        loop {
+            if let Some(record) = self.pending.next() {
+                return Some(Ok(record));
+            }
+            if self.segment >= self.reader.segments.len() {
+                return None;
+            }
+            let decoded = self.reader.decode(self.segment);
+            self.segment += 1;
+            match decoded {
+                Ok(records) => {
+                    let mut records = records.into_iter();
+                    if self.skip > 0 {
+                        records.nth(self.skip - 1);
+                        self.skip = 0;
+                    }
+                    self.pending = records;
+                }
+                Err(e) => {
+                    self.segment = self.reader.segments.len();
+                    return Some(Err(e));
+                }
+            }
+        }
+    }
+}
+
+/// Complete segments of a mapped file
+fn index_segments(map: &[u8]) -> io::Result<Vec<SegmentIndex>> {
+    let header_len = HEADER_LEN as usize;
+    let header = map
+        .get(..header_len)
+        .ok_or_else(|| invalid_data("Not a trajectory file"))?;
+    check_header(header)?;
+
+    let mut segments = Vec::new();
+    let mut offset = header_len;
+    let mut first = 0;
+    let mut reach = 0;
+    while let Some(bytes) = map.get(offset..offset + SEGMENT_HEADER_LEN) {
+        let header = SegmentHeader::from_bytes(bytes);
+        let start = offset + SEGMENT_HEADER_LEN;
+        let end = start + header.len as usize;
+        if end > map.len() {
+            break;
+        }
+        reach = reach.max(header.max_tick);
+        segments.push(SegmentIndex {
+            offset: start,
+            header,
+            first,
+            reach,
+        });
+        first += u64::from(header.records);
+        offset = end;
+    }
+    if offset < map.len() {
+        warn!("Skipping {} bytes of a torn trajectory segment", map.len() - offset);
+    }
+    Ok(segments)
+}
+
+fn read_segment(mut payload: &[u8], records: &mut Vec<TrajectoryRecord>) -> io::Result<()> {
+    let mut baselines: HashMap<AgentId, Value> = HashMap::new();
+    while !payload.is_empty() {
+        let Some(len) = payload.get(..4) else {
+            return Err(invalid_data("Truncated record"));
+        };
+        let len = u32::from_le_bytes([len[0], len[1], len[2], len[3]]) as usize;
+        let Some(json) = payload.get(4..4 + len) else {
+            return Err(invalid_data("Truncated record"));
+        };
+        payload = &payload[4 + len..];
+
+        let mut record: TrajectoryRecord = serde_json::from_slice(json)?;
+        if let Some(observation) = record.observation.take() {
+            let observation = observation
+                .resolve(baselines.get(&record.agent_id))
+                .ok_or_else(|| invalid_data("Observation delta without a baseline"))?;
+            baselines.insert(record.agent_id.clone(), observation.clone());
+            record.observation = Some(RecordedObservation::Full(observation));
+        }
+        records.push(record);
+    }
+    Ok(())
+}
+
+/// Recently used readers, so repeated reads of a file don't map and index it
+/// again
+///
+/// A reader is reopened once its file has grown, so reads see steps recorded
+/// since. Cached readers keep their files mapped, so the recorder won't cut a
+/// torn segment off them.
+#[derive(Clone)]
+pub(crate) struct ReaderCache {
+    /// Most recently used first
+    readers: Arc<Mutex<VecDeque<CachedReader>>>,
+    capacity: usize,
+}
+
+struct CachedReader {
+    path: PathBuf,
+    /// File length when it was mapped
+    len: u64,
+    reader: Arc<Mutex<TrajectoryReader>>,
+}
+
+impl Default for ReaderCache {
+    fn default() -> Self {
+        Self::new(CACHED_READERS)
+    }
+}
+
+impl ReaderCache {
+    pub(crate) fn new(capacity: usize) -> Self {
+        Self {
+            readers: Arc::default(),
+            capacity: capacity.max(1),
+        }
+    }
+
+    /// Reader for `path`, opening it if it isn't cached or has grown. Blocks
+    /// on the file system.
+    pub(crate) fn open(&self, path: &Path) -> Result<Arc<Mutex<TrajectoryReader>>> {
+        let len = fs::metadata(path).map_err(|e| file_error(path, e))?.len();
+        let mut readers = self.readers.lock().unwrap_or_else(PoisonError::into_inner);
+        let cached = readers
+            .iter()
+            .position(|cached| cached.path == path)
+            .and_then(|at| readers.remove(at))
+            .filter(|cached| cached.len == len);
+        let cached = match cached {
+            Some(cached) => cached,
+            None => CachedReader {
+                path: path.to_path_buf(),
+                len,
+                reader: Arc::new(Mutex::new(TrajectoryReader::open(path)?)),
+            },
+        };
+        let reader = cached.reader.clone();
+        readers.push_front(cached);
+        readers.truncate(self.capacity);
+        Ok(reader)
+    }
+}
+
+/// Directory holding the trajectories MCP clients record and read
+///
+/// Client paths are relative to it. Absolute paths and `..` are refused, so
+/// `save_trajectory` can't create files outside it and `load_trajectory` or
+/// `game://trajectory` can't open them.
+#[derive(Debug, Clone, PartialEq, Eq)]
+pub struct TrajectoryDir {
+    root: PathBuf,
+}
+
+impl Default for TrajectoryDir {
+    /// `trajectories` in the server's working directory
+    fn default() -> Self {
+        Self::new("trajectories")
+    }
+}
+
+impl TrajectoryDir {
+    pub fn new(root: impl Into<PathBuf>) -> Self {
+        Self { root: root.into() }
+    }
+
+    pub fn root(&self) -> &Path {
+        &self.root
+    }
+
+    /// File a client-supplied path names inside the directory
+    pub fn resolve(&self, requested: &str) -> Result<PathBuf> {
+        let relative = Path::new(requested);
+        let mut names = 0;
+        for component in relative.components() {
+            match component {
+                Component::Normal(_) => names += 1,
+                Component::CurDir => {}
+                Component::ParentDir | Component::RootDir | Component::Prefix(_) => {
+                    return Err(GameRLError::ProtocolError(format!(
+                        "Trajectory path must be relative to the trajectory directory, \
+                         without '..': {}",
+                        requested
+                    )));
+                }
+            }
+        }
+        if names == 0 {
+            return Err(GameRLError::ProtocolError(format!(
+                "Trajectory path names no file: {:?}",
+                requested
+            )));
+        }
+        Ok(self.root.join(relative))
+    }
+}
+
+/// Which part of a trajectory is replayed, and whether it is checked
+#[derive(Debug, Clone, Copy)]
+pub struct ReplayOptions {
+    /// Position of the first record to replay
+    pub from: u64,
+    /// Most records to replay; `None` for the rest of the file
+    pub limit: Option<u64>,
+    /// Stop at the first state hash that differs from the recording
+    pub verify: bool,
+}
+
+impl Default for ReplayOptions {
+    fn default() -> Self {
+        Self {
+            from: 0,
+            limit: None,
+            verify: true,
+        }
+    }
+}
+
+/// Outcome of replaying a trajectory
+#[derive(Debug, Clone, Copy, Default, Serialize)]
+#[serde(rename_all = "PascalCase")]
+pub struct ReplayReport {
+    /// Recorded steps executed
+    pub steps: u64,
+    /// Steps whose state hash was compared
+    pub checked: u64,
+    /// Recorded step id of the first state hash mismatch; replay stops there
+    #[serde(skip_serializing_if = "Option::is_none")]
+    pub diverged_at: Option<u64>,
+}
+
+/// Re-execute recorded actions from the environment's current state
+///
+/// Segments are decoded one at a time on the blocking pool. Steps of one
+/// batch are replayed as one `step_batch`. With `verify`, state hashes are
+/// compared wherever both the recording and the replay have one.
+pub(crate) async fn replay<E: GameEnvironment>(
+    environment: &mut E,
+    reader: Arc<TrajectoryReader>,
+    options: ReplayOptions,
+) -> Result<ReplayReport> {
+    let mut report = ReplayReport::default();
+    let limit = options.limit.unwrap_or(u64::MAX);
+    let Some(first_segment) = reader.segment_of(options.from) else {
+        return Ok(report);
+    };
+
+    let mut skip = (options.from - reader.segments[first_segment].first) as usize;
+    for segment in first_segment..reader.segments.len() {
+        let decoder = reader.clone();
+        let records = tokio::task::spawn_blocking(move || decoder.decode(segment))
+            .await
+            .map_err(|e| GameRLError::GameError(e.to_string()))??;
+        let mut records = records.into_iter().skip(skip).peekable();
+        skip = 0;
+
+        while let Some(first) = records.next() {
+            if report.steps >= limit {
+                return Ok(report);
+            }
+            let mut group = vec![first];
+            if let Some(batch) = group[0].batch {
+                while let Some(next) = records.next_if(|record| record.batch == Some(batch)) {
+                    group.push(next);
+                }
+            }
+
+            let ticks = group[0].ticks;
+            let results = if group[0].batch.is_some() {
+                let actions = group
+                    .iter()
+                    .map(|record| (record.agent_id.clone(), record.action.clone()))
+                    .collect();
+                environment.step_batch(actions, ticks).await?
+            } else {
+                let record = &group[0];
+                let result = environment
+                    .step(&record.agent_id, record.action.clone(), ticks)
+                    .await?;
+                vec![result]
+            };
+
+            for (record, result) in group.iter().zip(&results) {
+                report.steps += 1;
+                if !options.verify {
+                    continue;
+                }
+                let (Some(expected), Some(actual)) = (&record.state_hash, &result.state_hash)
+                else {
+                    continue;
+                };
+                report.checked += 1;
+                if expected != actual {
+                    report.diverged_at = Some(record.step_id);
+                    return Ok(report);
+                }
+            }
+        }
+    }
+    Ok(report)
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use game_rl_core::Observation;
+
+    fn step(agent_id: &str, step_id: u64, observation: Value) -> StepResult {
+        let observation = match observation {
+            Value::Object(fields) => Observation::Structured(fields.into_iter().collect()),
+            other => Observation::Custom(other),
+        };
+        StepResult {
+            agent_id: agent_id.into(),
+            step_id,
+            tick: step_id * 10,
+            observation,
+            reward: 1.0,
+            reward_components: Default::default(),
+            done: false,
+            truncated: false,
+            termination_reason: None,
+            events: vec![],
+            frame_ids: Default::default(),
+            available_actions: None,
+            metrics: None,
+            state_hash: Some(format!("hash-{}", step_id)),
+        }
+    }
+
+    fn temp_path(name: &str) -> PathBuf {
+        let file_name = format!("gamerl-{}-{}.traj", name, std::process::id());
+        let path = std::env::temp_dir().join(file_name);
+        let _ = std::fs::remove_file(&path);
+        path
+    }
+
+    #[test]
+    fn test_trajectory_paths_stay_in_directory() {
+        let dir = TrajectoryDir::new("/srv/trajectories");
+        assert_eq!(
+            dir.resolve("runs/a.traj").unwrap(),
+            Path::new("/srv/trajectories/runs/a.traj")
+        );
+        assert_eq!(
+            dir.resolve("./a.traj").unwrap(),
+            Path::new("/srv/trajectories/a.traj")
+        );
+        for escape in ["/etc/passwd", "../a.traj", "runs/../../a.traj", "", "."] {
+            assert!(dir.resolve(escape).is_err(), "{} was accepted", escape);
+        }
+    }
+
+    #[test]
+    fn test_observation_delta_round_trip() {
+        let previous = serde_json::json!({ "Food": 10, "Colonists": 3, "Alert": true });
+        let current = serde_json::json!({ "Food": 9, "Colonists": 3 });
+        let encoded = RecordedObservation::encode(Some(&previous), &current);
+        assert_eq!(
+            encoded,
+            RecordedObservation::Delta {
+                changed: serde_json::from_value(serde_json::json!({ "Food": 9 })).unwrap(),
+                removed: vec!["Alert".into()],
+            }
+        );
+        assert_eq!(encoded.resolve(Some(&previous)), Some(current));
+
+        // Nothing in common, or not an object: stored whole
+        let vector = serde_json::json!([1.0, 2.0]);
+        let encoded = RecordedObservation::encode(Some(&previous), &vector);
+        assert_eq!(encoded, RecordedObservation::Full(vector));
+    }
+
+    #[tokio::test]
+    async fn test_record_and_read() {
+        let path = temp_path("record");
+        let options = RecordingOptions {
+            segment_bytes: 256,
+            ..Default::default()
+        };
+        let mut recorder = TrajectoryRecorder::create(&path, options).await.unwrap();
+        for step_id in 1..=20 {
+            let observation = serde_json::json!({ "Food": 100 - step_id, "Map": "large" });
+            recorder.record(1, Action::Discrete(1), &step("a", step_id, observation));
+        }
+        let results = [
+            step("a", 21, serde_json::json!([0.5])),
+            step("b", 21, serde_json::json!([0.5])),
+        ];
+        recorder.record_batch(5, vec![Action::Wait, Action::Discrete(2)], &results);
+        let stats = recorder.finish().await.unwrap();
+        assert_eq!(stats.records, 22);
+        assert_eq!(stats.dropped, 0);
+        assert!(stats.segments > 1);
+
+        // Appending keeps what is already there
+        let recorder = TrajectoryRecorder::create(&path, RecordingOptions::default())
+            .await
+            .unwrap();
+        recorder.finish().await.unwrap();
+
+        let records = read_trajectory(&path).unwrap();
+        assert_eq!(records.len(), 22);
+        assert_eq!(
+            records[19].observation,
+            Some(RecordedObservation::Full(serde_json::json!({ "Food": 80, "Map": "large" })))
+        );
+        assert_eq!(records[19].state_hash.as_deref(), Some("hash-20"));
+        assert_eq!(records[20].batch, records[21].batch);
+        assert!(records[20].batch.is_some());
+        assert!(matches!(records[20].action, Action::Wait));
+        let _ = std::fs::remove_file(&path);
+    }
+
+    #[tokio::test]
+    async fn test_reader_random_access() {
+        let path = temp_path("reader");
+        let options = RecordingOptions {
+            segment_bytes: 256,
+            ..Default::default()
+        };
+        let mut recorder = TrajectoryRecorder::create(&path, options).await.unwrap();
+        for step_id in 1..=22 {
+            let observation = serde_json::json!({ "Food": 100 - step_id, "Map": "large" });
+            recorder.record(1, Action::Discrete(1), &step("a", step_id, observation));
+        }
+        let stats = recorder.finish().await.unwrap();
+        assert!(stats.segments > 2);
+
+        let mut reader = TrajectoryReader::open(&path).unwrap();
+        assert_eq!(reader.len(), 22);
+
+        // Out of order, across segments; deltas still resolve
+        let record = reader.get(15).unwrap().unwrap();
+        assert_eq!(record.step_id, 16);
+        let expected = serde_json::json!({ "Food": 84, "Map": "large" });
+        assert_eq!(record.observation, Some(RecordedObservation::Full(expected)));
+        assert_eq!(reader.get(2).unwrap().unwrap().step_id, 3);
+        assert!(reader.get(22).unwrap().is_none());
+
+        // Ticks are 10 per step id
+        assert_eq!(reader.seek_tick(105).unwrap(), Some(10));
+        assert_eq!(reader.seek_tick(1000).unwrap(), None);
+
+        let range = reader.range(18, 10).unwrap();
+        let step_ids: Vec<u64> = range.iter().map(|record| record.step_id).collect();
+        assert_eq!(step_ids, [19, 20, 21, 22]);
+
+        let tail: Vec<u64> = reader
+            .iter_from(19)
+            .map(|record| record.unwrap().step_id)
+            .collect();
+        assert_eq!(tail, [20, 21, 22]);
+        let _ = std::fs::remove_file(&path);
+    }
+
+    #[tokio::test]
+    async fn test_torn_segment_is_skipped() {
+        let path = temp_path("torn");
+        let options = RecordingOptions {
+            compression_level: None,
+            ..Default::default()
+        };
+        let mut recorder = TrajectoryRecorder::create(&path, options.clone()).await.unwrap();
+        recorder.record(1, Action::Wait, &step("a", 1, serde_json::json!([1.0])));
+        recorder.finish().await.unwrap();
+
+        // A writer killed mid-segment leaves a header promising more bytes
+        let header = SegmentHeader {
+            len: 100,
+            flags: 0,
+            records: 1,
+            min_tick: 20,
+            max_tick: 20,
+        };
+        let mut file = OpenOptions::new().append(true).open(&path).unwrap();
+        file.write_all(&header.to_bytes()).unwrap();
+        file.write_all(b"{").unwrap();
+        drop(file);
+        assert_eq!(read_trajectory(&path).unwrap().len(), 1);
+
+        // Not while a reader maps the file
+        let reader = TrajectoryReader::open(&path).unwrap();
+        let recorder = TrajectoryRecorder::create(&path, options.clone()).await;
+        assert!(recorder.is_err());
+        drop(reader);
+
+        // Appending cuts the torn segment off
+        let mut recorder = TrajectoryRecorder::create(&path, options).await.unwrap();
+        recorder.record(1, Action::Wait, &step("a", 2, serde_json::json!([2.0])));
+        recorder.finish().await.unwrap();
+        let records = read_trajectory(&path).unwrap();
+        assert_eq!(records.len(), 2);
+        assert_eq!(records[1].step_id, 2);
+        let _ = std::fs::remove_file(&path);
+    }
+
+    #[tokio::test]
+    async fn test_reader_cache_reopens_grown_files() {
+        let path = temp_path("cache");
+        let mut recorder = TrajectoryRecorder::create(&path, RecordingOptions::default())
+            .await
+            .unwrap();
+        recorder.record(1, Action::Wait, &step("a", 1, serde_json::json!([1.0])));
+        recorder.finish().await.unwrap();
+
+        let cache = ReaderCache::new(1);
+        let first = cache.open(&path).unwrap();
+        assert!(Arc::ptr_eq(&first, &cache.open(&path).unwrap()));
+
+        let mut recorder = TrajectoryRecorder::create(&path, RecordingOptions::default())
+            .await
+            .unwrap();
+        recorder.record(1, Action::Wait, &step("a", 2, serde_json::json!([2.0])));
+        recorder.finish().await.unwrap();
+        let grown = cache.open(&path).unwrap();
+        assert!(!Arc::ptr_eq(&first, &grown));
+        assert_eq!(grown.lock().unwrap().len(), 2);
+        let _ = std::fs::remove_file(&path);
+    }
+
+    #[test]
+    fn test_segment_reach_survives_resets() {
+        let header = |max_tick| SegmentHeader {
+            len: 0,
+            flags: 0,
+            records: 0,
+            min_tick: 0,
+            max_tick,
+        };
+        let mut map = MAGIC.to_vec();
+        map.push(VERSION);
+        for max_tick in [50, 90, 20, 120] {
+            map.extend_from_slice(&header(max_tick).to_bytes());
+        }
+        let segments = index_segments(&map).unwrap();
+        let reach: Vec<u64> = segments.iter().map(|index| index.reach).collect();
+        assert_eq!(reach, [50, 90, 90, 120]);
+        assert_eq!(segments.partition_point(|index| index.reach < 100), 3);
+    }
+}
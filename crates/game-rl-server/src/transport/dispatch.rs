@@ -0,0 +1,236 @@
+//! Concurrent request dispatch
+//!
+//! Transports read requests in order but handle them concurrently, writing
+//! each response when it completes; clients match responses by JSON-RPC id.
+//! A [`Dispatcher`] decides when a request may run:
+//!
+//! - At most [`ConcurrencyLimits::max_in_flight`] requests are admitted at
+//!   once. The transport stops reading until a slot frees up, so a flood of
+//!   requests is held back by the client's pipe rather than in memory.
+//! - Methods (and individual tools) can be capped separately, e.g. so a burst
+//!   of `sim_step` calls can't starve `resources/read`.
+//! - Tool calls naming the same `AgentId` run one after another in the order
+//!   they were received. Calls for different agents, and everything else,
+//!   are not ordered.
+
+use crate::mcp::Request;
+use std::collections::HashMap;
+use std::sync::Arc;
+use tokio::sync::oneshot::error::TryRecvError;
+use tokio::sync::{OwnedSemaphorePermit, Semaphore, oneshot};
+
+/// Limits on concurrent request handling
+#[derive(Debug, Clone)]
+pub struct ConcurrencyLimits {
+    /// Requests admitted at once across all methods
+    pub max_in_flight: usize,
+    /// Per-method caps, keyed by method (`"resources/read"`) or by tool
+    /// (`"tools/call:sim_step"`); a tool without its own entry falls under
+    /// `"tools/call"`. Methods without an entry are only bound by
+    /// `max_in_flight`.
+    pub per_method: HashMap<String, usize>,
+}
+
+impl Default for ConcurrencyLimits {
+    fn default() -> Self {
+        Self {
+            max_in_flight: 64,
+            per_method: HashMap::from([
+                ("tools/call".to_string(), 32),
+                ("resources/read".to_string(), 8),
+            ]),
+        }
+    }
+}
+
+/// Admits requests according to [`ConcurrencyLimits`]
+///
+/// Owned by the transport's read loop; [`Dispatcher::admit`] must be called in
+/// the order requests are received for per-agent ordering to hold.
+pub(crate) struct Dispatcher {
+    slots: Arc<Semaphore>,
+    max_in_flight: u32,
+    methods: HashMap<String, Arc<Semaphore>>,
+    /// Completion signal of the latest admitted request per agent
+    lanes: HashMap<String, oneshot::Receiver<()>>,
+}
+
+impl Dispatcher {
+    pub(crate) fn new(limits: &ConcurrencyLimits) -> Self {
+        let max_in_flight = limits.max_in_flight.clamp(1, u16::MAX as usize) as u32;
+        Self {
+            slots: Arc::new(Semaphore::new(max_in_flight as usize)),
+            max_in_flight,
+            methods: limits
+                .per_method
+                .iter()
+                .map(|(method, &limit)| (method.clone(), Arc::new(Semaphore::new(limit.max(1)))))
+                .collect(),
+            lanes: HashMap::new(),
+        }
+    }
+
+    /// Wait for a free slot and queue the request behind earlier calls for
+    /// the same agent
+    pub(crate) async fn admit(&mut self, request: &Request) -> Ticket {
+        let slot = self
+            .slots
+            .clone()
+            .acquire_owned()
+            .await
+            .expect("dispatcher semaphore is never closed");
+
+        let tool = tool_name(request);
+        let method = tool
+            .and_then(|tool| self.methods.get(&format!("{}:{}", request.method, tool)))
+            .or_else(|| self.methods.get(&request.method))
+            .cloned();
+
+        let (done, after) = match agent_id(request) {
+            Some(agent_id) => {
+                // Forget agents whose last request has finished
+                self.lanes
+                    .retain(|_, rx| matches!(rx.try_recv(), Err(TryRecvError::Empty)));
+                let (done, rx) = oneshot::channel();
+                (Some(done), self.lanes.insert(agent_id.to_string(), rx))
+            }
+            None => (None, None),
+        };
+
+        Ticket {
+            _slot: slot,
+            method,
+            after,
+            _done: done,
+        }
+    }
+
+    /// Wait until every admitted request has finished
+    pub(crate) async fn drain(&self) {
+        let _ = self.slots.acquire_many(self.max_in_flight).await;
+    }
+}
+
+/// An admitted request; dropping it frees the slot and lets the agent's next
+/// request run
+pub(crate) struct Ticket {
+    _slot: OwnedSemaphorePermit,
+    method: Option<Arc<Semaphore>>,
+    /// Completes when the agent's previous request is done
+    after: Option<oneshot::Receiver<()>>,
+    /// Dropped with the ticket to release the agent's next request
+    _done: Option<oneshot::Sender<()>>,
+}
+
+impl Ticket {
+    /// Wait for the agent's previous request and a method permit; hold the
+    /// returned permit while handling the request
+    pub(crate) async fn ready(&mut self) -> Option<OwnedSemaphorePermit> {
+        if let Some(previous) = &mut self.after {
+            // An error only means the previous request's ticket was dropped
+            let _ = previous.await;
+            self.after = None;
+        }
+        match &self.method {
+            Some(semaphore) => semaphore.clone().acquire_owned().await.ok(),
+            None => None,
+        }
+    }
+}
+
+/// Tool name of a `tools/call` request
+fn tool_name(request: &Request) -> Option<&str> {
+    if request.method != "tools/call" {
+        return None;
+    }
+    request.params.get("name")?.as_str()
+}
+
+/// Agent a `tools/call` request acts on
+fn agent_id(request: &Request) -> Option<&str> {
+    tool_name(request)?;
+    request.params.get("arguments")?.get("AgentId")?.as_str()
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::mcp::RequestId;
+    use std::future::Future;
+    use std::time::Duration;
+    use tokio::time::timeout;
+
+    fn request(id: i64, method: &str, params: serde_json::Value) -> Request {
+        Request {
+            jsonrpc: "2.0".into(),
+            id: RequestId::Number(id),
+            method: method.into(),
+            params,
+        }
+    }
+
+    fn tool_call(id: i64, tool: &str, agent_id: &str) -> Request {
+        let params = serde_json::json!({
+            "name": tool,
+            "arguments": { "AgentId": agent_id }
+        });
+        request(id, "tools/call", params)
+    }
+
+    async fn completes<F: Future>(future: F) -> bool {
+        timeout(Duration::from_millis(20), future).await.is_ok()
+    }
+
+    #[tokio::test]
+    async fn test_same_agent_runs_in_order() {
+        let mut dispatcher = Dispatcher::new(&ConcurrencyLimits::default());
+        let mut first = dispatcher.admit(&tool_call(1, "sim_step", "a")).await;
+        let mut second = dispatcher.admit(&tool_call(2, "sim_step", "a")).await;
+        let mut other = dispatcher.admit(&tool_call(3, "sim_step", "b")).await;
+
+        assert!(completes(first.ready()).await);
+        assert!(completes(other.ready()).await);
+        assert!(!completes(second.ready()).await);
+
+        drop(first);
+        assert!(completes(second.ready()).await);
+    }
+
+    #[tokio::test]
+    async fn test_per_tool_limit() {
+        let limits = ConcurrencyLimits {
+            max_in_flight: 8,
+            per_method: HashMap::from([("tools/call:sim_step".to_string(), 1)]),
+        };
+        let mut dispatcher = Dispatcher::new(&limits);
+        let mut first = dispatcher.admit(&tool_call(1, "sim_step", "a")).await;
+        let mut second = dispatcher.admit(&tool_call(2, "sim_step", "b")).await;
+        let list = request(3, "tools/list", serde_json::Value::Null);
+        let mut list = dispatcher.admit(&list).await;
+
+        let permit = first.ready().await;
+        assert!(permit.is_some());
+        assert!(!completes(second.ready()).await);
+        assert!(completes(list.ready()).await);
+
+        drop(permit);
+        assert!(completes(second.ready()).await);
+    }
+
+    #[tokio::test]
+    async fn test_max_in_flight_and_drain() {
+        let limits = ConcurrencyLimits {
+            max_in_flight: 1,
+            per_method: HashMap::new(),
+        };
+        let mut dispatcher = Dispatcher::new(&limits);
+        let list = request(1, "tools/list", serde_json::Value::Null);
+        let ticket = dispatcher.admit(&list).await;
+
+        assert!(!completes(dispatcher.admit(&list)).await);
+        assert!(!completes(dispatcher.drain()).await);
+
+        drop(ticket);
+        assert!(completes(dispatcher.drain()).await);
+    }
+}
@@ -1,3 +1,9 @@
 //! Transport layer for Game-RL MCP server
 
+pub mod dispatch;
+pub(crate) mod ownership;
+pub(crate) mod session;
+pub mod socket;
 pub mod stdio;
+
+pub use dispatch::ConcurrencyLimits;
@@ -0,0 +1,141 @@
+//! Agent ownership across sessions
+//!
+//! An agent belongs to the session that registered it. Other sessions sharing
+//! the game can't act for it, reconfigure it or deregister it, and it is
+//! deregistered when its session ends so a departed client doesn't hold a
+//! slot (or a lockstep round) forever.
+//!
+//! Tools that act for every agent at once ([`ENVIRONMENT_WIDE_TOOLS`]) are
+//! only open to a session that owns every registered agent: one client
+//! can't end the others' episodes or replay actions for their agents.
+
+use game_rl_core::{AgentId, GameRLError, Result};
+use std::collections::HashMap;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Mutex, MutexGuard, PoisonError};
+
+/// Identifies one MCP session for as long as the server runs
+pub(crate) type SessionId = u64;
+
+/// Tools that act for every registered agent: `reset` starts everyone's
+/// episode over and `load_trajectory` replays actions for the agents in a
+/// recording
+pub(crate) const ENVIRONMENT_WIDE_TOOLS: &[&str] = &["reset", "load_trajectory"];
+
+/// Which session owns each registered agent
+#[derive(Default)]
+pub(crate) struct Owners {
+    sessions: AtomicU64,
+    agents: Mutex<HashMap<AgentId, SessionId>>,
+}
+
+impl Owners {
+    /// Number a new session
+    pub(crate) fn open_session(&self) -> SessionId {
+        self.sessions.fetch_add(1, Ordering::Relaxed) + 1
+    }
+
+    /// Claim `agent_id` for `session`, returning whether it was unowned
+    /// before (and so should be released if registration fails)
+    pub(crate) fn claim(&self, session: SessionId, agent_id: &str) -> Result<bool> {
+        let mut agents = self.lock();
+        match agents.get(agent_id) {
+            Some(&owner) if owner == session => Ok(false),
+            Some(_) => Err(owned_elsewhere(agent_id)),
+            None => {
+                agents.insert(agent_id.to_string(), session);
+                Ok(true)
+            }
+        }
+    }
+
+    /// Fail unless `agent_id` is unowned or owned by `session`
+    ///
+    /// Unowned agents are left to the tool, which reports them as not
+    /// registered.
+    pub(crate) fn check(&self, session: SessionId, agent_id: &str) -> Result<()> {
+        match self.lock().get(agent_id) {
+            Some(&owner) if owner != session => Err(owned_elsewhere(agent_id)),
+            _ => Ok(()),
+        }
+    }
+
+    /// Fail if another session owns any agent
+    pub(crate) fn check_all(&self, session: SessionId) -> Result<()> {
+        match self.lock().iter().find(|(_, owner)| **owner != session) {
+            Some((agent_id, _)) => Err(GameRLError::AgentNotRegistered(format!(
+                "{} (registered by another client; this tool acts for every agent)",
+                agent_id
+            ))),
+            None => Ok(()),
+        }
+    }
+
+    /// Forget the owner of `agent_id`
+    pub(crate) fn release(&self, agent_id: &str) {
+        self.lock().remove(agent_id);
+    }
+
+    /// Forget every agent owned by `session`, returning them
+    pub(crate) fn release_session(&self, session: SessionId) -> Vec<AgentId> {
+        let mut released = Vec::new();
+        self.lock().retain(|agent_id, owner| {
+            if *owner == session {
+                released.push(agent_id.clone());
+            }
+            *owner != session
+        });
+        released
+    }
+
+    fn lock(&self) -> MutexGuard<'_, HashMap<AgentId, SessionId>> {
+        self.agents.lock().unwrap_or_else(PoisonError::into_inner)
+    }
+}
+
+fn owned_elsewhere(agent_id: &str) -> GameRLError {
+    GameRLError::AgentNotRegistered(format!("{} (registered by another client)", agent_id))
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_agents_belong_to_registering_session() {
+        let owners = Owners::default();
+        let first = owners.open_session();
+        let second = owners.open_session();
+
+        assert!(owners.claim(first, "a").unwrap());
+        assert!(!owners.claim(first, "a").unwrap());
+        assert!(owners.claim(second, "a").is_err());
+        assert!(owners.check(first, "a").is_ok());
+        assert!(owners.check(second, "a").is_err());
+        // Unowned agents are the tool's business
+        assert!(owners.check(second, "b").is_ok());
+
+        assert!(owners.claim(second, "b").unwrap());
+        assert_eq!(owners.release_session(first), ["a"]);
+        assert!(owners.claim(second, "a").unwrap());
+    }
+
+    #[test]
+    fn test_environment_wide_tools_need_every_agent() {
+        let owners = Owners::default();
+        let first = owners.open_session();
+        let second = owners.open_session();
+
+        // Nobody else is playing
+        assert!(owners.check_all(first).is_ok());
+        owners.claim(first, "a").unwrap();
+        assert!(owners.check_all(first).is_ok());
+
+        owners.claim(second, "b").unwrap();
+        assert!(owners.check_all(first).is_err());
+        assert!(owners.check_all(second).is_err());
+
+        owners.release("b");
+        assert!(owners.check_all(first).is_ok());
+    }
+}
@@ -0,0 +1,705 @@
+//! One MCP session over a pair of byte streams
+//!
+//! Every transport funnels into [`serve`]: stdio runs a single session, the
+//! socket listeners run one per accepted connection against the same server.
+
+use crate::GameRLServer;
+use crate::environment::StateUpdate;
+use crate::mcp::{
+    EVENT_FILTER, EventFilter, InitializeParams, InitializeResult, Notification, Request,
+    RequestId, ResourcesCapability, Response, STRUCTURED_CONTENT, ServerCapabilities, ServerInfo,
+    ToolsCapability,
+};
+use crate::tools::{ResultFormat, handle_tool_call, list_tools};
+use crate::transport::dispatch::Dispatcher;
+use crate::transport::ownership::{ENVIRONMENT_WIDE_TOOLS, SessionId};
+use game_rl_core::{GameRLError, Result, error_codes};
+use std::sync::{Arc, PoisonError};
+use tokio::io::{AsyncBufReadExt, AsyncRead, AsyncWrite, AsyncWriteExt, BufReader};
+use tokio::sync::broadcast::error::TryRecvError;
+use tokio::sync::{Mutex, broadcast, watch};
+use tokio::task::JoinHandle;
+use tracing::{debug, error, info, warn};
+
+/// Prefix of `game://trajectory?path=<file>&start=<n>&count=<n>` reads
+const TRAJECTORY_URI: &str = "game://trajectory?";
+
+/// Records returned by one trajectory read when `count` is omitted
+const TRAJECTORY_DEFAULT_COUNT: usize = 100;
+
+/// Most records returned by one trajectory read
+const TRAJECTORY_MAX_COUNT: usize = 1000;
+
+/// Serve MCP JSON-RPC lines from `reader` until EOF, answering on `writer`
+///
+/// Requests are handled concurrently (see [`super::dispatch`]) and each
+/// response is written as soon as it is ready, so responses can arrive out of
+/// order; clients match them by id. The session has its own event
+/// subscription, event filter and result format, and owns the agents it
+/// registers (see [`super::ownership`]). The environment outlives it; the
+/// session's agents are deregistered when it ends.
+pub(crate) async fn serve<R, W>(server: Arc<GameRLServer>, reader: R, writer: W) -> Result<()>
+where
+    R: AsyncRead + Unpin,
+    W: AsyncWrite + Unpin + Send + 'static,
+{
+    let session = server.owners.open_session();
+    let writer = Arc::new(Mutex::new(writer));
+    // Settled by initialize; until then every event is forwarded
+    let (filter, filter_rx) = watch::channel(EventFilter::default());
+
+    let result = match forward_events(&server, &writer, filter_rx).await {
+        Ok(_events) => read_requests(&server, session, reader, &writer, &filter).await,
+        Err(e) => Err(e),
+    };
+
+    release_agents(&server, session).await;
+    result
+}
+
+/// Handle requests until EOF; in-flight requests have answered on return
+async fn read_requests<R, W>(
+    server: &Arc<GameRLServer>,
+    session: SessionId,
+    reader: R,
+    writer: &Arc<Mutex<W>>,
+    filter: &watch::Sender<EventFilter>,
+) -> Result<()>
+where
+    R: AsyncRead + Unpin,
+    W: AsyncWrite + Unpin + Send + 'static,
+{
+    let mut dispatcher = Dispatcher::new(&server.limits);
+    let mut reader = BufReader::new(reader);
+    let mut line = String::new();
+    // Settled by initialize; tool calls before it get plain text results
+    let mut format = ResultFormat::Text;
+
+    loop {
+        line.clear();
+        let bytes_read = match reader.read_line(&mut line).await {
+            Ok(bytes_read) => bytes_read,
+            Err(e) => {
+                dispatcher.drain().await;
+                return Err(GameRLError::IpcError(format!("Failed to read request: {}", e)));
+            }
+        };
+
+        if bytes_read == 0 {
+            // EOF - client disconnected
+            info!("Client disconnected (EOF)");
+            break;
+        }
+
+        let trimmed = line.trim();
+        if trimmed.is_empty() {
+            continue;
+        }
+
+        debug!("Received: {}", trimmed);
+
+        let request: Request = match serde_json::from_str(trimmed) {
+            Ok(r) => r,
+            Err(e) => {
+                error!("Failed to parse request: {}", e);
+                continue;
+            }
+        };
+
+        // Everything else depends on the handshake, so it completes before
+        // the next line is read
+        if request.method == "initialize" {
+            let (response, negotiated) = handle_initialize(&request, server);
+            format = negotiated;
+            filter.send_replace(initialize_filter(&request));
+            write_response(writer, &response).await?;
+            continue;
+        }
+
+        let mut ticket = dispatcher.admit(&request).await;
+        let server = server.clone();
+        let writer = writer.clone();
+        tokio::spawn(async move {
+            let _permit = ticket.ready().await;
+            let response = handle_request(&request, &server, session, format).await;
+            if let Err(e) = write_response(&writer, &response).await {
+                error!("{}", e);
+            }
+            drop(ticket);
+        });
+    }
+
+    // Let in-flight requests answer before the session goes away
+    dispatcher.drain().await;
+
+    Ok(())
+}
+
+/// Deregister the agents a finished session left registered
+///
+/// Other sessions keep playing; the slots and any lockstep round stop
+/// waiting for this client.
+async fn release_agents(server: &GameRLServer, session: SessionId) {
+    for agent_id in server.owners.release_session(session) {
+        info!("Deregistering {} with its session", agent_id);
+        let response = handle_tool_call(
+            "deregister_agent",
+            serde_json::json!({ "AgentId": &agent_id }),
+            RequestId::Number(0),
+            ResultFormat::Text,
+            server,
+        )
+        .await;
+        if let Some(error) = response.error {
+            warn!("Failed to deregister {}: {}", agent_id, error.message);
+        }
+    }
+}
+
+/// Event forwarder of one session, stopped when the session ends
+struct EventForwarder(Option<JoinHandle<()>>);
+
+impl Drop for EventForwarder {
+    fn drop(&mut self) {
+        if let Some(task) = self.0.take() {
+            task.abort();
+        }
+    }
+}
+
+/// Subscribe this session to pushed events and forward the ones passing
+/// `filter` to `writer`
+///
+/// Coalesced when the environment supports it, see
+/// `EnvironmentHandle::subscribe`.
+async fn forward_events<W>(
+    server: &GameRLServer,
+    writer: &Arc<Mutex<W>>,
+    filter: watch::Receiver<EventFilter>,
+) -> Result<EventForwarder>
+where
+    W: AsyncWrite + Unpin + Send + 'static,
+{
+    let subscription = server.environment.subscribe().await?;
+    let writer = writer.clone();
+    let task = match (subscription.coalesced, subscription.events) {
+        (Some(mut rx), _) => Some(tokio::spawn(async move {
+            while let Some(update) = rx.recv().await {
+                if update.dropped_events > 0 {
+                    warn!("Event forwarder fell behind, dropped {} events", update.dropped_events);
+                }
+                let Some(events) = filter.borrow().apply(&update.events) else {
+                    continue;
+                };
+                let notification = Notification::coalesced_state_update(
+                    update.tick,
+                    &update.state,
+                    &events,
+                    update.dropped_events,
+                );
+                let event_count = events.len();
+                if !write_notification(&writer, &notification, event_count).await {
+                    break;
+                }
+            }
+            debug!("Event channel closed");
+        })),
+        (None, Some(mut rx)) => Some(tokio::spawn(async move {
+            loop {
+                match rx.recv().await {
+                    Ok(update) => {
+                        let update = catch_up(&mut rx, update);
+                        let Some(events) = filter.borrow().apply(&update.events) else {
+                            continue;
+                        };
+                        let notification =
+                            Notification::state_update(update.tick, &update.state, &events);
+                        let event_count = events.len();
+                        if !write_notification(&writer, &notification, event_count).await {
+                            break;
+                        }
+                    }
+                    Err(tokio::sync::broadcast::error::RecvError::Closed) => {
+                        debug!("Event channel closed");
+                        break;
+                    }
+                    Err(tokio::sync::broadcast::error::RecvError::Lagged(n)) => {
+                        warn!("Event forwarder lagged, missed {} events", n);
+                    }
+                }
+            }
+        })),
+        (None, None) => None,
+    };
+    Ok(EventForwarder(task))
+}
+
+/// Skip to the newest update already queued behind `update`, keeping the
+/// skipped updates' events
+///
+/// A client that falls behind a live game gets the current state next
+/// instead of working through stale ones.
+fn catch_up(rx: &mut broadcast::Receiver<StateUpdate>, mut update: StateUpdate) -> StateUpdate {
+    let mut skipped = 0;
+    loop {
+        match rx.try_recv() {
+            Ok(mut next) => {
+                update.events.append(&mut next.events);
+                next.events = update.events;
+                update = next;
+                skipped += 1;
+            }
+            Err(TryRecvError::Lagged(n)) => {
+                warn!("Event forwarder lagged, missed {} events", n);
+            }
+            Err(TryRecvError::Empty | TryRecvError::Closed) => break,
+        }
+    }
+    if skipped > 0 {
+        debug!("Skipped {} stale state updates", skipped);
+    }
+    update
+}
+
+/// Write one JSON line and flush it
+async fn write_line<W: AsyncWrite + Unpin>(
+    writer: &Mutex<W>,
+    json: &str,
+) -> std::io::Result<()> {
+    let mut out = writer.lock().await;
+    out.write_all(json.as_bytes()).await?;
+    out.write_all(b"\n").await?;
+    out.flush().await
+}
+
+/// Write a response line
+async fn write_response<W: AsyncWrite + Unpin>(
+    writer: &Mutex<W>,
+    response: &Response,
+) -> Result<()> {
+    let response_json = serde_json::to_string(response)
+        .map_err(|e| game_rl_core::GameRLError::SerializationError(e.to_string()))?;
+
+    debug!("Sending: {}", response_json);
+
+    write_line(writer, &response_json).await.map_err(|e| {
+        game_rl_core::GameRLError::IpcError(format!("Failed to write response: {}", e))
+    })
+}
+
+/// Write one notification line
+///
+/// Returns false once the writer can no longer be written.
+async fn write_notification<W: AsyncWrite + Unpin>(
+    writer: &Mutex<W>,
+    notification: &Notification,
+    event_count: usize,
+) -> bool {
+    let json = match serde_json::to_string(notification) {
+        Ok(json) => json,
+        Err(e) => {
+            warn!("Failed to serialize notification: {}", e);
+            return true;
+        }
+    };
+
+    if let Err(e) = write_line(writer, &json).await {
+        error!("Failed to write event notification: {}", e);
+        return false;
+    }
+    debug!("Sent event notification: {} events", event_count);
+    true
+}
+
+async fn handle_request(
+    request: &Request,
+    server: &GameRLServer,
+    session: SessionId,
+    format: ResultFormat,
+) -> Response {
+    match request.method.as_str() {
+        "initialize" => handle_initialize(request, server).0,
+        "initialized" => {
+            // Notification, no response needed but we return success
+            Response::success(request.id.clone(), serde_json::json!({}))
+        }
+        "tools/list" => handle_tools_list(request),
+        "tools/call" => handle_tools_call(request, server, session, format).await,
+        "resources/list" => handle_resources_list(request, server),
+        "resources/read" => handle_resources_read(request, server).await,
+        _ => Response::error(
+            request.id.clone(),
+            -32601,
+            format!("Method not found: {}", request.method),
+        ),
+    }
+}
+
+/// Answer initialize and settle how tool results are returned
+fn handle_initialize(request: &Request, server: &GameRLServer) -> (Response, ResultFormat) {
+    let params: InitializeParams = match serde_json::from_value(request.params.clone()) {
+        Ok(p) => p,
+        Err(e) => {
+            let response = Response::error(
+                request.id.clone(),
+                -32602,
+                format!("Invalid initialize params: {}", e),
+            );
+            return (response, ResultFormat::Text);
+        }
+    };
+    let format = if params.capabilities.structured_content() {
+        ResultFormat::Structured
+    } else {
+        ResultFormat::Text
+    };
+
+    let result = InitializeResult {
+        protocol_version: "2025-11-25".to_string(),
+        capabilities: ServerCapabilities {
+            tools: ToolsCapability {
+                list_changed: false,
+            },
+            resources: ResourcesCapability {
+                subscribe: true,
+                list_changed: false,
+            },
+            logging: serde_json::json!({}),
+            experimental: serde_json::json!({ STRUCTURED_CONTENT: {}, EVENT_FILTER: {} }),
+        },
+        server_info: ServerInfo {
+            name: server.manifest.name.clone(),
+            version: server.manifest.version.clone(),
+            game_rl_version: server.manifest.game_rl_version.clone(),
+        },
+    };
+
+    let response = Response::success(request.id.clone(), serde_json::to_value(result).unwrap());
+    (response, format)
+}
+
+/// Event filter a client asked for in initialize
+fn initialize_filter(request: &Request) -> EventFilter {
+    serde_json::from_value::<InitializeParams>(request.params.clone())
+        .map(|params| params.capabilities.event_filter())
+        .unwrap_or_default()
+}
+
+fn handle_tools_list(request: &Request) -> Response {
+    let tools = list_tools();
+    Response::success(request.id.clone(), serde_json::json!({ "tools": tools }))
+}
+
+async fn handle_tools_call(
+    request: &Request,
+    server: &GameRLServer,
+    session: SessionId,
+    format: ResultFormat,
+) -> Response {
+    #[derive(serde::Deserialize)]
+    struct ToolCallParams {
+        name: String,
+        #[serde(default)]
+        arguments: serde_json::Value,
+    }
+
+    let params: ToolCallParams = match serde_json::from_value(request.params.clone()) {
+        Ok(p) => p,
+        Err(e) => {
+            return Response::error(
+                request.id.clone(),
+                -32602,
+                format!("Invalid tool call params: {}", e),
+            );
+        }
+    };
+
+    // Only the session that registered an agent may act for it
+    let agents: Vec<String> = named_agents(&params.arguments)
+        .map(str::to_string)
+        .collect();
+    let claimed = if params.name == "register_agent" {
+        agents
+            .first()
+            .map(|agent_id| server.owners.claim(session, agent_id))
+            .transpose()
+    } else if ENVIRONMENT_WIDE_TOOLS.contains(&params.name.as_str()) {
+        server.owners.check_all(session).map(|()| None)
+    } else {
+        agents
+            .iter()
+            .try_for_each(|agent_id| server.owners.check(session, agent_id))
+            .map(|()| None)
+    };
+    let claimed = match claimed {
+        Ok(claimed) => claimed,
+        Err(e) => {
+            let code = error_codes::AGENT_NOT_REGISTERED;
+            return Response::error(request.id.clone(), code, e.to_string());
+        }
+    };
+
+    let response = handle_tool_call(
+        &params.name,
+        params.arguments,
+        request.id.clone(),
+        format,
+        server,
+    )
+    .await;
+
+    let failed = response.error.is_some();
+    let released = match params.name.as_str() {
+        "register_agent" => failed && claimed == Some(true),
+        "deregister_agent" => !failed,
+        _ => false,
+    };
+    if released {
+        for agent_id in &agents {
+            server.owners.release(agent_id);
+        }
+    }
+    response
+}
+
+/// Agents a tool call acts for: its `AgentId`, and those of its `Steps`
+/// (sim_step_batch)
+fn named_agents(arguments: &serde_json::Value) -> impl Iterator<Item = &str> {
+    let steps = arguments
+        .get("Steps")
+        .and_then(serde_json::Value::as_array)
+        .into_iter()
+        .flatten()
+        .filter_map(|step| step.get("AgentId")?.as_str());
+    arguments
+        .get("AgentId")
+        .and_then(serde_json::Value::as_str)
+        .into_iter()
+        .chain(steps)
+}
+
+fn handle_resources_list(request: &Request, _server: &GameRLServer) -> Response {
+    let resources = vec![
+        serde_json::json!({
+            "uri": "game://manifest",
+            "name": "Game Manifest",
+            "description": "Environment capabilities and configuration",
+            "mimeType": "application/json"
+        }),
+        serde_json::json!({
+            "uri": "game://agents",
+            "name": "Agent Registry",
+            "description": "Currently registered agents",
+            "mimeType": "application/json"
+        }),
+        serde_json::json!({
+            "uri": "game://metrics",
+            "name": "Bridge Metrics",
+            "description": "Message counts, bytes and latency between server and game",
+            "mimeType": "application/json"
+        }),
+        serde_json::json!({
+            "uri": "game://trajectory",
+            "name": "Trajectory Steps",
+            "description": "Recorded steps from a save_trajectory file: \
+                game://trajectory?path=<file>&start=<step>&count=<n> \
+                (or tick=<tick> instead of start), path relative to the \
+                trajectory directory; at most 1000 steps per read",
+            "mimeType": "application/json"
+        }),
+    ];
+
+    Response::success(
+        request.id.clone(),
+        serde_json::json!({ "resources": resources }),
+    )
+}
+
+async fn handle_resources_read(request: &Request, server: &GameRLServer) -> Response {
+    #[derive(serde::Deserialize)]
+    struct ReadParams {
+        uri: String,
+    }
+
+    let params: ReadParams = match serde_json::from_value(request.params.clone()) {
+        Ok(p) => p,
+        Err(e) => {
+            return Response::error(
+                request.id.clone(),
+                -32602,
+                format!("Invalid read params: {}", e),
+            );
+        }
+    };
+
+    let content = match params.uri.as_str() {
+        "game://manifest" => serde_json::to_value(&server.manifest).unwrap(),
+        "game://agents" => {
+            // The registry lock is never held across environment calls
+            let registry = server.registry.read().await;
+            serde_json::json!({
+                "agents": registry.list(),
+                "clock_mode": server.environment.clock_mode(),
+                "limits": {
+                    "max_agents": server.manifest.capabilities.max_agents,
+                    "available_slots": registry.available_slots()
+                }
+            })
+        }
+        "game://metrics" => server
+            .environment
+            .metrics()
+            .unwrap_or_else(|| serde_json::json!({})),
+        uri if uri.starts_with(TRAJECTORY_URI) => {
+            match read_trajectory_steps(server, &uri[TRAJECTORY_URI.len()..]).await {
+                Ok(content) => content,
+                Err(e) => return Response::error(request.id.clone(), -32602, e.to_string()),
+            }
+        }
+        _ => {
+            return Response::error(
+                request.id.clone(),
+                -32602,
+                format!("Unknown resource: {}", params.uri),
+            );
+        }
+    };
+
+    Response::success(
+        request.id.clone(),
+        serde_json::json!({
+            "contents": [{
+                "uri": params.uri,
+                "mimeType": "application/json",
+                "text": content.to_string()
+            }]
+        }),
+    )
+}
+
+/// Read a range of recorded steps for a `game://trajectory` query
+///
+/// The file is mapped and only the segments covering the range are decoded,
+/// so reading the tail of a long recording costs the same as reading its head.
+/// Readers stay open between reads, so paging through a file doesn't index it
+/// again each time.
+async fn read_trajectory_steps(server: &GameRLServer, query: &str) -> Result<serde_json::Value> {
+    let mut path = None;
+    let mut start = None;
+    let mut tick = None;
+    let mut count = TRAJECTORY_DEFAULT_COUNT;
+    for pair in query.split('&').filter(|pair| !pair.is_empty()) {
+        let (key, value) = pair.split_once('=').unwrap_or((pair, ""));
+        let value = percent_decode(value)?;
+        match key {
+            "path" => path = Some(value),
+            "start" => start = Some(parse_query_number(key, &value)?),
+            "tick" => tick = Some(parse_query_number(key, &value)?),
+            "count" => count = parse_query_number(key, &value)? as usize,
+            _ => {
+                return Err(GameRLError::ProtocolError(format!(
+                    "Unknown trajectory query parameter: {}",
+                    key
+                )));
+            }
+        }
+    }
+    let path = path
+        .ok_or_else(|| GameRLError::ProtocolError("Trajectory query needs a path".into()))?;
+    if start.is_some() && tick.is_some() {
+        return Err(GameRLError::ProtocolError(
+            "Trajectory query takes start or tick, not both".into(),
+        ));
+    }
+    let count = count.min(TRAJECTORY_MAX_COUNT);
+    let file = server.trajectories.resolve(&path)?;
+    let readers = server.readers.clone();
+
+    tokio::task::spawn_blocking(move || -> Result<serde_json::Value> {
+        let reader = readers.open(&file)?;
+        let mut reader = reader.lock().unwrap_or_else(PoisonError::into_inner);
+        let start = match tick {
+            Some(tick) => reader.seek_tick(tick)?.unwrap_or(reader.len()),
+            None => start.unwrap_or(0),
+        };
+        let records = reader.range(start, count)?;
+        Ok(serde_json::json!({
+            "path": path,
+            "start": start,
+            "total": reader.len(),
+            "records": records
+        }))
+    })
+    .await
+    .map_err(|e| GameRLError::GameError(e.to_string()))?
+}
+
+fn parse_query_number(key: &str, value: &str) -> Result<u64> {
+    value.parse().map_err(|_| {
+        GameRLError::ProtocolError(format!("Trajectory query {} is not a number: {}", key, value))
+    })
+}
+
+/// Decode `%XX` escapes in a query value
+///
+/// `+` is left alone: paths may contain it and resource URIs are not forms.
+fn percent_decode(value: &str) -> Result<String> {
+    let invalid = || GameRLError::ProtocolError(format!("Invalid escape in query: {}", value));
+    let bytes = value.as_bytes();
+    let mut decoded = Vec::with_capacity(bytes.len());
+    let mut i = 0;
+    while i < bytes.len() {
+        if bytes[i] == b'%' {
+            let hex = value.get(i + 1..i + 3).ok_or_else(invalid)?;
+            decoded.push(u8::from_str_radix(hex, 16).map_err(|_| invalid())?);
+            i += 3;
+        } else {
+            decoded.push(bytes[i]);
+            i += 1;
+        }
+    }
+    String::from_utf8(decoded).map_err(|_| invalid())
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::test_support::TestEnvironment;
+    use game_rl_core::GameManifest;
+
+    fn initialize(experimental: serde_json::Value) -> Request {
+        serde_json::from_value(serde_json::json!({
+            "jsonrpc": "2.0",
+            "id": 1,
+            "method": "initialize",
+            "params": {
+                "protocolVersion": "2025-11-25",
+                "capabilities": { "experimental": experimental },
+                "clientInfo": { "name": "test", "version": "0" }
+            }
+        }))
+        .unwrap()
+    }
+
+    #[tokio::test]
+    async fn test_event_filter_negotiation() {
+        let server = GameRLServer::new(TestEnvironment::default(), GameManifest::default());
+        let request = initialize(serde_json::json!({
+            EVENT_FILTER: { "eventTypes": ["Raid"], "eventsOnly": true }
+        }));
+
+        // The server advertises the filter and the session adopts the client's
+        let (response, _) = handle_initialize(&request, &server);
+        let response = serde_json::to_value(response).unwrap();
+        let experimental = &response["result"]["capabilities"]["experimental"];
+        assert!(experimental.get(EVENT_FILTER).is_some());
+        let filter = initialize_filter(&request);
+        assert_eq!(filter.event_types, ["Raid"]);
+        assert!(filter.events_only);
+
+        // Clients that don't ask get every event
+        let filter = initialize_filter(&initialize(serde_json::json!({})));
+        assert!(filter.event_types.is_empty());
+        assert!(!filter.events_only);
+    }
+}
@@ -0,0 +1,358 @@
+//! Socket listeners for MCP JSON-RPC
+//!
+//! Each accepted connection is its own MCP session (see [`session::serve`])
+//! with its own event subscription and filter, result format and concurrency
+//! limits, so several trainers and evaluators can attach to one game without
+//! sharing an output stream. Sessions share the environment and agent
+//! registry, but an agent can only be driven by the connection that
+//! registered it and is deregistered when that connection closes.
+//!
+//! Clients that can only spawn a process and talk stdio (desktop MCP hosts)
+//! reach a listener through the connector: [`attach_tcp`] / [`attach_unix`]
+//! copy stdio to the socket and back.
+
+use crate::GameRLServer;
+use crate::transport::session;
+use game_rl_core::{GameRLError, Result};
+use std::future::Future;
+use std::sync::Arc;
+use std::time::Duration;
+use tokio::io::{AsyncRead, AsyncWrite, AsyncWriteExt};
+use tokio::net::{TcpListener, TcpStream};
+use tracing::{error, info, warn};
+
+#[cfg(unix)]
+use std::path::Path;
+#[cfg(unix)]
+use tokio::net::{UnixListener, UnixStream};
+
+/// Pause after a failed accept (e.g. out of file descriptors) before retrying
+const ACCEPT_BACKOFF: Duration = Duration::from_millis(100);
+
+/// Run the MCP server on a TCP listener
+///
+/// Serves connections until Ctrl-C, then shuts the environment down.
+pub async fn run_tcp(server: GameRLServer, addr: &str) -> Result<()> {
+    let listener = TcpListener::bind(addr)
+        .await
+        .map_err(|e| GameRLError::IpcError(format!("Failed to bind {}: {}", addr, e)))?;
+    info!("Game-RL MCP server listening on tcp://{}", addr);
+
+    let server = Arc::new(server);
+    serve_until_interrupted(&server, accept_tcp(server.clone(), listener)).await
+}
+
+/// Run the MCP server on a Unix domain socket
+///
+/// A socket file left behind by an earlier run is replaced; the file is
+/// removed again once Ctrl-C stops the server.
+#[cfg(unix)]
+pub async fn run_unix(server: GameRLServer, path: impl AsRef<Path>) -> Result<()> {
+    use std::os::unix::fs::FileTypeExt;
+
+    let path = path.as_ref();
+    if let Ok(metadata) = std::fs::symlink_metadata(path) {
+        if !metadata.file_type().is_socket() {
+            return Err(GameRLError::IpcError(format!(
+                "{} exists and is not a socket",
+                path.display()
+            )));
+        }
+        std::fs::remove_file(path).map_err(|e| {
+            GameRLError::IpcError(format!("Failed to remove {}: {}", path.display(), e))
+        })?;
+    }
+    let listener = UnixListener::bind(path)
+        .map_err(|e| GameRLError::IpcError(format!("Failed to bind {}: {}", path.display(), e)))?;
+    info!("Game-RL MCP server listening on unix://{}", path.display());
+
+    let server = Arc::new(server);
+    let result = serve_until_interrupted(&server, accept_unix(server.clone(), listener)).await;
+    let _ = std::fs::remove_file(path);
+    result
+}
+
+/// Connect stdio to the MCP listener at a TCP address
+///
+/// Returns once the server closes the connection, which it does after
+/// answering everything sent before stdin closed.
+pub async fn attach_tcp(addr: &str) -> Result<()> {
+    let stream = TcpStream::connect(addr)
+        .await
+        .map_err(|e| GameRLError::IpcError(format!("Failed to connect to {}: {}", addr, e)))?;
+    let _ = stream.set_nodelay(true);
+    info!("Attached to tcp://{}", addr);
+    proxy_stdio(stream).await
+}
+
+/// Connect stdio to the MCP listener on a Unix domain socket
+///
+/// Returns once the server closes the connection, which it does after
+/// answering everything sent before stdin closed.
+#[cfg(unix)]
+pub async fn attach_unix(path: impl AsRef<Path>) -> Result<()> {
+    let path = path.as_ref();
+    let stream = UnixStream::connect(path).await.map_err(|e| {
+        GameRLError::IpcError(format!("Failed to connect to {}: {}", path.display(), e))
+    })?;
+    info!("Attached to unix://{}", path.display());
+    proxy_stdio(stream).await
+}
+
+/// Copy stdin to `stream` and `stream` to stdout
+async fn proxy_stdio<S>(stream: S) -> Result<()>
+where
+    S: AsyncRead + AsyncWrite,
+{
+    let (mut from_server, mut to_server) = tokio::io::split(stream);
+    let mut stdin = tokio::io::stdin();
+    let mut stdout = tokio::io::stdout();
+
+    let upstream = async {
+        tokio::io::copy(&mut stdin, &mut to_server).await?;
+        // The server sees EOF, answers what's in flight, releases this
+        // client's agents and closes; keep reading until then
+        to_server.shutdown().await?;
+        std::future::pending::<std::io::Result<()>>().await
+    };
+    let downstream = async {
+        tokio::io::copy(&mut from_server, &mut stdout).await?;
+        stdout.flush().await
+    };
+
+    let result = tokio::select! {
+        result = upstream => result,
+        result = downstream => result,
+    };
+    result.map_err(|e| GameRLError::IpcError(format!("Connector stopped: {}", e)))
+}
+
+/// Accept connections until `accept` ends or Ctrl-C, then shut the
+/// environment down
+async fn serve_until_interrupted<F>(server: &GameRLServer, accept: F) -> Result<()>
+where
+    F: Future<Output = ()>,
+{
+    let result = tokio::select! {
+        () = accept => Ok(()),
+        signal = tokio::signal::ctrl_c() => signal.map_err(|e| {
+            GameRLError::IpcError(format!("Failed to listen for Ctrl-C: {}", e))
+        }),
+    };
+
+    info!("Listener stopped, shutting down environment");
+    let _ = server.environment.shutdown().await;
+
+    result
+}
+
+async fn accept_tcp(server: Arc<GameRLServer>, listener: TcpListener) {
+    loop {
+        match listener.accept().await {
+            Ok((stream, peer)) => {
+                // Responses are single lines; don't hold them back for coalescing
+                let _ = stream.set_nodelay(true);
+                let (reader, writer) = stream.into_split();
+                spawn_session(&server, peer.to_string(), reader, writer);
+            }
+            Err(e) => accept_failed(e).await,
+        }
+    }
+}
+
+#[cfg(unix)]
+async fn accept_unix(server: Arc<GameRLServer>, listener: UnixListener) {
+    // Unix peers are usually unnamed, so connections are numbered instead
+    let mut connections = 0u64;
+    loop {
+        match listener.accept().await {
+            Ok((stream, _)) => {
+                connections += 1;
+                let (reader, writer) = stream.into_split();
+                spawn_session(&server, format!("unix#{}", connections), reader, writer);
+            }
+            Err(e) => accept_failed(e).await,
+        }
+    }
+}
+
+/// Serve one connection in its own task
+fn spawn_session<R, W>(server: &Arc<GameRLServer>, peer: String, reader: R, writer: W)
+where
+    R: AsyncRead + Unpin + Send + 'static,
+    W: AsyncWrite + Unpin + Send + 'static,
+{
+    info!("Client connected: {}", peer);
+    let server = server.clone();
+    tokio::spawn(async move {
+        match session::serve(server, reader, writer).await {
+            Ok(()) => info!("Client closed: {}", peer),
+            Err(e) => warn!("Client {} dropped: {}", peer, e),
+        }
+    });
+}
+
+/// Errors such as running out of file descriptors clear up as sessions
+/// close, so back off instead of giving up
+async fn accept_failed(e: std::io::Error) {
+    error!("Failed to accept connection: {}", e);
+    tokio::time::sleep(ACCEPT_BACKOFF).await;
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::test_support::TestEnvironment;
+    use game_rl_core::{GameManifest, error_codes};
+    use std::net::SocketAddr;
+    use tokio::io::{AsyncBufReadExt, AsyncWriteExt, BufReader, Lines};
+    use tokio::net::TcpStream;
+    use tokio::net::tcp::{OwnedReadHalf, OwnedWriteHalf};
+
+    struct Client {
+        lines: Lines<BufReader<OwnedReadHalf>>,
+        writer: OwnedWriteHalf,
+        next_id: i64,
+    }
+
+    impl Client {
+        async fn connect(addr: SocketAddr, experimental: serde_json::Value) -> Self {
+            let (reader, writer) = TcpStream::connect(addr).await.unwrap().into_split();
+            let mut client = Self {
+                lines: BufReader::new(reader).lines(),
+                writer,
+                next_id: 0,
+            };
+            let params = serde_json::json!({
+                "protocolVersion": "2025-11-25",
+                "capabilities": { "experimental": experimental },
+                "clientInfo": { "name": "test", "version": "0" }
+            });
+            client.send("initialize", params).await;
+            client
+        }
+
+        async fn send(&mut self, method: &str, params: serde_json::Value) -> serde_json::Value {
+            self.next_id += 1;
+            let request = serde_json::json!({
+                "jsonrpc": "2.0",
+                "id": self.next_id,
+                "method": method,
+                "params": params
+            });
+            let line = format!("{}\n", request);
+            self.writer.write_all(line.as_bytes()).await.unwrap();
+            let response = self.lines.next_line().await.unwrap().unwrap();
+            serde_json::from_str(&response).unwrap()
+        }
+
+        async fn state_hash(&mut self) -> serde_json::Value {
+            let params = serde_json::json!({ "name": "get_state_hash", "arguments": {} });
+            self.send("tools/call", params).await["result"].clone()
+        }
+
+        async fn call(&mut self, name: &str, arguments: serde_json::Value) -> serde_json::Value {
+            let params = serde_json::json!({ "name": name, "arguments": arguments });
+            self.send("tools/call", params).await
+        }
+    }
+
+    #[tokio::test]
+    async fn test_connections_are_separate_sessions() {
+        let server = GameRLServer::new(TestEnvironment::default(), GameManifest::default());
+        let server = Arc::new(server);
+        let listener = TcpListener::bind("127.0.0.1:0").await.unwrap();
+        let addr = listener.local_addr().unwrap();
+        let accept = tokio::spawn(accept_tcp(server, listener));
+
+        let structured = serde_json::json!({ "structuredContent": {} });
+        let mut first = Client::connect(addr, structured).await;
+        let mut second = Client::connect(addr, serde_json::json!({})).await;
+
+        // Each connection keeps the result format it negotiated
+        let result = first.state_hash().await;
+        assert_eq!(result["structuredContent"]["hash"], "0");
+        let result = second.state_hash().await;
+        assert!(result.get("structuredContent").is_none());
+
+        // Closing one connection leaves the other and the environment running
+        drop(first);
+        let result = second.state_hash().await;
+        let text = result["content"][0]["text"].as_str().unwrap();
+        assert_eq!(serde_json::from_str::<serde_json::Value>(text).unwrap()["hash"], "0");
+
+        accept.abort();
+    }
+
+    #[tokio::test]
+    async fn test_agents_belong_to_their_connection() {
+        let server = GameRLServer::new(TestEnvironment::default(), GameManifest::default());
+        let server = Arc::new(server);
+        let listener = TcpListener::bind("127.0.0.1:0").await.unwrap();
+        let addr = listener.local_addr().unwrap();
+        let accept = tokio::spawn(accept_tcp(server, listener));
+
+        let mut owner = Client::connect(addr, serde_json::json!({})).await;
+        let mut other = Client::connect(addr, serde_json::json!({})).await;
+        let agent = serde_json::json!({ "AgentId": "a", "AgentType": "Player" });
+        let step = serde_json::json!({ "AgentId": "a", "Action": { "Type": "Wait" } });
+
+        assert!(owner.call("register_agent", agent.clone()).await.get("error").is_none());
+        let code = error_codes::AGENT_NOT_REGISTERED;
+        assert_eq!(other.call("sim_step", step).await["error"]["code"], code);
+        assert_eq!(other.call("register_agent", agent.clone()).await["error"]["code"], code);
+
+        // Closing the owner's connection deregisters its agent
+        drop(owner);
+        let mut registered = false;
+        for _ in 0..100 {
+            if other.call("register_agent", agent.clone()).await.get("error").is_none() {
+                registered = true;
+                break;
+            }
+            tokio::time::sleep(Duration::from_millis(10)).await;
+        }
+        assert!(registered);
+
+        accept.abort();
+    }
+
+    #[tokio::test]
+    async fn test_environment_wide_tools_need_every_agent() {
+        let mut manifest = GameManifest::default();
+        manifest.capabilities.max_agents = 2;
+        let server = Arc::new(GameRLServer::new(TestEnvironment::default(), manifest));
+        let listener = TcpListener::bind("127.0.0.1:0").await.unwrap();
+        let addr = listener.local_addr().unwrap();
+        let accept = tokio::spawn(accept_tcp(server, listener));
+
+        let mut first = Client::connect(addr, serde_json::json!({})).await;
+        let mut second = Client::connect(addr, serde_json::json!({})).await;
+        let agent = |agent_id| serde_json::json!({ "AgentId": agent_id, "AgentType": "Player" });
+        let replay = serde_json::json!({ "Path": "run.trajectory" });
+
+        first.call("register_agent", agent("a")).await;
+        assert!(first.call("reset", serde_json::json!({})).await.get("error").is_none());
+
+        // Neither client may reset or replay over the other's agent
+        second.call("register_agent", agent("b")).await;
+        let code = error_codes::AGENT_NOT_REGISTERED;
+        assert_eq!(first.call("reset", serde_json::json!({})).await["error"]["code"], code);
+        assert_eq!(second.call("reset", serde_json::json!({})).await["error"]["code"], code);
+        assert_eq!(second.call("load_trajectory", replay).await["error"]["code"], code);
+
+        // Once the other client is gone the environment is the first's again
+        drop(second);
+        let mut reset = false;
+        for _ in 0..100 {
+            if first.call("reset", serde_json::json!({})).await.get("error").is_none() {
+                reset = true;
+                break;
+            }
+            tokio::time::sleep(Duration::from_millis(10)).await;
+        }
+        assert!(reset);
+
+        accept.abort();
+    }
+}
@@ -2,60 +2,114 @@
 
 use async_trait::async_trait;
 #[cfg(unix)]
-use game_bridge::reader_task;
+use game_bridge::AsyncReader;
+#[cfg(unix)]
+use game_bridge::frame::DEFAULT_CHUNK_SIZE;
+use game_bridge::frame::MAX_MESSAGE_LEN;
+#[cfg(target_os = "linux")]
+use game_bridge::shm::{DEFAULT_RING_CAPACITY, SharedMemorySegment};
 #[cfg(unix)]
 use game_bridge::unix::{UnixReadWrapper, UnixWriteWrapper};
-use game_bridge::{AsyncWriter, GameCapabilities, GameMessage, StepResultPayload, serialize};
+use game_bridge::{
+    AgentAction, BridgeMetrics, FrameCompression, GameCapabilities, GameConnection, GameMessage,
+    StepResultPayload, WireEncoding,
+};
 use game_rl_core::{
-    Action, AgentConfig, AgentId, AgentManifest, AgentType, GameManifest, GameRLError, Observation,
-    Result, StepResult, StreamDescriptor,
+    Action, AgentConfig, AgentId, AgentManifest, AgentType, ClockMode, GameManifest, GameRLError,
+    Observation, Result, StepResult, StreamDescriptor,
 };
-use game_rl_server::GameEnvironment;
 use game_rl_server::environment::StateUpdate;
+use game_rl_server::{CoalescedReceiver, EventHub, GameEnvironment};
 use std::collections::HashMap;
-use std::sync::Arc;
-use tokio::sync::{Mutex, broadcast, mpsc, oneshot};
-use tracing::{debug, info, warn};
+use tokio::sync::broadcast;
+use tracing::{info, warn};
 
 /// Bridge to a .NET game via IPC
 pub struct HarmonyBridge {
     /// Path to the socket/pipe
     socket_path: String,
-    /// Writer half of the connection
-    writer: Arc<Mutex<Option<Box<dyn AsyncWriter>>>>,
-    /// Channel to send requests to the reader task
-    request_tx: mpsc::Sender<(GameMessage, oneshot::Sender<Result<GameMessage>>)>,
-    /// Broadcast channel for pushed state updates
-    event_tx: broadcast::Sender<StateUpdate>,
+    /// Active connection (requests are correlated by ID and may overlap)
+    connection: Option<GameConnection>,
+    /// Socket the connection was negotiated on, kept open after frames move
+    /// to shared memory so the game notices when we go away
+    _handshake: Option<GameConnection>,
+    /// Fan-out of pushed state updates
+    events: EventHub,
+    /// Transport counters, kept across reconnects and the move to shared memory
+    metrics: BridgeMetrics,
     /// Game capabilities received during Ready
     capabilities: Option<GameCapabilities>,
+    /// Encoding to request from the game after Ready (JSON unless configured)
+    #[cfg_attr(not(unix), allow(dead_code))]
+    preferred_encoding: WireEncoding,
+    /// Frame compression to request after Ready (off unless configured)
+    #[cfg_attr(not(unix), allow(dead_code))]
+    preferred_compression: Option<FrameCompression>,
+    /// Move frames to shared memory after Ready (off unless configured)
+    #[cfg_attr(not(unix), allow(dead_code))]
+    prefer_shared_memory: bool,
+    /// Largest message accepted from the game once joined from chunks
+    #[cfg_attr(not(unix), allow(dead_code))]
+    max_message_len: usize,
     /// Game name
     game_name: String,
     /// Game version
     game_version: String,
-    /// Background reader task handle
-    _reader_handle: Option<tokio::task::JoinHandle<()>>,
 }
 
 impl HarmonyBridge {
     /// Create a new bridge (not connected yet)
     pub fn new(socket_path: &str) -> Self {
-        // Create channels
-        let (request_tx, _request_rx) = mpsc::channel(16);
-        let (event_tx, _) = broadcast::channel(64);
-
         Self {
             socket_path: socket_path.to_string(),
-            writer: Arc::new(Mutex::new(None)),
-            request_tx,
-            event_tx,
+            connection: None,
+            _handshake: None,
+            events: EventHub::new(64),
+            metrics: BridgeMetrics::new(),
             capabilities: None,
+            preferred_encoding: WireEncoding::Json,
+            preferred_compression: None,
+            prefer_shared_memory: false,
+            max_message_len: MAX_MESSAGE_LEN,
             game_name: "Unknown".into(),
             game_version: "0.0.0".into(),
-            _reader_handle: None,
         }
     }
 
+    /// Prefer a binary wire encoding for this connection.
+    ///
+    /// Takes effect on the next `connect`, and only if the game lists the
+    /// encoding in its Ready capabilities; otherwise JSON is kept.
+    pub fn set_wire_encoding(&mut self, encoding: WireEncoding) {
+        self.preferred_encoding = encoding;
+    }
+
+    /// Compress large frames in both directions.
+    ///
+    /// Worth it when the game runs on another host and bandwidth is the limit;
+    /// on a local socket the CPU cost usually outweighs the savings. Takes
+    /// effect on the next `connect`, and only if the game supports zstd.
+    pub fn set_frame_compression(&mut self, compression: Option<FrameCompression>) {
+        self.preferred_compression = compression;
+    }
+
+    /// Move frames to a shared-memory ring after the socket handshake.
+    ///
+    /// Cuts per-step latency when the game runs on the same host. Takes effect
+    /// on the next `connect`, on Linux only, and only if the game offers it;
+    /// otherwise frames stay on the socket.
+    pub fn set_shared_memory(&mut self, enabled: bool) {
+        self.prefer_shared_memory = enabled;
+    }
+
+    /// Largest message accepted from the game (default 64 MB).
+    ///
+    /// Chunked messages are joined before they are decoded, so this bounds the
+    /// memory a single observation can take. Takes effect on the next `connect`.
+    pub fn set_max_message_len(&mut self, max_len: usize) {
+        self.max_message_len = max_len;
+    }
+
     /// Connect to the game process
     pub async fn connect(&mut self) -> Result<()> {
         info!("Connecting to game at {}", self.socket_path);
@@ -68,27 +122,16 @@ impl HarmonyBridge {
                 .await
                 .map_err(|e| GameRLError::IpcError(format!("Failed to connect: {}", e)))?;
 
-            // Split into read/write halves
+            // Split into read/write halves; the connection owns the reader task
             let (read_half, write_half) = stream.into_split();
-
-            // Store writer
-            {
-                let mut guard = self.writer.lock().await;
-                *guard = Some(Box::new(UnixWriteWrapper(write_half)));
-            }
-
-            // Create new channels for this connection
-            let (request_tx, request_rx) = mpsc::channel(16);
-            self.request_tx = request_tx;
-
-            // Spawn background reader task
-            let event_tx = self.event_tx.clone();
-            let handle = tokio::spawn(reader_task(
-                UnixReadWrapper(read_half),
-                request_rx,
-                event_tx,
+            let mut reader = UnixReadWrapper::new(read_half);
+            reader.set_max_message_len(self.max_message_len);
+            self.connection = Some(GameConnection::spawn_with_metrics(
+                reader,
+                Box::new(UnixWriteWrapper::new(write_half)),
+                self.events.clone(),
+                self.metrics.clone(),
             ));
-            self._reader_handle = Some(handle);
         }
 
         #[cfg(not(unix))]
@@ -100,19 +143,8 @@ impl HarmonyBridge {
 
         #[cfg(unix)]
         {
-            // Wait for Ready message by sending a dummy request that expects Ready
-            // The reader task will handle routing the response
-            let (response_tx, response_rx) = oneshot::channel();
-            // Send an empty marker - the first message from the game is Ready
-            self.request_tx
-                .send((GameMessage::GetStateHash, response_tx)) // Dummy, reader handles Ready specially
-                .await
-                .map_err(|_| GameRLError::IpcError("Failed to send to reader task".into()))?;
-
-            // Wait for Ready response
-            let msg = response_rx
-                .await
-                .map_err(|_| GameRLError::IpcError("Reader task died".into()))??;
+            // The first message from the game is Ready, sent unprompted
+            let msg = self.connection()?.next_unsolicited().await?;
 
             match msg {
                 GameMessage::Ready {
@@ -124,7 +156,8 @@ impl HarmonyBridge {
                     self.game_name = name;
                     self.game_version = version;
                     self.capabilities = Some(capabilities);
-                    Ok(())
+                    self.negotiate_wire().await?;
+                    self.attach_shared_memory().await
                 }
                 _ => Err(GameRLError::ProtocolError(format!(
                     "Expected Ready message, got {:?}",
@@ -134,47 +167,147 @@ impl HarmonyBridge {
         }
     }
 
-    /// Send a message and wait for response
-    async fn request(&mut self, msg: GameMessage) -> Result<GameMessage> {
-        let data = serialize(&msg).map_err(|e| GameRLError::SerializationError(e.to_string()))?;
+    /// Switch to the preferred wire encoding and compression, as far as the
+    /// game advertised support for them, and chunk large messages if it can
+    #[cfg(unix)]
+    async fn negotiate_wire(&mut self) -> Result<()> {
+        let capabilities = self.capabilities.clone().unwrap_or_default();
 
-        // Log outgoing message
-        let json_preview: String = String::from_utf8_lossy(&data).chars().take(200).collect();
-        debug!("[Rust→C#] len={} json={}", data.len(), json_preview);
+        let mut encoding = self.preferred_encoding;
+        if !capabilities.supports_encoding(encoding) {
+            warn!("Game does not support {} encoding, staying on JSON", encoding);
+            encoding = WireEncoding::Json;
+        }
 
-        // Send through writer
-        {
-            let mut guard = self.writer.lock().await;
-            let writer = guard
-                .as_mut()
-                .ok_or_else(|| GameRLError::IpcError("Not connected".into()))?;
-            writer.write_message(&data).await?;
+        let mut compression = self.preferred_compression;
+        if compression.is_some() && !capabilities.supports_compression() {
+            warn!("Game does not support frame compression, sending frames uncompressed");
+            compression = None;
         }
 
-        // Wait for response via channel
-        let (response_tx, response_rx) = oneshot::channel();
-        self.request_tx
-            .send((msg, response_tx))
-            .await
-            .map_err(|_| GameRLError::IpcError("Reader task not running".into()))?;
+        // Messages too large for one frame are split whenever the game can
+        // join them again
+        let chunk_size = self.chunk_size();
+
+        if encoding == WireEncoding::Json && compression.is_none() && chunk_size.is_none() {
+            return Ok(());
+        }
 
-        response_rx
-            .await
-            .map_err(|_| GameRLError::IpcError("Reader task died waiting for response".into()))?
+        // ConfigureWire itself goes out as JSON, uncompressed and whole; the
+        // game switches after reading it
+        self.send(GameMessage::ConfigureWire {
+            encoding,
+            compression,
+            chunk_size,
+        })
+        .await?;
+        if let Some(connection) = self.connection.as_mut() {
+            connection.set_encoding(encoding);
+            connection.set_compression(compression).await?;
+            connection.set_chunk_size(chunk_size).await;
+        }
+        info!(
+            "Using {} wire encoding{}{}",
+            encoding,
+            if compression.is_some() { " with zstd frames" } else { "" },
+            if chunk_size.is_some() { ", chunked" } else { "" }
+        );
+        Ok(())
     }
 
-    /// Send a message without waiting for response (fire-and-forget)
-    async fn send(&mut self, msg: GameMessage) -> Result<()> {
-        let data = serialize(&msg).map_err(|e| GameRLError::SerializationError(e.to_string()))?;
+    /// Part size for outgoing messages, if the game reads chunked frames
+    #[cfg(unix)]
+    fn chunk_size(&self) -> Option<usize> {
+        self.capabilities
+            .as_ref()
+            .is_some_and(GameCapabilities::supports_chunking)
+            .then_some(DEFAULT_CHUNK_SIZE)
+    }
+
+    /// Move frames to a shared-memory segment if the game offers it
+    #[cfg(target_os = "linux")]
+    async fn attach_shared_memory(&mut self) -> Result<()> {
+        if !self.prefer_shared_memory {
+            return Ok(());
+        }
+        let supported = self
+            .capabilities
+            .as_ref()
+            .is_some_and(GameCapabilities::supports_shared_memory);
+        if !supported {
+            warn!("Game does not support shared memory, staying on the socket");
+            return Ok(());
+        }
+
+        let segment = SharedMemorySegment::create(DEFAULT_RING_CAPACITY)?;
+        let path = segment.path().display().to_string();
+        let response = self
+            .request(GameMessage::AttachSharedMemory {
+                path: path.clone(),
+                capacity: segment.capacity(),
+            })
+            .await?;
+
+        match response {
+            GameMessage::SharedMemoryAttached => {}
+            GameMessage::Error { code, message } => {
+                warn!(
+                    "Game could not attach shared memory ({}: {}), staying on the socket",
+                    code, message
+                );
+                return Ok(());
+            }
+            other => {
+                return Err(GameRLError::ProtocolError(format!(
+                    "Expected SharedMemoryAttached, got {:?}",
+                    other
+                )));
+            }
+        }
+
+        // The game writes to the segment from now on; the socket stays open
+        // only to signal disconnects
+        let (mut reader, writer) = segment.into_transport();
+        reader.set_max_message_len(self.max_message_len);
+        let mut connection = GameConnection::spawn_with_metrics(
+            reader,
+            Box::new(writer),
+            self.events.clone(),
+            self.metrics.clone(),
+        );
+        let socket = self.connection.take();
+        if let Some(socket) = &socket {
+            connection.set_encoding(socket.encoding());
+        }
+        connection.set_chunk_size(self.chunk_size()).await;
+        self.connection = Some(connection);
+        self._handshake = socket;
+        info!("Frames now go through shared memory at {}", path);
+        Ok(())
+    }
+
+    #[cfg(all(unix, not(target_os = "linux")))]
+    async fn attach_shared_memory(&mut self) -> Result<()> {
+        if self.prefer_shared_memory {
+            warn!("Shared memory transport is only available on Linux, staying on the socket");
+        }
+        Ok(())
+    }
 
-        let json_preview: String = String::from_utf8_lossy(&data).chars().take(200).collect();
-        debug!("[Rust→C#] len={} json={}", data.len(), json_preview);
+    fn connection(&self) -> Result<&GameConnection> {
+        self.connection
+            .as_ref()
+            .ok_or_else(|| GameRLError::IpcError("Not connected".into()))
+    }
+
+    /// Send a message and wait for its response
+    async fn request(&self, msg: GameMessage) -> Result<GameMessage> {
+        self.connection()?.request(msg).await
+    }
 
-        let mut guard = self.writer.lock().await;
-        let writer = guard
-            .as_mut()
-            .ok_or_else(|| GameRLError::IpcError("Not connected".into()))?;
-        writer.write_message(&data).await
+    /// Send a message without waiting for response (fire-and-forget)
+    async fn send(&self, msg: GameMessage) -> Result<()> {
+        self.connection()?.send(msg).await
     }
 }
 
@@ -230,25 +363,6 @@ impl GameEnvironment for HarmonyBridge {
             })
             .await?;
 
-        fn build_step_result(payload: StepResultPayload) -> StepResult {
-            StepResult {
-                agent_id: payload.agent_id,
-                step_id: 0, // TODO: track step count
-                tick: 0,    // TODO: track tick
-                observation: payload.observation,
-                reward: payload.reward,
-                reward_components: payload.reward_components,
-                done: payload.done,
-                truncated: payload.truncated,
-                termination_reason: None,
-                events: vec![],
-                frame_ids: HashMap::new(),
-                available_actions: None,
-                metrics: None,
-                state_hash: payload.state_hash,
-            }
-        }
-
         match response {
             GameMessage::StepResult { result } => Ok(build_step_result(result)),
             GameMessage::BatchStepResult { results } => results
@@ -266,6 +380,72 @@ impl GameEnvironment for HarmonyBridge {
         }
     }
 
+    async fn step_batch(
+        &mut self,
+        actions: Vec<(AgentId, Action)>,
+        ticks: u32,
+    ) -> Result<Vec<StepResult>> {
+        let batch_step = self
+            .capabilities
+            .as_ref()
+            .is_some_and(|caps| caps.batch_step);
+        if !batch_step {
+            // Older games only know ExecuteAction
+            let mut results = Vec::with_capacity(actions.len());
+            for (agent_id, action) in actions {
+                results.push(self.step(&agent_id, action, ticks).await?);
+            }
+            return Ok(results);
+        }
+
+        let agent_ids: Vec<AgentId> = actions
+            .iter()
+            .map(|(agent_id, _)| agent_id.clone())
+            .collect();
+        let response = self
+            .request(GameMessage::ExecuteBatch {
+                actions: actions
+                    .into_iter()
+                    .map(|(agent_id, action)| AgentAction { agent_id, action })
+                    .collect(),
+                ticks,
+            })
+            .await?;
+
+        let mut payloads: HashMap<AgentId, StepResultPayload> = match response {
+            GameMessage::BatchStepResult { results } => results
+                .into_iter()
+                .map(|result| (result.agent_id.clone(), result))
+                .collect(),
+            GameMessage::StepResult { result } => {
+                HashMap::from([(result.agent_id.clone(), result)])
+            }
+            GameMessage::Error { code, message } => {
+                return Err(GameRLError::GameError(format!(
+                    "Error {}: {}",
+                    code, message
+                )));
+            }
+            _ => return Err(GameRLError::ProtocolError("Unexpected response".into())),
+        };
+
+        // Results go back in request order
+        agent_ids
+            .iter()
+            .map(|agent_id| {
+                payloads
+                    .remove(agent_id)
+                    .map(build_step_result)
+                    .ok_or_else(|| {
+                        GameRLError::ProtocolError(format!(
+                            "BatchStepResult missing agent {}",
+                            agent_id
+                        ))
+                    })
+            })
+            .collect()
+    }
+
     async fn reset(&mut self, seed: Option<u64>, scenario: Option<String>) -> Result<Observation> {
         let response = self.request(GameMessage::Reset { seed, scenario }).await?;
 
@@ -325,32 +505,58 @@ impl GameEnvironment for HarmonyBridge {
         }
     }
 
-    async fn save_trajectory(&self, _path: &str) -> Result<()> {
-        Err(GameRLError::GameError(
-            "Trajectory saving not implemented".into(),
-        ))
+    async fn set_clock_mode(&mut self, mode: ClockMode, push_interval: u32) -> Result<()> {
+        let live_mode = self
+            .capabilities
+            .as_ref()
+            .is_some_and(|caps| caps.live_mode);
+        if !live_mode {
+            // Older games drop SetClockMode and always run in training mode
+            return match mode {
+                ClockMode::Training => Ok(()),
+                ClockMode::Live => Err(GameRLError::GameError(
+                    "Game does not advertise LiveMode".into(),
+                )),
+            };
+        }
+
+        let response = self
+            .request(GameMessage::SetClockMode {
+                mode,
+                push_interval,
+            })
+            .await?;
+
+        match response {
+            GameMessage::ClockModeSet { mode: set } if set == mode => Ok(()),
+            GameMessage::ClockModeSet { mode: set } => Err(GameRLError::GameError(format!(
+                "Game stayed in {:?} mode",
+                set
+            ))),
+            GameMessage::Error { code, message } => Err(GameRLError::GameError(format!(
+                "Error {}: {}",
+                code, message
+            ))),
+            _ => Err(GameRLError::ProtocolError("Unexpected response".into())),
+        }
     }
 
-    async fn load_trajectory(&mut self, _path: &str) -> Result<()> {
-        Err(GameRLError::GameError(
-            "Trajectory loading not implemented".into(),
-        ))
+    async fn queue_action(&mut self, agent_id: &AgentId, action: Action) -> Result<()> {
+        self.send(GameMessage::QueueAction {
+            agent_id: agent_id.clone(),
+            action,
+        })
+        .await
     }
 
     async fn shutdown(&mut self) -> Result<()> {
         self.send(GameMessage::Shutdown).await?;
-        let mut guard = self.writer.lock().await;
-        *guard = None;
+        self.connection = None;
         Ok(())
     }
 
     fn manifest(&self) -> GameManifest {
-        let caps = self.capabilities.clone().unwrap_or(GameCapabilities {
-            multi_agent: false,
-            max_agents: 1,
-            deterministic: false,
-            headless: false,
-        });
+        let caps = self.capabilities.clone().unwrap_or_default();
 
         GameManifest {
             name: self.game_name.clone(),
@@ -368,6 +574,40 @@ impl GameEnvironment for HarmonyBridge {
     }
 
     fn subscribe_events(&self) -> Option<broadcast::Receiver<StateUpdate>> {
-        Some(self.event_tx.subscribe())
+        Some(self.events.subscribe())
+    }
+
+    fn subscribe_coalesced(&self) -> Option<CoalescedReceiver> {
+        Some(self.events.subscribe_coalesced())
+    }
+
+    fn metrics(&self) -> Option<serde_json::Value> {
+        let transport = match &self.connection {
+            Some(connection) => connection.metrics(),
+            None => self.metrics.snapshot(),
+        };
+        Some(serde_json::json!({
+            "transport": transport,
+            "events": self.events.stats(),
+        }))
+    }
+}
+
+fn build_step_result(payload: StepResultPayload) -> StepResult {
+    StepResult {
+        agent_id: payload.agent_id,
+        step_id: 0, // TODO: track step count
+        tick: 0,    // TODO: track tick
+        observation: payload.observation,
+        reward: payload.reward,
+        reward_components: payload.reward_components,
+        done: payload.done,
+        truncated: payload.truncated,
+        termination_reason: None,
+        events: payload.events,
+        frame_ids: HashMap::new(),
+        available_actions: None,
+        metrics: None,
+        state_hash: payload.state_hash,
     }
 }
@@ -0,0 +1,564 @@
+//! Simulated game state
+//!
+//! [`StubGame`] answers bridge requests the way a game mod does, with
+//! observations and pushed state of configurable size. It holds no real
+//! simulation: the tick counter, seed and registered agents are enough to
+//! produce deterministic rewards and state hashes.
+
+use game_bridge::{AgentAction, GameCapabilities, GameMessage, StepResultPayload, WireEncoding};
+use game_rl_core::{AgentId, ClockMode, GameEvent, Observation, error_codes};
+use serde_json::json;
+use serde_json::value::RawValue;
+use std::collections::HashMap;
+use std::collections::hash_map::DefaultHasher;
+use std::hash::{Hash, Hasher};
+use std::time::Duration;
+
+/// Load profile of the stub
+#[derive(Debug, Clone)]
+pub struct StubConfig {
+    /// Name sent in Ready
+    pub name: String,
+    /// Most agents that can be registered at once
+    pub max_agents: usize,
+    /// Approximate size of each observation as JSON
+    pub observation_bytes: usize,
+    /// Simulated cost of one game tick; an `ExecuteAction` or `ExecuteBatch`
+    /// for N ticks takes N times this before its result is sent
+    pub tick_cost: Duration,
+    /// `StateUpdate` pushes per second (0 disables pushes)
+    pub state_update_hz: f64,
+    /// Approximate size of each pushed state as JSON
+    pub state_bytes: usize,
+    /// Steps per agent before `Done` is set (0 never ends the episode)
+    pub episode_steps: u64,
+    /// Game ticks per second while the bridge has switched to live mode
+    pub live_tick_rate: f64,
+}
+
+impl Default for StubConfig {
+    fn default() -> Self {
+        Self {
+            name: "StubGame".into(),
+            max_agents: 8,
+            observation_bytes: 1024,
+            tick_cost: Duration::ZERO,
+            state_update_hz: 0.0,
+            state_bytes: 1024,
+            episode_steps: 0,
+            live_tick_rate: 60.0,
+        }
+    }
+}
+
+impl StubConfig {
+    /// Time between `StateUpdate` pushes, if pushes are enabled
+    pub fn state_update_interval(&self) -> Option<Duration> {
+        (self.state_update_hz > 0.0).then(|| Duration::from_secs_f64(1.0 / self.state_update_hz))
+    }
+}
+
+/// One connection's worth of game state
+pub struct StubGame {
+    config: StubConfig,
+    /// Encoding of outgoing frames; raw JSON observations only survive JSON
+    encoding: WireEncoding,
+    tick: u64,
+    seed: u64,
+    /// Steps taken by each registered agent this episode
+    agents: HashMap<AgentId, u64>,
+    /// Pre-rendered entity list padding observations to the configured size
+    observation_entities: String,
+    /// Pre-rendered entity list padding pushed state to the configured size
+    state_entities: String,
+    /// Ticks between pushes while in live mode
+    live: Option<u32>,
+    /// Live mode: actions applied at the next push
+    queued: Vec<AgentAction>,
+}
+
+impl StubGame {
+    /// Create a game with the given load profile
+    pub fn new(config: StubConfig) -> Self {
+        Self {
+            observation_entities: entities(config.observation_bytes),
+            state_entities: entities(config.state_bytes),
+            config,
+            encoding: WireEncoding::Json,
+            tick: 0,
+            seed: 0,
+            agents: HashMap::new(),
+            live: None,
+            queued: Vec::new(),
+        }
+    }
+
+    /// Encoding the connection switched to with `ConfigureWire`
+    pub fn set_encoding(&mut self, encoding: WireEncoding) {
+        self.encoding = encoding;
+    }
+
+    /// Ready message announcing what the stub supports
+    pub fn ready(&self) -> GameMessage {
+        GameMessage::Ready {
+            name: self.config.name.clone(),
+            version: env!("CARGO_PKG_VERSION").into(),
+            capabilities: GameCapabilities {
+                multi_agent: true,
+                max_agents: self.config.max_agents,
+                deterministic: true,
+                headless: true,
+                encodings: vec![WireEncoding::MessagePack.as_str().into()],
+                compression: vec!["Zstd".into()],
+                transports: Vec::new(),
+                framing: vec!["Chunked".into()],
+                batch_step: true,
+                live_mode: true,
+            },
+        }
+    }
+
+    /// Simulated time the game spends on a request before answering it
+    pub fn cost(&self, message: &GameMessage) -> Duration {
+        match message {
+            // A batch advances the clock once, however many agents it holds
+            GameMessage::ExecuteAction { ticks, .. } | GameMessage::ExecuteBatch { ticks, .. } => {
+                self.config.tick_cost * (*ticks).max(1)
+            }
+            _ => Duration::ZERO,
+        }
+    }
+
+    /// Answer a request; `None` for messages that get no response
+    pub fn handle(&mut self, message: GameMessage) -> Option<GameMessage> {
+        match message {
+            GameMessage::RegisterAgent { agent_id, .. } => Some(self.register(agent_id)),
+            GameMessage::DeregisterAgent { agent_id } => {
+                self.agents.remove(&agent_id);
+                None
+            }
+            GameMessage::ExecuteAction {
+                agent_id, ticks, ..
+            } => Some(self.step(agent_id, ticks)),
+            GameMessage::ExecuteBatch { actions, ticks } => Some(self.step_batch(actions, ticks)),
+            GameMessage::Reset { seed, .. } => {
+                self.tick = 0;
+                self.seed = seed.unwrap_or(0);
+                self.agents.values_mut().for_each(|steps| *steps = 0);
+                Some(GameMessage::ResetComplete {
+                    observation: self.observation("", 0),
+                    state_hash: Some(self.state_hash()),
+                })
+            }
+            GameMessage::GetStateHash => Some(GameMessage::StateHash {
+                hash: self.state_hash(),
+            }),
+            GameMessage::ConfigureStreams { agent_id, .. } => Some(GameMessage::StreamsConfigured {
+                agent_id,
+                descriptors: Vec::new(),
+            }),
+            GameMessage::SetClockMode {
+                mode,
+                push_interval,
+            } => {
+                self.live = (mode == ClockMode::Live).then_some(push_interval.max(1));
+                self.queued.clear();
+                Some(GameMessage::ClockModeSet { mode })
+            }
+            GameMessage::QueueAction { agent_id, action } => {
+                if self.live.is_some() && self.agents.contains_key(&agent_id) {
+                    self.queued.push(AgentAction { agent_id, action });
+                }
+                None
+            }
+            GameMessage::AttachSharedMemory { .. } => Some(GameMessage::Error {
+                code: error_codes::RESOURCE_EXHAUSTED,
+                message: "Stub game does not offer shared memory".into(),
+            }),
+            _ => None,
+        }
+    }
+
+    fn register(&mut self, agent_id: AgentId) -> GameMessage {
+        if !self.agents.contains_key(&agent_id) && self.agents.len() >= self.config.max_agents {
+            return GameMessage::Error {
+                code: error_codes::RESOURCE_EXHAUSTED,
+                message: format!("At most {} agents", self.config.max_agents),
+            };
+        }
+
+        self.agents.insert(agent_id.clone(), 0);
+        let bytes = self.config.observation_bytes;
+        GameMessage::AgentRegistered {
+            agent_id,
+            observation_space: json!({ "Type": "Structured", "Bytes": bytes }),
+            action_space: json!({ "Type": "Discrete", "N": 8 }),
+        }
+    }
+
+    fn step(&mut self, agent_id: AgentId, ticks: u32) -> GameMessage {
+        match self.advance(vec![agent_id], ticks) {
+            Ok(mut results) => GameMessage::StepResult {
+                result: results.remove(0),
+            },
+            Err(agent_id) => not_registered(&agent_id),
+        }
+    }
+
+    fn step_batch(&mut self, actions: Vec<AgentAction>, ticks: u32) -> GameMessage {
+        let agent_ids = actions.into_iter().map(|a| a.agent_id).collect();
+        match self.advance(agent_ids, ticks) {
+            Ok(results) => GameMessage::BatchStepResult { results },
+            Err(agent_id) => not_registered(&agent_id),
+        }
+    }
+
+    /// Count a step for each agent, then advance the clock once; fails with
+    /// the first agent that isn't registered
+    fn advance(
+        &mut self,
+        agent_ids: Vec<AgentId>,
+        ticks: u32,
+    ) -> Result<Vec<StepResultPayload>, AgentId> {
+        if let Some(agent_id) = agent_ids.iter().find(|id| !self.agents.contains_key(*id)) {
+            return Err(agent_id.clone());
+        }
+        self.tick += u64::from(ticks.max(1));
+
+        let reward = (self.tick % 100) as f64 / 100.0;
+        let mut results = Vec::with_capacity(agent_ids.len());
+        for agent_id in agent_ids {
+            let steps = self.agents.entry(agent_id.clone()).or_default();
+            *steps += 1;
+            let steps = *steps;
+            results.push(StepResultPayload {
+                observation: self.observation(&agent_id, steps),
+                agent_id,
+                reward,
+                reward_components: HashMap::from([("progress".into(), reward)]),
+                done: self.config.episode_steps > 0 && steps >= self.config.episode_steps,
+                truncated: false,
+                state_hash: None,
+                events: Vec::new(),
+            });
+        }
+        Ok(results)
+    }
+
+    /// Time between pushes in live mode, `None` outside it
+    pub fn live_interval(&self) -> Option<Duration> {
+        let ticks = self.live?;
+        (self.config.live_tick_rate > 0.0)
+            .then(|| Duration::from_secs_f64(f64::from(ticks) / self.config.live_tick_rate))
+    }
+
+    /// Live mode: run the ticks up to the next push, applying the queued
+    /// actions, and push the state they lead to
+    pub fn live_update(&mut self) -> GameMessage {
+        self.tick += u64::from(self.live.unwrap_or(1));
+        let mut events = Vec::with_capacity(self.queued.len());
+        for AgentAction { agent_id, .. } in std::mem::take(&mut self.queued) {
+            if let Some(steps) = self.agents.get_mut(&agent_id) {
+                *steps += 1;
+            }
+            events.push(GameEvent {
+                event_type: "ActionApplied".into(),
+                tick: self.tick,
+                severity: 0,
+                details: json!({ "AgentId": agent_id }),
+            });
+        }
+        self.push(events)
+    }
+
+    /// Pushed state for the current tick
+    pub fn state_update(&self) -> GameMessage {
+        self.push(Vec::new())
+    }
+
+    /// `StateUpdate` with a heartbeat followed by `events`
+    fn push(&self, events: Vec<GameEvent>) -> GameMessage {
+        let state = format!(
+            r#"{{"Tick":{},"Agents":{},"Entities":{}}}"#,
+            self.tick,
+            self.agents.len(),
+            self.state_entities
+        );
+        let heartbeat = GameEvent {
+            event_type: "Heartbeat".into(),
+            tick: self.tick,
+            severity: 0,
+            details: serde_json::Value::Null,
+        };
+        GameMessage::StateUpdate {
+            tick: self.tick,
+            state: RawValue::from_string(state).expect("stub state is valid JSON"),
+            events: std::iter::once(heartbeat).chain(events).collect(),
+        }
+    }
+
+    fn observation(&self, agent_id: &str, step: u64) -> Observation {
+        let observation = format!(
+            r#"{{"Tick":{},"AgentId":{},"Step":{},"Entities":{}}}"#,
+            self.tick,
+            serde_json::Value::from(agent_id),
+            step,
+            self.observation_entities
+        );
+        match self.encoding {
+            // Copied verbatim into the frame
+            WireEncoding::Json => Observation::Raw(
+                RawValue::from_string(observation).expect("stub observation is valid JSON"),
+            ),
+            // Raw JSON has no MessagePack form; encode a parsed value instead
+            WireEncoding::MessagePack => Observation::Custom(
+                serde_json::from_str(&observation).expect("stub observation is valid JSON"),
+            ),
+        }
+    }
+
+    fn state_hash(&self) -> String {
+        let mut hasher = DefaultHasher::new();
+        self.seed.hash(&mut hasher);
+        self.tick.hash(&mut hasher);
+        let mut agents: Vec<_> = self.agents.iter().collect();
+        agents.sort();
+        agents.hash(&mut hasher);
+        format!("stub:{:016x}", hasher.finish())
+    }
+}
+
+fn not_registered(agent_id: &str) -> GameMessage {
+    GameMessage::Error {
+        code: error_codes::AGENT_NOT_REGISTERED,
+        message: format!("Agent not registered: {}", agent_id),
+    }
+}
+
+/// JSON array of entity records, roughly `bytes` long
+fn entities(bytes: usize) -> String {
+    let mut out = String::from("[");
+    let mut i = 0usize;
+    while out.len() + 1 < bytes {
+        if i > 0 {
+            out.push(',');
+        }
+        let kind = ["Pawn", "Item", "Building", "Plant"][i % 4];
+        out.push_str(&format!(
+            r#"{{"Id":"{}{}","Kind":"{}","Position":{{"X":{},"Y":{}}},"Health":{:.2}}}"#,
+            kind,
+            1000 + i,
+            kind,
+            (i * 37) % 250,
+            (i * 91) % 250,
+            (i % 100) as f64 / 100.0
+        ));
+        i += 1;
+    }
+    out.push(']');
+    out
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use game_bridge::{decode, encode, serialize};
+    use game_rl_core::{Action, AgentConfig, AgentType};
+
+    fn register(game: &mut StubGame, agent_id: &str) -> GameMessage {
+        game.handle(GameMessage::RegisterAgent {
+            agent_id: agent_id.into(),
+            agent_type: AgentType::StrategyController,
+            config: AgentConfig::default(),
+        })
+        .unwrap()
+    }
+
+    fn step(game: &mut StubGame, agent_id: &str, ticks: u32) -> GameMessage {
+        game.handle(GameMessage::ExecuteAction {
+            agent_id: agent_id.into(),
+            action: Action::Wait,
+            ticks,
+        })
+        .unwrap()
+    }
+
+    #[test]
+    fn test_observation_size() {
+        let mut game = StubGame::new(StubConfig {
+            observation_bytes: 64 * 1024,
+            ..Default::default()
+        });
+        register(&mut game, "colony");
+
+        let bytes = serialize(&step(&mut game, "colony", 1)).unwrap();
+        assert!(bytes.len() >= 64 * 1024);
+        assert!(bytes.len() < 66 * 1024);
+    }
+
+    #[test]
+    fn test_step_unregistered_agent() {
+        let mut game = StubGame::new(StubConfig::default());
+        match step(&mut game, "nobody", 1) {
+            GameMessage::Error { code, .. } => assert_eq!(code, error_codes::AGENT_NOT_REGISTERED),
+            other => panic!("Expected Error, got {:?}", other),
+        }
+    }
+
+    #[test]
+    fn test_batch_advances_once() {
+        let mut game = StubGame::new(StubConfig::default());
+        register(&mut game, "a");
+        register(&mut game, "b");
+
+        let batch = game.handle(GameMessage::ExecuteBatch {
+            actions: ["b", "a"]
+                .into_iter()
+                .map(|agent_id| AgentAction {
+                    agent_id: agent_id.into(),
+                    action: Action::Wait,
+                })
+                .collect(),
+            ticks: 10,
+        });
+        match batch {
+            Some(GameMessage::BatchStepResult { results }) => {
+                let agent_ids: Vec<_> = results.iter().map(|r| r.agent_id.as_str()).collect();
+                assert_eq!(agent_ids, ["b", "a"]);
+            }
+            other => panic!("Expected BatchStepResult, got {:?}", other),
+        }
+        assert_eq!(game.tick, 10);
+    }
+
+    #[test]
+    fn test_max_agents() {
+        let mut game = StubGame::new(StubConfig {
+            max_agents: 1,
+            ..Default::default()
+        });
+        assert!(matches!(
+            register(&mut game, "a"),
+            GameMessage::AgentRegistered { .. }
+        ));
+        assert!(matches!(register(&mut game, "b"), GameMessage::Error { .. }));
+    }
+
+    #[test]
+    fn test_episode_ends() {
+        let mut game = StubGame::new(StubConfig {
+            episode_steps: 2,
+            ..Default::default()
+        });
+        register(&mut game, "colony");
+
+        let done = |message: GameMessage| match message {
+            GameMessage::StepResult { result } => result.done,
+            other => panic!("Expected StepResult, got {:?}", other),
+        };
+        assert!(!done(step(&mut game, "colony", 1)));
+        assert!(done(step(&mut game, "colony", 1)));
+    }
+
+    #[test]
+    fn test_state_hash_deterministic() {
+        let hash = |ticks| {
+            let mut game = StubGame::new(StubConfig::default());
+            game.handle(GameMessage::Reset {
+                seed: Some(42),
+                scenario: None,
+            });
+            register(&mut game, "colony");
+            step(&mut game, "colony", ticks);
+            match game.handle(GameMessage::GetStateHash) {
+                Some(GameMessage::StateHash { hash }) => hash,
+                other => panic!("Expected StateHash, got {:?}", other),
+            }
+        };
+        assert_eq!(hash(10), hash(10));
+        assert_ne!(hash(10), hash(11));
+    }
+
+    #[test]
+    fn test_cost_scales_with_ticks() {
+        let game = StubGame::new(StubConfig {
+            tick_cost: Duration::from_millis(2),
+            ..Default::default()
+        });
+        let action = GameMessage::ExecuteAction {
+            agent_id: "colony".into(),
+            action: Action::Wait,
+            ticks: 5,
+        };
+        assert_eq!(game.cost(&action), Duration::from_millis(10));
+        assert_eq!(game.cost(&GameMessage::GetStateHash), Duration::ZERO);
+    }
+
+    #[test]
+    fn test_messagepack_observation() {
+        let mut game = StubGame::new(StubConfig::default());
+        game.set_encoding(WireEncoding::MessagePack);
+        register(&mut game, "colony");
+
+        let bytes = encode(&step(&mut game, "colony", 1), WireEncoding::MessagePack).unwrap();
+        match decode(&bytes).unwrap() {
+            GameMessage::StepResult { result } => {
+                let observation = result.observation.to_value().unwrap();
+                assert_eq!(observation["AgentId"], "colony");
+            }
+            other => panic!("Expected StepResult, got {:?}", other),
+        }
+    }
+
+    #[test]
+    fn test_live_mode_applies_queued_actions() {
+        let mut game = StubGame::new(StubConfig::default());
+        register(&mut game, "colony");
+        let queue = |game: &mut StubGame| {
+            game.handle(GameMessage::QueueAction {
+                agent_id: "colony".into(),
+                action: Action::Wait,
+            })
+        };
+
+        // Outside live mode queued actions are dropped
+        assert!(queue(&mut game).is_none());
+        assert_eq!(game.live_interval(), None);
+
+        let set = game.handle(GameMessage::SetClockMode {
+            mode: ClockMode::Live,
+            push_interval: 30,
+        });
+        assert!(matches!(
+            set,
+            Some(GameMessage::ClockModeSet {
+                mode: ClockMode::Live
+            })
+        ));
+        assert_eq!(game.live_interval(), Some(Duration::from_millis(500)));
+
+        queue(&mut game);
+        match game.live_update() {
+            GameMessage::StateUpdate { tick, events, .. } => {
+                assert_eq!(tick, 30);
+                let kinds: Vec<_> = events.iter().map(|e| e.event_type.as_str()).collect();
+                assert_eq!(kinds, ["Heartbeat", "ActionApplied"]);
+            }
+            other => panic!("Expected StateUpdate, got {:?}", other),
+        }
+    }
+
+    #[test]
+    fn test_state_update_roundtrip() {
+        let game = StubGame::new(StubConfig {
+            state_bytes: 4096,
+            ..Default::default()
+        });
+        let bytes = serialize(&game.state_update()).unwrap();
+        assert!(bytes.len() >= 4096);
+        assert!(matches!(
+            decode(&bytes).unwrap(),
+            GameMessage::StateUpdate { tick: 0, .. }
+        ));
+    }
+}
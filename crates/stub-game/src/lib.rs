@@ -0,0 +1,15 @@
+//! Protocol-accurate stub game for load testing game-rl bridges
+//!
+//! Listens like `GameRL.Harmony.Bridge` (Unix socket or TCP), sends `Ready`
+//! and answers bridge requests with observations, tick costs and
+//! `StateUpdate` push rates taken from a [`StubConfig`]. Lets `HarmonyBridge`
+//! and `game-rl-server` be exercised end-to-end without a running game.
+
+pub mod game;
+pub mod server;
+
+pub use game::{StubConfig, StubGame};
+pub use server::{serve_connection, serve_tcp};
+
+#[cfg(unix)]
+pub use server::serve_unix;
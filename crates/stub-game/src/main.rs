@@ -0,0 +1,102 @@
+//! Stub game process
+//!
+//! Listens on the RimWorld socket by default, so `game-rl-server` picks it up
+//! through auto-detection:
+//!
+//! ```text
+//! stub-game --observation-bytes 65536 --tick-cost-us 500 --state-update-hz 30
+//! ```
+
+use anyhow::{Context, Result, bail};
+use std::time::Duration;
+use stub_game::StubConfig;
+use tracing::Level;
+use tracing_subscriber::FmtSubscriber;
+
+const DEFAULT_SOCKET: &str = "/tmp/gamerl-rimworld.sock";
+
+const USAGE: &str = "\
+Usage: stub-game [OPTIONS]
+
+Options:
+  --socket PATH             Unix socket to listen on [default: /tmp/gamerl-rimworld.sock]
+  --tcp ADDR                Listen on a TCP address instead (e.g. 127.0.0.1:7777)
+  --name NAME               Game name sent in Ready [default: StubGame]
+  --max-agents N            Agents that can be registered at once [default: 8]
+  --observation-bytes N     Approximate observation size [default: 1024]
+  --tick-cost-us N          Simulated microseconds per game tick [default: 0]
+  --state-update-hz N       StateUpdate pushes per second, 0 for none [default: 0]
+  --state-bytes N           Approximate pushed state size [default: 1024]
+  --episode-steps N         Steps per agent before Done, 0 for never [default: 0]
+  --live-tick-rate N        Game ticks per second in live mode [default: 60]";
+
+/// Where to listen
+enum Listen {
+    Unix(String),
+    Tcp(String),
+}
+
+fn parse_args() -> Result<(Listen, StubConfig)> {
+    let mut listen = Listen::Unix(DEFAULT_SOCKET.into());
+    let mut config = StubConfig::default();
+
+    let mut args = std::env::args().skip(1);
+    while let Some(flag) = args.next() {
+        if flag == "--help" || flag == "-h" {
+            println!("{}", USAGE);
+            std::process::exit(0);
+        }
+        let value = args
+            .next()
+            .with_context(|| format!("Missing value for {}", flag))?;
+        let number = || {
+            value
+                .parse::<u64>()
+                .with_context(|| format!("Invalid value for {}: {}", flag, value))
+        };
+
+        match flag.as_str() {
+            "--socket" => listen = Listen::Unix(value.clone()),
+            "--tcp" => listen = Listen::Tcp(value.clone()),
+            "--name" => config.name = value.clone(),
+            "--max-agents" => config.max_agents = number()? as usize,
+            "--observation-bytes" => config.observation_bytes = number()? as usize,
+            "--tick-cost-us" => config.tick_cost = Duration::from_micros(number()?),
+            "--state-update-hz" => {
+                config.state_update_hz = value
+                    .parse()
+                    .with_context(|| format!("Invalid value for {}: {}", flag, value))?;
+            }
+            "--live-tick-rate" => {
+                config.live_tick_rate = value
+                    .parse()
+                    .with_context(|| format!("Invalid value for {}: {}", flag, value))?;
+            }
+            "--state-bytes" => config.state_bytes = number()? as usize,
+            "--episode-steps" => config.episode_steps = number()?,
+            _ => bail!("Unknown option: {}\n\n{}", flag, USAGE),
+        }
+    }
+
+    Ok((listen, config))
+}
+
+#[tokio::main]
+async fn main() -> Result<()> {
+    let subscriber = FmtSubscriber::builder()
+        .with_max_level(Level::INFO)
+        .with_writer(std::io::stderr)
+        .finish();
+    tracing::subscriber::set_global_default(subscriber)?;
+
+    let (listen, config) = parse_args()?;
+    match listen {
+        Listen::Tcp(addr) => stub_game::serve_tcp(&addr, config).await?,
+        #[cfg(unix)]
+        Listen::Unix(path) => stub_game::serve_unix(&path, config).await?,
+        #[cfg(not(unix))]
+        Listen::Unix(_) => bail!("Unix sockets are not available here, use --tcp"),
+    }
+
+    Ok(())
+}
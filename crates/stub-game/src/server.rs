@@ -0,0 +1,400 @@
+//! Listening side of the stub
+//!
+//! Accepts bridge connections the way `GameRL.Harmony.Bridge` does: the game
+//! listens, the bridge connects, and the game speaks first with `Ready`. Each
+//! connection gets its own [`StubGame`]. Requests are answered one at a time
+//! in arrival order, as a game's main thread would; `StateUpdate` pushes are
+//! sent between requests at the configured rate. Once the bridge switches to
+//! live mode with `SetClockMode`, the game also runs its own clock and pushes
+//! the state every `PushInterval` ticks, applying queued actions as it goes.
+
+use crate::game::{StubConfig, StubGame};
+use game_bridge::{
+    AsyncReader, AsyncWriter, Envelope, GameMessage, WireEncoding, decode_envelope, encode_envelope,
+};
+use game_rl_core::{GameRLError, Result};
+use std::time::Duration;
+use tokio::sync::mpsc;
+use tokio::time::{Interval, MissedTickBehavior};
+use tracing::{debug, info, warn};
+
+/// Frames buffered between the socket and the game loop
+const INBOX_CAPACITY: usize = 256;
+
+/// Serve one bridge connection until it closes or sends `Shutdown`
+pub async fn serve_connection<R, W>(
+    mut reader: R,
+    mut writer: W,
+    config: StubConfig,
+) -> Result<()>
+where
+    R: AsyncReader + 'static,
+    W: AsyncWriter,
+{
+    let mut game = StubGame::new(config.clone());
+    let mut encoding = WireEncoding::Json;
+    write(&mut writer, game.ready().into(), encoding).await?;
+
+    // `AsyncReader` doesn't promise cancel safety (only the socket readers
+    // built on `FrameReader` have it), so frames come in through a channel
+    // the loop can select on alongside the push timer. The read task also
+    // keeps receiving while a request's simulated cost is being paid.
+    let (inbox, mut frames) = mpsc::channel(INBOX_CAPACITY);
+    let read_task = tokio::spawn(async move {
+        loop {
+            match reader.read_message().await {
+                Ok(frame) => {
+                    if inbox.send(frame).await.is_err() {
+                        break;
+                    }
+                }
+                Err(e) => {
+                    debug!("Bridge connection closed: {}", e);
+                    break;
+                }
+            }
+        }
+    });
+
+    let mut pushes = config.state_update_interval().map(push_timer);
+    // Live mode pushes, restarted whenever the mode or interval changes
+    let mut live_period = None;
+    let mut live = None;
+
+    loop {
+        let frame = tokio::select! {
+            frame = frames.recv() => match frame {
+                Some(frame) => frame,
+                None => break,
+            },
+            _ = next_push(&mut pushes) => {
+                write(&mut writer, game.state_update().into(), encoding).await?;
+                continue;
+            }
+            _ = next_push(&mut live) => {
+                write(&mut writer, game.live_update().into(), encoding).await?;
+                continue;
+            }
+        };
+
+        let Envelope {
+            request_id,
+            message,
+        } = match decode_envelope(&frame) {
+            Ok(envelope) => envelope,
+            Err(e) => {
+                warn!("Failed to decode frame ({} bytes): {}", frame.len(), e);
+                continue;
+            }
+        };
+
+        match message {
+            GameMessage::ConfigureWire {
+                encoding: requested,
+                compression,
+                chunk_size,
+            } => {
+                info!(
+                    "Switching to {} encoding (compression: {}, chunk size: {:?})",
+                    requested,
+                    compression.is_some(),
+                    chunk_size
+                );
+                encoding = requested;
+                game.set_encoding(encoding);
+                writer.set_compression(compression)?;
+                writer.set_chunk_size(chunk_size);
+            }
+            GameMessage::Shutdown => {
+                info!("Shutdown requested");
+                break;
+            }
+            message => {
+                let cost = game.cost(&message);
+                if !cost.is_zero() {
+                    tokio::time::sleep(cost).await;
+                }
+                if let Some(response) = game.handle(message) {
+                    let envelope = Envelope {
+                        request_id,
+                        message: response,
+                    };
+                    write(&mut writer, envelope, encoding).await?;
+                }
+                if game.live_interval() != live_period {
+                    live_period = game.live_interval();
+                    live = live_period.map(push_timer);
+                }
+            }
+        }
+    }
+
+    read_task.abort();
+    Ok(())
+}
+
+/// Timer for pushes every `period`, skipping pushes the loop fell behind on
+fn push_timer(period: Duration) -> Interval {
+    let mut interval = tokio::time::interval(period);
+    interval.set_missed_tick_behavior(MissedTickBehavior::Skip);
+    interval
+}
+
+/// Wait for the next push, or forever if pushes are off
+async fn next_push(pushes: &mut Option<Interval>) {
+    match pushes {
+        Some(interval) => {
+            interval.tick().await;
+        }
+        None => std::future::pending().await,
+    }
+}
+
+async fn write<W: AsyncWriter>(
+    writer: &mut W,
+    envelope: Envelope,
+    encoding: WireEncoding,
+) -> Result<()> {
+    let bytes = encode_envelope(&envelope, encoding)?;
+    writer.write_message(&bytes).await
+}
+
+/// Listen on a Unix socket, replacing a stale socket file, and serve every
+/// connection until the process exits
+#[cfg(unix)]
+pub async fn serve_unix(path: &str, config: StubConfig) -> Result<()> {
+    use game_bridge::unix::{UnixReadWrapper, UnixWriteWrapper};
+    use tokio::net::UnixListener;
+
+    let _ = std::fs::remove_file(path);
+    let listener = UnixListener::bind(path)
+        .map_err(|e| GameRLError::IpcError(format!("Failed to bind {}: {}", path, e)))?;
+    info!("Stub game listening on {}", path);
+
+    loop {
+        let (stream, _) = listener
+            .accept()
+            .await
+            .map_err(|e| GameRLError::IpcError(format!("Accept failed: {}", e)))?;
+        info!("Bridge connected");
+
+        let (read_half, write_half) = stream.into_split();
+        let reader = UnixReadWrapper::new(read_half);
+        let writer = UnixWriteWrapper::new(write_half);
+        tokio::spawn(serve_logged(reader, writer, config.clone()));
+    }
+}
+
+/// Listen on a TCP address and serve every connection until the process exits
+pub async fn serve_tcp(addr: &str, config: StubConfig) -> Result<()> {
+    use tokio::net::TcpListener;
+
+    let listener = TcpListener::bind(addr)
+        .await
+        .map_err(|e| GameRLError::IpcError(format!("Failed to bind {}: {}", addr, e)))?;
+    info!("Stub game listening on {}", addr);
+
+    loop {
+        let (stream, peer) = listener
+            .accept()
+            .await
+            .map_err(|e| GameRLError::IpcError(format!("Accept failed: {}", e)))?;
+        info!("Bridge connected from {}", peer);
+
+        let (reader, writer) = game_bridge::tcp::split(stream);
+        tokio::spawn(serve_logged(reader, writer, config.clone()));
+    }
+}
+
+async fn serve_logged<R, W>(reader: R, writer: W, config: StubConfig)
+where
+    R: AsyncReader + 'static,
+    W: AsyncWriter,
+{
+    match serve_connection(reader, writer, config).await {
+        Ok(()) => info!("Bridge disconnected"),
+        Err(e) => warn!("Bridge connection failed: {}", e),
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use game_bridge::GameConnection;
+    use game_rl_core::{Action, AgentConfig, AgentType};
+    use game_rl_server::EventHub;
+
+    async fn connect(config: StubConfig) -> GameConnection {
+        let listener = tokio::net::TcpListener::bind("127.0.0.1:0").await.unwrap();
+        let addr = listener.local_addr().unwrap();
+        tokio::spawn(async move {
+            let (stream, _) = listener.accept().await.unwrap();
+            let (reader, writer) = game_bridge::tcp::split(stream);
+            serve_connection(reader, writer, config).await.unwrap();
+        });
+
+        let stream = tokio::net::TcpStream::connect(addr).await.unwrap();
+        let (reader, writer) = game_bridge::tcp::split(stream);
+        GameConnection::spawn(reader, Box::new(writer), EventHub::new(16))
+    }
+
+    #[tokio::test]
+    async fn test_ready_and_step() {
+        let connection = connect(StubConfig::default()).await;
+        assert!(matches!(
+            connection.next_unsolicited().await.unwrap(),
+            GameMessage::Ready { .. }
+        ));
+
+        let registered = connection
+            .request(GameMessage::RegisterAgent {
+                agent_id: "colony".into(),
+                agent_type: AgentType::StrategyController,
+                config: AgentConfig::default(),
+            })
+            .await
+            .unwrap();
+        assert!(matches!(registered, GameMessage::AgentRegistered { .. }));
+
+        let step = connection
+            .request(GameMessage::ExecuteAction {
+                agent_id: "colony".into(),
+                action: Action::Wait,
+                ticks: 1,
+            })
+            .await
+            .unwrap();
+        match step {
+            GameMessage::StepResult { result } => assert_eq!(result.agent_id, "colony"),
+            other => panic!("Expected StepResult, got {:?}", other),
+        }
+    }
+
+    #[tokio::test]
+    async fn test_chunked_messagepack_after_configure_wire() {
+        let mut connection = connect(StubConfig {
+            observation_bytes: 8 * 1024,
+            ..Default::default()
+        })
+        .await;
+        connection.next_unsolicited().await.unwrap();
+
+        connection
+            .send(GameMessage::ConfigureWire {
+                encoding: WireEncoding::MessagePack,
+                compression: None,
+                chunk_size: Some(1024),
+            })
+            .await
+            .unwrap();
+        connection.set_encoding(WireEncoding::MessagePack);
+
+        connection
+            .request(GameMessage::RegisterAgent {
+                agent_id: "colony".into(),
+                agent_type: AgentType::StrategyController,
+                config: AgentConfig::default(),
+            })
+            .await
+            .unwrap();
+        // The observation comes back in 1 KB parts
+        let step = connection
+            .request(GameMessage::ExecuteAction {
+                agent_id: "colony".into(),
+                action: Action::Wait,
+                ticks: 1,
+            })
+            .await
+            .unwrap();
+        match step {
+            GameMessage::StepResult { result } => {
+                let observation = result.observation.to_value().unwrap();
+                assert_eq!(observation["AgentId"], "colony");
+            }
+            other => panic!("Expected StepResult, got {:?}", other),
+        }
+    }
+
+    /// Run a tool against `server` and parse its text result
+    #[cfg(unix)]
+    async fn call_tool(
+        server: &game_rl_server::GameRLServer,
+        tool: &str,
+        params: serde_json::Value,
+    ) -> serde_json::Value {
+        use game_rl_server::mcp::RequestId;
+        use game_rl_server::tools::{ResultFormat, handle_tool_call};
+
+        let id = RequestId::Number(1);
+        let response = handle_tool_call(tool, params, id, ResultFormat::Text, server).await;
+        let response = serde_json::to_value(response).unwrap();
+        match response["result"]["content"][0]["text"].as_str() {
+            Some(text) => serde_json::from_str(text).unwrap(),
+            None => panic!("{} failed: {}", tool, response),
+        }
+    }
+
+    /// A live agent's sim_step is queued rather than run, and the state the
+    /// game pushes on its own clock reaches the bridge's subscribers
+    #[cfg(unix)]
+    #[tokio::test]
+    async fn test_live_mode_end_to_end() {
+        use game_bridge::unix::{UnixReadWrapper, UnixWriteWrapper};
+        use game_rl_server::{GameEnvironment, GameRLServer};
+        use harmony_bridge::HarmonyBridge;
+
+        let path = std::env::temp_dir().join(format!("stub-game-live-{}.sock", std::process::id()));
+        let _ = std::fs::remove_file(&path);
+        let listener = tokio::net::UnixListener::bind(&path).unwrap();
+        let config = StubConfig {
+            live_tick_rate: 600.0,
+            ..Default::default()
+        };
+        tokio::spawn(async move {
+            let (stream, _) = listener.accept().await.unwrap();
+            let (read_half, write_half) = stream.into_split();
+            let reader = UnixReadWrapper::new(read_half);
+            let writer = UnixWriteWrapper::new(write_half);
+            serve_connection(reader, writer, config).await.unwrap();
+        });
+
+        let mut bridge = HarmonyBridge::new(path.to_str().unwrap());
+        bridge.connect().await.unwrap();
+        let _ = std::fs::remove_file(&path);
+        let mut updates = bridge.subscribe_events().unwrap();
+        let manifest = bridge.manifest();
+        let server = GameRLServer::new(bridge, manifest);
+
+        let params = serde_json::json!({
+            "AgentId": "colony",
+            "AgentType": "StrategyController",
+            "Config": { "ClockMode": "Live", "PushInterval": 6 },
+        });
+        call_tool(&server, "register_agent", params).await;
+        let params = serde_json::json!({ "AgentId": "colony", "Action": 0 });
+        let step = call_tool(&server, "sim_step", params).await;
+        assert_eq!(step, serde_json::json!({ "queued": true }));
+
+        // Pushes keep coming every 6 ticks; one of them applies the action
+        let applied = async {
+            loop {
+                // Skipping lagged updates is fine; later pushes still come
+                let Ok(update) = updates.recv().await else {
+                    continue;
+                };
+                if let Some(event) = update
+                    .events
+                    .iter()
+                    .find(|event| event.event_type == "ActionApplied")
+                {
+                    return (update.tick, event.details["AgentId"].clone());
+                }
+            }
+        };
+        let (tick, agent_id) = tokio::time::timeout(Duration::from_secs(5), applied)
+            .await
+            .expect("no pushed StateUpdate applied the queued action");
+        assert_eq!(tick % 6, 0);
+        assert_eq!(agent_id, "colony");
+    }
+}
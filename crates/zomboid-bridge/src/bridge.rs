@@ -2,14 +2,20 @@
 //!
 //! Uses file system for communication since PZ's Lua is sandboxed
 //! and doesn't have socket access.
+//!
+//! A single command file means only one request can be outstanding, but
+//! commands still carry a `RequestId` so a late reply to a timed-out command
+//! is recognised and dropped instead of being taken as the next answer.
 
-use game_bridge::{GameCapabilities, GameMessage, StepResultPayload};
+use game_bridge::{
+    Envelope, GameCapabilities, GameMessage, RequestId, StepResultPayload, decode_envelope,
+};
 use game_rl_core::{
     Action, AgentConfig, AgentId, AgentManifest, AgentType, GameManifest, GameRLError, Observation,
     Result, StepResult, StreamDescriptor,
 };
-use game_rl_server::GameEnvironment;
 use game_rl_server::environment::StateUpdate;
+use game_rl_server::{CoalescedReceiver, EventHub, GameEnvironment};
 use std::collections::HashMap;
 use std::path::PathBuf;
 use std::time::Duration;
@@ -56,10 +62,12 @@ pub struct ZomboidBridge {
     status_file: PathBuf,
     /// Whether connected
     connected: bool,
-    /// Broadcast channel for pushed state updates
-    event_tx: broadcast::Sender<StateUpdate>,
+    /// Fan-out of pushed state updates
+    events: EventHub,
     /// Game capabilities received during Ready
     capabilities: Option<GameCapabilities>,
+    /// Correlation ID for the next command
+    next_request_id: RequestId,
     /// Game name
     game_name: String,
     /// Game version
@@ -78,7 +86,6 @@ impl ZomboidBridge {
         let command_file = config.ipc_path.join("gamerl_command.json");
         let response_file = config.ipc_path.join("gamerl_response.json");
         let status_file = config.ipc_path.join("gamerl_status.json");
-        let (event_tx, _) = broadcast::channel(64);
 
         Self {
             config,
@@ -86,8 +93,9 @@ impl ZomboidBridge {
             response_file,
             status_file,
             connected: false,
-            event_tx,
+            events: EventHub::new(64),
             capabilities: None,
+            next_request_id: 1,
             game_name: "Project Zomboid".into(),
             game_version: "0.0.0".into(),
         }
@@ -182,8 +190,10 @@ impl ZomboidBridge {
             self.reconnect().await?;
         }
 
-        // Serialize message
-        let json = serde_json::to_string(&msg)
+        // Serialize message with a fresh correlation ID
+        let request_id = self.next_request_id;
+        self.next_request_id += 1;
+        let json = serde_json::to_string(&Envelope::request(request_id, msg))
             .map_err(|e| GameRLError::SerializationError(e.to_string()))?;
 
         debug!("[Rust→PZ] {}", &json[..json.len().min(200)]);
@@ -194,7 +204,7 @@ impl ZomboidBridge {
             .map_err(|e| GameRLError::IpcError(format!("Failed to write command: {}", e)))?;
 
         // Wait for response
-        match self.wait_for_response().await {
+        match self.wait_for_response(request_id).await {
             Ok(response) => Ok(response),
             Err(e) => {
                 // On timeout, check if game died and try to reconnect
@@ -205,7 +215,7 @@ impl ZomboidBridge {
                     fs::write(&self.command_file, &json).await.map_err(|e| {
                         GameRLError::IpcError(format!("Failed to write command: {}", e))
                     })?;
-                    self.wait_for_response().await
+                    self.wait_for_response(request_id).await
                 } else {
                     Err(e)
                 }
@@ -214,8 +224,14 @@ impl ZomboidBridge {
     }
 
     /// Wait for a response in the response file
-    /// If `initial_wait` is true, waits indefinitely (for game startup)
-    async fn wait_for_response_impl(&self, initial_wait: bool) -> Result<GameMessage> {
+    /// If `initial_wait` is true, waits indefinitely (for game startup).
+    /// Responses tagged with a different `RequestId` than `expected` are stale
+    /// and skipped; untagged responses (older mods) are always accepted.
+    async fn wait_for_response_impl(
+        &self,
+        initial_wait: bool,
+        expected: Option<RequestId>,
+    ) -> Result<GameMessage> {
         let start = std::time::Instant::now();
         let mut last_log = std::time::Instant::now();
 
@@ -239,11 +255,18 @@ impl ZomboidBridge {
 
                     debug!("[PZ→Rust] {}", &content[..content.len().min(200)]);
 
-                    // Parse JSON
-                    let msg: GameMessage = serde_json::from_str(&content)
-                        .map_err(|e| GameRLError::SerializationError(e.to_string()))?;
-
-                    return Ok(msg);
+                    // Parse the envelope; observation payloads stay unparsed JSON
+                    let envelope = decode_envelope(content.as_bytes())?;
+
+                    match (expected, envelope.request_id) {
+                        (Some(expected), Some(actual)) if expected != actual => {
+                            warn!(
+                                "Dropping stale response for request {} (waiting for {})",
+                                actual, expected
+                            );
+                        }
+                        _ => return Ok(envelope.message),
+                    }
                 }
                 _ => {
                     // Wait and retry
@@ -253,14 +276,14 @@ impl ZomboidBridge {
         }
     }
 
-    /// Wait for a response (with timeout for normal operations)
-    async fn wait_for_response(&self) -> Result<GameMessage> {
-        self.wait_for_response_impl(false).await
+    /// Wait for the response to a request (with timeout for normal operations)
+    async fn wait_for_response(&self, request_id: RequestId) -> Result<GameMessage> {
+        self.wait_for_response_impl(false, Some(request_id)).await
     }
 
     /// Wait for initial connection (no timeout, for game startup)
     async fn wait_for_initial_response(&self) -> Result<GameMessage> {
-        self.wait_for_response_impl(true).await
+        self.wait_for_response_impl(true, None).await
     }
 
     /// Send a message without waiting for response
@@ -351,7 +374,7 @@ impl GameEnvironment for ZomboidBridge {
                 done: payload.done,
                 truncated: payload.truncated,
                 termination_reason: None,
-                events: vec![],
+                events: payload.events,
                 frame_ids: HashMap::new(),
                 available_actions: None,
                 metrics: None,
@@ -435,18 +458,6 @@ impl GameEnvironment for ZomboidBridge {
         }
     }
 
-    async fn save_trajectory(&self, _path: &str) -> Result<()> {
-        Err(GameRLError::GameError(
-            "Trajectory saving not implemented".into(),
-        ))
-    }
-
-    async fn load_trajectory(&mut self, _path: &str) -> Result<()> {
-        Err(GameRLError::GameError(
-            "Trajectory loading not implemented".into(),
-        ))
-    }
-
     async fn shutdown(&mut self) -> Result<()> {
         self.send(GameMessage::Shutdown).await?;
         self.connected = false;
@@ -463,6 +474,7 @@ impl GameEnvironment for ZomboidBridge {
             max_agents: 4,
             deterministic: false,
             headless: false,
+            ..Default::default()
         });
 
         GameManifest {
@@ -481,6 +493,10 @@ impl GameEnvironment for ZomboidBridge {
     }
 
     fn subscribe_events(&self) -> Option<broadcast::Receiver<StateUpdate>> {
-        Some(self.event_tx.subscribe())
+        Some(self.events.subscribe())
+    }
+
+    fn subscribe_coalesced(&self) -> Option<CoalescedReceiver> {
+        Some(self.events.subscribe_coalesced())
     }
 }
@@ -1,6 +1,9 @@
 // IPC Bridge for communication with Rust harmony-server
 // Acts as a SERVER - listens for connection from Rust side
-// Protocol: length-prefixed JSON over Unix socket
+// Protocol: length-prefixed JSON (or MessagePack after ConfigureWire) over Unix socket
+// Frames may be zstd-compressed once ConfigureWire enables it (bit 31 of the length prefix)
+// Messages larger than one frame travel as several parts (bit 30 marks all but the last)
+// Responses echo the request's RequestId so Rust can keep several requests in flight
 
 using System;
 using System.Collections.Concurrent;
@@ -30,16 +33,71 @@ namespace GameRL.Harmony
         private volatile bool _running;
         private readonly object _sendLock = new();
         private string? _socketPath;
+        private volatile string _wireEncoding = WireEncodings.Json;
+        private readonly FrameCompressor _sendCompressor = new();
+        private readonly FrameCompressor _receiveCompressor = new();
+        private readonly FrameChunker _sendChunker = new();
+        private volatile SharedMemoryTransport? _shm;
+        private Thread? _shmReceiveThread;
+        private readonly object _detachLock = new();
+        private ulong? _currentRequestId;
+
+        /// <summary>
+        /// Encodings this bridge can decode, advertised in Ready capabilities
+        /// </summary>
+        public static readonly IReadOnlyList<string> SupportedEncodings = new[]
+        {
+            WireEncodings.Json,
+            WireEncodings.MessagePack
+        };
+
+        /// <summary>
+        /// Frame compression algorithms this bridge can read and write
+        /// </summary>
+        public static readonly IReadOnlyList<string> SupportedCompression = new[]
+        {
+            WireCompressions.Zstd
+        };
+
+        /// <summary>
+        /// Framing extensions this bridge can read and write
+        /// </summary>
+        public static readonly IReadOnlyList<string> SupportedFraming = new[]
+        {
+            WireFraming.Chunked
+        };
+
+        /// <summary>
+        /// Transports this bridge can switch to after the socket handshake
+        /// </summary>
+        public static readonly IReadOnlyList<string> SupportedTransports = SharedMemoryTransport.IsSupported
+            ? new[] { WireTransports.SharedMemory }
+            : Array.Empty<string>();
+
+        /// <summary>
+        /// Largest frame accepted from Rust, before or after decompression.
+        /// Longer messages arrive as several parts (see FrameChunker).
+        /// </summary>
+        private const int MaxFrameLength = 10_000_000;
 
         public event Action<RegisterAgentMessage>? OnRegisterAgent;
         public event Action<DeregisterAgentMessage>? OnDeregisterAgent;
         public event Action<ExecuteActionMessage>? OnExecuteAction;
+        public event Action<ExecuteBatchMessage>? OnExecuteBatch;
         public event Action<ConfigureStreamsMessage>? OnConfigureStreams;
         public event Action<ResetMessage>? OnReset;
         public event Action<GetStateHashMessage>? OnGetStateHash;
+        public event Action<SetClockModeMessage>? OnSetClockMode;
+        public event Action<QueueActionMessage>? OnQueueAction;
         public event Action? OnShutdown;
         public event Action? OnClientConnected;
 
+        /// <summary>
+        /// RequestId of the command being dispatched (main thread only).
+        /// Handlers that reply later should capture it and pass it to Send*.
+        /// </summary>
+        public ulong? CurrentRequestId => _currentRequestId;
+
         public bool IsConnected => _running && _clientSocket?.Connected == true;
         public bool IsListening => _running && _listenSocket != null;
 
@@ -99,6 +157,14 @@ namespace GameRL.Harmony
                     _clientSocket = _listenSocket.Accept();
                     _stream = new NetworkStream(_clientSocket, ownsSocket: false);
 
+                    // Every session starts in uncompressed JSON until Rust sends ConfigureWire
+                    _wireEncoding = WireEncodings.Json;
+                    lock (_sendLock)
+                    {
+                        _sendCompressor.Configure(null);
+                        _sendChunker.ChunkSize = 0;
+                    }
+
                     Log("Client connected!");
                     OnClientConnected?.Invoke();
 
@@ -112,6 +178,7 @@ namespace GameRL.Harmony
 
                     // Wait for receive thread to finish (client disconnect)
                     _receiveThread.Join();
+                    DetachSharedMemory();
 
                     // Clean up client connection
                     _stream?.Dispose();
@@ -143,22 +210,43 @@ namespace GameRL.Harmony
         /// Background thread: continuously receive messages from connected client
         /// </summary>
         private void ReceiveLoop()
+        {
+            ReceiveFrames(ReadExact, () => _stream != null && _clientSocket?.Connected == true, _receiveCompressor);
+        }
+
+        /// <summary>
+        /// Background thread: receive frames from the shared-memory ring once attached
+        /// </summary>
+        private void SharedMemoryReceiveLoop(object? state)
+        {
+            var transport = (SharedMemoryTransport)state!;
+            using var decompressor = new FrameCompressor();
+            ReceiveFrames(transport.ReadExact, () => _shm == transport, decompressor);
+        }
+
+        /// <summary>
+        /// Read length-prefixed frames until the source closes, queueing messages for the main thread
+        /// </summary>
+        private void ReceiveFrames(Func<byte[], int, int, bool> readExact, Func<bool> connected, FrameCompressor decompressor)
         {
             var lenBuffer = new byte[4];
+            var joiner = new FrameChunker();
 
-            while (_running && _stream != null && _clientSocket?.Connected == true)
+            while (_running && connected())
             {
                 try
                 {
                     // Read 4-byte length prefix (little-endian, matching Rust)
-                    if (!ReadExact(lenBuffer, 0, 4))
+                    if (!readExact(lenBuffer, 0, 4))
                     {
                         Log("Connection closed by client");
                         break;
                     }
 
-                    int length = BitConverter.ToInt32(lenBuffer, 0);
-                    if (length <= 0 || length > 10_000_000)
+                    uint header = BitConverter.ToUInt32(lenBuffer, 0);
+                    bool compressed = (header & FrameCompressor.CompressedFlag) != 0;
+                    int length = (int)(header & FrameCompressor.LengthMask);
+                    if (length <= 0 || length > MaxFrameLength)
                     {
                         LogError($"Invalid message length: {length}");
                         break;
@@ -166,15 +254,32 @@ namespace GameRL.Harmony
 
                     // Read message body
                     var data = new byte[length];
-                    if (!ReadExact(data, 0, length))
+                    if (!readExact(data, 0, length))
                     {
                         Log("Connection closed while reading message");
                         break;
                     }
+                    if (compressed)
+                    {
+                        data = decompressor.Decompress(data, MaxFrameLength);
+                    }
+
+                    // Parts of a chunked message are held until the last one arrives
+                    var whole = joiner.Join(data, (header & FrameChunker.ContinuedFlag) == 0);
+                    if (whole == null) continue;
 
                     // Deserialize and queue for main thread
-                    var message = DeserializeMessage(data);
-                    if (message != null)
+                    var message = DeserializeMessage(whole);
+                    if (message is ConfigureWireMessage wire)
+                    {
+                        // Transport-level: switch immediately, the game never sees it
+                        ApplyWireConfig(wire);
+                    }
+                    else if (message is AttachSharedMemoryMessage attach)
+                    {
+                        AttachSharedMemory(attach);
+                    }
+                    else if (message != null)
                     {
                         _incomingQueue.Enqueue(message);
                     }
@@ -190,6 +295,61 @@ namespace GameRL.Harmony
             }
         }
 
+        /// <summary>
+        /// Map the segment Rust created, acknowledge over the socket, then move all frames to it
+        /// </summary>
+        private void AttachSharedMemory(AttachSharedMemoryMessage message)
+        {
+            SharedMemoryTransport transport;
+            try
+            {
+                transport = SharedMemoryTransport.Open(message.Path, message.Capacity);
+            }
+            catch (Exception ex)
+            {
+                LogError($"Failed to attach shared memory: {ex.Message}");
+                SendError(503, $"Failed to attach shared memory: {ex.Message}", message.RequestId);
+                return;
+            }
+
+            lock (_sendLock)
+            {
+                // The acknowledgement is the last frame on the socket
+                Send(new SharedMemoryAttachedMessage { RequestId = message.RequestId });
+                _shm = transport;
+            }
+
+            _shmReceiveThread = new Thread(SharedMemoryReceiveLoop)
+            {
+                IsBackground = true,
+                Name = "GameRL-SharedMemory"
+            };
+            _shmReceiveThread.Start(transport);
+            Log($"Frames now go through shared memory at {message.Path}");
+        }
+
+        /// <summary>
+        /// Stop using the shared-memory segment (on disconnect or shutdown)
+        /// </summary>
+        private void DetachSharedMemory()
+        {
+            lock (_detachLock)
+            {
+                var transport = _shm;
+                if (transport == null) return;
+
+                // Closing first wakes a sender blocked on a full ring, so the lock frees up
+                transport.Close();
+                _shmReceiveThread?.Join(1000);
+                _shmReceiveThread = null;
+                lock (_sendLock)
+                {
+                    _shm = null;
+                }
+                transport.Dispose();
+            }
+        }
+
         private bool ReadExact(byte[] buffer, int offset, int count)
         {
             if (_stream == null) return false;
@@ -204,16 +364,50 @@ namespace GameRL.Harmony
             return true;
         }
 
+        private void ApplyWireConfig(ConfigureWireMessage message)
+        {
+            if (message.Encoding == WireEncodings.Json || message.Encoding == WireEncodings.MessagePack)
+            {
+                _wireEncoding = message.Encoding;
+                Log($"Wire encoding set to {message.Encoding}");
+            }
+            else
+            {
+                LogError($"Unsupported wire encoding: {message.Encoding}");
+            }
+
+            lock (_sendLock)
+            {
+                _sendCompressor.Configure(message.Compression);
+                _sendChunker.ChunkSize = message.ChunkSize ?? 0;
+            }
+            if (message.Compression != null)
+            {
+                Log($"Frame compression enabled (zstd level {message.Compression.Level}, threshold {message.Compression.Threshold} bytes)");
+            }
+            if (message.ChunkSize != null)
+            {
+                Log($"Chunked framing enabled ({message.ChunkSize} byte parts)");
+            }
+        }
+
         /// <summary>
-        /// Deserialize incoming JSON message based on "Type" field (PascalCase)
+        /// Deserialize incoming message based on "Type" field (PascalCase).
+        /// Frames are JSON or MessagePack, detected from the first byte.
         /// </summary>
         private GameMessage? DeserializeMessage(byte[] data)
         {
             try
             {
-                var json = Encoding.UTF8.GetString(data);
+                var obj = MessagePackCodec.IsMessagePack(data)
+                    ? MessagePackCodec.Decode(data) as JObject
+                    : JObject.Parse(Encoding.UTF8.GetString(data));
+                if (obj == null)
+                {
+                    LogError("Message is not a map");
+                    return null;
+                }
 
-                var obj = JObject.Parse(json);
                 var type = obj["Type"]?.ToString();
 
                 if (string.IsNullOrEmpty(type))
@@ -222,17 +416,46 @@ namespace GameRL.Harmony
                     return null;
                 }
 
-                return type switch
+                GameMessage? message = type switch
                 {
                     "RegisterAgent" => ParseRegisterAgent(obj),
                     "DeregisterAgent" => ParseDeregisterAgent(obj),
                     "ExecuteAction" => ParseExecuteAction(obj),
+                    "ExecuteBatch" => ParseExecuteBatch(obj),
                     "ConfigureStreams" => ParseConfigureStreams(obj),
                     "Reset" => ParseReset(obj),
                     "GetStateHash" => new GetStateHashMessage(),
                     "Shutdown" => new ShutdownMessage(),
+                    "SetClockMode" => new SetClockModeMessage
+                    {
+                        Mode = obj["Mode"]?.ToString() ?? ClockModes.Training,
+                        PushInterval = obj["PushInterval"]?.ToObject<uint>() ?? 1
+                    },
+                    "QueueAction" => new QueueActionMessage
+                    {
+                        AgentId = obj["AgentId"]?.ToString() ?? "",
+                        Action = ParseAction(obj["Action"])
+                    },
+                    "ConfigureWire" => new ConfigureWireMessage
+                    {
+                        Encoding = obj["Encoding"]?.ToString() ?? WireEncodings.Json,
+                        Compression = (obj["Compression"] as JObject)?.ToObject<FrameCompressionSettings>(),
+                        ChunkSize = obj["ChunkSize"]?.ToObject<int?>()
+                    },
+                    "AttachSharedMemory" => new AttachSharedMemoryMessage
+                    {
+                        Path = obj["Path"]?.ToString() ?? "",
+                        Capacity = obj["Capacity"]?.ToObject<int>() ?? 0
+                    },
                     _ => null
                 };
+
+                if (message != null)
+                {
+                    message.RequestId = obj["RequestId"]?.ToObject<ulong?>();
+                }
+
+                return message;
             }
             catch (Exception ex)
             {
@@ -272,22 +495,49 @@ namespace GameRL.Harmony
 
         private ExecuteActionMessage ParseExecuteAction(JObject obj)
         {
-            // Convert JToken action to Dictionary for HarmonyRPC dispatch
-            object? action = null;
-            var actionToken = obj["Action"];
-            if (actionToken != null && actionToken.Type != JTokenType.Null)
-            {
-                action = actionToken.ToObject<Dictionary<string, object>>();
-            }
-
             return new ExecuteActionMessage
             {
                 AgentId = obj["AgentId"]?.ToString() ?? "",
-                Action = action,
+                Action = ParseAction(obj["Action"]),
                 Ticks = obj["Ticks"]?.ToObject<uint>() ?? 1
             };
         }
 
+        private ExecuteBatchMessage ParseExecuteBatch(JObject obj)
+        {
+            var msg = new ExecuteBatchMessage
+            {
+                Ticks = obj["Ticks"]?.ToObject<uint>() ?? 1
+            };
+
+            if (obj["Actions"] is JArray actions)
+            {
+                foreach (var token in actions)
+                {
+                    if (token is not JObject entry) continue;
+                    msg.Actions.Add(new AgentAction
+                    {
+                        AgentId = entry["AgentId"]?.ToString() ?? "",
+                        Action = ParseAction(entry["Action"])
+                    });
+                }
+            }
+
+            return msg;
+        }
+
+        /// <summary>
+        /// Convert a JToken action to a Dictionary for HarmonyRPC dispatch
+        /// </summary>
+        private static object? ParseAction(JToken? actionToken)
+        {
+            if (actionToken == null || actionToken.Type == JTokenType.Null)
+            {
+                return null;
+            }
+            return actionToken.ToObject<Dictionary<string, object>>();
+        }
+
         private ResetMessage ParseReset(JObject obj)
         {
             return new ResetMessage
@@ -313,6 +563,9 @@ namespace GameRL.Harmony
         {
             while (_incomingQueue.TryDequeue(out var message))
             {
+                // Handlers can re-enter via forced ticks, so restore the outer ID afterwards
+                var outerRequestId = _currentRequestId;
+                _currentRequestId = message.RequestId;
                 try
                 {
                     switch (message)
@@ -326,6 +579,9 @@ namespace GameRL.Harmony
                         case ExecuteActionMessage m:
                             OnExecuteAction?.Invoke(m);
                             break;
+                        case ExecuteBatchMessage m:
+                            OnExecuteBatch?.Invoke(m);
+                            break;
                         case ConfigureStreamsMessage m:
                             OnConfigureStreams?.Invoke(m);
                             break;
@@ -335,6 +591,12 @@ namespace GameRL.Harmony
                         case GetStateHashMessage m:
                             OnGetStateHash?.Invoke(m);
                             break;
+                        case SetClockModeMessage m:
+                            OnSetClockMode?.Invoke(m);
+                            break;
+                        case QueueActionMessage m:
+                            OnQueueAction?.Invoke(m);
+                            break;
                         case ShutdownMessage:
                             OnShutdown?.Invoke();
                             break;
@@ -344,6 +606,10 @@ namespace GameRL.Harmony
                 {
                     LogError($"Handler error: {ex.Message}");
                 }
+                finally
+                {
+                    _currentRequestId = outerRequestId;
+                }
             }
         }
 
@@ -383,27 +649,32 @@ namespace GameRL.Harmony
             Dictionary<string, double> rewardComponents,
             bool done,
             bool truncated,
-            string? stateHash = null)
+            string? stateHash = null,
+            ulong? requestId = null,
+            List<GameEvent>? events = null)
         {
             Send(new StepResultMessage
             {
+                RequestId = requestId,
                 AgentId = agentId,
                 Observation = observation,
                 Reward = reward,
                 RewardComponents = rewardComponents,
                 Done = done,
                 Truncated = truncated,
-                StateHash = stateHash
+                StateHash = stateHash,
+                Events = events ?? new List<GameEvent>()
             });
         }
 
         /// <summary>
         /// Send step results for multiple agents
         /// </summary>
-        public void SendBatchStepResult(List<StepResultMessage> results)
+        public void SendBatchStepResult(List<StepResultMessage> results, ulong? requestId = null)
         {
             Send(new BatchStepResultMessage
             {
+                RequestId = requestId,
                 Results = results ?? new List<StepResultMessage>()
             });
         }
@@ -423,10 +694,11 @@ namespace GameRL.Harmony
         /// <summary>
         /// Send error response
         /// </summary>
-        public void SendError(int code, string message)
+        public void SendError(int code, string message, ulong? requestId = null)
         {
             Send(new ErrorMessage
             {
+                RequestId = requestId,
                 Code = code,
                 Message = message
             });
@@ -455,6 +727,17 @@ namespace GameRL.Harmony
             });
         }
 
+        /// <summary>
+        /// Confirm the clock mode after SetClockMode
+        /// </summary>
+        public void SendClockModeSet(string mode)
+        {
+            Send(new ClockModeSetMessage
+            {
+                Mode = mode
+            });
+        }
+
         /// <summary>
         /// Send state update (async notification)
         /// </summary>
@@ -474,18 +757,55 @@ namespace GameRL.Harmony
 
             try
             {
-                // Serialize message to JSON
-                var json = SerializeMessage(message);
-                var data = Encoding.UTF8.GetBytes(json);
-
-                // Length prefix (4 bytes, little-endian to match Rust)
-                var lenBytes = BitConverter.GetBytes(data.Length);
+                // Serialize message with the negotiated encoding
+                var obj = SerializeMessage(message);
+                var data = _wireEncoding == WireEncodings.MessagePack
+                    ? MessagePackCodec.Encode(obj)
+                    : Encoding.UTF8.GetBytes(obj.ToString(Formatting.None));
 
                 lock (_sendLock)
                 {
-                    _stream.Write(lenBytes, 0, 4);
-                    _stream.Write(data, 0, data.Length);
-                    _stream.Flush();
+                    // Length prefixes (4 bytes, little-endian to match Rust) and bodies
+                    // in one buffer, so each message is a single socket write
+                    var frames = new MemoryStream(data.Length + 4);
+                    foreach (var (offset, count, last) in _sendChunker.Split(data.Length))
+                    {
+                        var part = count == data.Length ? data : new ArraySegment<byte>(data, offset, count).ToArray();
+
+                        // Large parts are compressed when negotiated (flag in the prefix);
+                        // shared memory has no bandwidth to save
+                        uint header = (uint)part.Length;
+                        var compressed = _shm == null ? _sendCompressor.TryCompress(part) : null;
+                        if (compressed != null)
+                        {
+                            part = compressed;
+                            header = (uint)part.Length | FrameCompressor.CompressedFlag;
+                        }
+                        if (!last)
+                        {
+                            header |= FrameChunker.ContinuedFlag;
+                        }
+
+                        frames.Write(BitConverter.GetBytes(header), 0, 4);
+                        frames.Write(part, 0, part.Length);
+                    }
+                    var buffer = frames.GetBuffer();
+                    var length = (int)frames.Length;
+
+                    // Once attached, every frame goes through the shared-memory ring
+                    var shm = _shm;
+                    if (shm != null)
+                    {
+                        if (!shm.Write(buffer, length))
+                        {
+                            LogError("Send error: shared memory ring closed");
+                        }
+                    }
+                    else
+                    {
+                        _stream.Write(buffer, 0, length);
+                        _stream.Flush();
+                    }
                 }
             }
             catch (Exception ex)
@@ -495,13 +815,22 @@ namespace GameRL.Harmony
         }
 
         /// <summary>
-        /// Serialize message to JSON with "Type" field for Rust serde compatibility (PascalCase)
+        /// Build message object with "Type" field for Rust serde compatibility (PascalCase)
         /// </summary>
-        private string SerializeMessage(GameMessage message)
+        private JObject SerializeMessage(GameMessage message)
         {
             var obj = new JObject();
             obj["Type"] = message.Type;
 
+            // Echo the correlation ID; Ready and pushed StateUpdates never carry one
+            var requestId = message is ReadyMessage or StateUpdateMessage
+                ? null
+                : message.RequestId ?? _currentRequestId;
+            if (requestId.HasValue)
+            {
+                obj["RequestId"] = requestId.Value;
+            }
+
             switch (message)
             {
                 case ReadyMessage m:
@@ -512,7 +841,21 @@ namespace GameRL.Harmony
                         MultiAgent = m.Capabilities.MultiAgent,
                         MaxAgents = m.Capabilities.MaxAgents,
                         Deterministic = m.Capabilities.Deterministic,
-                        Headless = m.Capabilities.Headless
+                        Headless = m.Capabilities.Headless,
+                        Encodings = m.Capabilities.Encodings.Count > 0
+                            ? (IEnumerable<string>)m.Capabilities.Encodings
+                            : SupportedEncodings,
+                        Compression = m.Capabilities.Compression.Count > 0
+                            ? (IEnumerable<string>)m.Capabilities.Compression
+                            : SupportedCompression,
+                        Transports = m.Capabilities.Transports.Count > 0
+                            ? (IEnumerable<string>)m.Capabilities.Transports
+                            : SupportedTransports,
+                        Framing = m.Capabilities.Framing.Count > 0
+                            ? (IEnumerable<string>)m.Capabilities.Framing
+                            : SupportedFraming,
+                        BatchStep = m.Capabilities.BatchStep,
+                        LiveMode = m.Capabilities.LiveMode
                     });
                     break;
 
@@ -558,6 +901,10 @@ namespace GameRL.Harmony
                     obj["Descriptors"] = JToken.FromObject(m.Descriptors ?? new List<Dictionary<string, object>>());
                     break;
 
+                case ClockModeSetMessage m:
+                    obj["Mode"] = m.Mode;
+                    break;
+
                 case ErrorMessage m:
                     obj["Code"] = m.Code;
                     obj["Message"] = m.Message;
@@ -570,7 +917,7 @@ namespace GameRL.Harmony
                     break;
             }
 
-            return obj.ToString(Formatting.None);
+            return obj;
         }
 
         private static JObject SerializeStepResult(StepResultMessage message)
@@ -590,6 +937,11 @@ namespace GameRL.Harmony
                 obj["StateHash"] = message.StateHash;
             }
 
+            if (message.Events.Count > 0)
+            {
+                obj["Events"] = JToken.FromObject(message.Events);
+            }
+
             return obj;
         }
 
@@ -610,6 +962,7 @@ namespace GameRL.Harmony
 
             _listenThread?.Join(1000);
             _receiveThread?.Join(1000);
+            DetachSharedMemory();
         }
 
         // Logging helpers - override in game-specific implementation
@@ -0,0 +1,90 @@
+// Chunked framing matching game-bridge/src/frame.rs
+// Bit 30 of the length prefix marks a frame that more parts of the same message follow;
+// the part without it ends the message. Each part is compressed (or not) on its own.
+// Parts are joined in memory before the message is parsed, so a joined message is
+// capped at the same size as a single frame.
+
+using System;
+using System.Collections.Generic;
+using System.IO;
+
+namespace GameRL.Harmony.Protocol
+{
+    /// <summary>
+    /// Framing extension names shared with game-bridge (GameCapabilities.Framing)
+    /// </summary>
+    public static class WireFraming
+    {
+        public const string Chunked = "Chunked";
+    }
+
+    /// <summary>
+    /// Splits outgoing messages into parts and joins incoming parts.
+    /// Not thread-safe: use one instance per direction.
+    /// </summary>
+    public sealed class FrameChunker
+    {
+        public const uint ContinuedFlag = 0x4000_0000;
+
+        /// <summary>
+        /// Largest message joined from parts (10 MB, the same as a single frame in Bridge)
+        /// </summary>
+        public const int MaxMessageLength = 10_000_000;
+
+        private MemoryStream? _parts;
+
+        /// <summary>
+        /// Largest outgoing part; zero or negative sends every message as one frame
+        /// </summary>
+        public int ChunkSize { get; set; }
+
+        /// <summary>
+        /// Parts of an outgoing message as (offset, count, last)
+        /// </summary>
+        public IEnumerable<(int Offset, int Count, bool Last)> Split(int length)
+        {
+            if (ChunkSize <= 0 || length <= ChunkSize)
+            {
+                yield return (0, length, true);
+                yield break;
+            }
+
+            for (int offset = 0; offset < length; offset += ChunkSize)
+            {
+                int count = Math.Min(ChunkSize, length - offset);
+                yield return (offset, count, offset + count == length);
+            }
+        }
+
+        /// <summary>
+        /// Add an incoming part; returns the message once its last part has arrived, else null
+        /// </summary>
+        public byte[]? Join(byte[] part, bool last)
+        {
+            // Unchunked messages pass straight through
+            if (_parts == null && last) return part;
+
+            _parts ??= new MemoryStream();
+            if (_parts.Length + part.Length > MaxMessageLength)
+            {
+                _parts = null;
+                throw new InvalidDataException($"Chunked message exceeds {MaxMessageLength} bytes");
+            }
+
+            _parts.Write(part, 0, part.Length);
+            if (!last) return null;
+
+            var message = _parts.ToArray();
+            _parts = null;
+            return message;
+        }
+
+        /// <summary>
+        /// Drop a partly received message (e.g. on disconnect)
+        /// </summary>
+        public void Reset()
+        {
+            _parts = null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+// Per-frame zstd compression matching game-bridge/src/frame.rs
+// Bit 31 of the length prefix marks a compressed payload; the low 30 bits are its length.
+// Uses ZstdSharp (fully managed), so no native library has to ship with the mod.
+
+using System;
+using ZstdSharp;
+
+namespace GameRL.Harmony.Protocol
+{
+    /// <summary>
+    /// Compression algorithm names shared with game-bridge (GameCapabilities.Compression)
+    /// </summary>
+    public static class WireCompressions
+    {
+        public const string Zstd = "Zstd";
+    }
+
+    /// <summary>
+    /// Frame compression requested by Rust in ConfigureWire
+    /// </summary>
+    public class FrameCompressionSettings
+    {
+        public int Level { get; set; } = 3;
+        public int Threshold { get; set; } = 1024;
+    }
+
+    /// <summary>
+    /// Compresses and inflates frame payloads. Not thread-safe: use one instance per direction.
+    /// </summary>
+    public sealed class FrameCompressor : IDisposable
+    {
+        public const uint CompressedFlag = 0x8000_0000;
+        public const uint LengthMask = 0x3FFF_FFFF;
+
+        private Compressor? _compressor;
+        private Decompressor? _decompressor;
+
+        /// <summary>
+        /// Compress payloads at or above this size; negative disables compression
+        /// </summary>
+        public int Threshold { get; private set; } = -1;
+
+        public void Configure(FrameCompressionSettings? settings)
+        {
+            _compressor?.Dispose();
+            _compressor = settings != null ? new Compressor(settings.Level) : null;
+            Threshold = settings?.Threshold ?? -1;
+        }
+
+        /// <summary>
+        /// Returns the compressed payload, or null when it should go out as-is
+        /// </summary>
+        public byte[]? TryCompress(byte[] data)
+        {
+            if (_compressor == null || Threshold < 0 || data.Length < Threshold) return null;
+
+            var compressed = _compressor.Wrap(data).ToArray();
+            // Incompressible payloads (e.g. encoded images) are cheaper to send plain
+            return compressed.Length < data.Length ? compressed : null;
+        }
+
+        /// <summary>
+        /// Inflate a flagged payload; throws if it would exceed maxLength
+        /// </summary>
+        public byte[] Decompress(byte[] data, int maxLength)
+        {
+            _decompressor ??= new Decompressor();
+            return _decompressor.Unwrap(data, maxLength).ToArray();
+        }
+
+        public void Dispose()
+        {
+            _compressor?.Dispose();
+            _decompressor?.Dispose();
+        }
+    }
+}
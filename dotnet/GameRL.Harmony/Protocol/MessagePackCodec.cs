@@ -0,0 +1,391 @@
+// Minimal MessagePack codec for protocol messages
+// Converts between Newtonsoft JTokens and MessagePack bytes so the Bridge can
+// speak the same map layout as Rust's rmp_serde::to_vec_named without extra packages.
+
+using System;
+using System.IO;
+using System.Numerics;
+using System.Text;
+using Newtonsoft.Json.Linq;
+
+namespace GameRL.Harmony.Protocol
+{
+    /// <summary>
+    /// Wire encoding names shared with game-bridge (protocol.rs WireEncoding)
+    /// </summary>
+    public static class WireEncodings
+    {
+        public const string Json = "Json";
+        public const string MessagePack = "MessagePack";
+    }
+
+    /// <summary>
+    /// Encodes/decodes JTokens as MessagePack (nil, bool, int, float64, str, bin, array, map)
+    /// </summary>
+    public static class MessagePackCodec
+    {
+        /// <summary>
+        /// Every message is a map: MessagePack frames start with fixmap, map16 or map32
+        /// </summary>
+        public static bool IsMessagePack(byte[] data)
+        {
+            if (data.Length == 0) return false;
+            var first = data[0];
+            return (first >= 0x80 && first <= 0x8f) || first == 0xde || first == 0xdf;
+        }
+
+        public static byte[] Encode(JToken token)
+        {
+            using var stream = new MemoryStream();
+            Write(stream, token);
+            return stream.ToArray();
+        }
+
+        public static JToken Decode(byte[] data)
+        {
+            int position = 0;
+            var token = Read(data, ref position);
+            if (position != data.Length)
+            {
+                throw new InvalidDataException($"Trailing bytes after MessagePack value ({data.Length - position})");
+            }
+            return token;
+        }
+
+        // ═══════════════════════════════════════════════════════════════════════
+        // Encoding
+        // ═══════════════════════════════════════════════════════════════════════
+
+        private static void Write(Stream stream, JToken? token)
+        {
+            if (token == null)
+            {
+                stream.WriteByte(0xc0);
+                return;
+            }
+
+            switch (token.Type)
+            {
+                case JTokenType.Object:
+                {
+                    var obj = (JObject)token;
+                    WriteHeader(stream, obj.Count, 0x80, 16, 0xde, 0xdf);
+                    foreach (var prop in obj.Properties())
+                    {
+                        WriteString(stream, prop.Name);
+                        Write(stream, prop.Value);
+                    }
+                    break;
+                }
+
+                case JTokenType.Array:
+                {
+                    var array = (JArray)token;
+                    WriteHeader(stream, array.Count, 0x90, 16, 0xdc, 0xdd);
+                    foreach (var item in array)
+                    {
+                        Write(stream, item);
+                    }
+                    break;
+                }
+
+                case JTokenType.Integer:
+                    WriteInteger(stream, ((JValue)token).Value);
+                    break;
+
+                case JTokenType.Float:
+                    stream.WriteByte(0xcb);
+                    WriteBigEndian(stream, (ulong)BitConverter.DoubleToInt64Bits(token.Value<double>()), 8);
+                    break;
+
+                case JTokenType.Boolean:
+                    stream.WriteByte(token.Value<bool>() ? (byte)0xc3 : (byte)0xc2);
+                    break;
+
+                case JTokenType.Bytes:
+                {
+                    var bytes = token.Value<byte[]>() ?? Array.Empty<byte>();
+                    if (bytes.Length <= byte.MaxValue)
+                    {
+                        stream.WriteByte(0xc4);
+                        stream.WriteByte((byte)bytes.Length);
+                    }
+                    else if (bytes.Length <= ushort.MaxValue)
+                    {
+                        stream.WriteByte(0xc5);
+                        WriteBigEndian(stream, (ulong)bytes.Length, 2);
+                    }
+                    else
+                    {
+                        stream.WriteByte(0xc6);
+                        WriteBigEndian(stream, (ulong)bytes.Length, 4);
+                    }
+                    stream.Write(bytes, 0, bytes.Length);
+                    break;
+                }
+
+                case JTokenType.Null:
+                case JTokenType.Undefined:
+                    stream.WriteByte(0xc0);
+                    break;
+
+                case JTokenType.Date:
+                    // Same text Newtonsoft would emit for JSON (ISO 8601)
+                    WriteString(stream, token.Value<DateTime>().ToString("o"));
+                    break;
+
+                default:
+                    // String, Guid, Uri, TimeSpan, ... are strings on the wire
+                    WriteString(stream, token.ToString());
+                    break;
+            }
+        }
+
+        private static void WriteInteger(Stream stream, object? value)
+        {
+            switch (value)
+            {
+                case ulong u when u > long.MaxValue:
+                    stream.WriteByte(0xcf);
+                    WriteBigEndian(stream, u, 8);
+                    return;
+                case BigInteger big:
+                    if (big >= long.MinValue && big <= long.MaxValue)
+                    {
+                        WriteInteger(stream, (long)big);
+                    }
+                    else if (big >= 0 && big <= ulong.MaxValue)
+                    {
+                        stream.WriteByte(0xcf);
+                        WriteBigEndian(stream, (ulong)big, 8);
+                    }
+                    else
+                    {
+                        WriteString(stream, big.ToString());
+                    }
+                    return;
+            }
+
+            long v = Convert.ToInt64(value);
+            if (v >= 0)
+            {
+                if (v < 0x80)
+                {
+                    stream.WriteByte((byte)v);
+                }
+                else if (v <= byte.MaxValue)
+                {
+                    stream.WriteByte(0xcc);
+                    stream.WriteByte((byte)v);
+                }
+                else if (v <= ushort.MaxValue)
+                {
+                    stream.WriteByte(0xcd);
+                    WriteBigEndian(stream, (ulong)v, 2);
+                }
+                else if (v <= uint.MaxValue)
+                {
+                    stream.WriteByte(0xce);
+                    WriteBigEndian(stream, (ulong)v, 4);
+                }
+                else
+                {
+                    stream.WriteByte(0xcf);
+                    WriteBigEndian(stream, (ulong)v, 8);
+                }
+            }
+            else if (v >= -32)
+            {
+                stream.WriteByte((byte)(sbyte)v);
+            }
+            else if (v >= sbyte.MinValue)
+            {
+                stream.WriteByte(0xd0);
+                stream.WriteByte((byte)(sbyte)v);
+            }
+            else if (v >= short.MinValue)
+            {
+                stream.WriteByte(0xd1);
+                WriteBigEndian(stream, (ulong)v, 2);
+            }
+            else if (v >= int.MinValue)
+            {
+                stream.WriteByte(0xd2);
+                WriteBigEndian(stream, (ulong)v, 4);
+            }
+            else
+            {
+                stream.WriteByte(0xd3);
+                WriteBigEndian(stream, (ulong)v, 8);
+            }
+        }
+
+        private static void WriteString(Stream stream, string value)
+        {
+            var bytes = Encoding.UTF8.GetBytes(value);
+            if (bytes.Length < 32)
+            {
+                stream.WriteByte((byte)(0xa0 | bytes.Length));
+            }
+            else if (bytes.Length <= byte.MaxValue)
+            {
+                stream.WriteByte(0xd9);
+                stream.WriteByte((byte)bytes.Length);
+            }
+            else if (bytes.Length <= ushort.MaxValue)
+            {
+                stream.WriteByte(0xda);
+                WriteBigEndian(stream, (ulong)bytes.Length, 2);
+            }
+            else
+            {
+                stream.WriteByte(0xdb);
+                WriteBigEndian(stream, (ulong)bytes.Length, 4);
+            }
+            stream.Write(bytes, 0, bytes.Length);
+        }
+
+        private static void WriteHeader(Stream stream, int count, byte fixPrefix, int fixLimit, byte marker16, byte marker32)
+        {
+            if (count < fixLimit)
+            {
+                stream.WriteByte((byte)(fixPrefix | count));
+            }
+            else if (count <= ushort.MaxValue)
+            {
+                stream.WriteByte(marker16);
+                WriteBigEndian(stream, (ulong)count, 2);
+            }
+            else
+            {
+                stream.WriteByte(marker32);
+                WriteBigEndian(stream, (ulong)count, 4);
+            }
+        }
+
+        private static void WriteBigEndian(Stream stream, ulong value, int size)
+        {
+            for (int shift = (size - 1) * 8; shift >= 0; shift -= 8)
+            {
+                stream.WriteByte((byte)(value >> shift));
+            }
+        }
+
+        // ═══════════════════════════════════════════════════════════════════════
+        // Decoding
+        // ═══════════════════════════════════════════════════════════════════════
+
+        private static JToken Read(byte[] data, ref int position)
+        {
+            byte marker = ReadByte(data, ref position);
+
+            if (marker <= 0x7f) return new JValue((long)marker);
+            if (marker >= 0xe0) return new JValue((long)(sbyte)marker);
+            if (marker >= 0x80 && marker <= 0x8f) return ReadMap(data, ref position, marker & 0x0f);
+            if (marker >= 0x90 && marker <= 0x9f) return ReadArray(data, ref position, marker & 0x0f);
+            if (marker >= 0xa0 && marker <= 0xbf) return new JValue(ReadString(data, ref position, marker & 0x1f));
+
+            switch (marker)
+            {
+                case 0xc0: return JValue.CreateNull();
+                case 0xc2: return new JValue(false);
+                case 0xc3: return new JValue(true);
+                case 0xc4: return new JValue(ReadBytes(data, ref position, (int)ReadBigEndian(data, ref position, 1)));
+                case 0xc5: return new JValue(ReadBytes(data, ref position, (int)ReadBigEndian(data, ref position, 2)));
+                case 0xc6: return new JValue(ReadBytes(data, ref position, (int)ReadBigEndian(data, ref position, 4)));
+                case 0xca:
+                {
+                    var bits = (int)ReadBigEndian(data, ref position, 4);
+                    var single = BitConverter.ToSingle(BitConverter.GetBytes(bits), 0);
+                    return new JValue((double)single);
+                }
+                case 0xcb: return new JValue(BitConverter.Int64BitsToDouble((long)ReadBigEndian(data, ref position, 8)));
+                case 0xcc: return new JValue((long)ReadBigEndian(data, ref position, 1));
+                case 0xcd: return new JValue((long)ReadBigEndian(data, ref position, 2));
+                case 0xce: return new JValue((long)ReadBigEndian(data, ref position, 4));
+                case 0xcf:
+                {
+                    var u = ReadBigEndian(data, ref position, 8);
+                    return u > long.MaxValue ? new JValue(u) : new JValue((long)u);
+                }
+                case 0xd0: return new JValue((long)(sbyte)ReadBigEndian(data, ref position, 1));
+                case 0xd1: return new JValue((long)(short)ReadBigEndian(data, ref position, 2));
+                case 0xd2: return new JValue((long)(int)ReadBigEndian(data, ref position, 4));
+                case 0xd3: return new JValue((long)ReadBigEndian(data, ref position, 8));
+                case 0xd9: return new JValue(ReadString(data, ref position, (int)ReadBigEndian(data, ref position, 1)));
+                case 0xda: return new JValue(ReadString(data, ref position, (int)ReadBigEndian(data, ref position, 2)));
+                case 0xdb: return new JValue(ReadString(data, ref position, (int)ReadBigEndian(data, ref position, 4)));
+                case 0xdc: return ReadArray(data, ref position, (int)ReadBigEndian(data, ref position, 2));
+                case 0xdd: return ReadArray(data, ref position, (int)ReadBigEndian(data, ref position, 4));
+                case 0xde: return ReadMap(data, ref position, (int)ReadBigEndian(data, ref position, 2));
+                case 0xdf: return ReadMap(data, ref position, (int)ReadBigEndian(data, ref position, 4));
+                default:
+                    throw new NotSupportedException($"Unsupported MessagePack marker 0x{marker:x2}");
+            }
+        }
+
+        private static JObject ReadMap(byte[] data, ref int position, int count)
+        {
+            var obj = new JObject();
+            for (int i = 0; i < count; i++)
+            {
+                var key = Read(data, ref position);
+                var name = key.Type == JTokenType.String ? key.Value<string>() ?? "" : key.ToString();
+                obj[name] = Read(data, ref position);
+            }
+            return obj;
+        }
+
+        private static JArray ReadArray(byte[] data, ref int position, int count)
+        {
+            var array = new JArray();
+            for (int i = 0; i < count; i++)
+            {
+                array.Add(Read(data, ref position));
+            }
+            return array;
+        }
+
+        private static string ReadString(byte[] data, ref int position, int length)
+        {
+            EnsureAvailable(data, position, length);
+            var value = Encoding.UTF8.GetString(data, position, length);
+            position += length;
+            return value;
+        }
+
+        private static byte[] ReadBytes(byte[] data, ref int position, int length)
+        {
+            EnsureAvailable(data, position, length);
+            var bytes = new byte[length];
+            Buffer.BlockCopy(data, position, bytes, 0, length);
+            position += length;
+            return bytes;
+        }
+
+        private static byte ReadByte(byte[] data, ref int position)
+        {
+            EnsureAvailable(data, position, 1);
+            return data[position++];
+        }
+
+        private static ulong ReadBigEndian(byte[] data, ref int position, int size)
+        {
+            EnsureAvailable(data, position, size);
+            ulong value = 0;
+            for (int i = 0; i < size; i++)
+            {
+                value = (value << 8) | data[position++];
+            }
+            return value;
+        }
+
+        private static void EnsureAvailable(byte[] data, int position, int length)
+        {
+            if (length < 0 || position + length > data.Length)
+            {
+                throw new InvalidDataException("Truncated MessagePack data");
+            }
+        }
+    }
+}
@@ -14,6 +14,11 @@ namespace GameRL.Harmony.Protocol
     public abstract class GameMessage
     {
         public abstract string Type { get; }
+
+        /// <summary>
+        /// Correlation ID: set on requests from Rust, echoed on the matching response
+        /// </summary>
+        public ulong? RequestId { get; set; }
     }
 
     // ═══════════════════════════════════════════════════════════════════════════
@@ -40,6 +45,30 @@ namespace GameRL.Harmony.Protocol
         public int MaxAgents { get; set; }
         public bool Deterministic { get; set; }
         public bool Headless { get; set; }
+        /// <summary>
+        /// Wire encodings accepted besides JSON (filled in by Bridge when empty)
+        /// </summary>
+        public List<string> Encodings { get; set; } = new();
+        /// <summary>
+        /// Frame compression algorithms supported (filled in by Bridge when empty)
+        /// </summary>
+        public List<string> Compression { get; set; } = new();
+        /// <summary>
+        /// Transports offered after the socket handshake (filled in by Bridge when empty)
+        /// </summary>
+        public List<string> Transports { get; set; } = new();
+        /// <summary>
+        /// Framing extensions supported (filled in by Bridge when empty)
+        /// </summary>
+        public List<string> Framing { get; set; } = new();
+        /// <summary>
+        /// Whether the game handles ExecuteBatch (set by the game adapter)
+        /// </summary>
+        public bool BatchStep { get; set; }
+        /// <summary>
+        /// Whether the game handles SetClockMode and QueueAction (set by the game adapter)
+        /// </summary>
+        public bool LiveMode { get; set; }
     }
 
     /// <summary>
@@ -77,6 +106,10 @@ namespace GameRL.Harmony.Protocol
         public bool Done { get; set; }
         public bool Truncated { get; set; }
         public string? StateHash { get; set; }
+        /// <summary>
+        /// Events captured while the step ran
+        /// </summary>
+        public List<GameEvent> Events { get; set; } = new();
     }
 
     /// <summary>
@@ -117,6 +150,23 @@ namespace GameRL.Harmony.Protocol
         public string Message { get; set; } = "";
     }
 
+    /// <summary>
+    /// Shared-memory segment mapped; sent over the socket, later frames use the rings
+    /// </summary>
+    public class SharedMemoryAttachedMessage : GameMessage
+    {
+        public override string Type => "SharedMemoryAttached";
+    }
+
+    /// <summary>
+    /// Clock mode switched in response to SetClockMode
+    /// </summary>
+    public class ClockModeSetMessage : GameMessage
+    {
+        public override string Type => "ClockModeSet";
+        public string Mode { get; set; } = ClockModes.Training;
+    }
+
     // ═══════════════════════════════════════════════════════════════════════════
     // Rust → C# Messages (commands from server)
     // ═══════════════════════════════════════════════════════════════════════════
@@ -173,6 +223,26 @@ namespace GameRL.Harmony.Protocol
         public uint Ticks { get; set; }
     }
 
+    /// <summary>
+    /// Execute actions for several agents, then advance once
+    /// (answered with BatchStepResult)
+    /// </summary>
+    public class ExecuteBatchMessage : GameMessage
+    {
+        public override string Type => "ExecuteBatch";
+        public List<AgentAction> Actions { get; set; } = new();
+        public uint Ticks { get; set; }
+    }
+
+    /// <summary>
+    /// One agent's action within an ExecuteBatch
+    /// </summary>
+    public class AgentAction
+    {
+        public string AgentId { get; set; } = "";
+        public object? Action { get; set; }
+    }
+
     /// <summary>
     /// Configure vision streams
     /// </summary>
@@ -209,6 +279,55 @@ namespace GameRL.Harmony.Protocol
         public override string Type => "Shutdown";
     }
 
+    /// <summary>
+    /// Hand the clock to the game ("Live": run unpaused and push a StateUpdate
+    /// every PushInterval ticks) or take it back ("Training").
+    /// Answered with ClockModeSet; only sent when LiveMode is advertised.
+    /// </summary>
+    public class SetClockModeMessage : GameMessage
+    {
+        public override string Type => "SetClockMode";
+        public string Mode { get; set; } = ClockModes.Training;
+        public uint PushInterval { get; set; }
+    }
+
+    /// <summary>
+    /// Live mode: apply an action without advancing the simulation (no response)
+    /// </summary>
+    public class QueueActionMessage : GameMessage
+    {
+        public override string Type => "QueueAction";
+        public string AgentId { get; set; } = "";
+        public object? Action { get; set; }
+    }
+
+    /// <summary>
+    /// Select the wire encoding and compression for subsequent frames (handled by Bridge, no response)
+    /// </summary>
+    public class ConfigureWireMessage : GameMessage
+    {
+        public override string Type => "ConfigureWire";
+        public string Encoding { get; set; } = WireEncodings.Json;
+        /// <summary>
+        /// Compress frames at or above the threshold in both directions (null = off)
+        /// </summary>
+        public FrameCompressionSettings? Compression { get; set; }
+        /// <summary>
+        /// Rust joins chunked messages; split anything longer than this many bytes (null = never)
+        /// </summary>
+        public int? ChunkSize { get; set; }
+    }
+
+    /// <summary>
+    /// Move frames to a shared-memory segment created by Rust (handled by Bridge)
+    /// </summary>
+    public class AttachSharedMemoryMessage : GameMessage
+    {
+        public override string Type => "AttachSharedMemory";
+        public string Path { get; set; } = "";
+        public int Capacity { get; set; }
+    }
+
     /// <summary>
     /// Vision stream configuration response
     /// </summary>
@@ -223,6 +342,15 @@ namespace GameRL.Harmony.Protocol
     // Shared Types
     // ═══════════════════════════════════════════════════════════════════════════
 
+    /// <summary>
+    /// Values of the Mode field in SetClockMode and ClockModeSet
+    /// </summary>
+    public static class ClockModes
+    {
+        public const string Training = "Training";
+        public const string Live = "Live";
+    }
+
     /// <summary>
     /// Game event that occurred during a step
     /// </summary>
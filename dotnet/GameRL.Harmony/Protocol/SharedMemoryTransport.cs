@@ -0,0 +1,298 @@
+// Shared-memory ring transport matching game-bridge/src/shm.rs
+// Rust creates a /dev/shm segment with two SPSC byte rings and sends its path in
+// AttachSharedMemory. Frames keep the socket layout ([u32 LE length][payload]);
+// a side with nothing to do sleeps on a futex word in the ring header.
+
+using System;
+using System.Diagnostics;
+using System.IO;
+using System.IO.MemoryMappedFiles;
+using System.Runtime.InteropServices;
+using System.Threading;
+
+namespace GameRL.Harmony.Protocol
+{
+    /// <summary>
+    /// Transport names shared with game-bridge (GameCapabilities.Transports)
+    /// </summary>
+    public static class WireTransports
+    {
+        public const string SharedMemory = "SharedMemory";
+    }
+
+    /// <summary>
+    /// The game's end of a shared-memory segment: reads ring 0, writes ring 1.
+    /// One reader thread and one writer (under the Bridge send lock) at a time.
+    /// </summary>
+    public sealed unsafe class SharedMemoryTransport : IDisposable
+    {
+        // Segment header
+        private const uint Magic = 0x534C5247; // "GRLS"
+        private const uint Version = 1;
+        private const int SegmentHeaderLength = 64;
+        private const int MagicOffset = 0;
+        private const int VersionOffset = 4;
+        private const int CapacityOffset = 8;
+        private const int GamePidOffset = 12;
+
+        // Ring header
+        private const int RingHeaderLength = 256;
+        private const int HeadOffset = 0;
+        private const int TailOffset = 64;
+        private const int DataSignalOffset = 128;
+        private const int ConsumerWaitingOffset = 132;
+        private const int SpaceSignalOffset = 192;
+        private const int ProducerWaitingOffset = 196;
+        private const int ClosedOffset = 200;
+
+        private const int WaitSliceMs = 100;
+
+        private readonly MemoryMappedFile _file;
+        private readonly MemoryMappedViewAccessor _view;
+        private readonly byte* _base;
+        private readonly Ring _incoming;
+        private readonly Ring _outgoing;
+
+        /// <summary>
+        /// Shared memory needs futexes, so it is offered on Linux x64/arm64 only
+        /// </summary>
+        public static bool IsSupported =>
+            RuntimeInformation.IsOSPlatform(OSPlatform.Linux) && FutexSyscall != 0;
+
+        private static readonly long FutexSyscall = RuntimeInformation.ProcessArchitecture switch
+        {
+            Architecture.X64 => 202,
+            Architecture.Arm64 => 98,
+            _ => 0
+        };
+
+        private SharedMemoryTransport(MemoryMappedFile file, MemoryMappedViewAccessor view, byte* basePtr, long capacity)
+        {
+            _file = file;
+            _view = view;
+            _base = basePtr;
+            _incoming = new Ring(basePtr + SegmentHeaderLength, capacity);
+            _outgoing = new Ring(basePtr + SegmentHeaderLength + RingHeaderLength + capacity, capacity);
+        }
+
+        /// <summary>
+        /// Map a segment created by Rust and record our pid so Rust can tell if we exit
+        /// </summary>
+        public static SharedMemoryTransport Open(string path, int capacity)
+        {
+            var file = MemoryMappedFile.CreateFromFile(path, FileMode.Open, null, 0, MemoryMappedFileAccess.ReadWrite);
+            MemoryMappedViewAccessor? view = null;
+            try
+            {
+                view = file.CreateViewAccessor(0, 0, MemoryMappedFileAccess.ReadWrite);
+                byte* basePtr = null;
+                view.SafeMemoryMappedViewHandle.AcquirePointer(ref basePtr);
+                basePtr += view.PointerOffset;
+
+                var magic = (uint)Volatile.Read(ref *(int*)(basePtr + MagicOffset));
+                var version = *(uint*)(basePtr + VersionOffset);
+                var mappedCapacity = *(uint*)(basePtr + CapacityOffset);
+                if (magic != Magic || version != Version || mappedCapacity != (uint)capacity)
+                {
+                    view.SafeMemoryMappedViewHandle.ReleasePointer();
+                    throw new InvalidDataException($"Not a GameRL segment (version {version}, capacity {mappedCapacity})");
+                }
+
+                var transport = new SharedMemoryTransport(file, view, basePtr, capacity);
+                Volatile.Write(ref *(int*)(basePtr + GamePidOffset), Process.GetCurrentProcess().Id);
+                return transport;
+            }
+            catch
+            {
+                view?.Dispose();
+                file.Dispose();
+                throw;
+            }
+        }
+
+        /// <summary>
+        /// Fill buffer from the Rust -> game ring; false once the ring is closed and drained
+        /// </summary>
+        public bool ReadExact(byte[] buffer, int offset, int count) => _incoming.ReadExact(buffer, offset, count);
+
+        /// <summary>
+        /// Write the first count bytes of buffer (whole frames, prefixes included) to the
+        /// game -> Rust ring; false once closed
+        /// </summary>
+        public bool Write(byte[] buffer, int count) => _outgoing.WriteAll(buffer, count);
+
+        /// <summary>
+        /// Mark both rings closed and wake anything sleeping on them
+        /// </summary>
+        public void Close()
+        {
+            _incoming.Close();
+            _outgoing.Close();
+        }
+
+        public void Dispose()
+        {
+            Close();
+            _view.SafeMemoryMappedViewHandle.ReleasePointer();
+            _view.Dispose();
+            _file.Dispose();
+        }
+
+        private sealed class Ring
+        {
+            private readonly byte* _header;
+            private readonly byte* _data;
+            private readonly long _capacity;
+
+            public Ring(byte* header, long capacity)
+            {
+                _header = header;
+                _data = header + RingHeaderLength;
+                _capacity = capacity;
+            }
+
+            private long* Head => (long*)(_header + HeadOffset);
+            private long* Tail => (long*)(_header + TailOffset);
+            private int* DataSignal => (int*)(_header + DataSignalOffset);
+            private int* ConsumerWaiting => (int*)(_header + ConsumerWaitingOffset);
+            private int* SpaceSignal => (int*)(_header + SpaceSignalOffset);
+            private int* ProducerWaiting => (int*)(_header + ProducerWaitingOffset);
+            private int* Closed => (int*)(_header + ClosedOffset);
+
+            private bool IsClosed => Volatile.Read(ref *Closed) != 0;
+            private long Readable => Volatile.Read(ref *Head) - Volatile.Read(ref *Tail);
+            private long Writable => _capacity - (Volatile.Read(ref *Head) - Volatile.Read(ref *Tail));
+
+            public bool ReadExact(byte[] buffer, int offset, int count)
+            {
+                while (count > 0)
+                {
+                    long available = Readable;
+                    if (available == 0)
+                    {
+                        if (IsClosed) return false;
+                        Wait(DataSignal, ConsumerWaiting, forData: true);
+                        continue;
+                    }
+
+                    int n = (int)Math.Min(count, available);
+                    long tail = Volatile.Read(ref *Tail);
+                    Copy(tail, buffer, offset, n, toRing: false);
+                    Volatile.Write(ref *Tail, tail + n);
+                    Notify(SpaceSignal, ProducerWaiting);
+                    offset += n;
+                    count -= n;
+                }
+                return true;
+            }
+
+            public bool WriteAll(byte[] buffer, int count)
+            {
+                int offset = 0;
+                while (offset < count)
+                {
+                    if (IsClosed) return false;
+                    long space = Writable;
+                    if (space == 0)
+                    {
+                        Wait(SpaceSignal, ProducerWaiting, forData: false);
+                        continue;
+                    }
+
+                    int n = (int)Math.Min(count - offset, space);
+                    long head = Volatile.Read(ref *Head);
+                    Copy(head, buffer, offset, n, toRing: true);
+                    Volatile.Write(ref *Head, head + n);
+                    Notify(DataSignal, ConsumerWaiting);
+                    offset += n;
+                }
+                return true;
+            }
+
+            public void Close()
+            {
+                Volatile.Write(ref *Closed, 1);
+                Interlocked.Increment(ref *DataSignal);
+                Interlocked.Increment(ref *SpaceSignal);
+                FutexWake(DataSignal);
+                FutexWake(SpaceSignal);
+            }
+
+            /// <summary>
+            /// Copy between buffer and the ring at stream position pos, wrapping around
+            /// </summary>
+            private void Copy(long pos, byte[] buffer, int offset, int count, bool toRing)
+            {
+                int start = (int)(pos % _capacity);
+                int first = (int)Math.Min(count, _capacity - start);
+                if (toRing)
+                {
+                    Marshal.Copy(buffer, offset, (IntPtr)(_data + start), first);
+                    Marshal.Copy(buffer, offset + first, (IntPtr)_data, count - first);
+                }
+                else
+                {
+                    Marshal.Copy((IntPtr)(_data + start), buffer, offset, first);
+                    Marshal.Copy((IntPtr)_data, buffer, offset + first, count - first);
+                }
+            }
+
+            private void Notify(int* signal, int* waiting)
+            {
+                // Interlocked is a full fence: the waiting flag is read after the bump
+                Interlocked.Increment(ref *signal);
+                if (Volatile.Read(ref *waiting) != 0)
+                {
+                    FutexWake(signal);
+                }
+            }
+
+            private void Wait(int* signal, int* waiting, bool forData)
+            {
+                // Announce before re-checking, so a publish in between either changes
+                // the signal (the futex returns at once) or sees us waiting and wakes us
+                Interlocked.Exchange(ref *waiting, 1);
+                int seen = Volatile.Read(ref *signal);
+                bool ready = forData ? Readable > 0 : Writable > 0;
+                if (!ready && !IsClosed)
+                {
+                    FutexWait(signal, seen, WaitSliceMs);
+                }
+                Volatile.Write(ref *waiting, 0);
+            }
+        }
+
+        // ═══════════════════════════════════════════════════════════════════════
+        // futex(2) via libc syscall(); shared (not private) since two processes map the word
+        // ═══════════════════════════════════════════════════════════════════════
+
+        private const int FutexWaitOp = 0;
+        private const int FutexWakeOp = 1;
+
+        [StructLayout(LayoutKind.Sequential)]
+        private struct Timespec
+        {
+            public long Seconds;
+            public long Nanoseconds;
+        }
+
+        [DllImport("libc", EntryPoint = "syscall", SetLastError = true)]
+        private static extern long Syscall(long number, int* address, int op, int value, Timespec* timeout);
+
+        private static void FutexWait(int* address, int expected, int timeoutMs)
+        {
+            // Spurious returns (EAGAIN, EINTR, ETIMEDOUT) are fine: callers re-check
+            var timeout = new Timespec
+            {
+                Seconds = timeoutMs / 1000,
+                Nanoseconds = (timeoutMs % 1000) * 1_000_000L
+            };
+            Syscall(FutexSyscall, address, FutexWaitOp, expected, &timeout);
+        }
+
+        private static void FutexWake(int* address)
+        {
+            Syscall(FutexSyscall, address, FutexWakeOp, 1, null);
+        }
+    }
+}